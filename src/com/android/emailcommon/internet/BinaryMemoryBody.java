@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A Body that keeps its decoded bytes in memory. {@link MimeUtility#decodeBody} uses this for
+ * parts small enough that a temp file would cost more than it saves.
+ */
+public class BinaryMemoryBody implements Body {
+    private final byte[] mData;
+
+    public BinaryMemoryBody(byte[] data) {
+        mData = data;
+    }
+
+    public int getLength() {
+        return mData.length;
+    }
+
+    /**
+     * Decodes the body to a String in the given charset, straight from the stored bytes.
+     */
+    public String getText(String charset) throws UnsupportedEncodingException {
+        return new String(mData, charset);
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        return new ByteArrayInputStream(mData);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        Base64OutputStream base64Out = new Base64OutputStream(
+            out, Base64.CRLF | Base64.NO_CLOSE);
+        base64Out.write(mData);
+        base64Out.close();
+    }
+}
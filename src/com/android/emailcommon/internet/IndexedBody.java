@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Base64;
+import android.util.Base64DataException;
+import android.util.Base64OutputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A Body that is still in its transfer encoding, in place in the message it was parsed from.
+ * {@link MimeMessage#MimeMessage(ByteBuffer)} creates these instead of decoding each part as it
+ * parses, so a part is only decoded if and when its InputStream is read. Unlike the bodies
+ * {@link MimeUtility#decodeBody} returns, this one can be read any number of times.
+ */
+public class IndexedBody implements Body {
+    /** The encoded body, from position 0 to the limit */
+    private final ByteBuffer mEncoded;
+    private final String mContentTransferEncoding;
+
+    IndexedBody(ByteBuffer encoded, String contentTransferEncoding) {
+        mEncoded = encoded;
+        mContentTransferEncoding = contentTransferEncoding;
+    }
+
+    /**
+     * Returns the length of the body before it is decoded.
+     */
+    public int getEncodedLength() {
+        return mEncoded.limit();
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        return new DecodingInputStream(MimeUtility.getInputStreamForContentTransferEncoding(
+                new ByteBufferInputStream(mEncoded.duplicate()), mContentTransferEncoding));
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = getInputStream();
+        Base64OutputStream base64Out = new Base64OutputStream(
+            out, Base64.CRLF | Base64.NO_CLOSE);
+        try {
+            IOUtils.copy(in, base64Out);
+            base64Out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Ends the body at the first bad base64 data, as {@link MimeUtility#decodeBody} does when
+     * it decodes a body up front.
+     */
+    private static class DecodingInputStream extends FilterInputStream {
+        private boolean mEnded;
+
+        DecodingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mEnded) {
+                return -1;
+            }
+            try {
+                return in.read(buffer, offset, length);
+            } catch (Base64DataException bde) {
+                mEnded = true;
+                return -1;
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.emailcommon.internet;
 
+import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.BodyPart;
@@ -25,20 +26,28 @@ import com.android.emailcommon.mail.Multipart;
 import com.android.emailcommon.mail.Part;
 import com.android.mail.utils.LogUtils;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.BodyDescriptor;
 import org.apache.james.mime4j.ContentHandler;
 import org.apache.james.mime4j.EOLConvertingInputStream;
 import org.apache.james.mime4j.MimeStreamParser;
+import org.apache.james.mime4j.RawField;
 import org.apache.james.mime4j.field.DateTimeField;
 import org.apache.james.mime4j.field.Field;
 
 import android.text.TextUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -121,7 +130,78 @@ public class MimeMessage extends Message {
         parse(in);
     }
 
-    private MimeStreamParser init() {
+    /**
+     * Parse the message in the given buffer, typically a file mapped into memory, without
+     * decoding any of its bodies. Each body is an {@link IndexedBody} that refers back to where
+     * it is in the buffer and is only decoded when it is read, so parts that are never read cost
+     * no more than finding their boundaries. The buffer's contents must not change while the
+     * message is in use.
+     * <p>
+     * Bodies can only be found in place if every line ends in CRLF, so a message with any other
+     * line endings is first copied to a temp file with them converted.
+     *
+     * @param source buffer holding the message, from its position to its limit
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public MimeMessage(ByteBuffer source) throws IOException, MessagingException {
+        source = source.slice();
+        if (hasBareLineEndings(source)) {
+            source = convertLineEndings(source);
+        }
+        parseMessage(new ByteBufferInputStream(source.duplicate()), source);
+    }
+
+    private static boolean hasBareLineEndings(ByteBuffer source) {
+        final int limit = source.limit();
+        for (int i = 0; i < limit; i++) {
+            final byte b = source.get(i);
+            if (b == '\r') {
+                if (i + 1 == limit || source.get(i + 1) != '\n') {
+                    return true;
+                }
+                i++;
+            } else if (b == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the message with its line endings converted to CRLF, in a temp file
+     * mapped into memory. The file itself is deleted straight away; the mapping outlives it.
+     */
+    private static ByteBuffer convertLineEndings(ByteBuffer source) throws IOException {
+        final File file = File.createTempFile("body", null, TempDirectory.getTempDirectory());
+        try {
+            final InputStream in = new EOLConvertingInputStream(
+                    new ByteBufferInputStream(source.duplicate()));
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+            final RandomAccessFile access = new RandomAccessFile(file, "r");
+            try {
+                return access.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        access.length());
+            } finally {
+                access.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Parses the message from the stream.
+     *
+     * @param source the buffer the stream reads, in which case bodies are left in place in it,
+     *        or null
+     */
+    private void parseMessage(InputStream in, ByteBuffer source) throws IOException {
         // Before parsing the input stream, clear all local fields that may be superceded by
         // the new incoming message.
         getMimeHeaders().clear();
@@ -135,21 +215,24 @@ public class MimeMessage extends Message {
         mBody = null;
 
         final MimeStreamParser parser = new MimeStreamParser();
-        parser.setContentHandler(new MimeMessageBuilder());
-        return parser;
+        final MimeMessageBuilder builder = source == null ? new MimeMessageBuilder()
+                : new MimeMessageBuilder(parser, source);
+        parser.setContentHandler(builder);
+        try {
+            parser.parse(in);
+        } finally {
+            builder.finish();
+        }
+        mComplete = !parser.getPrematureEof();
     }
 
     protected void parse(InputStream in) throws IOException, MessagingException {
-        final MimeStreamParser parser = init();
-        parser.parse(new EOLConvertingInputStream(in));
-        mComplete = !parser.getPrematureEof();
+        parseMessage(new EOLConvertingInputStream(in), null);
     }
 
     public void parse(InputStream in, EOLConvertingInputStream.Callback callback)
             throws IOException, MessagingException {
-        final MimeStreamParser parser = init();
-        parser.parse(new EOLConvertingInputStream(in, getSize(), callback));
-        mComplete = !parser.getPrematureEof();
+        parseMessage(new EOLConvertingInputStream(in, getSize(), callback), null);
     }
 
     /**
@@ -538,8 +621,32 @@ public class MimeMessage extends Message {
 
     class MimeMessageBuilder implements ContentHandler {
         private final Stack<Object> stack = new Stack<Object>();
+        /** Holds the large bodies of every part of the message, so it takes one file at most */
+        private final SharedTempFile mTempFile = new SharedTempFile();
+        /** When parsing from a buffer, the parser and the buffer it is parsing */
+        private final MimeStreamParser mParser;
+        private final ByteBuffer mSource;
+        private byte[] mSkipBuffer;
 
         public MimeMessageBuilder() {
+            this(null, null);
+        }
+
+        /**
+         * Creates a builder that leaves bodies in place in the source buffer, rather than
+         * decoding them.
+         */
+        MimeMessageBuilder(MimeStreamParser parser, ByteBuffer source) {
+            mParser = parser;
+            mSource = source;
+        }
+
+        /**
+         * Closes the temp file the large bodies were written to, once parsing is over. The
+         * bodies reopen it when they are read.
+         */
+        void finish() {
+            mTempFile.close();
         }
 
         private void expect(Class<?> c) {
@@ -577,11 +684,10 @@ public class MimeMessage extends Message {
         }
 
         @Override
-        public void field(String fieldData) {
+        public void field(RawField rawField) {
             expect(Part.class);
             try {
-                final String[] tokens = fieldData.split(":", 2);
-                ((Part)stack.peek()).addHeader(tokens[0], tokens[1].trim());
+                ((Part)stack.peek()).addHeader(rawField.getName(), rawField.getBody());
             } catch (MessagingException me) {
                 throw new Error(me);
             }
@@ -609,7 +715,18 @@ public class MimeMessage extends Message {
         @Override
         public void body(BodyDescriptor bd, InputStream in) throws IOException {
             expect(Part.class);
-            final Body body = MimeUtility.decodeBody(in, bd.getTransferEncoding());
+            final long offset = mSource != null ? mParser.getBodyOffset() : -1;
+            final Body body;
+            if (offset >= 0) {
+                // Step over the body so the parser can go on to the next part, and note where
+                // it is
+                final ByteBuffer encoded = mSource.duplicate();
+                encoded.position((int) offset);
+                encoded.limit((int) (offset + skip(in)));
+                body = new IndexedBody(encoded.slice(), bd.getTransferEncoding());
+            } else {
+                body = MimeUtility.decodeBody(in, bd.getTransferEncoding(), mTempFile);
+            }
             try {
                 ((Part)stack.peek()).setBody(body);
             } catch (MessagingException me) {
@@ -617,6 +734,23 @@ public class MimeMessage extends Message {
             }
         }
 
+        /**
+         * Reads to the end of the stream.
+         *
+         * @return the number of bytes read
+         */
+        private long skip(InputStream in) throws IOException {
+            if (mSkipBuffer == null) {
+                mSkipBuffer = new byte[4096];
+            }
+            long length = 0;
+            int count;
+            while ((count = in.read(mSkipBuffer)) != -1) {
+                length += count;
+            }
+            return length;
+        }
+
         @Override
         public void endMultipart() {
             stack.pop();
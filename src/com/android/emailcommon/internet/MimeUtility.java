@@ -35,11 +35,10 @@ import org.apache.james.mime4j.decoder.DecoderUtil;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.CharsetUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,6 +48,16 @@ public class MimeUtility {
     public static final String MIME_TYPE_RFC822 = "message/rfc822";
     private final static Pattern PATTERN_CR_OR_LF = Pattern.compile("\r|\n");
 
+    /** Decoded bodies up to this size are kept in memory rather than in a temp file */
+    static final int MEMORY_BODY_THRESHOLD = 32 * 1024;
+    /** Each body is first decoded into this, so small ones only need copying out once */
+    private static final ThreadLocal<byte[]> sDecodeBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MEMORY_BODY_THRESHOLD];
+        }
+    };
+
     /**
      * Replace sequences of CRLF+WSP with WSP.  Tries to preserve original string
      * object whenever possible.
@@ -225,18 +234,9 @@ public class MimeUtility {
     public static String getTextFromPart(Part part) {
         try {
             if (part != null && part.getBody() != null) {
-                InputStream in = part.getBody().getInputStream();
+                final Body body = part.getBody();
                 String mimeType = part.getMimeType();
                 if (mimeType != null && MimeUtility.mimeTypeMatches(mimeType, "text/*")) {
-                    /*
-                     * Now we read the part into a buffer for further processing. Because
-                     * the stream is now wrapped we'll remove any transfer encoding at this point.
-                     */
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    IOUtils.copy(in, out);
-                    in.close();
-                    in = null;      // we want all of our memory back, and close might not release
-
                     /*
                      * We've got a text part, so let's see if it needs to be processed further.
                      */
@@ -254,11 +254,20 @@ public class MimeUtility {
                         charset = "ASCII";
                     }
                     /*
-                     * Convert and return as new String
+                     * Convert and return as new String. Small bodies are already in memory and
+                     * are decoded in place; anything else is decoded as it is read, rather than
+                     * copied into a buffer first. Because the stream is wrapped, any transfer
+                     * encoding has already been removed at this point.
                      */
-                    String result = out.toString(charset);
-                    out.close();
-                    return result;
+                    if (body instanceof BinaryMemoryBody) {
+                        return ((BinaryMemoryBody) body).getText(charset);
+                    }
+                    final InputStream in = body.getInputStream();
+                    try {
+                        return IOUtils.toString(in, charset);
+                    } finally {
+                        in.close();
+                    }
                 }
             }
 
@@ -339,22 +348,60 @@ public class MimeUtility {
      */
     public static Body decodeBody(InputStream in, String contentTransferEncoding)
             throws IOException {
+        final SharedTempFile tempFile = new SharedTempFile();
+        try {
+            return decodeBody(in, contentTransferEncoding, tempFile);
+        } finally {
+            tempFile.close();
+        }
+    }
+
+    /**
+     * Removes any content transfer encoding from the stream and returns a Body. Parts that
+     * decode to at most {@link #MEMORY_BODY_THRESHOLD} bytes are kept in memory; larger ones are
+     * appended to the given temp file, which all the large parts of a message share.
+     */
+    static Body decodeBody(InputStream in, String contentTransferEncoding,
+            SharedTempFile tempFile) throws IOException {
         /*
          * We'll remove any transfer encoding by wrapping the stream.
          */
         in = getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
-        BinaryTempFileBody tempBody = new BinaryTempFileBody();
-        OutputStream out = tempBody.getOutputStream();
+        final byte[] buffer = sDecodeBuffer.get();
+        int length = 0;
+        int next = -1;
         try {
-            IOUtils.copy(in, out);
+            int count = 0;
+            while (length < buffer.length
+                    && (count = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += count;
+            }
+            if (count != -1) {
+                // The buffer is full, so see whether there is any more
+                next = in.read();
+            }
         } catch (Base64DataException bde) {
             // TODO Need to fix this somehow
             //String warning = "\n\n" + Email.getMessageDecodeErrorString();
             //out.write(warning.getBytes());
-        } finally {
-            out.close();
         }
-        return tempBody;
+        if (next == -1) {
+            return new BinaryMemoryBody(Arrays.copyOf(buffer, length));
+        }
+
+        final long offset = tempFile.beginAppend();
+        tempFile.write(buffer, 0, length);
+        buffer[0] = (byte) next;
+        tempFile.write(buffer, 0, 1);
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                tempFile.write(buffer, 0, count);
+            }
+        } catch (Base64DataException bde) {
+            // TODO Need to fix this somehow, as above
+        }
+        return tempFile.endAppend(offset);
     }
 
     /**
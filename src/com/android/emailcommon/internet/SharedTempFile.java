@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.TempDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A single temp file that the large parts of a message are appended to one after another, so
+ * parsing a message creates at most one file however many parts it has. Each part is read back
+ * through a {@link SharedTempFileBody} that knows its offset and length.
+ * <p>
+ * Like {@link BinaryTempFileBody}, the file is only held open while it is being written or read:
+ * {@link #close()} is called once parsing is over, and a body that is read reopens it. The bodies
+ * are meant to be read once: the file is deleted when the last body that was appended to it has
+ * been read. A part appended after that starts a new file.
+ */
+class SharedTempFile {
+    private File mFile;
+    private RandomAccessFile mAccess;
+    private long mEnd;
+    /** The number of bodies in the file that haven't been read yet */
+    private int mOpenBodies;
+
+    /**
+     * Starts appending a new body to the end of the file, creating the file if needed.
+     *
+     * @return the offset the body starts at, to be passed to {@link #endAppend(long)}
+     */
+    synchronized long beginAppend() throws IOException {
+        if (mFile == null) {
+            mFile = File.createTempFile("body", null, TempDirectory.getTempDirectory());
+            mFile.deleteOnExit();
+            mEnd = 0;
+        }
+        open();
+        return mEnd;
+    }
+
+    synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        mAccess.seek(mEnd);
+        mAccess.write(buffer, offset, length);
+        mEnd += length;
+    }
+
+    /**
+     * @return a body that reads back everything written since the matching
+     *         {@link #beginAppend()}
+     */
+    synchronized SharedTempFileBody endAppend(long offset) {
+        mOpenBodies++;
+        return new SharedTempFileBody(this, offset, mEnd - offset);
+    }
+
+    /**
+     * Reads up to {@code length} bytes at the given position in the file.
+     *
+     * @return the number of bytes read, or -1 at the end of the file
+     */
+    synchronized int read(long position, byte[] buffer, int offset, int length)
+            throws IOException {
+        if (mFile == null) {
+            throw new IOException("Body already read");
+        }
+        open();
+        mAccess.seek(position);
+        return mAccess.read(buffer, offset, length);
+    }
+
+    private void open() throws IOException {
+        if (mAccess == null) {
+            mAccess = new RandomAccessFile(mFile, "rw");
+        }
+    }
+
+    /**
+     * Closes the file until it is next written or read. The bodies in it stay readable.
+     */
+    synchronized void close() {
+        if (mAccess != null) {
+            try {
+                mAccess.close();
+            } catch (IOException e) {
+                // Nothing was buffered, so nothing is lost
+            }
+            mAccess = null;
+        }
+    }
+
+    /**
+     * Called once each body has been read; closes the file, and deletes it once all the bodies
+     * have been read.
+     */
+    synchronized void release() {
+        close();
+        if (mOpenBodies > 0 && --mOpenBodies == 0) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A Body stored in a range of a {@link SharedTempFile}. As with {@link BinaryTempFileBody}, the
+ * body can be read once: after writeTo is called, or the InputStream returned from
+ * getInputStream is closed, the body should be considered disposed of.
+ */
+public class SharedTempFileBody implements Body {
+    private final SharedTempFile mFile;
+    private final long mOffset;
+    private final long mLength;
+    private boolean mReleased;
+
+    SharedTempFileBody(SharedTempFile file, long offset, long length) {
+        mFile = file;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        return new RangeInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = getInputStream();
+        Base64OutputStream base64Out = new Base64OutputStream(
+            out, Base64.CRLF | Base64.NO_CLOSE);
+        try {
+            IOUtils.copy(in, base64Out);
+            base64Out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized void release() {
+        if (!mReleased) {
+            mReleased = true;
+            mFile.release();
+        }
+    }
+
+    private class RangeInputStream extends InputStream {
+        private long mPosition;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            final long remaining = mLength - mPosition;
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int count = mFile.read(mOffset + mPosition, buffer, offset,
+                    (int) Math.min(length, remaining));
+            if (count > 0) {
+                mPosition += count;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mLength - mPosition);
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
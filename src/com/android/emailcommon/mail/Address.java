@@ -17,11 +17,12 @@ package com.android.emailcommon.mail;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.text.Html;
 import android.text.TextUtils;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 
+import com.android.mail.utils.BoundedConcurrentCache;
+import com.android.mail.utils.HtmlUtils;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
@@ -69,20 +70,6 @@ public class Address implements Parcelable {
     // Regex that matches escaped character '\\([\\"])'
     private static final Pattern UNQUOTE = Pattern.compile("\\\\([\\\\\"])");
 
-    // TODO: LOCAL_PART and DOMAIN_PART_PART are too permissive and can be improved.
-    // TODO: Fix this to better constrain comments.
-    /** Regex for the local part of an email address. */
-    private static final String LOCAL_PART = "[^@]+";
-    /** Regex for each part of the domain part, i.e. the thing between the dots. */
-    private static final String DOMAIN_PART_PART = "[[\\w][\\d]\\-\\(\\)\\[\\]]+";
-    /** Regex for the domain part, which is two or more {@link #DOMAIN_PART_PART} separated by . */
-    private static final String DOMAIN_PART =
-            "(" + DOMAIN_PART_PART + "\\.)+" + DOMAIN_PART_PART;
-
-    /** Pattern to check if an email address is valid. */
-    private static final Pattern EMAIL_ADDRESS =
-            Pattern.compile("\\A" + LOCAL_PART + "@" + DOMAIN_PART + "\\z");
-
     private static final Address[] EMPTY_ADDRESS_ARRAY = new Address[0];
 
     // delimiters are chars that do not appear in an email address, used by fromHeader
@@ -91,6 +78,12 @@ public class Address implements Parcelable {
 
     private static final String LOG_TAG = LogTag.getLogTag();
 
+    private static final int PARSED_ADDRESS_CACHE_SIZE = 512;
+
+    /** Addresses parsed by {@link #getEmailAddress(String)}, which must not be modified */
+    private static final BoundedConcurrentCache<String, Address> sParsedAddresses =
+            new BoundedConcurrentCache<String, Address>(PARSED_ADDRESS_CACHE_SIZE);
+
     @VisibleForTesting
     public Address(String address) {
         setAddress(address);
@@ -101,6 +94,14 @@ public class Address implements Parcelable {
         setAddress(address);
     }
 
+    /**
+     * Copies an already parsed address, without parsing it again.
+     */
+    private Address(Address other) {
+        mAddress = other.mAddress;
+        mPersonal = other.mPersonal;
+    }
+
     /**
      * Returns a simplified string for this e-mail address.
      * When a name is known, it will return the first token of that name. Otherwise, it will
@@ -129,23 +130,31 @@ public class Address implements Parcelable {
         return mSimplifiedName;
     }
 
-    public static synchronized Address getEmailAddress(String rawAddress) {
+    /**
+     * Parses a single raw address, such as one from a conversation's sender list. The same few
+     * hundred correspondents are parsed over and over, so parsed addresses are cached. The
+     * returned Address is a new copy that the caller is free to modify.
+     */
+    public static Address getEmailAddress(String rawAddress) {
         if (TextUtils.isEmpty(rawAddress)) {
             return null;
         }
-        String name, address;
-        final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(rawAddress);
-        if (tokens.length > 0) {
-            final String tokenizedName = tokens[0].getName();
-            name = tokenizedName != null ? Html.fromHtml(tokenizedName.trim()).toString()
-                    : "";
-            address = Html.fromHtml(tokens[0].getAddress()).toString();
-        } else {
-            name = "";
-            address = rawAddress == null ?
-                    "" : Html.fromHtml(rawAddress).toString();
+        Address parsed = sParsedAddresses.get(rawAddress);
+        if (parsed == null) {
+            String name, address;
+            final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(rawAddress);
+            if (tokens.length > 0) {
+                final String tokenizedName = tokens[0].getName();
+                name = tokenizedName != null ? HtmlUtils.fromHtmlToString(tokenizedName.trim())
+                        : "";
+                address = HtmlUtils.fromHtmlToString(tokens[0].getAddress());
+            } else {
+                name = "";
+                address = HtmlUtils.fromHtmlToString(rawAddress);
+            }
+            parsed = sParsedAddresses.putIfAbsent(rawAddress, new Address(address, name));
         }
-        return new Address(address, name);
+        return new Address(parsed);
     }
 
     public String getAddress() {
@@ -153,7 +162,12 @@ public class Address implements Parcelable {
     }
 
     public void setAddress(String address) {
-        mAddress = REMOVE_OPTIONAL_BRACKET.matcher(address).replaceAll("$1");
+        // Without any brackets, the pattern below would leave the address as it is
+        if (address.indexOf('<') == -1 && address.indexOf('>') == -1) {
+            mAddress = address;
+        } else {
+            mAddress = REMOVE_OPTIONAL_BRACKET.matcher(address).replaceAll("$1");
+        }
     }
 
     /**
@@ -183,8 +197,11 @@ public class Address implements Parcelable {
      */
     public static String decodeAddressPersonal(String personal) {
         if (personal != null) {
-            personal = REMOVE_OPTIONAL_DQUOTE.matcher(personal).replaceAll("$1");
-            personal = UNQUOTE.matcher(personal).replaceAll("$1");
+            // Without any quotes or backslashes, the patterns below would leave it as it is
+            if (personal.indexOf('"') != -1 || personal.indexOf('\\') != -1) {
+                personal = REMOVE_OPTIONAL_DQUOTE.matcher(personal).replaceAll("$1");
+                personal = UNQUOTE.matcher(personal).replaceAll("$1");
+            }
             personal = DecoderUtil.decodeEncodedWords(personal);
             if (personal.length() == 0) {
                 personal = null;
@@ -199,14 +216,11 @@ public class Address implements Parcelable {
      */
     @VisibleForTesting
     public static boolean isAllValid(String addressList) {
-        // This code mimics the parse() method below.
-        // I don't know how to better avoid the code-duplication.
         if (addressList != null && addressList.length() > 0) {
-            Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(addressList);
-            for (int i = 0, length = tokens.length; i < length; ++i) {
-                Rfc822Token token = tokens[i];
-                String address = token.getAddress();
-                if (!TextUtils.isEmpty(address) && !isValidAddress(address)) {
+            final AddressListScanner scanner = new AddressListScanner(addressList);
+            while (scanner.next()) {
+                if (scanner.mAddressLength > 0 && !isValidAddress(scanner.mAddress, 0,
+                        scanner.mAddressLength)) {
                     return false;
                 }
             }
@@ -225,22 +239,160 @@ public class Address implements Parcelable {
         if (addressList == null || addressList.length() == 0) {
             return EMPTY_ADDRESS_ARRAY;
         }
-        Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(addressList);
+        final AddressListScanner scanner = new AddressListScanner(addressList);
         ArrayList<Address> addresses = new ArrayList<Address>();
-        for (int i = 0, length = tokens.length; i < length; ++i) {
-            Rfc822Token token = tokens[i];
-            String address = token.getAddress();
-            if (!TextUtils.isEmpty(address)) {
-                if (isValidAddress(address)) {
-                    String name = token.getName();
-                    if (TextUtils.isEmpty(name)) {
-                        name = null;
+        while (scanner.next()) {
+            final int addressLength = scanner.mAddressLength;
+            if (addressLength > 0 && isValidAddress(scanner.mAddress, 0, addressLength)) {
+                final String address = new String(scanner.mAddress, 0, addressLength);
+                final String name = scanner.mNameLength > 0
+                        ? new String(scanner.mName, 0, scanner.mNameLength) : null;
+                addresses.add(new Address(address, name));
+            }
+        }
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+
+    /**
+     * Splits an RFC822 address list into its name and address tokens in a single pass over the
+     * characters, exactly as {@link Rfc822Tokenizer#tokenize(CharSequence)} does, but without
+     * building a token object or any strings for each address. Comments are skipped, since
+     * nothing here uses them.
+     */
+    private static final class AddressListScanner {
+        private final String mText;
+        private int mPos;
+
+        /**
+         * The name of the current token; in a token without an address, the name is moved here
+         */
+        final char[] mName;
+        int mNameLength;
+        /** The address of the current token */
+        final char[] mAddress;
+        int mAddressLength;
+
+        /** Marks a space outside quotes, which may be dropped or collapsed */
+        private static final char UNQUOTED_SPACE = '\0';
+
+        AddressListScanner(String text) {
+            mText = text;
+            // Neither part of a token can be longer than the whole list
+            mName = new char[text.length()];
+            mAddress = new char[text.length()];
+        }
+
+        /**
+         * Scans the next token. Returns false, and leaves both parts empty, if there are no more.
+         */
+        boolean next() {
+            final String text = mText;
+            final int end = text.length();
+            final char[] name = mName;
+            final char[] address = mAddress;
+            int nameLength = 0;
+            int addressLength = 0;
+            int i = mPos;
+
+            while (i < end) {
+                char c = text.charAt(i);
+                if (c == ',' || c == ';') {
+                    i++;
+                    while (i < end && text.charAt(i) == ' ') {
+                        i++;
+                    }
+                    nameLength = crunch(name, nameLength);
+                    if (nameLength > 0 || addressLength > 0) {
+                        break;
+                    }
+                } else if (c == '"') {
+                    i++;
+                    while (i < end) {
+                        c = text.charAt(i);
+                        if (c == '"') {
+                            i++;
+                            break;
+                        } else if (c == '\\') {
+                            if (i + 1 < end) {
+                                name[nameLength++] = text.charAt(i + 1);
+                            }
+                            i += 2;
+                        } else {
+                            name[nameLength++] = c;
+                            i++;
+                        }
+                    }
+                } else if (c == '(') {
+                    int level = 1;
+                    i++;
+                    while (i < end && level > 0) {
+                        c = text.charAt(i);
+                        if (c == ')') {
+                            level--;
+                            i++;
+                        } else if (c == '(') {
+                            level++;
+                            i++;
+                        } else if (c == '\\') {
+                            i += 2;
+                        } else {
+                            i++;
+                        }
                     }
-                    addresses.add(new Address(address, name));
+                } else if (c == '<') {
+                    i++;
+                    while (i < end) {
+                        c = text.charAt(i);
+                        i++;
+                        if (c == '>') {
+                            break;
+                        }
+                        address[addressLength++] = c;
+                    }
+                } else if (c == ' ') {
+                    name[nameLength++] = UNQUOTED_SPACE;
+                    i++;
+                } else {
+                    name[nameLength++] = c;
+                    i++;
                 }
             }
+            if (i >= end) {
+                nameLength = crunch(name, nameLength);
+            }
+            mPos = i;
+
+            if (addressLength == 0 && nameLength > 0) {
+                // A bare address, without angle brackets
+                System.arraycopy(name, 0, address, 0, nameLength);
+                addressLength = nameLength;
+                nameLength = 0;
+            }
+            mNameLength = nameLength;
+            mAddressLength = addressLength;
+            return nameLength > 0 || addressLength > 0;
+        }
+
+        /**
+         * Drops unquoted spaces at either end of the name or next to another space, turns the
+         * rest into plain spaces, and returns the new length.
+         */
+        private static int crunch(char[] name, int length) {
+            int out = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = name[i];
+                if (c == UNQUOTED_SPACE) {
+                    if (out == 0 || i == length - 1 || name[out - 1] == ' '
+                            || name[i + 1] == ' ' || name[i + 1] == UNQUOTED_SPACE) {
+                        continue;
+                    }
+                    name[out++] = ' ';
+                } else {
+                    name[out++] = c;
+                }
+            }
+            return out;
         }
-        return addresses.toArray(new Address[addresses.size()]);
     }
 
     /**
@@ -249,7 +401,75 @@ public class Address implements Parcelable {
      */
     @VisibleForTesting
     static boolean isValidAddress(final String address) {
-        return EMAIL_ADDRESS.matcher(address).find();
+        return isValidAddress(address.toCharArray(), 0, address.length());
+    }
+
+    /**
+     * Checks whether the given characters are a valid address, without building a string or
+     * running a pattern. This accepts exactly what the pattern
+     * {@code \A[^@]+@([[\w][\d]\-\(\)\[\]]+\.)+[[\w][\d]\-\(\)\[\]]+\z} would: a non-empty
+     * local part with no '@', then '@' and two or more non-empty, dot-separated domain labels.
+     * TODO: the local part and domain labels are too permissive and can be improved.
+     */
+    private static boolean isValidAddress(char[] chars, int start, int end) {
+        final int at = indexOf(chars, start, end, '@');
+        if (at <= start || indexOf(chars, at + 1, end, '@') != -1) {
+            return false;
+        }
+        int labels = 0;
+        int labelStart = at + 1;
+        for (int i = labelStart; i <= end; i++) {
+            if (i == end || chars[i] == '.') {
+                if (i == labelStart) {
+                    return false;
+                }
+                labels++;
+                labelStart = i + 1;
+            } else {
+                final int codePoint = Character.codePointAt(chars, i, end);
+                if (!isDomainCharacter(codePoint)) {
+                    return false;
+                }
+                i += Character.charCount(codePoint) - 1;
+            }
+        }
+        return labels >= 2;
+    }
+
+    private static int indexOf(char[] chars, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (chars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the character can be in a domain label: a word character or digit,
+     * as Android's Unicode-aware regular expressions define them, or one of "-()[]".
+     */
+    private static boolean isDomainCharacter(int c) {
+        if (c < 0x80) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-' || c == '(' || c == ')' || c == '[' || c == ']';
+        }
+        // Character.isAlphabetic() needs API 19; the letters and letter numbers are the same
+        // set, apart from the marks below.
+        if (Character.isLetter(c) || c == 0x200c || c == 0x200d) {
+            return true;
+        }
+        switch (Character.getType(c)) {
+            case Character.LETTER_NUMBER:
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
+            default:
+                return false;
+        }
     }
 
     @Override
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * Finds every occurrence of all the terms of a search query in one pass over a text, however
+ * many terms there are, using an Aho-Corasick automaton built from the terms.
+ * <p>
+ * Matching ignores case one char at a time, the way
+ * {@link String#regionMatches(boolean, int, String, int, int)} does, so it works the same in
+ * every locale and a match is always as long as the term.
+ * <p>
+ * Instances are immutable and can be shared between threads. {@link #forQuery(String)} keeps
+ * the matcher for the latest query, so highlighting all the results of a search builds it once.
+ */
+public class SearchTermMatcher {
+    /** Transitions for chars below this are kept in a table, as most text is in that range */
+    private static final int TABLE_SIZE = 128;
+
+    private static volatile SearchTermMatcher sLatest;
+
+    private final String mQuery;
+    private final int mTermCount;
+
+    /** The next state for each state and table char: mTable[state * TABLE_SIZE + c] */
+    private final int[] mTable;
+    /** The trie edges out of each state, for chars beyond the table, sorted by char */
+    private final char[][] mEdgeChars;
+    private final int[][] mEdgeTargets;
+    /** The state for the longest proper suffix of each state that is also in the trie */
+    private final int[] mFailure;
+    /** The length of the longest term that ends at each state, or 0 */
+    private final int[] mMatchLength;
+
+    /**
+     * Returns a matcher for the terms of the query, reusing the last one returned if it was for
+     * the same query.
+     */
+    public static SearchTermMatcher forQuery(String query) {
+        final SearchTermMatcher latest = sLatest;
+        if (latest != null && latest.mQuery.equals(query)) {
+            return latest;
+        }
+        final SearchTermMatcher matcher = new SearchTermMatcher(query);
+        sLatest = matcher;
+        return matcher;
+    }
+
+    /**
+     * @param query search terms separated by whitespace
+     */
+    public SearchTermMatcher(String query) {
+        mQuery = query;
+
+        // Build the trie. Edges are kept as parallel lists while building.
+        final ArrayList<StringBuilder> edgeChars = new ArrayList<StringBuilder>();
+        final ArrayList<ArrayList<Integer>> edgeTargets = new ArrayList<ArrayList<Integer>>();
+        final ArrayList<Integer> termLengths = new ArrayList<Integer>();
+        edgeChars.add(new StringBuilder());
+        edgeTargets.add(new ArrayList<Integer>());
+        termLengths.add(0);
+        int termCount = 0;
+        final StringTokenizer st = new StringTokenizer(query);
+        while (st.hasMoreTokens()) {
+            final String term = st.nextToken();
+            termCount++;
+            int state = 0;
+            for (int i = 0; i < term.length(); i++) {
+                final char c = fold(term.charAt(i));
+                final int edge = edgeChars.get(state).indexOf(String.valueOf(c));
+                if (edge >= 0) {
+                    state = edgeTargets.get(state).get(edge);
+                } else {
+                    final int next = edgeChars.size();
+                    edgeChars.add(new StringBuilder());
+                    edgeTargets.add(new ArrayList<Integer>());
+                    termLengths.add(0);
+                    edgeChars.get(state).append(c);
+                    edgeTargets.get(state).add(next);
+                    state = next;
+                }
+            }
+            termLengths.set(state, term.length());
+        }
+        mTermCount = termCount;
+
+        final int stateCount = edgeChars.size();
+        mEdgeChars = new char[stateCount][];
+        mEdgeTargets = new int[stateCount][];
+        mMatchLength = new int[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            final StringBuilder chars = edgeChars.get(state);
+            final ArrayList<Integer> targets = edgeTargets.get(state);
+            // Sort the edges by char, for binary search
+            final long[] sorted = new long[chars.length()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = ((long) chars.charAt(i) << 32) | targets.get(i);
+            }
+            Arrays.sort(sorted);
+            mEdgeChars[state] = new char[sorted.length];
+            mEdgeTargets[state] = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                mEdgeChars[state][i] = (char) (sorted[i] >>> 32);
+                mEdgeTargets[state][i] = (int) sorted[i];
+            }
+            mMatchLength[state] = termLengths.get(state);
+        }
+
+        // Breadth first, so the failure state of each state's parent is already known
+        mFailure = new int[stateCount];
+        mTable = new int[stateCount * TABLE_SIZE];
+        final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            final int state = queue.remove();
+            final int failure = mFailure[state];
+            if (state != 0) {
+                mMatchLength[state] = Math.max(mMatchLength[state], mMatchLength[failure]);
+            }
+            // Chars in the table without an edge go where the failure state goes
+            if (state != 0) {
+                System.arraycopy(mTable, failure * TABLE_SIZE, mTable, state * TABLE_SIZE,
+                        TABLE_SIZE);
+            }
+            final char[] chars = mEdgeChars[state];
+            final int[] targets = mEdgeTargets[state];
+            for (int i = 0; i < chars.length; i++) {
+                final int target = targets[i];
+                mFailure[target] = state == 0 ? 0 : step(failure, chars[i]);
+                if (chars[i] < TABLE_SIZE) {
+                    mTable[state * TABLE_SIZE + chars[i]] = target;
+                }
+                queue.add(target);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of terms in the query.
+     */
+    public int getTermCount() {
+        return mTermCount;
+    }
+
+    /**
+     * Folds case the way String.regionMatches does when ignoring it.
+     */
+    private static char fold(char c) {
+        if (c < TABLE_SIZE) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Returns the state after the given one has seen the given char. The start state is 0.
+     */
+    public int next(int state, char c) {
+        return step(state, fold(c));
+    }
+
+    private int step(int state, char c) {
+        if (c < TABLE_SIZE) {
+            return mTable[state * TABLE_SIZE + c];
+        }
+        while (true) {
+            final int edge = Arrays.binarySearch(mEdgeChars[state], c);
+            if (edge >= 0) {
+                return mEdgeTargets[state][edge];
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = mFailure[state];
+        }
+    }
+
+    /**
+     * Returns the length of the longest term that ends with the last char seen to reach the
+     * given state, or 0 if none does. Any shorter terms that end there lie within that one.
+     */
+    public int getMatchLength(int state) {
+        return mMatchLength[state];
+    }
+}
@@ -21,15 +21,14 @@ import com.google.common.annotations.VisibleForTesting;
 import android.graphics.Color;
 import android.text.Spannable;
 import android.text.SpannableString;
-import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.BackgroundColorSpan;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 public class TextUtilities {
     // Highlight color is yellow, as in other apps.
@@ -38,6 +37,9 @@ public class TextUtilities {
     // We AND off the "alpha" from the color (i.e. 0xFFFFFF00 -> 0x00FFFF00)
     /*package*/ static final String HIGHLIGHT_COLOR_STRING =
         '#' + Integer.toHexString(HIGHLIGHT_COLOR_INT & 0x00FFFFFF);
+    private static final String HIGHLIGHT_SPAN_START =
+        "<span style=\"background-color: " + HIGHLIGHT_COLOR_STRING + "\">";
+    private static final String HIGHLIGHT_SPAN_END = "</span>";
 
     // This is how many chars we'll allow in a snippet
     private static final int MAX_SNIPPET_LENGTH = 200;
@@ -311,6 +313,90 @@ public class TextUtilities {
         ESCAPE_STRINGS.put("&euro", '\u20AC');
     }
 
+    // ESCAPE_STRINGS again, as a perfect hash table that an entity can be looked up in while it
+    // is still part of the text. The hash of a name is its String.hashCode(); it picks one of the
+    // buckets, and each bucket has a displacement that sends all of its names to distinct slots.
+    private static final int ENTITY_BUCKETS = 128;
+    private static final int ENTITY_SLOTS = 512;
+    private static final int MAX_ENTITY_BUCKET_SIZE = 16;
+    private static final int[] ENTITY_DISPLACEMENTS = new int[ENTITY_BUCKETS];
+    private static final String[] ENTITY_NAMES = new String[ENTITY_SLOTS];
+    private static final char[] ENTITY_CHARS = new char[ENTITY_SLOTS];
+    static {
+        // Place the fullest buckets first, while there's the most room
+        final ArrayList<ArrayList<String>> buckets = new ArrayList<ArrayList<String>>();
+        for (int b = 0; b < ENTITY_BUCKETS; b++) {
+            buckets.add(new ArrayList<String>());
+        }
+        for (String name : ESCAPE_STRINGS.keySet()) {
+            buckets.get(entityBucket(name.hashCode())).add(name);
+        }
+        final Integer[] order = new Integer[ENTITY_BUCKETS];
+        for (int b = 0; b < ENTITY_BUCKETS; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return buckets.get(rhs).size() - buckets.get(lhs).size();
+            }
+        });
+        final int[] slots = new int[MAX_ENTITY_BUCKET_SIZE];
+        for (int b : order) {
+            final ArrayList<String> bucket = buckets.get(b);
+            if (bucket.size() > MAX_ENTITY_BUCKET_SIZE) {
+                throw new IllegalStateException("Too many entities in one bucket");
+            }
+            for (int displacement = 1; ; displacement++) {
+                int placed = 0;
+                for (String name : bucket) {
+                    final int slot = entitySlot(name.hashCode(), displacement);
+                    if (ENTITY_NAMES[slot] != null || contains(slots, placed, slot)) {
+                        break;
+                    }
+                    slots[placed++] = slot;
+                }
+                if (placed == bucket.size()) {
+                    for (int i = 0; i < placed; i++) {
+                        ENTITY_NAMES[slots[i]] = bucket.get(i);
+                        ENTITY_CHARS[slots[i]] = ESCAPE_STRINGS.get(bucket.get(i));
+                    }
+                    ENTITY_DISPLACEMENTS[b] = displacement;
+                    break;
+                }
+            }
+        }
+    }
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int mix(int hash, int seed) {
+        hash = (hash ^ (seed * 0x9E3779B9)) * 0x85EBCA6B;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int entityBucket(int hash) {
+        return mix(hash, 0) & (ENTITY_BUCKETS - 1);
+    }
+
+    private static int entitySlot(int hash, int displacement) {
+        return mix(hash, displacement) & (ENTITY_SLOTS - 1);
+    }
+
+    /** Each snippet is built in this, so the snippet String is all that is allocated */
+    private static final ThreadLocal<char[]> sSnippetBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_SNIPPET_LENGTH];
+        }
+    };
+
     /**
      * Code to generate a short 'snippet' from either plain text or html text
      *
@@ -342,8 +428,17 @@ public class TextUtilities {
      * @return the position just before the end of the tag or -1 if not found
      */
     /*package*/ static int findTagEnd(String htmlText, String tag, int startPos) {
-        if (tag.endsWith(" ")) {
-            tag = tag.substring(0, tag.length() - 1);
+        return findTagEnd(htmlText, tag, 0, tag.length(), startPos);
+    }
+
+    /**
+     * Like {@link #findTagEnd(String, String, int)}, for the tag in the given range of tagSource,
+     * which saves copying it out of the text it is in.
+     */
+    private static int findTagEnd(String htmlText, String tagSource, int tagStart, int tagLength,
+            int startPos) {
+        if (tagLength > 0 && tagSource.charAt(tagStart + tagLength - 1) == ' ') {
+            tagLength--;
         }
         int length = htmlText.length();
         char prevChar = 0;
@@ -358,7 +453,26 @@ public class TextUtilities {
             prevChar = c;
         }
         // We didn't find /> at the end of the tag so find </tag>
-        return htmlText.indexOf("/" + tag, startPos);
+        for (int slash = htmlText.indexOf('/', startPos); slash >= 0;
+                slash = htmlText.indexOf('/', slash + 1)) {
+            if (htmlText.regionMatches(slash + 1, tagSource, tagStart, tagLength)) {
+                return slash;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the length of the tag name in STRIP_TAGS that the text starts with at the given
+     * position, ignoring case, or 0 if it doesn't start with any of them.
+     */
+    private static int getStripTagLength(String text, int pos) {
+        for (String stripTag: STRIP_TAGS) {
+            if (text.regionMatches(true, pos, stripTag, 0, stripTag.length())) {
+                return stripTag.length();
+            }
+        }
+        return 0;
     }
 
     public static String makeSnippetFromText(String text, boolean stripHtml) {
@@ -367,12 +481,7 @@ public class TextUtilities {
 
         final int length = text.length();
         // Use char[] instead of StringBuilder purely for performance; fewer method calls, etc.
-        char[] buffer = new char[MAX_SNIPPET_LENGTH];
-        // skipCount is an array of a single int; that int is set inside stripHtmlEntity and is
-        // used to determine how many characters can be "skipped" due to the transformation of the
-        // entity to a single character.  When Java allows multiple return values, we can make this
-        // much cleaner :-)
-        int[] skipCount = new int[1];
+        final char[] buffer = sSnippetBuffer.get();
         int bufferCount = 0;
         // Start with space as last character to avoid leading whitespace
         char last = ' ';
@@ -390,19 +499,11 @@ public class TextUtilities {
                         inTag = true;
                         // Strip content of title, script, style and applet tags
                         if (i < (length - (MAX_STRIP_TAG_LENGTH + 2))) {
-                            String tag = text.substring(i + 1, i + MAX_STRIP_TAG_LENGTH + 1);
-                            String tagLowerCase = tag.toLowerCase();
-                            boolean stripContent = false;
-                            for (String stripTag: STRIP_TAGS) {
-                                if (tagLowerCase.startsWith(stripTag)) {
-                                    stripContent = true;
-                                    tag = tag.substring(0, stripTag.length());
-                                    break;
-                                }
-                            }
-                            if (stripContent) {
+                            final int stripTagLength = getStripTagLength(text, i + 1);
+                            if (stripTagLength > 0) {
                                 // Look for the end of this tag
-                                int endTagPosition = findTagEnd(text, tag, i);
+                                int endTagPosition =
+                                        findTagEnd(text, text, i + 1, stripTagLength, i);
                                 if (endTagPosition < 0) {
                                     break;
                                 } else {
@@ -423,10 +524,11 @@ public class TextUtilities {
                 continue;
             } else if (stripHtml && (c == '&')) {
                 // Handle a possible HTML entity here
-                // We always get back a character to use; we also get back a "skip count",
-                // indicating how many characters were eaten from the entity
-                c = stripHtmlEntity(text, i, skipCount);
-                i += skipCount[0];
+                // We always get back a character to use, along with a "skip count" indicating
+                // how many characters were eaten from the entity
+                final int entity = stripHtmlEntity(text, i);
+                c = (char) entity;
+                i += entity >>> 16;
             }
 
             if (Character.isWhitespace(c) || (c == NON_BREAKING_SPACE_CHARACTER)) {
@@ -456,53 +558,81 @@ public class TextUtilities {
         return new String(buffer, 0, bufferCount);
     }
 
-    static /*package*/ char stripHtmlEntity(String text, int pos, int[] skipCount) {
+    /**
+     * Decodes the HTML entity, if there is one, that starts with the ampersand at the given
+     * position. The entity is read in place, without copying it out of the text.
+     *
+     * @return the character to use in the low 16 bits, and in the high 16 bits the number of
+     *         characters after the ampersand that the entity took up
+     */
+    static /*package*/ int stripHtmlEntity(String text, int pos) {
         int length = text.length();
-        // Ugly, but we store our skip count in this array; we can't use a static here, because
-        // multiple threads might be calling in
-        skipCount[0] = 0;
         // All entities are <= 8 characters long, so that's how far we'll look for one (+ & and ;)
-        int end = pos + 10;
-        String entity = null;
+        int end = Math.min(pos + 10, length);
+        int entityEnd = -1;
         // Isolate the entity
-        for (int i = pos; (i < length) && (i < end); i++) {
-            if (text.charAt(i) == ';') {
-                entity = text.substring(pos, i);
+        int hash = 0;
+        for (int i = pos; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c == ';') {
+                entityEnd = i;
                 break;
             }
+            hash = 31 * hash + c;
         }
-        if (entity == null) {
+        if (entityEnd < 0) {
             // This wasn't really an HTML entity
             return '&';
-        } else {
-            // Skip count is the length of the entity
-            Character mapping = ESCAPE_STRINGS.get(entity);
-            int entityLength = entity.length();
-            if (mapping != null) {
-                skipCount[0] = entityLength;
-                return mapping;
-            } else if ((entityLength > 2) && (entity.charAt(1) == '#')) {
-                // &#nn; means ascii nn (decimal) and &#xnn means ascii nn (hex)
-                char c = '?';
-                try {
-                    int i;
-                    if ((entity.charAt(2) == 'x') && (entityLength > 3)) {
-                        i = Integer.parseInt(entity.substring(3), 16);
-                    } else {
-                        i = Integer.parseInt(entity.substring(2));
-                    }
-                    c = (char)i;
-                } catch (NumberFormatException e) {
-                    // We'll just return the ? in this case
-                }
-                skipCount[0] = entityLength;
-                return c;
+        }
+        // Skip count is the length of the entity
+        final int entityLength = entityEnd - pos;
+        final int slot = entitySlot(hash, ENTITY_DISPLACEMENTS[entityBucket(hash)]);
+        final String name = ENTITY_NAMES[slot];
+        if (name != null && name.length() == entityLength
+                && text.regionMatches(pos, name, 0, entityLength)) {
+            return (entityLength << 16) | ENTITY_CHARS[slot];
+        } else if ((entityLength > 2) && (text.charAt(pos + 1) == '#')) {
+            // &#nn; means ascii nn (decimal) and &#xnn means ascii nn (hex)
+            final int value;
+            if ((text.charAt(pos + 2) == 'x') && (entityLength > 3)) {
+                value = parseInt(text, pos + 3, entityEnd, 16);
+            } else {
+                value = parseInt(text, pos + 2, entityEnd, 10);
             }
+            // We'll just use a ? if it isn't a number
+            final char c = value == Integer.MIN_VALUE ? '?' : (char) value;
+            return (entityLength << 16) | c;
         }
         // Worst case, we return the original start character, ampersand
         return '&';
     }
 
+    /**
+     * Parses the given range of the text as Integer.parseInt would, without copying it out.
+     * Entities are too short to overflow an int.
+     *
+     * @return the number, or Integer.MIN_VALUE if the range isn't one
+     */
+    private static int parseInt(String text, int start, int end, int radix) {
+        boolean negative = false;
+        if (start < end && (text.charAt(start) == '-' || text.charAt(start) == '+')) {
+            negative = text.charAt(start) == '-';
+            start++;
+        }
+        if (start == end) {
+            return Integer.MIN_VALUE;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = Character.digit(text.charAt(i), radix);
+            if (digit < 0) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * radix + digit;
+        }
+        return negative ? -value : value;
+    }
+
     /**
      * Given a string of HTML text and a query containing any number of search terms, returns
      * an HTML string in which those search terms are highlighted (intended for use in a WebView)
@@ -513,12 +643,7 @@ public class TextUtilities {
      */
     @VisibleForTesting
     public static String highlightTermsInHtml(String text, String query) {
-        try {
-            return highlightTerms(text, query, true).toString();
-        } catch (IOException e) {
-            // Can't happen, but we must catch this
-            return text;
-        }
+        return highlightTerms(text, query, true).toString();
     }
 
     /**
@@ -530,65 +655,42 @@ public class TextUtilities {
      * @return a CharSequence with the search terms highlighted
      */
     public static CharSequence highlightTermsInText(String text, String query) {
-        try {
-            return highlightTerms(text, query, false);
-        } catch (IOException e) {
-            // Can't happen, but we must catch this
-            return text;
-        }
-    }
-
-    static class SearchTerm {
-        final String mTerm;
-        final String mTermLowerCase;
-        final int mLength;
-        int mMatchLength = 0;
-        int mMatchStart = -1;
-
-        SearchTerm(String term) {
-            mTerm = term;
-            mTermLowerCase = term.toLowerCase();
-            mLength = term.length();
-        }
+        return highlightTerms(text, query, false);
     }
 
     /**
      * Generate a version of the incoming text in which all search terms in a query are highlighted.
      * If the input is HTML, we return a StringBuilder with additional markup as required
-     * If the input is text, we return a SpannableStringBuilder with additional spans as required
+     * If the input is text, we return a SpannableString with additional spans as required
+     *
+     * Occurrences of the terms are found, ignoring case, by a {@link SearchTermMatcher} that is
+     * shared by every call with the same query. Occurrences that overlap are highlighted as one.
      *
      * @param text the text to be processed
      * @param query the query, which can contain multiple terms separated by whitespace
      * @param html whether or not the text to be processed is HTML
      * @return highlighted text
-     *
-     * @throws IOException as Appendable requires this
      */
-    public static CharSequence highlightTerms(String text, String query, boolean html)
-            throws IOException {
+    public static CharSequence highlightTerms(String text, String query, boolean html) {
         // Handle null and empty string
         if (TextUtils.isEmpty(text)) return "";
+        if (query == null) return text;
+        final SearchTermMatcher matcher = SearchTermMatcher.forQuery(query);
+        if (matcher.getTermCount() == 0) return text;
         final int length = text.length();
 
-        // Break up the query into search terms
-        ArrayList<SearchTerm> terms = new ArrayList<SearchTerm>();
-        if (query != null) {
-            StringTokenizer st = new StringTokenizer(query);
-            while (st.hasMoreTokens()) {
-                terms.add(new SearchTerm(st.nextToken()));
-            }
-        }
-
-        // Our appendable depends on whether we're building HTML text (for webview) or spannable
-        // text (for UI)
-        final Appendable sb = html ? new StringBuilder() : new SpannableStringBuilder();
+        // The start and end of each range of text to highlight, in order
+        int[] ranges = new int[16];
+        int rangeCount = 0;
+        // The range being extended by overlapping matches, if any
+        int highlightStart = -1;
+        int highlightEnd = -1;
         // Indicates whether we're in the middle of an HTML tag
         boolean inTag = false;
-        // The position of the last input character copied to output
-        int lastOut = -1;
+        int state = 0;
 
         // Walk through the text until we're done with the input
-        // Just copy any HTML tags directly into the output; search for terms in the remaining text
+        // Just skip over any HTML tags; search for terms in the remaining text
         for (int i = 0; i < length; i++) {
             char chr = text.charAt(i);
             if (html) {
@@ -598,28 +700,19 @@ public class TextUtilities {
                         char peek = text.charAt(i + 1);
                         if (peek == '!' || peek == '-' || peek == '/' || Character.isLetter(peek)) {
                             inTag = true;
+                            // Matches don't run across tags
+                            state = 0;
                             // Skip content of title, script, style and applet tags
                             if (i < (length - (MAX_STRIP_TAG_LENGTH + 2))) {
-                                String tag = text.substring(i + 1, i + MAX_STRIP_TAG_LENGTH + 1);
-                                String tagLowerCase = tag.toLowerCase();
-                                boolean stripContent = false;
-                                for (String stripTag: STRIP_TAGS) {
-                                    if (tagLowerCase.startsWith(stripTag)) {
-                                        stripContent = true;
-                                        tag = tag.substring(0, stripTag.length());
-                                        break;
-                                    }
-                                }
-                                if (stripContent) {
+                                final int stripTagLength = getStripTagLength(text, i + 1);
+                                if (stripTagLength > 0) {
                                     // Look for the end of this tag
-                                    int endTagPosition = findTagEnd(text, tag, i);
+                                    int endTagPosition =
+                                            findTagEnd(text, text, i + 1, stripTagLength, i);
                                     if (endTagPosition < 0) {
-                                        sb.append(text.substring(i));
                                         break;
                                     } else {
-                                        sb.append(text.substring(i, endTagPosition - 1));
                                         i = endTagPosition - 1;
-                                        chr = text.charAt(i);
                                     }
                                 }
                             }
@@ -630,90 +723,57 @@ public class TextUtilities {
                 }
 
                 if (inTag) {
-                    sb.append(chr);
                     continue;
                 }
             }
 
             // After all that, we've got some "body" text
-            char chrLowerCase = Character.toLowerCase(chr);
-            // Whether or not the current character should be appended to the output; we inhibit
-            // this while any search terms match
-            boolean appendNow = true;
-            // Look through search terms for matches
-            for (SearchTerm t: terms) {
-                if (chrLowerCase == t.mTermLowerCase.charAt(t.mMatchLength)) {
-                    if (t.mMatchLength++ == 0) {
-                        // New match start
-                        t.mMatchStart = i;
-                    }
-                    if (t.mMatchLength == t.mLength) {
-                        String matchText = text.substring(t.mMatchStart, t.mMatchStart + t.mLength);
-                        // Completed match; add highlight and reset term
-                        if (t.mMatchStart <= lastOut) {
-                            matchText = text.substring(lastOut + 1, i + 1);
+            state = matcher.next(state, chr);
+            final int matchLength = matcher.getMatchLength(state);
+            if (matchLength > 0) {
+                final int matchStart = i + 1 - matchLength;
+                if (matchStart >= highlightEnd) {
+                    if (highlightEnd >= 0) {
+                        if (rangeCount == ranges.length) {
+                            ranges = Arrays.copyOf(ranges, rangeCount * 2);
                         }
-                        /*else*/
-                        if (matchText.length() == 0) {} else
-                        if (html) {
-                            sb.append("<span style=\"background-color: " + HIGHLIGHT_COLOR_STRING +
-                                    "\">");
-                            sb.append(matchText);
-                            sb.append("</span>");
-                        } else {
-                            SpannableString highlightSpan = new SpannableString(matchText);
-                            highlightSpan.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR_INT), 0,
-                                    highlightSpan.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                            sb.append(highlightSpan);
-                        }
-                        lastOut = t.mMatchStart + t.mLength - 1;
-                        t.mMatchLength = 0;
-                        t.mMatchStart = -1;
+                        ranges[rangeCount++] = highlightStart;
+                        ranges[rangeCount++] = highlightEnd;
                     }
-                    appendNow = false;
-                } else {
-                    if (t.mMatchStart >= 0) {
-                        // We're no longer matching; check for other matches in progress
-                        int leastOtherStart = -1;
-                        for (SearchTerm ot: terms) {
-                            // Save away the lowest match start for other search terms
-                            if ((ot != t) && (ot.mMatchStart >= 0) && ((leastOtherStart < 0) ||
-                                    (ot.mMatchStart <= leastOtherStart))) {
-                                leastOtherStart = ot.mMatchStart;
-                            }
-                        }
-                        int matchEnd = t.mMatchStart + t.mMatchLength;
-                        if (leastOtherStart < 0 || leastOtherStart > matchEnd) {
-                            // Append the whole thing
-                            if (t.mMatchStart > lastOut) {
-                                sb.append(text.substring(t.mMatchStart, matchEnd));
-                                lastOut = matchEnd;
-                            }
-                        } else if (leastOtherStart == t.mMatchStart) {
-                            // Ok to append the current char
-                        } else if (leastOtherStart < t.mMatchStart) {
-                            // We're already covered by another search term, so don't append
-                            appendNow = false;
-                        } else if (t.mMatchStart > lastOut) {
-                            // Append the piece of our term that's not already covered
-                            sb.append(text.substring(t.mMatchStart, leastOtherStart));
-                            lastOut = leastOtherStart;
-                        }
-                    }
-                    // Reset this term
-                    t.mMatchLength = 0;
-                    t.mMatchStart = -1;
+                    highlightStart = matchStart;
                 }
+                highlightEnd = i + 1;
             }
-
-            if (appendNow) {
-                sb.append(chr);
-                lastOut = i;
+        }
+        if (highlightEnd >= 0) {
+            if (rangeCount == ranges.length) {
+                ranges = Arrays.copyOf(ranges, rangeCount * 2);
             }
+            ranges[rangeCount++] = highlightStart;
+            ranges[rangeCount++] = highlightEnd;
         }
 
-        return (CharSequence)sb;
-   }
+        // Our output depends on whether we're building HTML text (for webview) or spannable
+        // text (for UI)
+        if (html) {
+            final StringBuilder sb = new StringBuilder(length + (rangeCount / 2)
+                    * (HIGHLIGHT_SPAN_START.length() + HIGHLIGHT_SPAN_END.length()));
+            int copied = 0;
+            for (int r = 0; r < rangeCount; r += 2) {
+                sb.append(text, copied, ranges[r]).append(HIGHLIGHT_SPAN_START)
+                        .append(text, ranges[r], ranges[r + 1]).append(HIGHLIGHT_SPAN_END);
+                copied = ranges[r + 1];
+            }
+            return sb.append(text, copied, length);
+        } else {
+            final SpannableString spannable = new SpannableString(text);
+            for (int r = 0; r < rangeCount; r += 2) {
+                spannable.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR_INT), ranges[r],
+                        ranges[r + 1], Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            return spannable;
+        }
+    }
 
     /**
      * Determine whether two Strings (either of which might be null) are the same; this is true
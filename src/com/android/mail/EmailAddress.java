@@ -15,9 +15,10 @@
  */
 package com.android.mail;
 
-import android.text.Html;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
+import com.android.mail.utils.BoundedConcurrentCache;
+import com.android.mail.utils.HtmlUtils;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 
@@ -36,8 +37,14 @@ public class EmailAddress {
 
     private final String mAddress;
 
-    private static final Matcher sEmailMatcher =
-            Pattern.compile("\\\"?([^\"<]*?)\\\"?\\s*<(.*)>").matcher("");
+    private static final Pattern EMAIL_PATTERN =
+            Pattern.compile("\\\"?([^\"<]*?)\\\"?\\s*<(.*)>");
+
+    private static final int PARSED_ADDRESS_CACHE_SIZE = 512;
+
+    /** Addresses already parsed by {@link #getEmailAddress(String)}, by raw address */
+    private static final BoundedConcurrentCache<String, EmailAddress> sParsedAddresses =
+            new BoundedConcurrentCache<String, EmailAddress>(PARSED_ADDRESS_CACHE_SIZE);
 
     private EmailAddress(String name, String address) {
         mName = name;
@@ -57,38 +64,44 @@ public class EmailAddress {
     }
 
     // TODO (pwestbro): move to provider
-    public static synchronized EmailAddress getEmailAddress(String rawAddress) {
-        String name, address;
+    public static EmailAddress getEmailAddress(String rawAddress) {
         if (rawAddress == null) {
             LogUtils.e(LOG_TAG, "null rawAddress in EmailAddress#getEmailAddress");
             rawAddress = "";
         }
-        Matcher m = sEmailMatcher.reset(rawAddress);
+        final EmailAddress cached = sParsedAddresses.get(rawAddress);
+        if (cached != null) {
+            return cached;
+        }
+
+        String name, address;
+        final Matcher m = EMAIL_PATTERN.matcher(rawAddress);
         if (m.matches()) {
             name = m.group(1);
             address = m.group(2);
             if (name == null) {
                 name = "";
             } else {
-                name = Html.fromHtml(name.trim()).toString();
+                name = HtmlUtils.fromHtmlToString(name.trim());
             }
             if (address == null) {
                 address = "";
             } else {
-                address = Html.fromHtml(address).toString();
+                address = HtmlUtils.fromHtmlToString(address);
             }
         } else {
             // Try and tokenize the string
             final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(rawAddress);
             if (tokens.length > 0) {
                 final String tokenizedName = tokens[0].getName();
-                name = tokenizedName != null ? Html.fromHtml(tokenizedName.trim()).toString() : "";
-                address = Html.fromHtml(tokens[0].getAddress()).toString();
+                name = tokenizedName != null ? HtmlUtils.fromHtmlToString(tokenizedName.trim())
+                        : "";
+                address = HtmlUtils.fromHtmlToString(tokens[0].getAddress());
             } else {
                 name = "";
-                address = Html.fromHtml(rawAddress).toString();
+                address = HtmlUtils.fromHtmlToString(rawAddress);
             }
         }
-        return new EmailAddress(name, address);
+        return sParsedAddresses.putIfAbsent(rawAddress, new EmailAddress(name, address));
     }
 }
\ No newline at end of file
@@ -49,7 +49,8 @@ import com.android.mail.utils.LogUtils;
  */
 public class DrawerItem {
     private static final String LOG_TAG = LogTag.getLogTag();
-    public final Folder mFolder;
+    /** The folder of a folder item, which can be replaced by {@link #updateFolder(Folder)} */
+    public Folder mFolder;
     public final Account mAccount;
     private final int mResource;
     /** True if the drawer item represents the current account, false otherwise */
@@ -165,6 +166,16 @@ public class DrawerItem {
                 null, null);
     }
 
+    /**
+     * Replaces the folder of a folder item with a newer copy of the same folder, such as one with
+     * different counts, so that the item can be kept when the folder list is loaded again.
+     *
+     * @param folder a folder with the same uri as the current one
+     */
+    public void updateFolder(Folder folder) {
+        mFolder = folder;
+    }
+
     private String folderToString() {
         final StringBuilder sb = new StringBuilder("[DrawerItem ");
         sb.append(" VIEW_FOLDER ");
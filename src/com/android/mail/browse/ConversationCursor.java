@@ -48,24 +48,22 @@ import com.android.mail.providers.UIProvider.ConversationOperations;
 import com.android.mail.ui.ConversationListFragment;
 import com.android.mail.utils.DrawIdler;
 import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.LongIntHashMap;
 import com.android.mail.utils.NotificationActionUtils;
 import com.android.mail.utils.NotificationActionUtils.NotificationAction;
 import com.android.mail.utils.NotificationActionUtils.NotificationActionType;
+import com.android.mail.utils.StringPositionIndex;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -79,14 +77,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     public static final String LOG_TAG = "ConvCursor";
     /** Turn to true for debugging. */
     private static final boolean DEBUG = false;
-    /** A deleted row is indicated by the presence of DELETED_COLUMN in the cache map */
+    /** A pseudo-column name used to cache a local deletion through cacheValue() */
     private static final String DELETED_COLUMN = "__deleted__";
-    /** An row cached during a requery is indicated by the presence of REQUERY_COLUMN in the map */
-    private static final String UPDATE_TIME_COLUMN = "__updatetime__";
-    /**
-     * A sentinel value for the "index" of the deleted column; it's an int that is otherwise invalid
-     */
-    private static final int DELETED_COLUMN_INDEX = -1;
     /**
      * If a cached value within 10 seconds of a refresh(), preserve it. This time has been
      * chosen empirically (long enough for UI changes to propagate in any reasonable case)
@@ -114,8 +106,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     UnderlyingCursorWrapper mUnderlyingCursor;
     /** The new cursor obtained via a requery */
     private volatile UnderlyingCursorWrapper mRequeryCursor;
-    /** A mapping from Uri to updated ContentValues */
-    private final HashMap<String, ContentValues> mCacheMap = new HashMap<String, ContentValues>();
+    /** The local changes overlaid on the underlying cursor, by position and by Uri */
+    private final ConversationDeltaStore mDeltas = new ConversationDeltaStore();
     /** Cache map lock (will be used only very briefly - few ms at most) */
     private final Object mCacheMapLock = new Object();
     /** The listeners registered for this cursor */
@@ -140,8 +132,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     private final String mName;
     /** Column names for this cursor */
     private String[] mColumnNames;
-    // Column names as above, as a Set for quick membership checking
-    private Set<String> mColumnNameSet;
+    /** The ConversationDeltaStore slot for each column, or ConversationDeltaStore.NO_SLOT */
+    private int[] mColumnSlots;
     /** An observer on the underlying cursor (so we can detect changes from outside the UI) */
     private final CursorObserver mCursorObserver;
     /** Whether our observer is currently registered with the underlying cursor */
@@ -154,11 +146,6 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     /** The current position of the cursor */
     private int mPosition = -1;
 
-    /**
-     * The number of cached deletions from this cursor (used to quickly generate an accurate count)
-     */
-    private int mDeletedCount = 0;
-
     /** Parameters passed to the underlying query */
     private Uri qUri;
     private String[] qProjection;
@@ -173,11 +160,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             close();
         }
         mColumnNames = cursor.getColumnNames();
-        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
-        for (String name : mColumnNames) {
-            builder.add(name);
+        mColumnSlots = new int[mColumnNames.length];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mColumnSlots[i] = ConversationDeltaStore.slotForColumn(mColumnNames[i]);
         }
-        mColumnNameSet = builder.build();
         mRefreshRequired = false;
         mRefreshReady = false;
         mRefreshTask = null;
@@ -256,10 +242,12 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     }
 
     private static class UnderlyingRowData {
+        public final int position;
         public final String innerUri;
         public Conversation conversation;
 
-        public UnderlyingRowData(String innerUri, Conversation conversation) {
+        public UnderlyingRowData(int position, String innerUri, Conversation conversation) {
+            this.position = position;
             this.innerUri = innerUri;
             this.conversation = conversation;
         }
@@ -268,14 +256,34 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     /**
      * Simple wrapper for a cursor that provides methods for quickly determining
      * the existence of a row.
+     * <p>
+     * Only a window of rows around the position last shown by the UI is kept materialized. The
+     * window is a ring of {@link #ROW_WINDOW_CAPACITY} slots indexed by position, so rows that
+     * scroll far enough away are evicted simply by being overwritten. The slots are guarded by the
+     * wrapper's read lock, as both the UI thread and the {@link CacheLoaderTask} fill them. The
+     * id/uri to position lookups cover the whole cursor. They are built on a background thread
+     * once the list first goes idle, by copying the two columns out of the wrapped cursor a chunk
+     * at a time, so the walk never holds the read lock for long. A lookup made before they are
+     * ready is answered from the window when the row is there, and otherwise waits for them.
      */
     private static class UnderlyingCursorWrapper extends ThreadSafeCursorWrapper
-            implements DrawIdler.IdleListener {
+            implements DrawIdler.IdleListener, ConversationDeltaStore.PositionResolver {
+
+        /** The maximum number of rows whose {@link Conversation} objects are kept around */
+        private static final int ROW_WINDOW_CAPACITY = 400;
+        /**
+         * How far (in rows) the UI may move away from the center of the cached window before the
+         * window is re-centered on the new position
+         */
+        private static final int ROW_WINDOW_SLACK = ROW_WINDOW_CAPACITY / 4;
+        /** The number of rows {@link CacheLoaderTask} reads in one go */
+        private static final int CACHE_BATCH_SIZE = 32;
+        /** The number of rows whose ids and uris are copied under one hold of the read lock */
+        private static final int POSITION_INDEX_CHUNK_SIZE = 256;
 
         /**
-         * An AsyncTask that will fill as much of the cache as possible until either the cache is
-         * full or the task is cancelled. If not cancelled and we're not done caching, it will
-         * schedule another iteration to run upon completion.
+         * An AsyncTask that will fill as much of the cache window as possible until either the
+         * window is full or the task is cancelled.
          * <p>
          * Generally, only one task instance per {@link UnderlyingCursorWrapper} will run at a time.
          * But if an old task is cancelled, it may continue to execute at most one iteration (due
@@ -294,30 +302,34 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     Utils.traceBeginSection("backgroundCaching");
                     if (DEBUG) LogUtils.i(LOG_TAG, "in cache job pos=%s c=%s", mStartPos,
                             getWrappedCursor());
-                    final int count = getCount();
                     while (true) {
                         // It is possible for two instances of this loop to execute at once if
                         // an earlier task is cancelled but gets preempted. As written, this loop
                         // safely shares mCachePos without mutexes by only reading it once and
                         // writing it once (writing based on the previously-read value).
                         // The most that can happen is that one row's values is read twice.
-                        final int pos = mCachePos;
-                        if (isCancelled() || pos >= count) {
+                        // If the window moved while we were running, skip ahead to its start
+                        final int end = mCacheEnd;
+                        int pos = Math.max(mCachePos, end - mRowWindow.length);
+                        while (pos < end && peekConversation(pos) != null) {
+                            pos++;
+                        }
+                        if (isCancelled() || pos >= end) {
                             break;
                         }
 
-                        final UnderlyingRowData rowData = mRowCache.get(pos);
-                        if (rowData.conversation == null) {
-                            // We are running in a background thread.  Set the position to the row
-                            // we are interested in.
-                            if (moveToPosition(pos)) {
-                                rowData.conversation = new Conversation(
-                                        UnderlyingCursorWrapper.this);
+                        // We are running in a background thread, so this moves only our own
+                        // position. Read a batch of rows at once.
+                        final int count = Math.min(CACHE_BATCH_SIZE, end - pos);
+                        final Conversation[] conversations = Conversation.fromCursorRange(
+                                UnderlyingCursorWrapper.this, pos, count);
+                        for (int i = 0; i < count; i++) {
+                            if (conversations[i] != null) {
+                                cacheConversation(pos + i, conversations[i]);
                             }
                         }
-                        mCachePos = pos + 1;
+                        mCachePos = pos + count;
                     }
-                    System.gc();
                 } finally {
                     Utils.traceEndSection();
                 }
@@ -361,19 +373,34 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
          * Not synchronized; see comments in {@link CacheLoaderTask#doInBackground(Void...)} for
          * notes on thread safety.
          */
-        private int mCachePos;
+        private volatile int mCachePos;
+        /** The (exclusive) end of the range of rows the cache task should fill */
+        private volatile int mCacheEnd;
+        /** The position the cached window is currently centered on */
+        private int mWindowCenter;
         private boolean mCachingEnabled;
         private final NewCursorUpdateObserver mCursorUpdateObserver;
         private boolean mUpdateObserverRegistered = false;
 
-        // Ideally these two objects could be combined into a Map from
-        // conversationId -> position, but the cached values uses the conversation
-        // uri as a key.
-        private final Map<String, Integer> mConversationUriPositionMap;
-        private final Map<Long, Integer> mConversationIdPositionMap;
-        private final List<UnderlyingRowData> mRowCache;
+        // Ideally these two objects could be combined into a single conversationId -> position
+        // index, but the cached values uses the conversation uri as a key. Both are built by
+        // ensurePositionIndex(), on a background thread started when the list first goes idle.
+        private volatile StringPositionIndex mConversationUriPositionIndex;
+        private volatile LongIntHashMap mConversationIdPositionIndex;
+        private final Object mPositionIndexLock = new Object();
+        /** Set if the lookups found duplicate keys while {@link #DEBUG_DUPLICATE_KEYS} is on */
+        private volatile IllegalStateException mPositionIndexError;
+        /** Whether the background build of the lookups has been started. UI thread only. */
+        private boolean mPositionIndexStarted;
+        /** Ring of materialized rows; the row at position p lives in slot p % length */
+        private final UnderlyingRowData[] mRowWindow;
 
         private boolean mCursorUpdated = false;
+        /**
+         * Set once the provider has answered a range request without any of the range commands,
+         * so that later ones aren't sent to it; see {@link #respond(Bundle)}.
+         */
+        private volatile boolean mRangeCommandsUnsupported;
 
         public UnderlyingCursorWrapper(Cursor result, boolean cachingEnabled) {
             super(result);
@@ -389,79 +416,156 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 mUpdateObserverRegistered = true;
             }
 
+            // Nothing is read from the cursor up front. The window starts at the top of the list,
+            // and later, when the idler signals that the activity is idle, a task caches the
+            // conversations in the window in pieces, and another builds the position lookups.
+            final int count = super.getCount();
+            mRowWindow = new UnderlyingRowData[Math.max(1, Math.min(count, ROW_WINDOW_CAPACITY))];
+            mWindowCenter = 0;
+            mCachePos = 0;
+            mCacheEnd = Math.min(count, mRowWindow.length);
+        }
+
+        /**
+         * Starts building the position lookups on a background thread, unless that has been
+         * done already. Must be called on the UI thread.
+         */
+        private void startPositionIndex() {
+            if (mPositionIndexStarted || getWrappedCursor() == null) {
+                return;
+            }
+            mPositionIndexStarted = true;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    preparePositionIndex();
+                }
+            });
+        }
+
+        /**
+         * Walks the whole cursor once to build the conversation id/uri to position lookups, if
+         * that hasn't happened yet. If another thread is building them, this waits for it to
+         * finish.
+         */
+        private void preparePositionIndex() {
+            if (mConversationIdPositionIndex == null && !isClosed()) {
+                synchronized (mPositionIndexLock) {
+                    if (mConversationIdPositionIndex == null) {
+                        buildPositionIndex();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Like {@link #preparePositionIndex()}, but if {@link #DEBUG_DUPLICATE_KEYS} is on and
+         * the cursor has duplicate keys, the error is thrown here, on the thread that looks
+         * something up.
+         */
+        private void ensurePositionIndex() {
+            preparePositionIndex();
+            if (mPositionIndexError != null) {
+                throw mPositionIndexError;
+            }
+        }
+
+        /**
+         * Copies the ids and inner uris of the given rows out of the wrapped cursor. Other
+         * threads read through this wrapper by their own positions, so moving the wrapped
+         * cursor while holding the read lock doesn't disturb them.
+         *
+         * @return false if the cursor has been closed
+         */
+        private boolean readPositionIndexChunk(int start, String[] uris, long[] ids) {
+            synchronized (mLock) {
+                final Cursor cursor = getWrappedCursor();
+                if (cursor.isClosed()) {
+                    return false;
+                }
+                for (int i = 0; i < uris.length; i++) {
+                    if (!cursor.moveToPosition(start + i)) {
+                        return false;
+                    }
+                    uris[i] = cursor.getString(URI_COLUMN_INDEX);
+                    ids[i] = cursor.getLong(UIProvider.CONVERSATION_ID_COLUMN);
+                }
+                return true;
+            }
+        }
+
+        private void buildPositionIndex() {
             final long start = SystemClock.uptimeMillis();
-            final Map<String, Integer> uriPositionMap;
-            final Map<Long, Integer> idPositionMap;
-            final UnderlyingRowData[] cache;
-            final int count;
-            Utils.traceBeginSection("blockingCaching");
-            if (super.moveToFirst()) {
-                count = super.getCount();
-                cache = new UnderlyingRowData[count];
-                int i = 0;
-
-                uriPositionMap = Maps.newHashMapWithExpectedSize(count);
-                idPositionMap = Maps.newHashMapWithExpectedSize(count);
-
-                do {
-                    final String innerUriString;
-                    final long convId;
-
-                    innerUriString = super.getString(URI_COLUMN_INDEX);
-                    convId = super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
-
-                    if (DEBUG_DUPLICATE_KEYS) {
-                        if (uriPositionMap.containsKey(innerUriString)) {
+            final int count = super.getCount();
+            final StringPositionIndex uriPositionIndex = new StringPositionIndex(count);
+            final LongIntHashMap idPositionIndex = new LongIntHashMap(count);
+            int duplicates = 0;
+            Utils.traceBeginSection("buildPositionIndex");
+            final String[] uris = new String[Math.min(count, POSITION_INDEX_CHUNK_SIZE)];
+            final long[] ids = new long[uris.length];
+            boolean closed = false;
+            for (int chunkStart = 0; chunkStart < count && !closed;
+                    chunkStart += POSITION_INDEX_CHUNK_SIZE) {
+                final int chunkSize = Math.min(POSITION_INDEX_CHUNK_SIZE, count - chunkStart);
+                final String[] chunkUris = chunkSize == uris.length ? uris : new String[chunkSize];
+                // The cursor may be closed while the lookups are built in the background
+                closed = !readPositionIndexChunk(chunkStart, chunkUris, ids);
+                for (int j = 0; j < chunkSize && !closed; j++) {
+                    final int i = chunkStart + j;
+                    final String innerUriString = chunkUris[j];
+                    final long convId = ids[j];
+
+                    final int uriPosition = uriPositionIndex.get(innerUriString);
+                    if (uriPosition >= 0) {
+                        duplicates++;
+                        if (DEBUG_DUPLICATE_KEYS) {
                             LogUtils.e(LOG_TAG, "Inserting duplicate conversation uri key: %s. " +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    innerUriString, getPosition(), i,
-                                    uriPositionMap.get(innerUriString));
+                                    "Cursor position: %d, map position: %d",
+                                    innerUriString, i, uriPosition);
                         }
-                        if (idPositionMap.containsKey(convId)) {
+                    } else {
+                        uriPositionIndex.add(innerUriString, i);
+                    }
+                    final int idPosition = idPositionIndex.get(convId, -1);
+                    if (idPosition >= 0) {
+                        duplicates++;
+                        if (DEBUG_DUPLICATE_KEYS) {
                             LogUtils.e(LOG_TAG, "Inserting duplicate conversation id key: %d" +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    convId, getPosition(), i, idPositionMap.get(convId));
+                                    "Cursor position: %d, map position: %d",
+                                    convId, i, idPosition);
                         }
                     }
+                    idPositionIndex.put(convId, i);
+                }
+            }
 
-                    uriPositionMap.put(innerUriString, i);
-                    idPositionMap.put(convId, i);
-
-                    cache[i] = new UnderlyingRowData(
-                            innerUriString,
-                            null /* conversation */);
-                } while (super.moveToPosition(++i));
-
-                if (uriPositionMap.size() != count || idPositionMap.size() != count) {
-                    if (DEBUG_DUPLICATE_KEYS)  {
-                        throw new IllegalStateException("Unexpected map sizes: cursorN=" + count
-                                + " uriN=" + uriPositionMap.size() + " idN="
-                                + idPositionMap.size());
-                    } else {
-                        LogUtils.e(LOG_TAG, "Unexpected map sizes.  Cursor size: %d, " +
-                                "uri position map size: %d, id position map size: %d", count,
-                                uriPositionMap.size(), idPositionMap.size());
-                    }
+            if (duplicates > 0 && !closed) {
+                if (DEBUG_DUPLICATE_KEYS)  {
+                    // Thrown by ensurePositionIndex(), since this may be running on a thread
+                    // where nothing would catch it
+                    mPositionIndexError = new IllegalStateException("Unexpected map sizes: cursorN="
+                            + count + " uriN=" + uriPositionIndex.size() + " idN="
+                            + idPositionIndex.size());
+                } else {
+                    LogUtils.e(LOG_TAG, "Unexpected map sizes.  Cursor size: %d, " +
+                            "uri position map size: %d, id position map size: %d", count,
+                            uriPositionIndex.size(), idPositionIndex.size());
                 }
-            } else {
-                count = 0;
-                cache = new UnderlyingRowData[0];
-                uriPositionMap = Maps.newHashMap();
-                idPositionMap = Maps.newHashMap();
             }
-            mConversationUriPositionMap = Collections.unmodifiableMap(uriPositionMap);
-            mConversationIdPositionMap = Collections.unmodifiableMap(idPositionMap);
+            if (closed || isClosed()) {
+                // Nothing will be looked up in a closed cursor, so drop what was built
+                Utils.traceEndSection();
+                return;
+            }
+            mConversationUriPositionIndex = uriPositionIndex;
+            // Published last; ensurePositionIndex() checks this field without the lock
+            mConversationIdPositionIndex = idPositionIndex;
 
-            mRowCache = Collections.unmodifiableList(Arrays.asList(cache));
             final long end = SystemClock.uptimeMillis();
-            LogUtils.i(LOG_TAG, "*** ConversationCursor pre-loading took %sms n=%s", (end-start),
-                    count);
+            LogUtils.i(LOG_TAG, "*** ConversationCursor position index took %sms n=%s",
+                    (end - start), count);
 
             Utils.traceEndSection();
-
-            // Later, when the idler signals that the activity is idle, start a task to cache
-            // conversations in pieces.
-            mCachePos = 0;
         }
 
         /**
@@ -474,7 +578,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 throw new IllegalStateException("unexpected existing task: " + mCacheLoaderTask);
             }
 
-            if (mCachingEnabled && mCachePos < getCount()) {
+            if (mCachingEnabled && mCachePos < mCacheEnd) {
                 mCacheLoaderTask = new CacheLoaderTask(mCachePos);
                 mCacheLoaderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 return true;
@@ -496,41 +600,160 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             mCachingEnabled = false;
         }
 
+        /**
+         * Re-centers the cached window on the given position once the UI has moved far enough
+         * away from the current center. Rows outside the new window are evicted lazily, as their
+         * slots are reused. Must be called on the UI thread.
+         */
+        private void moveWindow(int position) {
+            final int count = getCount();
+            if (mRowWindow.length >= count
+                    || Math.abs(position - mWindowCenter) < ROW_WINDOW_SLACK) {
+                return;
+            }
+            mWindowCenter = position;
+            final int windowStart = Math.max(0,
+                    Math.min(position - mRowWindow.length / 2, count - mRowWindow.length));
+            mCacheEnd = windowStart + mRowWindow.length;
+            mCachePos = windowStart;
+            if (mDrawState == DrawIdler.STATE_IDLE && mCacheLoaderTask == null) {
+                resumeCaching();
+            }
+        }
+
+        /**
+         * Returns true if the position lookups are ready, building them, or waiting for the
+         * thread that is building them, if need be. They are only missing once the cursor has
+         * been closed.
+         */
+        private boolean hasPositionIndex() {
+            ensurePositionIndex();
+            return mConversationIdPositionIndex != null;
+        }
+
+        /**
+         * Finds the position of a conversation among the rows in the window, so that lookups
+         * made before the position lookups are ready don't have to wait for them when the row
+         * is one the UI shows or acts on, as binding a row puts it in the window.
+         *
+         * @param uri the inner uri to look for, or null to look for the conversation id
+         * @return the position, or -1 if the conversation isn't in the window
+         */
+        private int getWindowPosition(String uri, long conversationId) {
+            synchronized (mLock) {
+                for (UnderlyingRowData rowData : mRowWindow) {
+                    if (rowData == null) {
+                        continue;
+                    }
+                    if (uri != null ? uri.equals(rowData.innerUri)
+                            : rowData.conversation != null
+                                    && rowData.conversation.id == conversationId) {
+                        return rowData.position;
+                    }
+                }
+            }
+            return -1;
+        }
+
         public boolean contains(String uri) {
-            return mConversationUriPositionMap.containsKey(uri);
+            if (mConversationIdPositionIndex == null && getWindowPosition(uri, -1) >= 0) {
+                return true;
+            }
+            return hasPositionIndex() && mConversationUriPositionIndex.contains(uri);
         }
 
+        /**
+         * @return the ids of all the conversations, or null if the cursor has been closed
+         */
         public Set<Long> conversationIds() {
-            return mConversationIdPositionMap.keySet();
+            return hasPositionIndex() ? mConversationIdPositionIndex.keySet() : null;
         }
 
         public int getPosition(long conversationId) {
-            final Integer position = mConversationIdPositionMap.get(conversationId);
-            return position != null ? position.intValue() : -1;
+            if (mConversationIdPositionIndex == null) {
+                final int position = getWindowPosition(null, conversationId);
+                if (position >= 0) {
+                    return position;
+                }
+            }
+            return hasPositionIndex() ? mConversationIdPositionIndex.get(conversationId, -1) : -1;
         }
 
         public int getPosition(String conversationUri) {
-            final Integer position = mConversationUriPositionMap.get(conversationUri);
-            return position != null ? position.intValue() : -1;
+            if (mConversationIdPositionIndex == null) {
+                final int position = getWindowPosition(conversationUri, -1);
+                if (position >= 0) {
+                    return position;
+                }
+            }
+            return hasPositionIndex() ? mConversationUriPositionIndex.get(conversationUri) : -1;
+        }
+
+        /**
+         * Returns the row data for the current position of the calling thread, reading the inner
+         * uri from the cursor (and evicting whatever row shared its slot) if it isn't in the
+         * window.
+         */
+        private UnderlyingRowData obtainRowData() {
+            final int position = getPosition();
+            final int slot = position % mRowWindow.length;
+            synchronized (mLock) {
+                UnderlyingRowData rowData = mRowWindow[slot];
+                if (rowData == null || rowData.position != position) {
+                    rowData = new UnderlyingRowData(position, super.getString(URI_COLUMN_INDEX),
+                            null /* conversation */);
+                    mRowWindow[slot] = rowData;
+                }
+                return rowData;
+            }
+        }
+
+        private Conversation peekConversation(int position) {
+            synchronized (mLock) {
+                final UnderlyingRowData rowData = mRowWindow[position % mRowWindow.length];
+                return rowData != null && rowData.position == position
+                        ? rowData.conversation : null;
+            }
         }
 
         public String getInnerUri() {
-            return mRowCache.get(getPosition()).innerUri;
+            return obtainRowData().innerUri;
         }
 
         public Conversation getConversation() {
-            return mRowCache.get(getPosition()).conversation;
+            return peekConversation(getPosition());
         }
 
         public void cacheConversation(Conversation conversation) {
-            final UnderlyingRowData rowData = mRowCache.get(getPosition());
-            if (rowData.conversation == null) {
-                rowData.conversation = conversation;
+            synchronized (mLock) {
+                final UnderlyingRowData rowData = obtainRowData();
+                if (rowData.conversation == null) {
+                    rowData.conversation = conversation;
+                }
+            }
+        }
+
+        /**
+         * Caches a conversation read from the given position, without needing the calling thread
+         * to be at that position.
+         */
+        private void cacheConversation(int position, Conversation conversation) {
+            final int slot = position % mRowWindow.length;
+            synchronized (mLock) {
+                final UnderlyingRowData rowData = mRowWindow[slot];
+                if (rowData == null || rowData.position != position) {
+                    mRowWindow[slot] = new UnderlyingRowData(position,
+                            conversation.uri.toString(), conversation);
+                } else if (rowData.conversation == null) {
+                    rowData.conversation = conversation;
+                }
             }
         }
 
         private void notifyConversationUIPositionChange() {
-            Utils.notifyCursorUIPositionChange(this, getPosition());
+            final int position = getPosition();
+            moveWindow(position);
+            Utils.notifyCursorUIPositionChange(this, position);
         }
 
         /**
@@ -554,12 +777,37 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             super.close();
         }
 
+        /**
+         * Passes requests on to the provider, except range requests once the provider has shown
+         * that it doesn't implement them. Each request is a round-trip to the provider, and
+         * {@link Conversation#fromCursorRange} sends one per batch before falling back to asking
+         * row by row, so only the first batch of a cursor pays for finding out.
+         */
+        @Override
+        public Bundle respond(Bundle extras) {
+            if (!extras.containsKey(UIProvider.ConversationCursorCommand.COMMAND_KEY_RANGE_START)) {
+                return super.respond(extras);
+            }
+            if (mRangeCommandsUnsupported) {
+                return Bundle.EMPTY;
+            }
+            final Bundle response = super.respond(extras);
+            if (!response.containsKey(
+                    UIProvider.ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO_RANGE)
+                    && !response.containsKey(
+                    UIProvider.ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS_RANGE)) {
+                mRangeCommandsUnsupported = true;
+            }
+            return response;
+        }
+
         @Override
         public void onStateChanged(DrawIdler idler, int newState) {
             final int oldState = mDrawState;
             mDrawState = newState;
             if (oldState != newState) {
                 if (newState == DrawIdler.STATE_IDLE) {
+                    startPositionIndex();
                     // begin/resume caching
                     final boolean resumed = resumeCaching();
                     if (resumed) {
@@ -590,6 +838,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             final UnderlyingCursorWrapper result = doQuery(false);
             // Make sure window is full
             result.getCount();
+            // resetCursor() moves local changes over to the new cursor by position on the UI
+            // thread, which would otherwise wait for the lookups. Local changes may be made while
+            // this runs, so build the lookups here whether or not there are any yet.
+            result.preparePositionIndex();
             return result;
         }
 
@@ -663,46 +915,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     private void resetCursor(UnderlyingCursorWrapper newCursorWrapper) {
         synchronized (mCacheMapLock) {
-            // Walk through the cache
-            final Iterator<Map.Entry<String, ContentValues>> iter =
-                    mCacheMap.entrySet().iterator();
-            final long now = System.currentTimeMillis();
-            while (iter.hasNext()) {
-                Map.Entry<String, ContentValues> entry = iter.next();
-                final ContentValues values = entry.getValue();
-                final String key = entry.getKey();
-                boolean withinTimeWindow = false;
-                boolean removed = false;
-                if (values != null) {
-                    Long updateTime = values.getAsLong(UPDATE_TIME_COLUMN);
-                    if (updateTime != null && ((now - updateTime) < REQUERY_ALLOWANCE_TIME)) {
-                        LogUtils.d(LOG_TAG, "IN resetCursor, keep recent changes to %s", key);
-                        withinTimeWindow = true;
-                    } else if (updateTime == null) {
-                        LogUtils.e(LOG_TAG, "null updateTime from mCacheMap for key: %s", key);
-                    }
-                    if (values.containsKey(DELETED_COLUMN)) {
-                        // Item is deleted locally AND deleted in the new cursor.
-                        if (!newCursorWrapper.contains(key)) {
-                            // Keep the deleted count up-to-date; remove the
-                            // cache entry
-                            mDeletedCount--;
-                            removed = true;
-                            LogUtils.i(LOG_TAG,
-                                    "IN resetCursor, sDeletedCount decremented to: %d by %s",
-                                    mDeletedCount,
-                                    (LogUtils.isLoggable(LOG_TAG, LogUtils.DEBUG)) ? key
-                                            : "[redacted]");
-                        }
-                    }
-                } else {
-                    LogUtils.e(LOG_TAG, "null ContentValues from mCacheMap for key: %s", key);
-                }
-                // Remove the entry if it was time for an update or the item was deleted by the user.
-                if (!withinTimeWindow || removed) {
-                    iter.remove();
-                }
-            }
+            // Keep only recent changes, re-keyed by position in the new cursor
+            mDeltas.rebind(newCursorWrapper.getCount(), newCursorWrapper,
+                    System.currentTimeMillis(), REQUERY_ALLOWANCE_TIME);
 
             // Swap cursor
             if (mUnderlyingCursor != null) {
@@ -739,16 +954,12 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         synchronized (mCacheMapLock) {
             // Walk through the cache and return the list of uris that have been deleted
             final Set<String> deletedItems = Sets.newHashSet();
-            final Iterator<Map.Entry<String, ContentValues>> iter =
-                    mCacheMap.entrySet().iterator();
             final StringBuilder uriBuilder = new StringBuilder();
-            while (iter.hasNext()) {
-                final Map.Entry<String, ContentValues> entry = iter.next();
-                final ContentValues values = entry.getValue();
-                if (values.containsKey(DELETED_COLUMN)) {
+            for (ConversationDeltaStore.Delta delta : mDeltas.deltas()) {
+                if (delta.deleted) {
                     // Since clients of the conversation cursor see conversation ConversationCursor
                     // provider uris, we need to make sure that this also returns these uris
-                    deletedItems.add(uriToCachingUriString(entry.getKey(), uriBuilder));
+                    deletedItems.add(uriToCachingUriString(delta.innerUri, uriBuilder));
                 }
             }
             return deletedItems;
@@ -777,34 +988,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             return underlyingPosition;
         }
 
-        // Walk through each of the deleted items.  If the deleted item is before the underlying
-        // position, decrement the position
         synchronized (mCacheMapLock) {
-            int updatedPosition = underlyingPosition;
-            final Iterator<Map.Entry<String, ContentValues>> iter =
-                    mCacheMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                final Map.Entry<String, ContentValues> entry = iter.next();
-                final ContentValues values = entry.getValue();
-                if (values.containsKey(DELETED_COLUMN)) {
-                    // Since clients of the conversation cursor see conversation ConversationCursor
-                    // provider uris, we need to make sure that this also returns these uris
-                    final String conversationUri = entry.getKey();
-                    final int deletedItemPosition = mUnderlyingCursor.getPosition(conversationUri);
-                    if (deletedItemPosition == underlyingPosition) {
-                        // The requested items has been deleted.
-                        return -1;
-                    }
-
-                    if (deletedItemPosition >= 0 && deletedItemPosition < underlyingPosition) {
-                        // This item has been deleted, but is still in the underlying cursor, at
-                        // a position before the requested item.  Decrement the position of the
-                        // requested item.
-                        updatedPosition--;
-                    }
-                }
-            }
-            return updatedPosition;
+            return mDeltas.toVisiblePosition(underlyingPosition);
         }
     }
 
@@ -918,68 +1103,41 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
 
         synchronized (mCacheMapLock) {
-            // Get the map for our uri
-            ContentValues map = mCacheMap.get(uriString);
-            // Create one if necessary
-            if (map == null) {
-                map = new ContentValues();
-                mCacheMap.put(uriString, map);
-            }
-            // If we're caching a deletion, add to our count
+            final int position = mUnderlyingCursor != null
+                    ? mUnderlyingCursor.getPosition(uriString) : -1;
+            final long now = System.currentTimeMillis();
+            // If we're caching a deletion, the store keeps our count
             if (columnName.equals(DELETED_COLUMN)) {
                 final boolean state = (Boolean)value;
-                final boolean hasValue = map.get(columnName) != null;
-                if (state && !hasValue) {
-                    mDeletedCount++;
-                    if (DEBUG) {
-                        LogUtils.i(LOG_TAG, "Deleted %s, incremented deleted count=%d", uriString,
-                                mDeletedCount);
-                    }
-                } else if (!state && hasValue) {
-                    mDeletedCount--;
-                    map.remove(columnName);
-                    if (DEBUG) {
-                        LogUtils.i(LOG_TAG, "Undeleted %s, decremented deleted count=%d", uriString,
-                                mDeletedCount);
-                    }
-                    return;
-                } else if (!state) {
-                    // Trying to undelete, but it's not deleted; just return
-                    if (DEBUG) {
-                        LogUtils.i(LOG_TAG, "Undeleted %s, IGNORING, deleted count=%d", uriString,
-                                mDeletedCount);
-                    }
-                    return;
+                final boolean changed = mDeltas.setDeleted(uriString, position, state, now);
+                if (DEBUG) {
+                    LogUtils.i(LOG_TAG, "%s %s%s, deleted count=%d",
+                            state ? "Deleted" : "Undeleted", uriString,
+                            changed ? "" : ", IGNORING", mDeltas.getDeletedCount());
                 }
+                return;
             }
-            putInValues(map, columnName, value);
-            map.put(UPDATE_TIME_COLUMN, System.currentTimeMillis());
-            if (DEBUG && (!columnName.equals(DELETED_COLUMN))) {
+            mDeltas.put(uriString, position, columnName, value, now);
+            if (DEBUG) {
                 LogUtils.i(LOG_TAG, "Caching value for %s: %s", uriString, columnName);
             }
         }
     }
 
     /**
-     * Get the cached value for the provided column; we special case -1 as the "deleted" column
+     * Get the cached value for the provided column at the current position
      * @param columnIndex the index of the column whose cached value we want to retrieve
      * @return the cached value for this column, or null if there is none
      */
     private Object getCachedValue(int columnIndex) {
-        final String uri = mUnderlyingCursor.getInnerUri();
-        return getCachedValue(uri, columnIndex);
+        return mDeltas.getValue(mUnderlyingCursor.getPosition(), mColumnSlots[columnIndex]);
     }
 
     private Object getCachedValue(String uri, int columnIndex) {
-        ContentValues uriMap = mCacheMap.get(uri);
-        if (uriMap != null) {
-            String columnName;
-            if (columnIndex == DELETED_COLUMN_INDEX) {
-                columnName = DELETED_COLUMN;
-            } else {
-                columnName = mColumnNames[columnIndex];
-            }
-            return uriMap.get(columnName);
+        final ConversationDeltaStore.Delta delta = mDeltas.get(uri);
+        if (delta != null) {
+            final int slot = mColumnSlots[columnIndex];
+            return slot != ConversationDeltaStore.NO_SLOT ? delta.get(slot) : null;
         }
         return null;
     }
@@ -1109,7 +1267,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     public void disable() {
         close();
-        mCacheMap.clear();
+        mDeltas.clear();
         mListeners.clear();
         mUnderlyingCursor = null;
     }
@@ -1135,21 +1293,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     @Override
     public boolean moveToNext() {
-        while (true) {
-            boolean ret = mUnderlyingCursor.moveToNext();
-            if (!ret) {
-                mPosition = getCount();
-                if (DEBUG) {
-                    LogUtils.i(LOG_TAG, "*** moveToNext returns false: pos = %d, und = %d" +
-                            ", del = %d", mPosition, mUnderlyingCursor.getPosition(),
-                            mDeletedCount);
-                }
-                return false;
-            }
-            if (getCachedValue(DELETED_COLUMN_INDEX) instanceof Integer) continue;
-            mPosition++;
-            return true;
-        }
+        return moveToPosition(mPosition + 1);
     }
 
     /**
@@ -1157,17 +1301,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     @Override
     public boolean moveToPrevious() {
-        while (true) {
-            boolean ret = mUnderlyingCursor.moveToPrevious();
-            if (!ret) {
-                // Make sure we're before the first position
-                mPosition = -1;
-                return false;
-            }
-            if (getCachedValue(DELETED_COLUMN_INDEX) instanceof Integer) continue;
-            mPosition--;
-            return true;
-        }
+        return moveToPosition(mPosition - 1);
     }
 
     @Override
@@ -1184,7 +1318,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             throw new IllegalStateException(
                     "getCount() on disabled cursor: " + mName + "(" + qUri + ")");
         }
-        return mUnderlyingCursor.getCount() - mDeletedCount;
+        return mUnderlyingCursor.getCount() - mDeltas.getDeletedCount();
     }
 
     @Override
@@ -1193,65 +1327,45 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             throw new IllegalStateException(
                     "moveToFirst() on disabled cursor: " + mName + "(" + qUri + ")");
         }
-        mUnderlyingCursor.moveToPosition(-1);
-        mPosition = -1;
-        return moveToNext();
+        return moveToPosition(0);
     }
 
+    /**
+     * Moves to the given position, skipping over locally deleted rows. The underlying position is
+     * found directly from the delta store's index of deleted rows, so this doesn't depend on where
+     * the cursor was before.
+     */
     @Override
     public boolean moveToPosition(int pos) {
         if (mUnderlyingCursor == null) {
             throw new IllegalStateException(
                     "moveToPosition() on disabled cursor: " + mName + "(" + qUri + ")");
         }
-        // Handle the "move to first" case before anything else; moveToPosition(0) in an empty
-        // SQLiteCursor moves the position to 0 when returning false, which we will mirror.
-        // But we don't want to return true on a subsequent "move to first", which we would if we
-        // check pos vs mPosition first
-        if (mUnderlyingCursor.getPosition() == -1) {
-            LogUtils.d(LOG_TAG, "*** Underlying cursor position is -1 asking to move from %d to %d",
-                    mPosition, pos);
-        }
-        if (pos == 0) {
-            return moveToFirst();
-        } else if (pos < 0) {
+        if (pos < 0) {
             mPosition = -1;
-            mUnderlyingCursor.moveToPosition(mPosition);
+            mUnderlyingCursor.moveToPosition(-1);
             return false;
-        } else if (pos == mPosition) {
-            // Return false if we're past the end of the cursor
-            return pos < getCount();
-        } else if (pos > mPosition) {
-            while (pos > mPosition) {
-                if (!moveToNext()) {
-                    return false;
-                }
-            }
-            return true;
-        } else if ((pos >= 0) && (mPosition - pos) > pos) {
-            // Optimization if it's easier to move forward to position instead of backward
+        }
+        final int count = getCount();
+        if (pos >= count) {
+            // Like SQLiteCursor, leave the position just past the end
+            mPosition = count;
+            mUnderlyingCursor.moveToPosition(mUnderlyingCursor.getCount());
             if (DEBUG) {
-                LogUtils.i(LOG_TAG, "*** Move from %d to %d, starting from first", mPosition, pos);
-            }
-            moveToFirst();
-            return moveToPosition(pos);
-        } else {
-            while (pos < mPosition) {
-                if (!moveToPrevious()) {
-                    return false;
-                }
+                LogUtils.i(LOG_TAG, "*** moveToPosition(%d) past end: und = %d, del = %d", pos,
+                        mUnderlyingCursor.getPosition(), mDeltas.getDeletedCount());
             }
-            return true;
+            return false;
         }
+        mPosition = pos;
+        return mUnderlyingCursor.moveToPosition(mDeltas.toUnderlyingPosition(pos));
     }
 
     /**
      * Make sure mPosition is correct after locally deleting/undeleting items
      */
     private void recalibratePosition() {
-        final int pos = mPosition;
-        moveToFirst();
-        moveToPosition(pos);
+        moveToPosition(mPosition);
     }
 
     @Override
@@ -1345,29 +1459,38 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      *
      */
     public Conversation getCachedConversation() {
-        Conversation result = mUnderlyingCursor.getConversation();
+        return applyCachedValues(mUnderlyingCursor.getConversation(),
+                mUnderlyingCursor.getPosition());
+    }
+
+    /**
+     * Returns the Conversation object at the given position, or null if it has not yet been
+     * cached, without moving the cursor. Like {@link #getCachedConversation()}, this applies any
+     * cached column data to the result.
+     */
+    public Conversation peekCachedConversation(int position) {
+        if (mUnderlyingCursor == null || position < 0 || position >= getCount()) {
+            return null;
+        }
+        final int underlyingPosition = mDeltas.toUnderlyingPosition(position);
+        return applyCachedValues(mUnderlyingCursor.peekConversation(underlyingPosition),
+                underlyingPosition);
+    }
+
+    private Conversation applyCachedValues(Conversation result, int underlyingPosition) {
         if (result == null) {
             return null;
         }
 
         // apply any cached values
-        // but skip over any cached values that aren't part of the cursor projection
-        final ContentValues values = mCacheMap.get(mUnderlyingCursor.getInnerUri());
-        if (values != null) {
-            final ContentValues queryableValues = new ContentValues();
-            for (String key : values.keySet()) {
-                if (!mColumnNameSet.contains(key)) {
-                    continue;
-                }
-                putInValues(queryableValues, key, values.get(key));
-            }
-            if (queryableValues.size() > 0) {
-                // copy-on-write to help ensure the underlying cached Conversation is immutable
-                // of course, any callers this method should also try not to modify them
-                // overmuch...
-                result = new Conversation(result);
-                result.applyCachedValues(queryableValues);
-            }
+        final ConversationDeltaStore.Delta delta = mDeltas.get(underlyingPosition);
+        final ContentValues queryableValues = delta != null ? delta.toContentValues() : null;
+        if (queryableValues != null) {
+            // copy-on-write to help ensure the underlying cached Conversation is immutable
+            // of course, any callers this method should also try not to modify them
+            // overmuch...
+            result = new Conversation(result);
+            result.applyCachedValues(queryableValues);
         }
         return result;
     }
@@ -1379,25 +1502,6 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         mUnderlyingCursor.notifyConversationUIPositionChange();
     }
 
-    private static void putInValues(ContentValues dest, String key, Object value) {
-        // ContentValues has no generic "put", so we must test.  For now, the only classes
-        // of values implemented are Boolean/Integer/String/Blob, though others are trivially
-        // added
-        if (value instanceof Boolean) {
-            dest.put(key, ((Boolean) value).booleanValue() ? 1 : 0);
-        } else if (value instanceof Integer) {
-            dest.put(key, (Integer) value);
-        } else if (value instanceof String) {
-            dest.put(key, (String) value);
-        } else if (value instanceof byte[]) {
-            dest.put(key, (byte[])value);
-        } else {
-            final String cname = value.getClass().getName();
-            throw new IllegalArgumentException("Value class not compatible with cache: "
-                    + cname);
-        }
-    }
-
     /**
      * Observer of changes to underlying data
      */
@@ -2356,12 +2460,12 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         sb.append(" mPaused=");
         sb.append(mPaused);
         sb.append(" mDeletedCount=");
-        sb.append(mDeletedCount);
+        sb.append(mDeltas.getDeletedCount());
         sb.append(" mUnderlying=");
         sb.append(mUnderlyingCursor);
         if (LogUtils.isLoggable(LOG_TAG, LogUtils.DEBUG)) {
-            sb.append(" mCacheMap=");
-            sb.append(mCacheMap);
+            sb.append(" mDeltas=");
+            sb.append(mDeltas);
         }
         sb.append("}");
         return sb.toString();
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentValues;
+import android.support.v4.util.SparseArrayCompat;
+
+import com.android.mail.providers.UIProvider.ConversationColumns;
+import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.RankSelectBitSet;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The local changes that {@link ConversationCursor} overlays on top of its underlying cursor
+ * until the provider catches up. Only the handful of columns that the UI changes optimistically
+ * are supported, each in a fixed, typed slot of a {@link Delta}. Deltas are found by underlying
+ * cursor position, and a bitset over all positions makes the check for an unchanged row a single
+ * bit test. They are also kept by conversation uri, which is what survives a requery; see
+ * {@link #rebind(int, PositionResolver, long, long)}.
+ * <p>
+ * Deleted rows are also tracked in a {@link RankSelectBitSet}, so that mapping between visible
+ * positions (which skip deleted rows) and underlying positions is logarithmic rather than a walk
+ * over the cursor.
+ * <p>
+ * Not synchronized; {@link ConversationCursor} guards writes with its cache lock.
+ */
+final class ConversationDeltaStore {
+    private static final String LOG_TAG = ConversationCursor.LOG_TAG;
+
+    /** The slot for a column that can't be changed locally */
+    static final int NO_SLOT = -1;
+
+    // Int slots come first, so that they can index Delta.mInts directly
+    static final int SLOT_READ = 0;
+    static final int SLOT_SEEN = 1;
+    static final int SLOT_STARRED = 2;
+    static final int SLOT_FLAGS = 3;
+    static final int SLOT_PRIORITY = 4;
+    private static final int INT_SLOT_COUNT = 5;
+    static final int SLOT_RAW_FOLDERS = 5;
+    static final int SLOT_CONVERSATION_INFO = 6;
+    private static final int SLOT_COUNT = 7;
+
+    private static final String[] SLOT_COLUMNS = {
+        ConversationColumns.READ,
+        ConversationColumns.SEEN,
+        ConversationColumns.STARRED,
+        ConversationColumns.FLAGS,
+        ConversationColumns.PRIORITY,
+        ConversationColumns.RAW_FOLDERS,
+        ConversationColumns.CONVERSATION_INFO
+    };
+
+    /**
+     * Maps a conversation uri to its position in the current underlying cursor.
+     */
+    interface PositionResolver {
+        /** @return the position of the conversation, or -1 if it isn't in the cursor */
+        int getPosition(String innerUri);
+    }
+
+    /**
+     * The local changes to a single conversation.
+     */
+    static final class Delta {
+        final String innerUri;
+        /** The position in the underlying cursor, or -1 if the conversation isn't in it */
+        int position = -1;
+        /** When this conversation was last changed locally */
+        long updateTime;
+        boolean deleted;
+        /** One bit per slot that holds a value */
+        private int mPresentSlots;
+        private final int[] mInts = new int[INT_SLOT_COUNT];
+        private byte[] mRawFolders;
+        private byte[] mConversationInfo;
+
+        private Delta(String innerUri) {
+            this.innerUri = innerUri;
+        }
+
+        boolean has(int slot) {
+            return (mPresentSlots & (1 << slot)) != 0;
+        }
+
+        /**
+         * Returns the value in the given slot, as it would have been read from the cursor, or
+         * null if the slot is empty.
+         */
+        Object get(int slot) {
+            if (!has(slot)) {
+                return null;
+            } else if (slot < INT_SLOT_COUNT) {
+                return mInts[slot];
+            } else if (slot == SLOT_RAW_FOLDERS) {
+                return mRawFolders;
+            } else {
+                return mConversationInfo;
+            }
+        }
+
+        private void set(int slot, Object value) {
+            if (slot < INT_SLOT_COUNT) {
+                if (value instanceof Boolean) {
+                    mInts[slot] = ((Boolean) value).booleanValue() ? 1 : 0;
+                } else if (value instanceof Integer) {
+                    mInts[slot] = (Integer) value;
+                } else {
+                    throw new IllegalArgumentException("Value class not compatible with cache: "
+                            + value.getClass().getName());
+                }
+            } else if (value instanceof byte[]) {
+                if (slot == SLOT_RAW_FOLDERS) {
+                    mRawFolders = (byte[]) value;
+                } else {
+                    mConversationInfo = (byte[]) value;
+                }
+            } else {
+                throw new IllegalArgumentException("Value class not compatible with cache: "
+                        + value.getClass().getName());
+            }
+            mPresentSlots |= 1 << slot;
+        }
+
+        boolean isEmpty() {
+            return !deleted && mPresentSlots == 0;
+        }
+
+        /**
+         * Copies the values in this delta into a ContentValues keyed by column name, as
+         * {@link com.android.mail.providers.Conversation#applyCachedValues(ContentValues)}
+         * expects them. Returns null if there are none.
+         */
+        ContentValues toContentValues() {
+            if (mPresentSlots == 0) {
+                return null;
+            }
+            final ContentValues values = new ContentValues(Integer.bitCount(mPresentSlots));
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                if (!has(slot)) {
+                    continue;
+                }
+                if (slot < INT_SLOT_COUNT) {
+                    values.put(SLOT_COLUMNS[slot], mInts[slot]);
+                } else {
+                    values.put(SLOT_COLUMNS[slot], (byte[]) get(slot));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("{pos=");
+            sb.append(position);
+            if (deleted) {
+                sb.append(" deleted");
+            }
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                if (has(slot)) {
+                    sb.append(' ').append(SLOT_COLUMNS[slot]);
+                }
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private final HashMap<String, Delta> mByUri = Maps.newHashMap();
+    private final SparseArrayCompat<Delta> mByPosition = new SparseArrayCompat<Delta>();
+    /** One bit per underlying position, set when there is a Delta at that position */
+    private long[] mChangedRows = new long[0];
+    /** One bit per underlying position, set when the row at that position is deleted */
+    private RankSelectBitSet mDeletedRows = new RankSelectBitSet(0);
+
+    /**
+     * Returns the slot for the given column name, or {@link #NO_SLOT} if it can't be cached.
+     */
+    static int slotForColumn(String columnName) {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (SLOT_COLUMNS[slot].equals(columnName)) {
+                return slot;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * Returns true if there are local changes for the given underlying position.
+     */
+    boolean isChanged(int position) {
+        final int word = position >> 6;
+        return position >= 0 && word < mChangedRows.length
+                && (mChangedRows[word] & (1L << position)) != 0;
+    }
+
+    Delta get(int position) {
+        return isChanged(position) ? mByPosition.get(position) : null;
+    }
+
+    Delta get(String innerUri) {
+        return mByUri.get(innerUri);
+    }
+
+    /**
+     * Returns the value for the given slot at the given position, or null if it wasn't changed.
+     */
+    Object getValue(int position, int slot) {
+        if (!isChanged(position) || slot == NO_SLOT) {
+            return null;
+        }
+        return mByPosition.get(position).get(slot);
+    }
+
+    boolean isDeleted(int position) {
+        return mDeletedRows.get(position);
+    }
+
+    boolean isEmpty() {
+        return mByUri.isEmpty();
+    }
+
+    /**
+     * Returns the number of deleted conversations that are in the underlying cursor.
+     */
+    int getDeletedCount() {
+        return mDeletedRows.cardinality();
+    }
+
+    /**
+     * Returns the underlying position of the row shown at the given position once deleted rows
+     * are skipped, or -1 if there is no such row.
+     */
+    int toUnderlyingPosition(int visiblePosition) {
+        return mDeletedRows.selectClear(visiblePosition);
+    }
+
+    /**
+     * Returns the position at which the row at the given underlying position is shown once
+     * deleted rows are skipped, or -1 if it is deleted.
+     */
+    int toVisiblePosition(int underlyingPosition) {
+        if (mDeletedRows.get(underlyingPosition)) {
+            return -1;
+        }
+        return underlyingPosition - mDeletedRows.rank(underlyingPosition);
+    }
+
+    Collection<Delta> deltas() {
+        return mByUri.values();
+    }
+
+    private Delta obtain(String innerUri, int position) {
+        Delta delta = mByUri.get(innerUri);
+        if (delta == null) {
+            delta = new Delta(innerUri);
+            mByUri.put(innerUri, delta);
+            attach(delta, position);
+        }
+        return delta;
+    }
+
+    private void attach(Delta delta, int position) {
+        if (position >= mDeletedRows.size()) {
+            // Not in the cursor we are bound to
+            position = -1;
+        }
+        delta.position = position;
+        if (position >= 0) {
+            mByPosition.put(position, delta);
+            mChangedRows[position >> 6] |= 1L << position;
+        }
+    }
+
+    private void remove(Delta delta) {
+        mByUri.remove(delta.innerUri);
+        final int position = delta.position;
+        if (position >= 0) {
+            mByPosition.remove(position);
+            mChangedRows[position >> 6] &= ~(1L << position);
+            mDeletedRows.clear(position);
+        }
+    }
+
+    /**
+     * Caches a value for the given column. Values for columns that can't be cached are dropped.
+     *
+     * @param position the conversation's position in the underlying cursor, or -1
+     */
+    void put(String innerUri, int position, String columnName, Object value, long now) {
+        final int slot = slotForColumn(columnName);
+        if (slot == NO_SLOT) {
+            LogUtils.d(LOG_TAG, "Not caching unsupported column %s", columnName);
+            return;
+        }
+        final Delta delta = obtain(innerUri, position);
+        delta.set(slot, value);
+        delta.updateTime = now;
+    }
+
+    /**
+     * Marks a conversation as locally deleted or undeleted.
+     *
+     * @param position the conversation's position in the underlying cursor, or -1
+     * @return true if the deleted state changed
+     */
+    boolean setDeleted(String innerUri, int position, boolean deleted, long now) {
+        if (deleted) {
+            final Delta delta = obtain(innerUri, position);
+            final boolean changed = !delta.deleted;
+            if (changed) {
+                delta.deleted = true;
+                if (delta.position >= 0) {
+                    mDeletedRows.set(delta.position);
+                }
+            }
+            delta.updateTime = now;
+            return changed;
+        }
+        final Delta delta = mByUri.get(innerUri);
+        if (delta == null || !delta.deleted) {
+            return false;
+        }
+        if (delta.position >= 0) {
+            mDeletedRows.clear(delta.position);
+        }
+        delta.deleted = false;
+        if (delta.isEmpty()) {
+            remove(delta);
+        }
+        return true;
+    }
+
+    /**
+     * Moves the local changes over to a new underlying cursor. Changes older than the given
+     * allowance are dropped, since the new cursor should reflect them by now, and so are
+     * deletions of conversations that the new cursor no longer has. The rest are re-keyed by
+     * their position in the new cursor.
+     */
+    void rebind(int rowCount, PositionResolver resolver, long now, long allowance) {
+        mByPosition.clear();
+        mChangedRows = new long[(rowCount + 63) >> 6];
+        mDeletedRows = new RankSelectBitSet(rowCount);
+        // Deleted positions are collected and indexed in one pass at the end
+        int[] deleted = null;
+        int deletedCount = 0;
+
+        final Iterator<Delta> iter = mByUri.values().iterator();
+        while (iter.hasNext()) {
+            final Delta delta = iter.next();
+            final String key = delta.innerUri;
+            final int position = resolver.getPosition(key);
+            if (delta.deleted && position < 0) {
+                // Item is deleted locally AND deleted in the new cursor.
+                LogUtils.i(LOG_TAG, "IN resetCursor, dropping deletion of %s",
+                        (LogUtils.isLoggable(LOG_TAG, LogUtils.DEBUG)) ? key : "[redacted]");
+                iter.remove();
+            } else if ((now - delta.updateTime) >= allowance) {
+                iter.remove();
+            } else {
+                LogUtils.d(LOG_TAG, "IN resetCursor, keep recent changes to %s", key);
+                attach(delta, position);
+                if (delta.deleted && delta.position >= 0) {
+                    if (deleted == null) {
+                        deleted = new int[mByUri.size()];
+                    }
+                    deleted[deletedCount++] = delta.position;
+                }
+            }
+        }
+        if (deletedCount > 0) {
+            mDeletedRows.setAll(deleted, deletedCount);
+        }
+    }
+
+    void clear() {
+        mByUri.clear();
+        mByPosition.clear();
+        mChangedRows = new long[0];
+        mDeletedRows = new RankSelectBitSet(0);
+    }
+
+    @Override
+    public String toString() {
+        return mByUri.toString();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.os.AsyncTask;
+
+import com.android.mail.providers.Conversation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prepares the view models of the conversations just past the visible rows of the conversation
+ * list, in the direction it is scrolling, so that binding the views for them as they scroll in
+ * finds the date and senders already formatted, and the senders elided and laid out.
+ * <p>
+ * The conversations are read and the work collected on the UI thread, without moving the list's
+ * cursor. The formatting then runs on a background thread, into fresh objects, and its results
+ * are handed to the view models back on the UI thread.
+ */
+public class ConversationItemPrefetcher {
+    /** Rows past the visible ones to prepare, as a multiple of the visible row count */
+    private static final int PREFETCH_SCREENS = 1;
+
+    /**
+     * The work to prepare one row.
+     */
+    public interface Prefetch {
+        /** Does the formatting. Called on a background thread. */
+        void compute();
+        /** Hands the results of {@link #compute()} to the view model. Called on the UI thread. */
+        void apply();
+    }
+
+    /**
+     * Gives the conversations shown in the list.
+     */
+    public interface ConversationSource {
+        /**
+         * Returns the conversation at the given list position, or null if that row isn't a
+         * conversation or hasn't been loaded yet. This must not move the list's cursor.
+         */
+        Conversation getConversationForPrefetch(int position);
+        int getCount();
+        /**
+         * Returns the work to prepare the row for a conversation, or null if there is none.
+         *
+         * @param coordinates the coordinates the rows were last laid out with
+         * @param isRtl whether the rows are laid out right to left
+         */
+        Prefetch createPrefetch(Conversation conversation,
+                ConversationItemViewCoordinates coordinates, boolean isRtl);
+    }
+
+    private final ConversationSource mSource;
+
+    private ConversationItemViewCoordinates mCoordinates;
+    private boolean mIsRtl;
+    private int mLastFirstVisible = -1;
+    /** The next position to prepare, the position to stop at, and the direction to move in */
+    private int mNext;
+    private int mEnd;
+    private int mStep;
+    private boolean mScheduled;
+    private PrefetchTask mTask;
+
+    /**
+     * Runs the work for a batch of rows, then collects the next batch if the list scrolled in
+     * the meantime.
+     */
+    private class PrefetchTask extends AsyncTask<Void, Void, Void> {
+        private final List<Prefetch> mPrefetches;
+
+        PrefetchTask(List<Prefetch> prefetches) {
+            mPrefetches = prefetches;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for (Prefetch prefetch : mPrefetches) {
+                if (isCancelled()) {
+                    break;
+                }
+                prefetch.compute();
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            for (Prefetch prefetch : mPrefetches) {
+                prefetch.apply();
+            }
+            mTask = null;
+            mScheduled = false;
+            if (mNext != mEnd) {
+                mScheduled = true;
+                schedule();
+            }
+        }
+    }
+
+    public ConversationItemPrefetcher(ConversationSource source) {
+        mSource = source;
+    }
+
+    /**
+     * Records the coordinates the views were last laid out with, as the senders are formatted to
+     * a length and elided to a width that depend on them. Nothing is prepared until these are
+     * known.
+     */
+    public void setCoordinates(ConversationItemViewCoordinates coordinates, boolean isRtl) {
+        mCoordinates = coordinates;
+        mIsRtl = isRtl;
+    }
+
+    boolean hasCoordinates() {
+        return mCoordinates != null;
+    }
+
+    /**
+     * Called whenever the list scrolls, to prepare the rows that are about to appear.
+     */
+    public void onScroll(int firstVisible, int visibleCount) {
+        if (!hasCoordinates() || visibleCount <= 0 || firstVisible == mLastFirstVisible) {
+            return;
+        }
+        final boolean scrollingUp = firstVisible < mLastFirstVisible;
+        mLastFirstVisible = firstVisible;
+
+        final int count = mSource.getCount();
+        final int distance = visibleCount * PREFETCH_SCREENS;
+        if (scrollingUp) {
+            mNext = firstVisible - 1;
+            mEnd = Math.max(firstVisible - distance, 0) - 1;
+            mStep = -1;
+        } else {
+            mNext = firstVisible + visibleCount;
+            mEnd = Math.min(mNext + distance, count);
+            mStep = 1;
+        }
+        if (!mScheduled && mNext != mEnd) {
+            mScheduled = true;
+            schedule();
+        }
+    }
+
+    /**
+     * Collects the work for the rows still to be prepared, and starts it on a background thread.
+     */
+    void schedule() {
+        final List<Prefetch> prefetches = collect();
+        if (prefetches.isEmpty()) {
+            mScheduled = false;
+            return;
+        }
+        mTask = new PrefetchTask(prefetches);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Stops any prefetch in progress, as when the list is given a new cursor.
+     */
+    public void reset() {
+        mNext = mEnd;
+        mLastFirstVisible = -1;
+        mScheduled = false;
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    /**
+     * Takes the rows still to be prepared, and returns the work for them.
+     */
+    List<Prefetch> collect() {
+        final List<Prefetch> prefetches = new ArrayList<Prefetch>();
+        for (; mNext != mEnd; mNext += mStep) {
+            final Conversation conversation = mSource.getConversationForPrefetch(mNext);
+            if (conversation != null) {
+                final Prefetch prefetch =
+                        mSource.createPrefetch(conversation, mCoordinates, mIsRtl);
+                if (prefetch != null) {
+                    prefetches.add(prefetch);
+                }
+            }
+        }
+        return prefetches;
+    }
+}
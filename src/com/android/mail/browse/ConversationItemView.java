@@ -50,7 +50,6 @@ import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.TextUtils;
 import android.text.TextUtils.TruncateAt;
-import android.text.format.DateUtils;
 import android.text.style.BackgroundColorSpan;
 import android.text.style.CharacterStyle;
 import android.text.style.ForegroundColorSpan;
@@ -92,8 +91,8 @@ import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.Utils;
 import com.android.mail.utils.ViewUtils;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -111,6 +110,10 @@ public class ConversationItemView extends View
     private static final String PERF_TAG_CALCULATE_SENDER_SUBJECT = "CCHV.sendersubj";
     private static final String PERF_TAG_CALCULATE_FOLDERS = "CCHV.folders";
     private static final String PERF_TAG_CALCULATE_COORDINATES = "CCHV.coordinates";
+    private static final String PERF_TAG_BIND = "CCHV.bind";
+    private static final String PERF_TAG_PREFETCH = "CCHV.prefetch";
+    // Guards sTimer, as the prefetch work is timed on a background thread
+    private static final Object sTimerLock = new Object();
     private static final String LOG_TAG = LogTag.getLogTag();
 
     private static final Typeface SANS_SERIF_LIGHT = Typeface.create("sans-serif-light",
@@ -585,6 +588,7 @@ public class ConversationItemView extends View
             final boolean showChevronsEnabled, final AnimatedAdapter adapter,
             final int backgroundOverrideResId, final Bitmap photoBitmap,
             final boolean useFullMargins) {
+        startTimer(PERF_TAG_BIND);
         mBackgroundOverrideResId = backgroundOverrideResId;
         mPhotoBitmap = photoBitmap;
         mConversationItemAreaClickListener = conversationItemAreaClickListener;
@@ -650,14 +654,9 @@ public class ConversationItemView extends View
                 mDisplayedFolder.folderUri, ignoreFolderType);
         Utils.traceEndSection();
 
-        if (mHeader.showDateText) {
-            Utils.traceBeginSection("relative time");
-            mHeader.dateText = DateUtils.getRelativeTimeSpanString(mContext,
-                    mHeader.conversation.dateMs);
-            Utils.traceEndSection();
-        } else {
-            mHeader.dateText = "";
-        }
+        Utils.traceBeginSection("relative time");
+        mHeader.updateDateText(mContext);
+        Utils.traceEndSection();
 
         Utils.traceBeginSection("config setup");
         mConfig = new ConversationItemViewCoordinates.Config()
@@ -699,6 +698,7 @@ public class ConversationItemView extends View
         setContentDescription();
         Utils.traceEndSection();
         requestLayout();
+        pauseTimer(PERF_TAG_BIND);
     }
 
     @Override
@@ -733,15 +733,67 @@ public class ConversationItemView extends View
         return mHeader.conversation;
     }
 
+    /**
+     * Returns the work to fill in the date and senders of the view model for a conversation that
+     * is about to be shown, and to elide and lay out its senders, so that binding and laying out
+     * a view for it doesn't have to. This must be called on the UI thread, but the work itself
+     * may run on another thread.
+     *
+     * @param coordinates the coordinates the views in the list were last laid out with
+     * @param isRtl whether the views in the list are laid out right to left
+     * @return the work to do, or null if the view model is already up to date
+     */
+    public static ConversationItemPrefetcher.Prefetch prefetch(Context context, String account,
+            Conversation conversation, Folder folder, ConversationItemViewCoordinates coordinates,
+            boolean isRtl) {
+        final ConversationItemViewModel header =
+                ConversationItemViewModel.forConversation(account, conversation);
+        final boolean formatSenders =
+                !header.preserveSendersText && conversation.hasConversationInfo();
+        final int sendersLength = formatSenders
+                ? getSendersLength(context, coordinates.getMode(), conversation) : -1;
+        final SendersLayout sendersLayout = formatSenders ? new SendersLayout(coordinates, isRtl,
+                header.infoIcon != null, conversation.hasAttachments,
+                folder.shouldShowRecipients()) : null;
+        final ConversationItemPrefetcher.Prefetch prefetch = header.createPrefetch(context,
+                sendersLength, account, folder.shouldShowRecipients(), sendersLayout);
+        if (prefetch == null) {
+            return null;
+        }
+        return new ConversationItemPrefetcher.Prefetch() {
+            @Override
+            public void compute() {
+                startTimer(PERF_TAG_PREFETCH);
+                prefetch.compute();
+                pauseTimer(PERF_TAG_PREFETCH);
+            }
+
+            @Override
+            public void apply() {
+                prefetch.apply();
+            }
+        };
+    }
+
+    private static int getSendersLength(Context context, int coordinatesMode,
+            Conversation conversation) {
+        return ConversationItemViewCoordinates.getSendersLength(context, coordinatesMode,
+                conversation.hasAttachments);
+    }
+
     private static void startTimer(String tag) {
-        if (sTimer != null) {
-            sTimer.start(tag);
+        synchronized (sTimerLock) {
+            if (sTimer != null) {
+                sTimer.start(tag);
+            }
         }
     }
 
     private static void pauseTimer(String tag) {
-        if (sTimer != null) {
-            sTimer.pause(tag);
+        synchronized (sTimerLock) {
+            if (sTimer != null) {
+                sTimer.pause(tag);
+            }
         }
     }
 
@@ -805,10 +857,12 @@ public class ConversationItemView extends View
         Utils.traceEndSection();
 
         pauseTimer(PERF_TAG_LAYOUT);
-        if (sTimer != null && ++sLayoutCount >= PERF_LAYOUT_ITERATIONS) {
-            sTimer.dumpResults();
-            sTimer = new Timer();
-            sLayoutCount = 0;
+        synchronized (sTimerLock) {
+            if (sTimer != null && ++sLayoutCount >= PERF_LAYOUT_ITERATIONS) {
+                sTimer.dumpResults();
+                sTimer = new Timer();
+                sLayoutCount = 0;
+            }
         }
         Utils.traceEndSection();
     }
@@ -850,8 +904,6 @@ public class ConversationItemView extends View
 
         updateBackground();
 
-        mHeader.sendersDisplayText = new SpannableStringBuilder();
-
         mHeader.hasDraftMessage = mHeader.conversation.numDrafts() > 0;
 
         // Parse senders fragments.
@@ -859,29 +911,17 @@ public class ConversationItemView extends View
             // This is a special view that doesn't need special sender formatting
             mHeader.sendersDisplayText = new SpannableStringBuilder(mHeader.sendersText);
             loadImages();
-        } else if (mHeader.conversation.conversationInfo != null) {
-            Context context = getContext();
-            mHeader.messageInfoString = SendersView
-                    .createMessageInfo(context, mHeader.conversation, true);
-            int maxChars = ConversationItemViewCoordinates.getSendersLength(context,
-                    mCoordinates.getMode(), mHeader.conversation.hasAttachments);
-            mHeader.displayableEmails = new ArrayList<String>();
-            mHeader.displayableNames = new ArrayList<String>();
-            mHeader.styledNames = new ArrayList<SpannableString>();
-
-            SendersView.format(context, mHeader.conversation.conversationInfo,
-                    mHeader.messageInfoString.toString(), maxChars, mHeader.styledNames,
-                    mHeader.displayableNames, mHeader.displayableEmails, mAccount,
-                    mDisplayedFolder.shouldShowRecipients(), true);
-
-            if (mHeader.displayableEmails.isEmpty() && mHeader.hasDraftMessage) {
-                mHeader.displayableEmails.add(mAccount);
-                mHeader.displayableNames.add(mAccount);
-            }
+        } else if (mHeader.conversation.hasConversationInfo()) {
+            mAdapter.getItemPrefetcher().setCoordinates(mCoordinates, ViewUtils.isViewRtl(this));
+            // The senders were usually formatted by an earlier layout, or by prefetch()
+            mHeader.formatSenders(getContext(), getSendersLength(getContext(),
+                    mCoordinates.getMode(), mHeader.conversation), mAccount,
+                    mDisplayedFolder.shouldShowRecipients());
 
             // If we have displayable senders, load their thumbnails
             loadImages();
         } else {
+            mHeader.sendersDisplayText = new SpannableStringBuilder();
             LogUtils.wtf(LOG_TAG, "Null conversationInfo");
         }
 
@@ -950,6 +990,10 @@ public class ConversationItemView extends View
             } else {
                 participantText.removeSpan(sActivatedTextSpan);
             }
+            if (mHeader.elidedSendersLayout != null) {
+                // Laid out by prefetch(). The activated span is read as the layout is drawn.
+                return;
+            }
 
             final int w = mSendersWidth;
             final int h = mCoordinates.sendersHeight;
@@ -1056,80 +1100,169 @@ public class ConversationItemView extends View
         if (mHeader.infoIcon != null) {
             mInfoIconX = (isRtl) ? mCoordinates.infoIconX :
                     mCoordinates.infoIconXRight - mHeader.infoIcon.getWidth();
+        }
+        mDateX = getDateX(mCoordinates, isRtl, mDateWidth, mHeader.infoIcon != null);
+        mPaperclipX = getPaperclipX(mCoordinates, isRtl, mDateX, mDateWidth);
+
+        final int dateAttachmentStart = getDateAttachmentStart(mCoordinates, isRtl, mDateX,
+                mPaperclipX, mHeader.paperclip != null);
+        mSendersWidth = getSendersWidth(mCoordinates, isRtl, dateAttachmentStart);
+        mSendersX = (isRtl) ? dateAttachmentStart : mCoordinates.sendersX;
+
+        // Second pass to layout each fragment.
+        sPaint.setTextSize(mCoordinates.sendersFontSize);
+        sPaint.setTypeface(Typeface.DEFAULT);
+
+        if (mHeader.styledNames != null) {
+            // The senders were usually elided and laid out for this width by prefetch()
+            final int elidedKey = getElidedSendersKey(mCoordinates, mSendersWidth);
+            if (mHeader.elidedSendersText == null || mHeader.elidedSendersKey != elidedKey) {
+                mHeader.setElidedSenders(elideParticipants(mHeader.styledNames,
+                        mHeader.messageInfoString, mDisplayedFolder.shouldShowRecipients(),
+                        sPaint, mSendersWidth), elidedKey, null);
+            }
+            layoutParticipantText(mHeader.elidedSendersText);
+        } else {
+            // First pass to calculate width of each fragment.
+            if (mSendersWidth < 0) {
+                mSendersWidth = 0;
+            }
+
+            mHeader.sendersDisplayLayout = new StaticLayout(mHeader.sendersDisplayText, sPaint,
+                    mSendersWidth, Alignment.ALIGN_NORMAL, 1, 0, true);
+        }
+
+        if (mSendersWidth < 0) {
+            mSendersWidth = 0;
+        }
 
+        pauseTimer(PERF_TAG_CALCULATE_COORDINATES);
+    }
+
+    private static int getDateX(ConversationItemViewCoordinates coordinates, boolean isRtl,
+            int dateWidth, boolean hasInfoIcon) {
+        if (hasInfoIcon) {
             // If we have an info icon, we start drawing the date text:
             // At the end of the date TextView minus the width of the date text
             // In RTL mode, we just use dateX
-            mDateX = (isRtl) ? mCoordinates.dateX : mCoordinates.dateXRight - mDateWidth;
+            return (isRtl) ? coordinates.dateX : coordinates.dateXRight - dateWidth;
         } else {
             // If there is no info icon, we start drawing the date text:
             // At the end of the info icon ImageView minus the width of the date text
             // We use the info icon ImageView for positioning, since we want the date text to be
             // at the right, since there is no info icon
             // In RTL, we just use infoIconX
-            mDateX = (isRtl) ? mCoordinates.infoIconX : mCoordinates.infoIconXRight - mDateWidth;
+            return (isRtl) ? coordinates.infoIconX : coordinates.infoIconXRight - dateWidth;
         }
+    }
 
+    private static int getPaperclipX(ConversationItemViewCoordinates coordinates, boolean isRtl,
+            int dateX, int dateWidth) {
         // The paperclip is drawn starting at the start of the date text minus
         // the width of the paperclip and the date padding.
-        // In RTL mode, it is at the end of the date (mDateX + mDateWidth) plus the
+        // In RTL mode, it is at the end of the date (dateX + dateWidth) plus the
         // start date padding.
-        mPaperclipX = (isRtl) ? mDateX + mDateWidth + mCoordinates.datePaddingStart :
-                mDateX - ATTACHMENT.getWidth() - mCoordinates.datePaddingStart;
+        return (isRtl) ? dateX + dateWidth + coordinates.datePaddingStart :
+                dateX - ATTACHMENT.getWidth() - coordinates.datePaddingStart;
+    }
 
+    private static int getDateAttachmentStart(ConversationItemViewCoordinates coordinates,
+            boolean isRtl, int dateX, int paperclipX, boolean hasPaperclip) {
         // In normal mode, the senders x and width is based
         // on where the date/attachment icon start.
-        final int dateAttachmentStart;
         // Have this end near the paperclip or date, not the folders.
-        if (mHeader.paperclip != null) {
+        if (hasPaperclip) {
             // If there is a paperclip, the date/attachment start is at the start
             // of the paperclip minus the paperclip padding.
             // In RTL, it is at the end of the paperclip plus the paperclip padding.
-            dateAttachmentStart = (isRtl) ?
-                    mPaperclipX + ATTACHMENT.getWidth() + mCoordinates.paperclipPaddingStart
-                    : mPaperclipX - mCoordinates.paperclipPaddingStart;
+            return (isRtl) ?
+                    paperclipX + ATTACHMENT.getWidth() + coordinates.paperclipPaddingStart
+                    : paperclipX - coordinates.paperclipPaddingStart;
         } else {
             // If no paperclip, just use the start of the date minus the date padding start.
             // In RTL mode, this is just the paperclipX.
-            dateAttachmentStart = (isRtl) ?
-                    mPaperclipX : mDateX - mCoordinates.datePaddingStart;
+            return (isRtl) ? paperclipX : dateX - coordinates.datePaddingStart;
         }
+    }
+
+    private static int getSendersWidth(ConversationItemViewCoordinates coordinates,
+            boolean isRtl, int dateAttachmentStart) {
         // Senders width is the dateAttachmentStart - sendersX.
         // In RTL, it is sendersWidth + sendersX - dateAttachmentStart.
-        mSendersWidth = (isRtl) ?
-                mCoordinates.sendersWidth + mCoordinates.sendersX - dateAttachmentStart
-                : dateAttachmentStart - mCoordinates.sendersX;
-        mSendersX = (isRtl) ? dateAttachmentStart : mCoordinates.sendersX;
+        return (isRtl) ?
+                coordinates.sendersWidth + coordinates.sendersX - dateAttachmentStart
+                : dateAttachmentStart - coordinates.sendersX;
+    }
 
-        // Second pass to layout each fragment.
-        sPaint.setTextSize(mCoordinates.sendersFontSize);
-        sPaint.setTypeface(Typeface.DEFAULT);
+    /**
+     * Identifies what the senders were elided for, as their width and font size.
+     */
+    private static int getElidedSendersKey(ConversationItemViewCoordinates coordinates,
+            int sendersWidth) {
+        return Objects.hashCode(sendersWidth, coordinates.sendersFontSize);
+    }
 
-        if (mHeader.styledNames != null) {
-            final SpannableStringBuilder participantText = elideParticipants(mHeader.styledNames);
-            layoutParticipantText(participantText);
-        } else {
-            // First pass to calculate width of each fragment.
-            if (mSendersWidth < 0) {
-                mSendersWidth = 0;
+    /**
+     * Elides the styled senders of a conversation to the width they will have in its row, and
+     * lays them out, ahead of binding a view to it. This runs on a background thread, so it
+     * measures with paints of its own rather than {@link #sPaint}.
+     */
+    static class SendersLayout {
+        private final ConversationItemViewCoordinates mCoordinates;
+        private final boolean mIsRtl;
+        private final boolean mHasInfoIcon;
+        private final boolean mHasPaperclip;
+        private final boolean mShowRecipients;
+
+        /** The results of {@link #compute}, as they would be set by calculateCoordinates() */
+        SpannableStringBuilder text;
+        int key;
+        StaticLayout layout;
+
+        SendersLayout(ConversationItemViewCoordinates coordinates, boolean isRtl,
+                boolean hasInfoIcon, boolean hasPaperclip, boolean showRecipients) {
+            mCoordinates = coordinates;
+            mIsRtl = isRtl;
+            mHasInfoIcon = hasInfoIcon;
+            mHasPaperclip = hasPaperclip;
+            mShowRecipients = showRecipients;
+        }
+
+        void compute(CharSequence dateText, List<SpannableString> names,
+                SpannableStringBuilder messageInfo) {
+            final TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+            paint.setTextSize(mCoordinates.dateFontSize);
+            paint.setTypeface(Typeface.DEFAULT);
+            final int dateWidth = (int) paint.measureText(dateText.toString());
+            final int dateX = getDateX(mCoordinates, mIsRtl, dateWidth, mHasInfoIcon);
+            final int paperclipX = getPaperclipX(mCoordinates, mIsRtl, dateX, dateWidth);
+            final int sendersWidth = getSendersWidth(mCoordinates, mIsRtl,
+                    getDateAttachmentStart(mCoordinates, mIsRtl, dateX, paperclipX,
+                            mHasPaperclip));
+
+            paint.setTextSize(mCoordinates.sendersFontSize);
+            text = elideParticipants(names, messageInfo, mShowRecipients, paint, sendersWidth);
+            key = getElidedSendersKey(mCoordinates, sendersWidth);
+
+            // Laid out as the senders TextView would, which doesn't wrap them
+            final TextPaint layoutPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+            layoutPaint.setTextSize(mCoordinates.sendersFontSize);
+            layoutPaint.setColor(sSendersTextColor);
+            layout = new StaticLayout(text, layoutPaint, Math.max(sendersWidth, 0),
+                    Alignment.ALIGN_NORMAL, 1, 0, false);
+            if (layout.getLineCount() > mCoordinates.sendersLineCount) {
+                layout = null;
             }
-
-            mHeader.sendersDisplayLayout = new StaticLayout(mHeader.sendersDisplayText, sPaint,
-                    mSendersWidth, Alignment.ALIGN_NORMAL, 1, 0, true);
-        }
-
-        if (mSendersWidth < 0) {
-            mSendersWidth = 0;
         }
-
-        pauseTimer(PERF_TAG_CALCULATE_COORDINATES);
     }
 
     // The rules for displaying elided participants are as follows:
     // 1) If there is message info (either a COUNT or DRAFT info to display), it MUST be shown
     // 2) If senders do not fit, ellipsize the last one that does fit, and stop
     // appending new senders
-    SpannableStringBuilder elideParticipants(List<SpannableString> parts) {
+    private static SpannableStringBuilder elideParticipants(List<SpannableString> parts,
+            SpannableStringBuilder messageInfoString, boolean showRecipients, TextPaint paint,
+            int sendersWidth) {
         final SpannableStringBuilder builder = new SpannableStringBuilder();
         float totalWidth = 0;
         boolean ellipsize = false;
@@ -1137,31 +1270,30 @@ public class ConversationItemView extends View
         boolean skipToHeader = false;
 
         // start with "To: " if we're showing recipients
-        if (mDisplayedFolder.shouldShowRecipients() && !parts.isEmpty()) {
+        if (showRecipients && !parts.isEmpty()) {
             final SpannableString toHeader = SendersView.getFormattedToHeader();
             CharacterStyle[] spans = toHeader.getSpans(0, toHeader.length(),
                     CharacterStyle.class);
             // There is only 1 character style span; make sure we apply all the
             // styles to the paint object before measuring.
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
-            totalWidth += sPaint.measureText(toHeader.toString());
+            totalWidth += paint.measureText(toHeader.toString());
             builder.append(toHeader);
             skipToHeader = true;
         }
 
-        final SpannableStringBuilder messageInfoString = mHeader.messageInfoString;
         if (messageInfoString.length() > 0) {
             CharacterStyle[] spans = messageInfoString.getSpans(0, messageInfoString.length(),
                     CharacterStyle.class);
             // There is only 1 character style span; make sure we apply all the
             // styles to the paint object before measuring.
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
             // Paint the message info string to see if we lose space.
-            float messageInfoWidth = sPaint.measureText(messageInfoString.toString());
+            float messageInfoWidth = paint.measureText(messageInfoString.toString());
             totalWidth += messageInfoWidth;
         }
        SpannableString prevSender = null;
@@ -1178,7 +1310,7 @@ public class ConversationItemView extends View
             CharacterStyle[] spans = sender.getSpans(0, sender.length(), CharacterStyle.class);
             // There is only 1 character style span.
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
             // If there are already senders present in this string, we need to
             // make sure we prepend the dividing token
@@ -1195,18 +1327,18 @@ public class ConversationItemView extends View
                 skipToHeader = false;
             }
             if (spans.length > 0) {
-                spans[0].updateDrawState(sPaint);
+                spans[0].updateDrawState(paint);
             }
             // Measure the width of the current sender and make sure we have space
-            width = (int) sPaint.measureText(sender.toString());
-            if (width + totalWidth > mSendersWidth) {
+            width = (int) paint.measureText(sender.toString());
+            if (width + totalWidth > sendersWidth) {
                 // The text is too long, new line won't help. We have to
                 // ellipsize text.
                 ellipsize = true;
-                width = mSendersWidth - totalWidth; // ellipsis width?
+                width = sendersWidth - totalWidth; // ellipsis width?
                 ellipsizedText = copyStyles(spans,
-                        TextUtils.ellipsize(sender, sPaint, width, TruncateAt.END));
-                width = (int) sPaint.measureText(ellipsizedText.toString());
+                        TextUtils.ellipsize(sender, paint, width, TruncateAt.END));
+                width = (int) paint.measureText(ellipsizedText.toString());
             } else {
                 ellipsizedText = null;
             }
@@ -1220,7 +1352,6 @@ public class ConversationItemView extends View
             }
             builder.append(fragmentDisplayText);
         }
-        mHeader.styledMessageInfoStringOffset = builder.length();
         builder.append(messageInfoString);
         return builder;
     }
@@ -1405,7 +1536,11 @@ public class ConversationItemView extends View
 
     private void drawSenders(Canvas canvas) {
         canvas.translate(mSendersX, mCoordinates.sendersY);
-        mSendersTextView.draw(canvas);
+        if (mHeader.elidedSendersLayout != null) {
+            mHeader.elidedSendersLayout.draw(canvas);
+        } else {
+            mSendersTextView.draw(canvas);
+        }
     }
 
     private Bitmap getStarBitmap() {
@@ -25,15 +25,15 @@ import android.text.StaticLayout;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.style.CharacterStyle;
-import android.util.LruCache;
-import android.util.Pair;
 
 import com.android.mail.R;
 import com.android.mail.providers.Conversation;
+import com.android.mail.providers.ConversationInfo;
 import com.android.mail.providers.Folder;
 import com.android.mail.providers.ParticipantInfo;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.FolderUri;
+import com.android.mail.utils.LongLruCache;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 
@@ -49,8 +49,8 @@ public class ConversationItemViewModel {
     private static final int MAX_CACHE_SIZE = 100;
 
     @VisibleForTesting
-    static LruCache<Pair<String, Long>, ConversationItemViewModel> sConversationHeaderMap
-        = new LruCache<Pair<String, Long>, ConversationItemViewModel>(MAX_CACHE_SIZE);
+    static final LongLruCache<ConversationItemViewModel> sConversationHeaderMap =
+            new LongLruCache<ConversationItemViewModel>(MAX_CACHE_SIZE);
 
     /**
      * The Folder associated with the cache of models.
@@ -67,6 +67,9 @@ public class ConversationItemViewModel {
     // Date
     CharSequence dateText;
     public boolean showDateText = true;
+    // The conversation date and the minute dateText was computed for
+    private long mDateTextMs;
+    private long mDateTextMinute = -1;
 
     // Personal level
     Bitmap personalLevelBitmap;
@@ -135,6 +138,21 @@ public class ConversationItemViewModel {
      */
     public ArrayList<SpannableString> styledNames;
 
+    // The hashcode of everything the senders were formatted from, used to skip formatting them
+    // again when nothing has changed.
+    private int mSendersHashCode;
+    private boolean mSendersFormatted;
+
+    /**
+     * The styled senders elided to fit the senders width, or null if they haven't been elided
+     * since they were last formatted. {@link #elidedSendersKey} identifies the width and font size
+     * they were elided for.
+     */
+    SpannableStringBuilder elidedSendersText;
+    int elidedSendersKey;
+    /** The layout of {@link #elidedSendersText} built by a prefetch, or null */
+    StaticLayout elidedSendersLayout;
+
     /**
      * Returns the view model for a conversation. If the model doesn't exist for this conversation
      * null is returned. Note: this should only be called from the UI thread.
@@ -145,10 +163,7 @@ public class ConversationItemViewModel {
      */
     @VisibleForTesting
     static ConversationItemViewModel forConversationIdOrNull(String account, long conversationId) {
-        final Pair<String, Long> key = new Pair<String, Long>(account, conversationId);
-        synchronized(sConversationHeaderMap) {
-            return sConversationHeaderMap.get(key);
-        }
+        return sConversationHeaderMap.get(LongLruCache.getAccountIndex(account), conversationId);
     }
 
     static ConversationItemViewModel forConversation(String account, Conversation conv) {
@@ -178,13 +193,13 @@ public class ConversationItemViewModel {
      * @return the view model for this conversation
      */
     static ConversationItemViewModel forConversationId(String account, long conversationId) {
+        final int accountIndex = LongLruCache.getAccountIndex(account);
         synchronized(sConversationHeaderMap) {
             ConversationItemViewModel header =
-                    forConversationIdOrNull(account, conversationId);
+                    sConversationHeaderMap.get(accountIndex, conversationId);
             if (header == null) {
-                final Pair<String, Long> key = new Pair<String, Long>(account, conversationId);
                 header = new ConversationItemViewModel();
-                sConversationHeaderMap.put(key, header);
+                sConversationHeaderMap.put(accountIndex, conversationId, header);
             }
             return header;
         }
@@ -214,9 +229,9 @@ public class ConversationItemViewModel {
      * Marks this header as having valid data and layout.
      */
     void validate() {
-        mDataHashCode = getHashCode(dateText,
-                conversation.conversationInfo, conversation.getRawFolders(), conversation.starred,
-                conversation.read, conversation.priority, conversation.sendingState);
+        mDataHashCode = getHashCode(dateText, conversation.getConversationInfo(),
+                conversation.getRawFolders(), conversation.starred, conversation.read,
+                conversation.priority, conversation.sendingState);
         mLayoutHashCode = getLayoutHashCode();
     }
 
@@ -224,9 +239,9 @@ public class ConversationItemViewModel {
      * Returns if the data in this model is valid.
      */
     boolean isDataValid() {
-        return mDataHashCode == getHashCode(dateText,
-                conversation.conversationInfo, conversation.getRawFolders(), conversation.starred,
-                conversation.read, conversation.priority, conversation.sendingState);
+        return mDataHashCode == getHashCode(dateText, conversation.getConversationInfo(),
+                conversation.getRawFolders(), conversation.starred, conversation.read,
+                conversation.priority, conversation.sendingState);
     }
 
     /**
@@ -236,6 +251,205 @@ public class ConversationItemViewModel {
         return isDataValid() && mLayoutHashCode == getLayoutHashCode();
     }
 
+    /**
+     * Sets {@link #dateText} to the relative time of the conversation. The text is only computed
+     * again when the conversation date changes or a minute has passed, as it is shown to the
+     * minute at best.
+     */
+    void updateDateText(Context context) {
+        if (!showDateText) {
+            dateText = "";
+            mDateTextMinute = -1;
+            return;
+        }
+        final long minute = System.currentTimeMillis() / DateUtils.MINUTE_IN_MILLIS;
+        if (dateText == null || minute != mDateTextMinute
+                || conversation.dateMs != mDateTextMs) {
+            dateText = DateUtils.getRelativeTimeSpanString(context, conversation.dateMs);
+            mDateTextMs = conversation.dateMs;
+            mDateTextMinute = minute;
+        }
+    }
+
+    /**
+     * Formats the senders of the conversation into {@link #messageInfoString},
+     * {@link #styledNames}, {@link #displayableNames} and {@link #displayableEmails}, unless they
+     * were already formatted from the same conversation info and settings.
+     *
+     * @return true if the senders were formatted, false if the previous ones were kept
+     */
+    boolean formatSenders(Context context, int maxChars, String account,
+            boolean showRecipients) {
+        final int hashCode = getSendersHashCode(conversation, maxChars, account, showRecipients);
+        if (mSendersFormatted && hashCode == mSendersHashCode) {
+            return false;
+        }
+        final ArrayList<SpannableString> names = new ArrayList<SpannableString>();
+        final ArrayList<String> displayNames = new ArrayList<String>();
+        final ArrayList<String> emails = new ArrayList<String>();
+        final SpannableStringBuilder messageInfo = formatSenders(context, conversation, maxChars,
+                account, showRecipients, names, displayNames, emails);
+        setFormattedSenders(hashCode, messageInfo, names, displayNames, emails);
+        return true;
+    }
+
+    private static int getSendersHashCode(Conversation conversation, int maxChars,
+            String account, boolean showRecipients) {
+        return Objects.hashCode(conversation.getConversationInfo(), conversation.read,
+                conversation.sendingState, maxChars, account, showRecipients);
+    }
+
+    /**
+     * Formats the senders of a conversation into the given lists, and returns its message info.
+     * This only touches the lists it is given, so it may be called off the UI thread.
+     */
+    private static SpannableStringBuilder formatSenders(Context context,
+            Conversation conversation, int maxChars, String account, boolean showRecipients,
+            ArrayList<SpannableString> names, ArrayList<String> displayNames,
+            ArrayList<String> emails) {
+        final SpannableStringBuilder messageInfo =
+                SendersView.createMessageInfo(context, conversation, true);
+        SendersView.format(context, conversation.getConversationInfo(), messageInfo.toString(),
+                maxChars, names, displayNames, emails, account, showRecipients, true);
+
+        if (emails.isEmpty() && conversation.numDrafts() > 0) {
+            emails.add(account);
+            displayNames.add(account);
+        }
+        return messageInfo;
+    }
+
+    private void setFormattedSenders(int hashCode, SpannableStringBuilder messageInfo,
+            ArrayList<SpannableString> names, ArrayList<String> displayNames,
+            ArrayList<String> emails) {
+        messageInfoString = messageInfo;
+        styledNames = names;
+        displayableNames = displayNames;
+        displayableEmails = emails;
+        elidedSendersText = null;
+        elidedSendersLayout = null;
+        mSendersHashCode = hashCode;
+        mSendersFormatted = true;
+    }
+
+    /**
+     * Sets the elided senders, and the layout built for them if any.
+     */
+    void setElidedSenders(SpannableStringBuilder text, int key, StaticLayout layout) {
+        elidedSendersText = text;
+        elidedSendersKey = key;
+        elidedSendersLayout = layout;
+        styledMessageInfoStringOffset = text.length() - messageInfoString.length();
+    }
+
+    /**
+     * Returns the work to fill in the date text and senders of this model ahead of binding a
+     * view to it. Like the rest of the model, this must be called on the UI thread.
+     *
+     * @param maxChars the length to format the senders to, or -1 to leave them alone
+     * @param sendersLayout elides and lays out the senders once formatted, or null
+     */
+    ConversationItemPrefetcher.Prefetch createPrefetch(Context context, int maxChars,
+            String account, boolean showRecipients,
+            ConversationItemView.SendersLayout sendersLayout) {
+        // An undecoded conversation info is left for the prefetch to decode and hash
+        final boolean decoded = conversation.isConversationInfoDecoded();
+        final int hashCode = decoded
+                ? getSendersHashCode(conversation, maxChars, account, showRecipients) : 0;
+        final boolean formatSenders = maxChars >= 0
+                && !(decoded && mSendersFormatted && hashCode == mSendersHashCode);
+        final boolean layoutSenders = sendersLayout != null
+                && (formatSenders || (styledNames != null && elidedSendersLayout == null));
+        if (!formatSenders && !showDateText && !layoutSenders) {
+            return null;
+        }
+        return new ModelPrefetch(context, formatSenders ? maxChars : -1, hashCode, account,
+                showRecipients, layoutSenders ? sendersLayout : null);
+    }
+
+    /**
+     * Formats the date text and senders of the model's conversation into fresh objects on a
+     * background thread, and hands them to the model on the UI thread, unless the model was given
+     * another conversation in the meantime.
+     */
+    private class ModelPrefetch implements ConversationItemPrefetcher.Prefetch {
+        private final Context mContext;
+        private final Conversation mConversation;
+        private final boolean mShowDateText;
+        private final int mMaxChars;
+        private int mHashCode;
+        private final String mAccount;
+        private final boolean mShowRecipients;
+        private final ConversationItemView.SendersLayout mSendersLayout;
+        // The senders to elide: the ones formatted here, or else the ones the model had
+        private ArrayList<SpannableString> mStyledNames;
+        private SpannableStringBuilder mStyledMessageInfo;
+        private final CharSequence mPreviousDateText;
+
+        private CharSequence mDateText;
+        private long mMinute;
+        private SpannableStringBuilder mMessageInfo;
+        private final ArrayList<SpannableString> mNames = new ArrayList<SpannableString>();
+        private final ArrayList<String> mDisplayNames = new ArrayList<String>();
+        private final ArrayList<String> mEmails = new ArrayList<String>();
+
+        ModelPrefetch(Context context, int maxChars, int hashCode, String account,
+                boolean showRecipients, ConversationItemView.SendersLayout sendersLayout) {
+            mContext = context;
+            mConversation = conversation;
+            mShowDateText = showDateText;
+            mMaxChars = maxChars;
+            mHashCode = hashCode;
+            mAccount = account;
+            mShowRecipients = showRecipients;
+            mSendersLayout = sendersLayout;
+            mStyledNames = styledNames;
+            mStyledMessageInfo = messageInfoString;
+            mPreviousDateText = dateText;
+        }
+
+        @Override
+        public void compute() {
+            if (mShowDateText) {
+                mMinute = System.currentTimeMillis() / DateUtils.MINUTE_IN_MILLIS;
+                mDateText = DateUtils.getRelativeTimeSpanString(mContext, mConversation.dateMs);
+            }
+            if (mMaxChars >= 0) {
+                mHashCode = getSendersHashCode(mConversation, mMaxChars, mAccount,
+                        mShowRecipients);
+                mMessageInfo = formatSenders(mContext, mConversation, mMaxChars, mAccount,
+                        mShowRecipients, mNames, mDisplayNames, mEmails);
+                mStyledNames = mNames;
+                mStyledMessageInfo = mMessageInfo;
+            }
+            if (mSendersLayout != null && mStyledNames != null) {
+                final CharSequence dateText = mShowDateText ? mDateText : mPreviousDateText;
+                mSendersLayout.compute(dateText != null ? dateText : "", mStyledNames,
+                        mStyledMessageInfo);
+            }
+        }
+
+        @Override
+        public void apply() {
+            if (conversation != mConversation) {
+                return;
+            }
+            if (mDateText != null && showDateText) {
+                dateText = mDateText;
+                mDateTextMs = mConversation.dateMs;
+                mDateTextMinute = mMinute;
+            }
+            if (mMessageInfo != null && !(mSendersFormatted && mHashCode == mSendersHashCode)) {
+                setFormattedSenders(mHashCode, mMessageInfo, mNames, mDisplayNames, mEmails);
+            }
+            // Only if the model still has the senders that were elided
+            if (mSendersLayout != null && mSendersLayout.text != null
+                    && styledNames == mStyledNames && messageInfoString == mStyledMessageInfo) {
+                setElidedSenders(mSendersLayout.text, mSendersLayout.key, mSendersLayout.layout);
+            }
+        }
+    }
+
     /**
      * Describes the style of a Senders fragment.
      */
@@ -288,17 +502,18 @@ public class ConversationItemViewModel {
             // If all are read, get the last sender.
             String participant = "";
             String lastParticipant = "";
-            int last = conversation.conversationInfo.participantInfos != null ?
-                    conversation.conversationInfo.participantInfos.size() - 1 : -1;
+            final ConversationInfo conversationInfo = conversation.getConversationInfo();
+            int last = conversationInfo.participantInfos != null ?
+                    conversationInfo.participantInfos.size() - 1 : -1;
             if (last != -1) {
-                lastParticipant = conversation.conversationInfo.participantInfos.get(last).name;
+                lastParticipant = conversationInfo.participantInfos.get(last).name;
             }
             if (conversation.read) {
                 participant = TextUtils.isEmpty(lastParticipant) ?
                         SendersView.getMe(showToHeader /* useObjectMe */) : lastParticipant;
             } else {
                 ParticipantInfo firstUnread = null;
-                for (ParticipantInfo p : conversation.conversationInfo.participantInfos) {
+                for (ParticipantInfo p : conversationInfo.participantInfos) {
                     if (!p.readConversation) {
                         firstUnread = p;
                         break;
@@ -20,6 +20,7 @@ package com.android.mail.browse;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 
 import com.android.emailcommon.TempDirectory;
@@ -30,9 +31,12 @@ import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Loader that builds a ConversationMessage from an EML file Uri.
@@ -52,18 +56,36 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
         final Context context = getContext();
         TempDirectory.setTempDirectory(context);
         final ContentResolver resolver = context.getContentResolver();
+        final AssetFileDescriptor fd;
         final InputStream stream;
         try {
-            stream = resolver.openInputStream(mEmlFileUri);
+            fd = resolver.openAssetFileDescriptor(mEmlFileUri, "r");
         } catch (FileNotFoundException e) {
             LogUtils.e(LOG_TAG, e, "Could not find eml file at uri: %s", mEmlFileUri);
             return null;
         }
+        if (fd == null) {
+            LogUtils.e(LOG_TAG, "Could not find eml file at uri: %s", mEmlFileUri);
+            return null;
+        }
+        try {
+            stream = fd.createInputStream();
+        } catch (IOException e) {
+            LogUtils.e(LOG_TAG, e, "Could not read eml file");
+            try {
+                fd.close();
+            } catch (IOException closeException) {
+                // Nothing more to do with it
+            }
+            return null;
+        }
 
         final MimeMessage mimeMessage;
         ConversationMessage convMessage;
         try {
-            mimeMessage = new MimeMessage(stream);
+            // Parse the file in place when it is one, so no part is decoded until it's needed
+            final ByteBuffer mapped = map(fd);
+            mimeMessage = mapped != null ? new MimeMessage(mapped) : new MimeMessage(stream);
             convMessage = new ConversationMessage(context, mimeMessage, mEmlFileUri);
         } catch (IOException e) {
             LogUtils.e(LOG_TAG, e, "Could not read eml file");
@@ -93,6 +115,36 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
         return convMessage;
     }
 
+    /**
+     * Maps the file behind the descriptor into memory.
+     *
+     * @return the mapped file, or null if the descriptor isn't for a regular file that is read
+     * from its start, in which case it has to be read as a stream
+     */
+    private static ByteBuffer map(AssetFileDescriptor fd) {
+        // Pipes and sockets have no size, and a part of a file (such as an asset) starts
+        // somewhere in the middle of it
+        final long size = fd.getParcelFileDescriptor().getStatSize();
+        if (size <= 0 || fd.getStartOffset() != 0) {
+            return null;
+        }
+        final long declaredLength = fd.getDeclaredLength();
+        final long length = declaredLength == AssetFileDescriptor.UNKNOWN_LENGTH
+                ? size : declaredLength;
+        if (length > size || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            final FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+            if (channel.position() != 0) {
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /**
      * Helper function to take care of releasing resources associated
      * with an actively loaded data set.
@@ -141,7 +141,7 @@ public class SendersView {
         SpannableStringBuilder messageInfo = new SpannableStringBuilder();
 
         try {
-            ConversationInfo conversationInfo = conv.conversationInfo;
+            ConversationInfo conversationInfo = conv.getConversationInfo();
             int sendingStatus = conv.sendingState;
             boolean hasSenders = false;
             // This covers the case where the sender is "me" and this is a draft
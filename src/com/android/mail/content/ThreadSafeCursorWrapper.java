@@ -24,25 +24,198 @@ import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A cursor wrapper that lets several threads read from the same cursor, each with its own
+ * position.
+ * <p>
+ * Rows are copied out of the wrapped cursor {@link #BLOCK_ROWS} at a time, under the wrapper's
+ * lock, into immutable snapshots. Once a row's snapshot exists, any thread reads that row
+ * without taking the lock or moving the wrapped cursor, so the UI thread never waits behind a
+ * background reader that is on another row. Only the last {@link #MAX_BLOCKS} snapshots are
+ * kept. A read that needs a conversion the snapshot can't make exactly the way the cursor would,
+ * such as a number read as a string, goes through the wrapped cursor under the lock.
+ */
 public class ThreadSafeCursorWrapper extends CursorWrapper {
     private static final String LOG_TAG = LogTag.getLogTag();
 
-    private final ThreadLocal<Integer> mPosition;
-    private final Object mLock = new Object();
+    /** The number of rows copied into each snapshot */
+    private static final int BLOCK_ROWS = 64;
+    /** The number of snapshots kept; the oldest is dropped when another is needed */
+    private static final int MAX_BLOCKS = 16;
+
+    /**
+     * The values of a run of rows, copied out of the wrapped cursor. Nothing in it changes once
+     * it is built, so it may be read from any thread without locking.
+     */
+    private static final class RowBlock {
+        final int mStart;
+        final int mRows;
+        final int mColumns;
+        /** The Cursor.FIELD_TYPE_* of each value, row by row */
+        final byte[] mTypes;
+        /** Integer values, and the bits of float values */
+        final long[] mNumbers;
+        /** String and blob values */
+        final Object[] mObjects;
+
+        private RowBlock(int start, int rows, int columns, byte[] types, long[] numbers,
+                Object[] objects) {
+            mStart = start;
+            mRows = rows;
+            mColumns = columns;
+            mTypes = types;
+            mNumbers = numbers;
+            mObjects = objects;
+        }
+
+        /**
+         * Copies the given rows out of the cursor, which this moves. Returns null if the cursor
+         * can't be moved to one of them.
+         */
+        static RowBlock read(Cursor cursor, int start, int rows) {
+            final int columns = cursor.getColumnCount();
+            final byte[] types = new byte[rows * columns];
+            final long[] numbers = new long[rows * columns];
+            final Object[] objects = new Object[rows * columns];
+            for (int row = 0; row < rows; row++) {
+                if (!cursor.moveToPosition(start + row)) {
+                    return null;
+                }
+                for (int column = 0; column < columns; column++) {
+                    final int i = row * columns + column;
+                    final int type = cursor.getType(column);
+                    types[i] = (byte) type;
+                    switch (type) {
+                        case FIELD_TYPE_INTEGER:
+                            numbers[i] = cursor.getLong(column);
+                            break;
+                        case FIELD_TYPE_FLOAT:
+                            numbers[i] = Double.doubleToRawLongBits(cursor.getDouble(column));
+                            break;
+                        case FIELD_TYPE_STRING:
+                            objects[i] = cursor.getString(column);
+                            break;
+                        case FIELD_TYPE_BLOB:
+                            objects[i] = cursor.getBlob(column);
+                            break;
+                    }
+                }
+            }
+            return new RowBlock(start, rows, columns, types, numbers, objects);
+        }
+
+        /**
+         * Returns the index of the given value in the arrays, or -1 if it isn't in this block.
+         */
+        int indexOf(int position, int column) {
+            final int row = position - mStart;
+            if (row < 0 || row >= mRows || column < 0 || column >= mColumns) {
+                return -1;
+            }
+            return row * mColumns + column;
+        }
+
+        double getDouble(int i) {
+            return Double.longBitsToDouble(mNumbers[i]);
+        }
+    }
+
+    /** Each thread's position, in a one-element array so that moving doesn't box */
+    private final ThreadLocal<int[]> mPosition;
+    /**
+     * Held while the wrapped cursor is moved or read. Subclasses may hold it too, to keep state
+     * of their own in step with the reads.
+     */
+    protected final Object mLock = new Object();
+    /** The snapshot of each run of rows, if there is one; replaced on requery and close */
+    private volatile AtomicReferenceArray<RowBlock> mBlocks;
+    /** The snapshots in the order they were read, to drop the oldest. Guarded by mLock. */
+    private final int[] mBlockOrder = new int[MAX_BLOCKS];
+    private int mNextBlockOrder;
 
     public ThreadSafeCursorWrapper(Cursor cursor) {
         super(cursor);
 
-        mPosition = new ThreadLocal<Integer>() {
+        mPosition = new ThreadLocal<int[]>() {
             @Override
-            protected Integer initialValue() {
-                return Integer.valueOf(-1);
+            protected int[] initialValue() {
+                return new int[] { -1 };
             }
         };
+        resetBlocks();
+    }
+
+    /**
+     * Drops every snapshot. Must be called with {@link #mLock} held, or from the constructor.
+     */
+    private void resetBlocks() {
+        final Cursor cursor = getWrappedCursor();
+        final int count = cursor != null && !cursor.isClosed() ? cursor.getCount() : 0;
+        mBlocks = new AtomicReferenceArray<RowBlock>((count + BLOCK_ROWS - 1) / BLOCK_ROWS);
+        Arrays.fill(mBlockOrder, -1);
+        mNextBlockOrder = 0;
+    }
+
+    /**
+     * Returns the snapshot that holds the given value, copying it out of the wrapped cursor if
+     * needed, or null if the value has to be read from the wrapped cursor.
+     */
+    private RowBlock getBlock(int position, int column) {
+        final AtomicReferenceArray<RowBlock> blocks = mBlocks;
+        final int index = position / BLOCK_ROWS;
+        if (position < 0 || index >= blocks.length()) {
+            return null;
+        }
+        RowBlock block = blocks.get(index);
+        if (block == null) {
+            synchronized (mLock) {
+                block = readBlock(blocks, index);
+            }
+        }
+        return block != null && block.indexOf(position, column) >= 0 ? block : null;
+    }
+
+    /**
+     * Copies a run of rows out of the wrapped cursor, unless another thread just did. Must be
+     * called with {@link #mLock} held.
+     */
+    private RowBlock readBlock(AtomicReferenceArray<RowBlock> blocks, int index) {
+        RowBlock block = blocks.get(index);
+        final Cursor cursor = getWrappedCursor();
+        if (block != null || blocks != mBlocks || cursor.isClosed()) {
+            return block;
+        }
+        final int start = index * BLOCK_ROWS;
+        final int rows = Math.min(BLOCK_ROWS, cursor.getCount() - start);
+        block = rows > 0 ? RowBlock.read(cursor, start, rows) : null;
+        if (block != null) {
+            final int oldest = mBlockOrder[mNextBlockOrder];
+            if (oldest >= 0) {
+                blocks.set(oldest, null);
+            }
+            mBlockOrder[mNextBlockOrder] = index;
+            mNextBlockOrder = (mNextBlockOrder + 1) % MAX_BLOCKS;
+            blocks.set(index, block);
+        }
+        return block;
     }
 
     @Override
     public String getString(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            final int i = block.indexOf(pos, column);
+            switch (block.mTypes[i]) {
+                case FIELD_TYPE_STRING:
+                    return (String) block.mObjects[i];
+                case FIELD_TYPE_NULL:
+                    return null;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.getString(column);
@@ -51,6 +224,19 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public short getShort(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            final int i = block.indexOf(pos, column);
+            switch (block.mTypes[i]) {
+                case FIELD_TYPE_INTEGER:
+                    return (short) block.mNumbers[i];
+                case FIELD_TYPE_FLOAT:
+                    return (short) (long) block.getDouble(i);
+                case FIELD_TYPE_NULL:
+                    return 0;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.getShort(column);
@@ -59,6 +245,19 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public int getInt(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            final int i = block.indexOf(pos, column);
+            switch (block.mTypes[i]) {
+                case FIELD_TYPE_INTEGER:
+                    return (int) block.mNumbers[i];
+                case FIELD_TYPE_FLOAT:
+                    return (int) (long) block.getDouble(i);
+                case FIELD_TYPE_NULL:
+                    return 0;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.getInt(column);
@@ -67,6 +266,19 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public long getLong(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            final int i = block.indexOf(pos, column);
+            switch (block.mTypes[i]) {
+                case FIELD_TYPE_INTEGER:
+                    return block.mNumbers[i];
+                case FIELD_TYPE_FLOAT:
+                    return (long) block.getDouble(i);
+                case FIELD_TYPE_NULL:
+                    return 0;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.getLong(column);
@@ -75,6 +287,19 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public float getFloat(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            final int i = block.indexOf(pos, column);
+            switch (block.mTypes[i]) {
+                case FIELD_TYPE_INTEGER:
+                    return (float) (double) block.mNumbers[i];
+                case FIELD_TYPE_FLOAT:
+                    return (float) block.getDouble(i);
+                case FIELD_TYPE_NULL:
+                    return 0;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.getFloat(column);
@@ -83,6 +308,19 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public double getDouble(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            final int i = block.indexOf(pos, column);
+            switch (block.mTypes[i]) {
+                case FIELD_TYPE_INTEGER:
+                    return block.mNumbers[i];
+                case FIELD_TYPE_FLOAT:
+                    return block.getDouble(i);
+                case FIELD_TYPE_NULL:
+                    return 0;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.getDouble(column);
@@ -91,12 +329,37 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public byte[] getBlob(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            final int i = block.indexOf(pos, column);
+            switch (block.mTypes[i]) {
+                case FIELD_TYPE_BLOB:
+                    // Callers may change the array they get, so each gets its own copy
+                    return ((byte[]) block.mObjects[i]).clone();
+                case FIELD_TYPE_NULL:
+                    return null;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.getBlob(column);
         }
     }
 
+    @Override
+    public int getType(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            return block.mTypes[block.indexOf(pos, column)];
+        }
+        synchronized (mLock) {
+            moveToCurrent();
+            return super.getType(column);
+        }
+    }
+
     @Override
     public Bundle respond(Bundle extras) {
         final int opts = extras.getInt(UIProvider.ConversationCursorCommand.COMMAND_KEY_OPTIONS);
@@ -112,6 +375,25 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, columnIndex);
+        if (block != null) {
+            final int i = block.indexOf(pos, columnIndex);
+            if (block.mTypes[i] == FIELD_TYPE_STRING) {
+                final String value = (String) block.mObjects[i];
+                final int length = value.length();
+                if (buffer.data == null || buffer.data.length < length) {
+                    buffer.data = value.toCharArray();
+                } else {
+                    value.getChars(0, length, buffer.data, 0);
+                }
+                buffer.sizeCopied = length;
+                return;
+            } else if (block.mTypes[i] == FIELD_TYPE_NULL) {
+                buffer.sizeCopied = 0;
+                return;
+            }
+        }
         synchronized (mLock) {
             moveToCurrent();
             super.copyStringToBuffer(columnIndex, buffer);
@@ -119,15 +401,42 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
     }
 
     @Override
-    public boolean isNull(int column){
+    public boolean isNull(int column) {
+        final int pos = getPosition();
+        final RowBlock block = getBlock(pos, column);
+        if (block != null) {
+            return block.mTypes[block.indexOf(pos, column)] == FIELD_TYPE_NULL;
+        }
         synchronized (mLock) {
             moveToCurrent();
             return super.isNull(column);
         }
     }
 
+    @Override
+    @Deprecated
+    public boolean requery() {
+        synchronized (mLock) {
+            final boolean result = super.requery();
+            resetBlocks();
+            return result;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            super.close();
+            resetBlocks();
+        }
+    }
+
+    /**
+     * Moves the wrapped cursor to this thread's position. Must be called with {@link #mLock}
+     * held.
+     */
     private void moveToCurrent() {
-        final int pos = mPosition.get();
+        final int pos = getPosition();
         final boolean result = super.moveToPosition(pos);
 
         // AbstractCursor returns false on negative positions, although Cursor documentation
@@ -139,8 +448,7 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public boolean move(int offset) {
-        final int curPos = mPosition.get();
-        return moveToPosition(curPos + offset);
+        return moveToPosition(getPosition() + offset);
     }
 
     @Override
@@ -155,44 +463,37 @@ public class ThreadSafeCursorWrapper extends CursorWrapper {
 
     @Override
     public boolean moveToNext() {
-        final int curPos = mPosition.get();
-        return moveToPosition(curPos + 1);
+        return moveToPosition(getPosition() + 1);
     }
 
     @Override
     public boolean moveToPosition(int position) {
+        final int[] curPos = mPosition.get();
         // Make sure position isn't past the end of the cursor
         final int count = getCount();
         if (position >= count) {
-            mPosition.set(count);
+            curPos[0] = count;
             return false;
         }
 
         // Make sure position isn't before the beginning of the cursor
         if (position < 0) {
-            mPosition.set(-1);
+            curPos[0] = -1;
             return false;
         }
 
-        final int curPos = mPosition.get();
-        // Check for no-op moves, and skip the rest of the work for them
-        if (position == curPos) {
-            return true;
-        }
-
         // Save this thread's current position.
-        mPosition.set(position);
+        curPos[0] = position;
         return true;
     }
 
     @Override
     public boolean moveToPrevious() {
-        final int curPos = mPosition.get();
-        return moveToPosition(curPos - 1);
+        return moveToPosition(getPosition() - 1);
     }
 
     @Override
     public int getPosition() {
-        return mPosition.get();
+        return mPosition.get()[0];
     }
 }
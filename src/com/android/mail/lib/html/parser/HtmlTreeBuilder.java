@@ -47,8 +47,14 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
     return tree;
   }
 
-  /** Implements HtmlDocument.Visitor.start */
+  /**
+   * Implements HtmlDocument.Visitor.start. This also clears anything left
+   * over from a previous document, so a builder can be reused.
+   */
   public void start() {
+    stack.clear();
+    tableFixer.reset();
+    built = false;
     tree = new HtmlTree();
     tree.start();
   }
@@ -265,6 +271,11 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
       X.assertTrue(state == NULL);
     }
 
+    void reset() {
+      tables = 0;
+      state = NULL;
+    }
+
     // Ensure that we're within a TABLE
     private void ensureTableState() {
       if (tables == 0) {
@@ -312,6 +312,13 @@ public final class MailPrefs extends VersionedPrefs {
                 .apply();
     }
 
+    /**
+     * Forgets the cached notification set, once it has been moved elsewhere.
+     */
+    public void clearActiveNotificationSet() {
+        getEditor().remove(PreferenceKeys.CACHED_ACTIVE_NOTIFICATION_SET).apply();
+    }
+
     /**
      * Returns whether the teaser has been shown before
      */
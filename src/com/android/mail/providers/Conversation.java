@@ -124,9 +124,17 @@ public class Conversation implements Parcelable {
      */
     public final Uri accountUri;
     /**
+     * The decoded conversation info, or null until {@link #getConversationInfo()} decodes
+     * {@link #conversationInfoBlob}.
+     *
      * @see UIProvider.ConversationColumns#CONVERSATION_INFO
      */
-    public final ConversationInfo conversationInfo;
+    private volatile ConversationInfo conversationInfo;
+    /**
+     * The conversation info as read from the cursor, in the compact form of
+     * {@link ConversationInfoBlob}, or null once it has been decoded.
+     */
+    private volatile byte[] conversationInfoBlob;
     /**
      * @see UIProvider.ConversationColumns#CONVERSATION_BASE_URI
      */
@@ -194,7 +202,7 @@ public class Conversation implements Parcelable {
         dest.writeInt(muted ? 1 : 0);
         dest.writeInt(color);
         dest.writeParcelable(accountUri, 0);
-        dest.writeParcelable(conversationInfo, 0);
+        dest.writeParcelable(getConversationInfo(), 0);
         dest.writeParcelable(conversationBaseUri, 0);
         dest.writeInt(isRemote ? 1 : 0);
         dest.writeLong(orderKey);
@@ -269,6 +277,19 @@ public class Conversation implements Parcelable {
     public static final String UPDATE_FOLDER_COLUMN = ConversationColumns.RAW_FOLDERS;
 
     public Conversation(Cursor cursor) {
+        this(cursor, null, null, null, null);
+    }
+
+    /**
+     * Reads a conversation from the current row of the cursor.
+     *
+     * @param info the conversation info for the row, or null to read it from the cursor
+     * @param folders the folders for the row, or null to read them from the cursor
+     * @param accountUris parser for the account uri column, or null to parse it afresh
+     * @param baseUris parser for the conversation base uri column, or null to parse it afresh
+     */
+    private Conversation(Cursor cursor, ConversationInfo info, FolderList folders,
+            RepeatedUriParser accountUris, RepeatedUriParser baseUris) {
         if (cursor == null) {
             throw new IllegalArgumentException("Creating conversation from null cursor");
         }
@@ -290,25 +311,27 @@ public class Conversation implements Parcelable {
         read = cursor.getInt(UIProvider.CONVERSATION_READ_COLUMN) != 0;
         seen = cursor.getInt(UIProvider.CONVERSATION_SEEN_COLUMN) != 0;
         starred = cursor.getInt(UIProvider.CONVERSATION_STARRED_COLUMN) != 0;
-        rawFolders = readRawFolders(cursor);
+        rawFolders = folders != null ? folders : readRawFolders(cursor);
         convFlags = cursor.getInt(UIProvider.CONVERSATION_FLAGS_COLUMN);
         personalLevel = cursor.getInt(UIProvider.CONVERSATION_PERSONAL_LEVEL_COLUMN);
         spam = cursor.getInt(UIProvider.CONVERSATION_IS_SPAM_COLUMN) != 0;
         phishing = cursor.getInt(UIProvider.CONVERSATION_IS_PHISHING_COLUMN) != 0;
         muted = cursor.getInt(UIProvider.CONVERSATION_MUTED_COLUMN) != 0;
         color = cursor.getInt(UIProvider.CONVERSATION_COLOR_COLUMN);
-        String account = cursor.getString(UIProvider.CONVERSATION_ACCOUNT_URI_COLUMN);
-        accountUri = !TextUtils.isEmpty(account) ? Uri.parse(account) : null;
+        accountUri = RepeatedUriParser.parse(accountUris,
+                cursor.getString(UIProvider.CONVERSATION_ACCOUNT_URI_COLUMN));
         position = NO_POSITION;
         localDeleteOnUpdate = false;
-        conversationInfo = readConversationInfo(cursor);
-        if (conversationInfo == null) {
+        if (info != null) {
+            conversationInfo = info;
+        } else {
+            readConversationInfo(cursor);
+        }
+        if (conversationInfo == null && conversationInfoBlob == null) {
             LogUtils.wtf(LOG_TAG, "Null conversation info from cursor");
         }
-        final String conversationBase =
-                cursor.getString(UIProvider.CONVERSATION_BASE_URI_COLUMN);
-        conversationBaseUri = !TextUtils.isEmpty(conversationBase) ?
-                Uri.parse(conversationBase) : null;
+        conversationBaseUri = RepeatedUriParser.parse(baseUris,
+                cursor.getString(UIProvider.CONVERSATION_BASE_URI_COLUMN));
         isRemote = cursor.getInt(UIProvider.CONVERSATION_REMOTE_COLUMN) != 0;
         orderKey = cursor.getLong(UIProvider.CONVERSATION_ORDER_KEY_COLUMN);
     }
@@ -341,7 +364,7 @@ public class Conversation implements Parcelable {
         localDeleteOnUpdate = other.localDeleteOnUpdate;
         // although ConversationInfo is mutable (see ConversationInfo.markRead), applyCachedValues
         // will overwrite this if cached changes exist anyway, so a shallow copy is OK
-        conversationInfo = other.conversationInfo;
+        conversationInfo = other.getConversationInfo();
         conversationBaseUri = other.conversationBaseUri;
         isRemote = other.isRemote;
         orderKey = other.orderKey;
@@ -558,25 +581,37 @@ public class Conversation implements Parcelable {
                 ConversationCursorCommand.OPTION_MOVE_POSITION);
     }
 
-    private static ConversationInfo readConversationInfo(Cursor cursor) {
-        final ConversationInfo ci;
-
+    /**
+     * Reads the conversation info of the cursor's current row. A blob in the compact format is
+     * kept as it is, and only decoded when the conversation info is first asked for.
+     */
+    private void readConversationInfo(Cursor cursor) {
         if (cursor instanceof ConversationCursor) {
             final byte[] blob = ((ConversationCursor) cursor).getCachedBlob(
                     UIProvider.CONVERSATION_INFO_COLUMN);
             if (blob != null && blob.length > 0) {
-                return ConversationInfo.fromBlob(blob);
+                setConversationInfoBlob(blob);
+                return;
             }
         }
 
         final Bundle response = cursor.respond(CONVERSATION_INFO_REQUEST);
         if (response.containsKey(ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO)) {
-            ci = response.getParcelable(ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO);
+            conversationInfo =
+                    response.getParcelable(ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO);
         } else {
             // legacy fallback
-            ci = ConversationInfo.fromBlob(cursor.getBlob(UIProvider.CONVERSATION_INFO_COLUMN));
+            setConversationInfoBlob(cursor.getBlob(UIProvider.CONVERSATION_INFO_COLUMN));
+        }
+    }
+
+    private void setConversationInfoBlob(byte[] blob) {
+        if (ConversationInfoBlob.isCompact(blob)) {
+            conversationInfoBlob = blob;
+        } else {
+            // Parcel blobs can't be read in part, so decode them now
+            conversationInfo = ConversationInfo.fromBlob(blob);
         }
-        return ci;
     }
 
     private static FolderList readRawFolders(Cursor cursor) {
@@ -602,6 +637,86 @@ public class Conversation implements Parcelable {
         return fl;
     }
 
+    /**
+     * Parses uri strings, reusing the last result when the same string comes up again. Columns
+     * like the account uri have the same value for every row of a conversation list.
+     */
+    private static final class RepeatedUriParser {
+        private String mLastString;
+        private Uri mLastUri;
+
+        /**
+         * Parses the given string, through the parser if there is one. Empty strings give null.
+         */
+        static Uri parse(RepeatedUriParser parser, String uriString) {
+            if (TextUtils.isEmpty(uriString)) {
+                return null;
+            } else if (parser == null) {
+                return Uri.parse(uriString);
+            } else if (!uriString.equals(parser.mLastString)) {
+                parser.mLastString = uriString;
+                parser.mLastUri = Uri.parse(uriString);
+            }
+            return parser.mLastUri;
+        }
+    }
+
+    /**
+     * Reads the conversations in {@code count} consecutive rows of the cursor, starting at
+     * {@code start}. This is cheaper than moving to each row and calling
+     * {@link #Conversation(Cursor)}: the conversation info and folders for the whole range come
+     * from a single {@link Cursor#respond(Bundle)} call if the provider supports
+     * {@link ConversationCursorCommand#COMMAND_GET_CONVERSATION_INFO_RANGE} and
+     * {@link ConversationCursorCommand#COMMAND_GET_RAW_FOLDERS_RANGE}, and repeated uris are only
+     * parsed once.
+     * <p>
+     * The cursor is left at an unspecified position.
+     *
+     * @return the conversations, in row order; an entry is null if its row doesn't exist
+     */
+    public static Conversation[] fromCursorRange(Cursor cursor, int start, int count) {
+        final Conversation[] conversations = new Conversation[count];
+        if (count <= 0) {
+            return conversations;
+        }
+
+        Parcelable[] infos = null;
+        Parcelable[] folders = null;
+        // A ConversationCursor may override the blobs with local changes, so let the per-row
+        // path read those
+        if (!(cursor instanceof ConversationCursor)) {
+            final Bundle request = new Bundle(4);
+            request.putBoolean(ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO_RANGE, true);
+            request.putBoolean(ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS_RANGE, true);
+            request.putInt(ConversationCursorCommand.COMMAND_KEY_RANGE_START, start);
+            request.putInt(ConversationCursorCommand.COMMAND_KEY_RANGE_COUNT, count);
+            final Bundle response = cursor.respond(request);
+            infos = response.getParcelableArray(
+                    ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO_RANGE);
+            if (infos != null && infos.length != count) {
+                infos = null;
+            }
+            folders = response.getParcelableArray(
+                    ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS_RANGE);
+            if (folders != null && folders.length != count) {
+                folders = null;
+            }
+        }
+
+        final RepeatedUriParser accountUris = new RepeatedUriParser();
+        final RepeatedUriParser baseUris = new RepeatedUriParser();
+        for (int i = 0; i < count; i++) {
+            if (!cursor.moveToPosition(start + i)) {
+                continue;
+            }
+            conversations[i] = new Conversation(cursor,
+                    infos != null ? (ConversationInfo) infos[i] : null,
+                    folders != null ? (FolderList) folders[i] : null,
+                    accountUris, baseUris);
+        }
+        return conversations;
+    }
+
     /**
      * Apply any column values from the given {@link ContentValues} (where column names are the
      * keys) to this conversation.
@@ -618,12 +733,7 @@ public class Conversation implements Parcelable {
             if (ConversationColumns.READ.equals(key)) {
                 read = (Integer) val != 0;
             } else if (ConversationColumns.CONVERSATION_INFO.equals(key)) {
-                final ConversationInfo cachedCi = ConversationInfo.fromBlob((byte[]) val);
-                if (cachedCi == null) {
-                    LogUtils.d(LOG_TAG, "Null ConversationInfo in applyCachedValues");
-                } else {
-                    conversationInfo.overwriteWith(cachedCi);
-                }
+                applyCachedConversationInfo((byte[]) val);
             } else if (ConversationColumns.FLAGS.equals(key)) {
                 convFlags = (Integer) val;
             } else if (ConversationColumns.STARRED.equals(key)) {
@@ -724,26 +834,93 @@ public class Conversation implements Parcelable {
         return target;
     }
 
+    /**
+     * Returns the conversation info, decoding it from the cursor's blob the first time.
+     *
+     * @see UIProvider.ConversationColumns#CONVERSATION_INFO
+     */
+    public ConversationInfo getConversationInfo() {
+        ConversationInfo info = conversationInfo;
+        if (info == null) {
+            synchronized (this) {
+                info = conversationInfo;
+                if (info == null && conversationInfoBlob != null) {
+                    info = ConversationInfo.fromBlob(conversationInfoBlob);
+                    conversationInfo = info;
+                    conversationInfoBlob = null;
+                }
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Returns true if there is conversation info, without decoding it.
+     */
+    public boolean hasConversationInfo() {
+        return conversationInfo != null || conversationInfoBlob != null;
+    }
+
+    /**
+     * Returns true if the conversation info has been decoded, so that
+     * {@link #getConversationInfo()} is cheap.
+     */
+    public boolean isConversationInfoDecoded() {
+        return getUndecodedConversationInfo() == null;
+    }
+
+    /**
+     * Returns the blob the conversation info is still to be decoded from, or null if it has
+     * been decoded. The counts and snippets are read from the blob as they are asked for, so
+     * that showing them doesn't decode the participants.
+     */
+    private byte[] getUndecodedConversationInfo() {
+        return conversationInfo == null ? conversationInfoBlob : null;
+    }
+
+    private synchronized void applyCachedConversationInfo(byte[] blob) {
+        if (conversationInfo == null && ConversationInfoBlob.isCompact(blob)) {
+            conversationInfoBlob = blob;
+            return;
+        }
+        final ConversationInfo cachedCi = ConversationInfo.fromBlob(blob);
+        if (cachedCi == null) {
+            LogUtils.d(LOG_TAG, "Null ConversationInfo in applyCachedValues");
+        } else if (conversationInfo == null) {
+            conversationInfo = cachedCi;
+            conversationInfoBlob = null;
+        } else {
+            conversationInfo.overwriteWith(cachedCi);
+        }
+    }
+
     /**
      * Get the snippet for this conversation.
      */
     public String getSnippet() {
-        return !TextUtils.isEmpty(conversationInfo.firstSnippet) ?
-                conversationInfo.firstSnippet : "";
+        final byte[] blob = getUndecodedConversationInfo();
+        final String snippet = blob != null
+                ? ConversationInfoBlob.forThread(blob).getFirstSnippet()
+                : getConversationInfo().firstSnippet;
+        return !TextUtils.isEmpty(snippet) ? snippet : "";
     }
 
     /**
      * Get the number of messages for this conversation.
      */
     public int getNumMessages() {
-        return conversationInfo.messageCount;
+        final byte[] blob = getUndecodedConversationInfo();
+        return blob != null ? ConversationInfoBlob.forThread(blob).getMessageCount()
+                : getConversationInfo().messageCount;
     }
 
     /**
      * Get the number of drafts for this conversation.
      */
     public int numDrafts() {
-        return conversationInfo.draftCount;
+        final byte[] blob = getUndecodedConversationInfo();
+        return blob != null ? ConversationInfoBlob.forThread(blob).getDraftCount()
+                : getConversationInfo().draftCount;
     }
 
     public boolean isViewed() {
@@ -89,10 +89,28 @@ public class ConversationInfo implements Parcelable {
         dest.writeTypedList(participantInfos);
     }
 
+    /**
+     * Decodes a blob from {@link #toBlob()}. Blobs in the older Parcel format, as some providers
+     * still write them, are read too.
+     */
     public static ConversationInfo fromBlob(byte[] blob) {
         if (blob == null) {
             return null;
         }
+        if (ConversationInfoBlob.isCompact(blob)) {
+            final ConversationInfoBlob reader = ConversationInfoBlob.forThread(blob);
+            final int participantCount = reader.getParticipantCount();
+            final ConversationInfo result = new ConversationInfo(reader.getMessageCount(),
+                    reader.getDraftCount(), reader.getFirstSnippet(),
+                    reader.getFirstUnreadSnippet(), reader.getLastSnippet());
+            result.participantInfos.ensureCapacity(participantCount);
+            for (int i = 0; i < participantCount; i++) {
+                result.addParticipant(new ParticipantInfo(reader.getParticipantName(i),
+                        reader.getParticipantEmail(i), reader.getParticipantPriority(i),
+                        reader.isParticipantRead(i)));
+            }
+            return result;
+        }
         final Parcel p = Parcel.obtain();
         p.unmarshall(blob, 0, blob.length);
         p.setDataPosition(0);
@@ -101,12 +119,17 @@ public class ConversationInfo implements Parcelable {
         return result;
     }
 
+    /**
+     * Encodes this object in the compact form described in {@link ConversationInfoBlob}.
+     */
     public byte[] toBlob() {
-        final Parcel p = Parcel.obtain();
-        writeToParcel(p, 0);
-        final byte[] result = p.marshall();
-        p.recycle();
-        return result;
+        final ConversationInfoBlob.Writer writer = new ConversationInfoBlob.Writer(messageCount,
+                draftCount, firstSnippet, firstUnreadSnippet, lastSnippet,
+                participantInfos.size());
+        for (ParticipantInfo info : participantInfos) {
+            writer.addParticipant(info.name, info.email, info.priority, info.readConversation);
+        }
+        return writer.toByteArray();
     }
 
     public void set(int count, int draft, String first, String firstUnread, String last) {
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import java.nio.charset.Charset;
+
+/**
+ * A reusable, read-only view of a {@link ConversationInfo} in its compact blob form.
+ * <p>
+ * {@link #reset(byte[])} only walks the lengths in the blob to find where each participant
+ * starts; no string is decoded until its getter is called. This lets callers that only need the
+ * counts, or a single participant, skip decoding the rest.
+ * <p>
+ * The format is a 4-byte header (three magic bytes and a version byte), then varint message and
+ * draft counts, the first, first unread and last snippets, a varint participant count, and for
+ * each participant its name, email, zigzag-varint priority and a read byte. Strings are a varint
+ * of the UTF-8 length plus one (zero for null) followed by the UTF-8 bytes. The magic bytes can't
+ * start a Parcel-format blob, whose first four bytes are a little-endian message count, so
+ * {@link #isCompact(byte[])} tells the two apart.
+ * <p>
+ * Not synchronized. {@link #forThread(byte[])} gives each thread a reader of its own.
+ */
+public final class ConversationInfoBlob {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte MAGIC_0 = (byte) 0xC1;
+    private static final byte MAGIC_1 = 'C';
+    private static final byte MAGIC_2 = 'I';
+    static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 4;
+
+    private static final ThreadLocal<ConversationInfoBlob> sReaders =
+            new ThreadLocal<ConversationInfoBlob>() {
+        @Override
+        protected ConversationInfoBlob initialValue() {
+            return new ConversationInfoBlob();
+        }
+    };
+
+    private byte[] mBlob;
+    private int mMessageCount;
+    private int mDraftCount;
+    private int mFirstSnippetOffset;
+    private int mFirstUnreadSnippetOffset;
+    private int mLastSnippetOffset;
+    private int mParticipantCount;
+    /** The offset of each participant's name, grown as needed and reused across blobs */
+    private int[] mParticipantOffsets = new int[8];
+    /** The offset just after the last value read by {@link #readVarint(int)} */
+    private int mNext;
+
+    /**
+     * Returns true if the given blob is in the compact format (of any version).
+     */
+    public static boolean isCompact(byte[] blob) {
+        return blob != null && blob.length >= HEADER_LENGTH && blob[0] == MAGIC_0
+                && blob[1] == MAGIC_1 && blob[2] == MAGIC_2;
+    }
+
+    /**
+     * Returns the calling thread's reader, pointed at the given blob. It stays valid until the
+     * next call on the same thread.
+     *
+     * @see #reset(byte[])
+     */
+    public static ConversationInfoBlob forThread(byte[] blob) {
+        final ConversationInfoBlob reader = sReaders.get();
+        reader.reset(blob);
+        return reader;
+    }
+
+    /**
+     * Points this reader at a new blob.
+     *
+     * @throws IllegalArgumentException if the blob isn't a well-formed compact blob of a version
+     *         this reader understands
+     */
+    public void reset(byte[] blob) {
+        if (!isCompact(blob) || blob[3] != VERSION) {
+            throw new IllegalArgumentException("Not a compact conversation info blob");
+        }
+        mBlob = blob;
+        try {
+            mMessageCount = readVarint(HEADER_LENGTH);
+            mDraftCount = readVarint(mNext);
+            mFirstSnippetOffset = mNext;
+            mFirstUnreadSnippetOffset = skipString(mFirstSnippetOffset);
+            mLastSnippetOffset = skipString(mFirstUnreadSnippetOffset);
+            final int count = readVarint(skipString(mLastSnippetOffset));
+            if (count < 0 || count > blob.length) {
+                throw new IllegalArgumentException("Bad participant count " + count);
+            }
+            if (mParticipantOffsets.length < count) {
+                mParticipantOffsets = new int[Math.max(count, mParticipantOffsets.length * 2)];
+            }
+            int offset = mNext;
+            for (int i = 0; i < count; i++) {
+                mParticipantOffsets[i] = offset;
+                // name, email, priority, read
+                readVarint(skipString(skipString(offset)));
+                offset = mNext + 1;
+            }
+            if (offset > blob.length) {
+                throw new IllegalArgumentException("Truncated conversation info blob");
+            }
+            mParticipantCount = count;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            mBlob = null;
+            throw new IllegalArgumentException("Truncated conversation info blob", e);
+        } catch (IllegalArgumentException e) {
+            mBlob = null;
+            throw e;
+        }
+    }
+
+    public int getMessageCount() {
+        return mMessageCount;
+    }
+
+    public int getDraftCount() {
+        return mDraftCount;
+    }
+
+    public String getFirstSnippet() {
+        return readString(mFirstSnippetOffset);
+    }
+
+    public String getFirstUnreadSnippet() {
+        return readString(mFirstUnreadSnippetOffset);
+    }
+
+    public String getLastSnippet() {
+        return readString(mLastSnippetOffset);
+    }
+
+    public int getParticipantCount() {
+        return mParticipantCount;
+    }
+
+    public String getParticipantName(int index) {
+        return readString(participantOffset(index));
+    }
+
+    public String getParticipantEmail(int index) {
+        return readString(skipString(participantOffset(index)));
+    }
+
+    public int getParticipantPriority(int index) {
+        final int zigzag = readVarint(skipString(skipString(participantOffset(index))));
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    public boolean isParticipantRead(int index) {
+        readVarint(skipString(skipString(participantOffset(index))));
+        return mBlob[mNext] != 0;
+    }
+
+    private int participantOffset(int index) {
+        if (index < 0 || index >= mParticipantCount) {
+            throw new IndexOutOfBoundsException("Participant " + index + " of "
+                    + mParticipantCount);
+        }
+        return mParticipantOffsets[index];
+    }
+
+    /**
+     * Reads the varint at the given offset, and leaves the offset after it in {@link #mNext}.
+     */
+    private int readVarint(int offset) {
+        final byte[] blob = mBlob;
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = blob[offset++];
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                mNext = offset;
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private int skipString(int offset) {
+        final int length = readVarint(offset);
+        if (length < 0) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        return length == 0 ? mNext : mNext + length - 1;
+    }
+
+    private String readString(int offset) {
+        final int length = readVarint(offset);
+        if (length == 0) {
+            return null;
+        }
+        return new String(mBlob, mNext, length - 1, UTF_8);
+    }
+
+    /**
+     * Builds a compact blob. Call {@link #addParticipant(String, String, int, boolean)} once for
+     * each of the participants counted in the constructor, then {@link #toByteArray()}.
+     */
+    public static final class Writer {
+        private byte[] mBuffer = new byte[128];
+        private int mLength;
+        private final int mParticipantCount;
+        private int mParticipantsAdded;
+
+        public Writer(int messageCount, int draftCount, String firstSnippet,
+                String firstUnreadSnippet, String lastSnippet, int participantCount) {
+            mBuffer[0] = MAGIC_0;
+            mBuffer[1] = MAGIC_1;
+            mBuffer[2] = MAGIC_2;
+            mBuffer[3] = VERSION;
+            mLength = HEADER_LENGTH;
+            writeVarint(messageCount);
+            writeVarint(draftCount);
+            writeString(firstSnippet);
+            writeString(firstUnreadSnippet);
+            writeString(lastSnippet);
+            writeVarint(participantCount);
+            mParticipantCount = participantCount;
+        }
+
+        public Writer addParticipant(String name, String email, int priority, boolean read) {
+            if (mParticipantsAdded == mParticipantCount) {
+                throw new IllegalStateException("More than " + mParticipantCount
+                        + " participants");
+            }
+            writeString(name);
+            writeString(email);
+            writeVarint((priority << 1) ^ (priority >> 31));
+            ensureCapacity(1);
+            mBuffer[mLength++] = (byte) (read ? 1 : 0);
+            mParticipantsAdded++;
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            if (mParticipantsAdded != mParticipantCount) {
+                throw new IllegalStateException("Expected " + mParticipantCount
+                        + " participants, got " + mParticipantsAdded);
+            }
+            final byte[] result = new byte[mLength];
+            System.arraycopy(mBuffer, 0, result, 0, mLength);
+            return result;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mLength + extra > mBuffer.length) {
+                final byte[] buffer = new byte[Math.max(mLength + extra, mBuffer.length * 2)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+        }
+
+        private void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                mBuffer[mLength++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+    }
+}
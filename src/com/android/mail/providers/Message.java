@@ -40,7 +40,7 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.utility.ConversionUtilities;
 import com.android.mail.providers.UIProvider.MessageColumns;
 import com.android.mail.ui.HtmlMessage;
-import com.android.mail.utils.HtmlSanitizer;
+import com.android.mail.utils.SanitizedHtmlCache;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
@@ -464,14 +464,16 @@ public class Message implements Parcelable, HtmlMessage {
         snippet = data.snippet;
         bodyText = data.textContent;
 
-        // sanitize the HTML found within the .eml file before consuming it
-        bodyHtml = HtmlSanitizer.sanitizeHtml(data.htmlContent);
+        final String messageId = mimeMessage.getMessageId();
+
+        // sanitize the HTML found within the .eml file before consuming it, unless it was
+        // already sanitized the last time this message was opened
+        bodyHtml = SanitizedHtmlCache.getInstance(context).sanitizeHtml(messageId,
+                data.htmlContent);
 
         // populate mAttachments
         mAttachments = Lists.newArrayList();
 
-        final String messageId = mimeMessage.getMessageId();
-
         int partId = 0;
         for (final Part attachmentPart : attachments) {
             mAttachments.add(new Attachment(context, attachmentPart,
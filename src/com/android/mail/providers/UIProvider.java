@@ -1357,6 +1357,36 @@ public class UIProvider {
          */
         public static final String COMMAND_GET_RAW_FOLDERS = ConversationColumns.RAW_FOLDERS;
 
+        /**
+         * Batch form of {@link #COMMAND_GET_CONVERSATION_INFO}, for building many conversations at
+         * once. The request also has {@link #COMMAND_KEY_RANGE_START} and
+         * {@link #COMMAND_KEY_RANGE_COUNT} int values giving the rows to return objects for; the
+         * cursor position is not moved beforehand and should not matter.
+         * <p>
+         * A provider that implements this command should include this key in its response with a
+         * Parcelable array of exactly {@link #COMMAND_KEY_RANGE_COUNT} {@link ConversationInfo}
+         * objects, in row order. Providers that don't will be asked row by row instead, and
+         * ConversationCursor sends no more range requests to a cursor that didn't answer one.
+         */
+        public static final String COMMAND_GET_CONVERSATION_INFO_RANGE = "conversationInfoRange";
+
+        /**
+         * Batch form of {@link #COMMAND_GET_RAW_FOLDERS}; see
+         * {@link #COMMAND_GET_CONVERSATION_INFO_RANGE}. The response value is a Parcelable array
+         * of {@link FolderList} objects.
+         */
+        public static final String COMMAND_GET_RAW_FOLDERS_RANGE = "rawFoldersRange";
+
+        /**
+         * The int position of the first row of a range request.
+         */
+        public static final String COMMAND_KEY_RANGE_START = "rangeStart";
+
+        /**
+         * The int number of rows in a range request.
+         */
+        public static final String COMMAND_KEY_RANGE_COUNT = "rangeCount";
+
         private ConversationCursorCommand() {}
     }
 
@@ -19,6 +19,7 @@ package com.android.mail.providers.protos.mock;
 import android.os.Bundle;
 import android.os.Parcelable;
 
+import com.android.mail.providers.UIProvider.ConversationCursorCommand;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MatrixCursorWithCachedColumns;
 
@@ -43,6 +44,11 @@ public class MockRespondMatrixCursor extends MatrixCursorWithCachedColumns{
     public Bundle respond(Bundle request) {
         final Bundle response = new Bundle();
 
+        if (request.containsKey(ConversationCursorCommand.COMMAND_KEY_RANGE_START)) {
+            respondRange(request, response);
+            return response;
+        }
+
         final int pos = getPosition();
         if (pos >= mResultList.size()) {
             LogUtils.wtf(LOG_TAG, "Unexpected position");
@@ -63,4 +69,38 @@ public class MockRespondMatrixCursor extends MatrixCursorWithCachedColumns{
 
         return response;
     }
+
+    private void respondRange(Bundle request, Bundle response) {
+        final int start = request.getInt(ConversationCursorCommand.COMMAND_KEY_RANGE_START);
+        final int count = request.getInt(ConversationCursorCommand.COMMAND_KEY_RANGE_COUNT);
+        if (start < 0 || start + count > mResultList.size()) {
+            LogUtils.wtf(LOG_TAG, "Unexpected range");
+            return;
+        }
+        respondRange(request, response, start, count,
+                ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO_RANGE,
+                ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO);
+        respondRange(request, response, start, count,
+                ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS_RANGE,
+                ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS);
+    }
+
+    /**
+     * Answers a range request with the mock responses for the equivalent single-row request,
+     * as long as every row in the range has one.
+     */
+    private void respondRange(Bundle request, Bundle response, int start, int count,
+            String rangeKey, String rowKey) {
+        if (!request.containsKey(rangeKey)) {
+            return;
+        }
+        final Parcelable[] values = new Parcelable[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = (Parcelable) mResultList.get(start + i).get(MOCK_RESPOND_PREFIX + rowKey);
+            if (values[i] == null) {
+                return;
+            }
+        }
+        response.putParcelableArray(rangeKey, values);
+    }
 }
@@ -1840,7 +1840,7 @@ public abstract class AbstractActivityController implements ActivityController,
             if (markViewed) {
                 value.put(ConversationColumns.VIEWED, true);
             }
-            final ConversationInfo info = target.conversationInfo;
+            final ConversationInfo info = target.getConversationInfo();
             final boolean changed = info.markRead(read);
             if (changed) {
                 value.put(ConversationColumns.CONVERSATION_INFO, info.toBlob());
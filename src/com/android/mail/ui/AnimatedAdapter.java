@@ -40,7 +40,9 @@ import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.bitmap.ContactResolver;
 import com.android.mail.browse.ConversationCursor;
+import com.android.mail.browse.ConversationItemPrefetcher;
 import com.android.mail.browse.ConversationItemView;
+import com.android.mail.browse.ConversationItemViewCoordinates;
 import com.android.mail.browse.ConversationItemViewCoordinates.CoordinatesCache;
 import com.android.mail.browse.SwipeableConversationItemView;
 import com.android.mail.providers.Account;
@@ -195,6 +197,39 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
 
     private final CoordinatesCache mCoordinatesCache = new CoordinatesCache();
 
+    private final ConversationItemPrefetcher mItemPrefetcher = new ConversationItemPrefetcher(
+            new ConversationItemPrefetcher.ConversationSource() {
+                @Override
+                public Conversation getConversationForPrefetch(int position) {
+                    if (position < 0 || position >= getCount() || mHeaders.size() > position
+                            || (mShowFooter && position == getCount() - 1)
+                            || mSpecialViews.get(getSpecialViewsPos(position)) != null) {
+                        return null;
+                    }
+                    // Rows the cursor hasn't loaded yet are skipped, rather than moving the
+                    // cursor the list is bound to
+                    final ConversationCursor cursor = getConversationCursor();
+                    return cursor != null && !cursor.isClosed() ? cursor.peekCachedConversation(
+                            position - getPositionOffset(position)) : null;
+                }
+
+                @Override
+                public int getCount() {
+                    return AnimatedAdapter.this.getCount();
+                }
+
+                @Override
+                public ConversationItemPrefetcher.Prefetch createPrefetch(
+                        Conversation conversation, ConversationItemViewCoordinates coordinates,
+                        boolean isRtl) {
+                    if (mAccount == null || mFolder == null) {
+                        return null;
+                    }
+                    return ConversationItemView.prefetch(mContext, mAccount.getEmailAddress(),
+                            conversation, mFolder, coordinates, isRtl);
+                }
+            });
+
     /**
      * Temporary views insert at specific positions relative to conversations. These can be
      * related to showing new features (on-boarding) or showing information about new mailboxes
@@ -642,6 +677,10 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
         return mCoordinatesCache;
     }
 
+    public ConversationItemPrefetcher getItemPrefetcher() {
+        return mItemPrefetcher;
+    }
+
     public BidiFormatter getBidiFormatter() {
         return mBidiFormatter;
     }
@@ -1094,6 +1133,7 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
     public Cursor swapCursor(final Cursor c) {
         final Cursor oldCursor = super.swapCursor(c);
         updateSpecialViews();
+        mItemPrefetcher.reset();
 
         return oldCursor;
     }
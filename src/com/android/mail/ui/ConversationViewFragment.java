@@ -733,6 +733,10 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         final int convHeaderPos = mAdapter.addConversationHeader(mConversation);
         final int convHeaderPx = measureOverlayHeight(convHeaderPos);
 
+        // ConversationPagerAdapter only shows this view for accounts whose bodies are already
+        // sanitized, so this is a backstop that keeps untrusted html out of the WebView.
+        mTemplates.setSanitizeBodies(!mAccount.supportsCapability(
+                UIProvider.AccountCapabilities.SANITIZED_HTML));
         mTemplates.startConversation(mWebView.getViewportWidth(),
                 mWebView.screenPxToWebPx(mSideMarginPx), mWebView.screenPxToWebPx(convHeaderPx));
 
@@ -20,6 +20,7 @@ import android.graphics.Color;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.RoundRectShape;
 import android.graphics.drawable.shapes.Shape;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.DragEvent;
 import android.view.View;
@@ -129,7 +130,12 @@ public class FolderItemView extends RelativeLayout {
                 && a.name.equals(b.name)
                 && a.hasChildren == b.hasChildren
                 && a.unseenCount == b.unseenCount
-                && a.unreadCount == b.unreadCount));
+                && a.unreadCount == b.unreadCount
+                // The type decides between the unseen and unread counts, and the rest the icon
+                && a.type == b.type
+                && a.iconResId == b.iconResId
+                && a.capabilities == b.capabilities
+                && TextUtils.equals(a.bgColor, b.bgColor)));
     }
 
     public void bind(final Folder folder, final DropHandler dropHandler) {
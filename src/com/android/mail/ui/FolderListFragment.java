@@ -25,6 +25,7 @@ import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.widget.DrawerLayout;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -60,6 +61,7 @@ import com.android.mail.utils.Utils;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -791,6 +793,21 @@ public class FolderListFragment extends ListFragment implements
         private final boolean mIsDivided;
         /** All the items */
         private List<DrawerItem> mItemList = new ArrayList<DrawerItem>();
+        /**
+         * The items for the inboxes and other folders, and for the recent folders, by folder.
+         * Items are kept from one rebuild of the list to the next, and given the newly loaded
+         * folder, so that an update of a few counts leaves the list with the same items.
+         */
+        private final HashMap<FolderUri, DrawerItem> mFolderItems =
+                new HashMap<FolderUri, DrawerItem>();
+        private final HashMap<FolderUri, DrawerItem> mRecentItems =
+                new HashMap<FolderUri, DrawerItem>();
+        /** The header items, by string resource, also kept from one rebuild to the next */
+        private final SparseArray<DrawerItem> mHeaderItems = new SparseArray<DrawerItem>();
+        private DrawerItem mBlankHeaderItem;
+        private DrawerItem mWaitItem;
+        /** The kept items whose folders now look different, while the list is rebuilt */
+        private final List<DrawerItem> mChangedItems = new ArrayList<DrawerItem>();
         /** Cursor into the folder list. This might be null. */
         private ObjectCursor<Folder> mCursor = null;
         /** Cursor into the all folder list. This might be null. */
@@ -886,11 +903,15 @@ public class FolderListFragment extends ListFragment implements
 
         /**
          * Responsible for verifying mCursor, and ensuring any recalculate
-         * conditions are met. Also calls notifyDataSetChanged once it's finished
-         * populating {@link com.android.mail.ui.FolderListFragment.FolderAdapter#mItemList}
+         * conditions are met. Once it's finished populating
+         * {@link com.android.mail.ui.FolderListFragment.FolderAdapter#mItemList}, calls
+         * notifyDataSetChanged if items were added, removed or moved, or otherwise rebinds only the
+         * visible items whose folders changed.
          */
         private void rebuildFolderList() {
             final boolean oldInboxPresent = mInboxPresent;
+            final List<DrawerItem> oldItemList = mItemList;
+            mChangedItems.clear();
             mItemList = recalculateListFolders();
             if (mAccountController != null && mInboxPresent && !oldInboxPresent) {
                 // We didn't have an inbox folder before, but now we do. This can occur when
@@ -900,8 +921,105 @@ public class FolderListFragment extends ListFragment implements
                 // user will need to manually switch to the inbox. See b/13793316
                 mAccountController.switchToDefaultInboxOrChangeAccount(mCurrentAccount);
             }
-            // Ask the list to invalidate its views.
-            notifyDataSetChanged();
+            if (!haveSameItems(oldItemList, mItemList)) {
+                // Ask the list to invalidate its views.
+                notifyDataSetChanged();
+            } else if (!mChangedItems.isEmpty()) {
+                rebindChangedViews();
+            }
+            mChangedItems.clear();
+        }
+
+        /**
+         * Returns true if the two lists hold the same items, in the same order.
+         */
+        private boolean haveSameItems(List<DrawerItem> a, List<DrawerItem> b) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (int i = 0, size = a.size(); i < size; i++) {
+                if (a.get(i) != b.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Binds the visible views of the items in {@link #mChangedItems} again. The list has no
+         * way to be told that only some of its items changed, and notifyDataSetChanged would
+         * bind every visible view again.
+         */
+        private void rebindChangedViews() {
+            if (mListView == null) {
+                notifyDataSetChanged();
+                return;
+            }
+            // The same offset that getView() uses for this adapter's positions in the list.
+            final int offset = (mAccountsAdapter != null ? mAccountsAdapter.getCount() : 0)
+                    + mListView.getHeaderViewsCount();
+            final int firstVisible = mListView.getFirstVisiblePosition();
+            for (int i = 0, count = mListView.getChildCount(); i < count; i++) {
+                final int position = firstVisible + i - offset;
+                if (position >= 0 && position < mItemList.size()
+                        && mChangedItems.contains(mItemList.get(position))) {
+                    getView(position, mListView.getChildAt(i), mListView);
+                }
+            }
+        }
+
+        /**
+         * Returns the item for the folder, keeping the one from the previous rebuild, with the
+         * folder replaced, if the folder had one of the same type.
+         *
+         * @param items the items kept from the previous rebuild, which the item is added to
+         */
+        private DrawerItem obtainFolderItem(HashMap<FolderUri, DrawerItem> items, Folder f,
+                int folderType) {
+            DrawerItem item = items.get(f.folderUri);
+            if (item == null || item.mFolderType != folderType) {
+                item = DrawerItem.ofFolder(mActivity, f, folderType);
+                items.put(f.folderUri, item);
+            } else if (item.mFolder != f) {
+                if (!FolderItemView.areSameViews(item.mFolder, f)) {
+                    mChangedItems.add(item);
+                }
+                item.updateFolder(f);
+            }
+            return item;
+        }
+
+        /**
+         * Drops the kept items for folders that are no longer listed.
+         *
+         * @param items the items kept from the previous rebuild
+         * @param listed the items in the rebuilt list that were obtained from them
+         * @param moreListed more such items, or null
+         */
+        private void pruneFolderItems(HashMap<FolderUri, DrawerItem> items,
+                List<DrawerItem> listed, List<DrawerItem> moreListed) {
+            final int count = listed.size() + (moreListed != null ? moreListed.size() : 0);
+            if (items.size() <= count) {
+                return;
+            }
+            items.clear();
+            for (DrawerItem item : listed) {
+                items.put(item.mFolder.folderUri, item);
+            }
+            if (moreListed != null) {
+                for (DrawerItem item : moreListed) {
+                    items.put(item.mFolder.folderUri, item);
+                }
+            }
+        }
+
+        private DrawerItem obtainHeaderItem(int headerStringResource) {
+            DrawerItem item = mHeaderItems.get(headerStringResource);
+            if (item == null) {
+                item = DrawerItem.ofHeader(mActivity, headerStringResource);
+                mHeaderItems.put(headerStringResource, item);
+            }
+            return item;
         }
 
         /**
@@ -915,7 +1033,10 @@ public class FolderListFragment extends ListFragment implements
             // when we're waiting for account initialization or initial sync.
             if (isCursorInvalid()) {
                 if(!mCurrentAccount.isAccountReady()) {
-                    itemList.add(DrawerItem.ofWaitView(mActivity));
+                    if (mWaitItem == null) {
+                        mWaitItem = DrawerItem.ofWaitView(mActivity);
+                    }
+                    itemList.add(mWaitItem);
                 }
                 return itemList;
             }
@@ -925,9 +1046,10 @@ public class FolderListFragment extends ListFragment implements
                 do {
                     final Folder f = mCursor.getModel();
                     if (!isFolderTypeExcluded(f)) {
-                        itemList.add(DrawerItem.ofFolder(mActivity, f, DrawerItem.FOLDER_OTHER));
+                        itemList.add(obtainFolderItem(mFolderItems, f, DrawerItem.FOLDER_OTHER));
                     }
                 } while (mCursor.moveToNext());
+                pruneFolderItems(mFolderItems, itemList, null);
 
                 return itemList;
             }
@@ -939,14 +1061,15 @@ public class FolderListFragment extends ListFragment implements
                 final Folder f = mCursor.getModel();
                 if (!isFolderTypeExcluded(f)) {
                     if (f.isInbox()) {
-                        inboxFolders.add(DrawerItem.ofFolder(
-                                mActivity, f, DrawerItem.FOLDER_INBOX));
+                        inboxFolders.add(obtainFolderItem(
+                                mFolderItems, f, DrawerItem.FOLDER_INBOX));
                     } else {
-                        allFoldersList.add(DrawerItem.ofFolder(
-                                mActivity, f, DrawerItem.FOLDER_OTHER));
+                        allFoldersList.add(obtainFolderItem(
+                                mFolderItems, f, DrawerItem.FOLDER_OTHER));
                     }
                 }
             } while (mCursor.moveToNext());
+            pruneFolderItems(mFolderItems, inboxFolders, allFoldersList);
 
             // If we have the all folder list, verify that the current folder exists
             boolean currentFolderFound = false;
@@ -1008,9 +1131,12 @@ public class FolderListFragment extends ListFragment implements
                 int headerStringResource) {
             if (source.size() > 0) {
                 if(headerStringResource != BLANK_HEADER_RESOURCE) {
-                    destination.add(DrawerItem.ofHeader(mActivity, headerStringResource));
+                    destination.add(obtainHeaderItem(headerStringResource));
                 } else {
-                    destination.add(DrawerItem.ofBlankHeader(mActivity));
+                    if (mBlankHeaderItem == null) {
+                        mBlankHeaderItem = DrawerItem.ofBlankHeader(mActivity);
+                    }
+                    destination.add(mBlankHeaderItem);
                 }
                 destination.addAll(source);
             }
@@ -1035,12 +1161,16 @@ public class FolderListFragment extends ListFragment implements
                 }
             }
 
-            if (recentFolderList.size() > 0) {
-                destination.add(DrawerItem.ofHeader(mActivity, R.string.recent_folders_heading));
+            final List<DrawerItem> recentItems = new ArrayList<DrawerItem>(recentFolderList.size());
+            for (Folder f : recentFolderList) {
+                recentItems.add(obtainFolderItem(mRecentItems, f, DrawerItem.FOLDER_RECENT));
+            }
+            pruneFolderItems(mRecentItems, recentItems, null);
+
+            if (recentItems.size() > 0) {
+                destination.add(obtainHeaderItem(R.string.recent_folders_heading));
                 // Recent folders are not queried for position.
-                for (Folder f : recentFolderList) {
-                    destination.add(DrawerItem.ofFolder(mActivity, f, DrawerItem.FOLDER_RECENT));
-                }
+                destination.addAll(recentItems);
             }
         }
 
@@ -22,13 +22,13 @@ import android.support.v4.text.TextUtilsCompat;
 import android.support.v4.view.ViewCompat;
 
 import com.android.mail.R;
+import com.android.mail.utils.HtmlSanitizer;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.Locale;
-import java.util.regex.Pattern;
 
 /**
  * Renders data into very simple string-substitution HTML templates for conversation view.
@@ -44,46 +44,29 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
     private static final String TAG = LogTag.getLogTag();
 
     /**
-     * Pattern for HTML img tags with a "src" attribute where the value is an absolutely-specified
-     * HTTP or HTTPS URL. In other words, these are images with valid URLs that we should munge to
-     * prevent WebView from firing bad onload handlers for them. Part of the workaround for
-     * b/5522414.
-     *
-     * Pattern documentation:
-     * There are 3 top-level parts of the pattern:
-     * 1. required preceding string
-     * 2. the literal string "src"
-     * 3. required trailing string
-     *
-     * The preceding string must be an img tag "<img " with intermediate spaces allowed. The
-     * trailing whitespace is required.
-     * Non-whitespace chars are allowed before "src", but if they are present, they must be followed
-     * by another whitespace char. The idea is to allow other attributes, and avoid matching on
-     * "src" in a later attribute value as much as possible.
-     *
-     * The following string must contain "=" and "http", with intermediate whitespace and single-
-     * and double-quote allowed in between. The idea is to avoid matching Gmail-hosted relative URLs
-     * for inline attachment images of the form "?view=KEYVALUES".
-     *
+     * The text that replaces the "src" attribute name of an img tag whose source is an absolute
+     * HTTP or HTTPS URL; see {@link #appendBlockingAbsoluteImgUrls(StringBuilder, String)}. The
+     * "src" attribute is set to something inert and not left unset to minimize interactions with
+     * existing JS.
      */
-    private static final Pattern sAbsoluteImgUrlPattern = Pattern.compile(
-            "(<\\s*img\\s+(?:[^>]*\\s+)?)src(\\s*=[\\s'\"]*http)", Pattern.CASE_INSENSITIVE
-                    | Pattern.MULTILINE);
-    /**
-     * The text replacement for {@link #sAbsoluteImgUrlPattern}. The "src" attribute is set to
-     * something inert and not left unset to minimize interactions with existing JS.
-     */
-    private static final String IMG_URL_REPLACEMENT = "$1src='data:' blocked-src$2";
+    private static final String IMG_URL_REPLACEMENT = "src='data:' blocked-src";
+
+    /** The index of the message body among the arguments to the message template */
+    private static final int MESSAGE_BODY_ARG = 5;
 
     private static final String LEFT_TO_RIGHT_TRIANGLE = "\u25B6 ";
     private static final String RIGHT_TO_LEFT_TRIANGLE = "\u25C0 ";
 
     private static boolean sLoadedTemplates;
     private static String sSuperCollapsed;
-    private static String sMessage;
+    /** The message template up to the body, and after it */
+    private static String sMessageHead;
+    private static String sMessageTail;
     private static String sConversationUpper;
     private static String sConversationLower;
 
+    private boolean mSanitizeBodies;
+
     public HtmlConversationTemplates(Context context) {
         super(context);
 
@@ -92,7 +75,10 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         if (!sLoadedTemplates) {
             sLoadedTemplates = true;
             sSuperCollapsed = readTemplate(R.raw.template_super_collapsed);
-            sMessage = readTemplate(R.raw.template_message);
+            final String message = readTemplate(R.raw.template_message);
+            final int bodyStart = findTemplateArg(message, MESSAGE_BODY_ARG);
+            sMessageHead = message.substring(0, bodyStart);
+            sMessageTail = message.substring(bodyStart + 2);
             sConversationUpper = readTemplate(R.raw.template_conversation_upper);
             sConversationLower = readTemplate(R.raw.template_conversation_lower);
         }
@@ -106,9 +92,124 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         append(sSuperCollapsed, firstCollapsed, blockHeight);
     }
 
+    /**
+     * Returns the index of the given (0-based) "%s" placeholder in a template.
+     */
+    private static int findTemplateArg(String template, int arg) {
+        int index = template.indexOf("%s");
+        for (int i = 0; i < arg && index >= 0; i++) {
+            index = template.indexOf("%s", index + 2);
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Template has no argument " + arg);
+        }
+        return index;
+    }
+
     @VisibleForTesting
     static String replaceAbsoluteImgUrls(final String html) {
-        return sAbsoluteImgUrlPattern.matcher(html).replaceAll(IMG_URL_REPLACEMENT);
+        final StringBuilder out = new StringBuilder(html.length() + 64);
+        appendBlockingAbsoluteImgUrls(out, html);
+        return out.toString();
+    }
+
+    /**
+     * Appends the html to the builder, renaming the "src" attribute of img tags whose source is an
+     * absolutely-specified HTTP or HTTPS URL to "blocked-src". In other words, these are images
+     * with valid URLs that we should munge to prevent WebView from firing bad onload handlers for
+     * them. Part of the workaround for b/5522414.
+     * <p>
+     * This is a single pass over the html that rewrites exactly what the regular expression
+     * <code>(&lt;\s*img\s+(?:[^&gt;]*\s+)?)src(\s*=[\s'"]*http)</code> (case-insensitive)
+     * used to:
+     * <ol>
+     *     <li>The tag must start with "&lt;img " with intermediate spaces allowed.</li>
+     *     <li>"src" must follow whitespace, so that it is an attribute name rather than part of
+     *     another name. Of several candidates, the last one before the next "&gt;" wins.</li>
+     *     <li>It must be followed by "=" and "http", with whitespace and single- and double-quotes
+     *     allowed in between. This avoids matching Gmail-hosted relative URLs for inline
+     *     attachment images of the form "?view=KEYVALUES".</li>
+     * </ol>
+     */
+    @VisibleForTesting
+    static void appendBlockingAbsoluteImgUrls(StringBuilder out, String html) {
+        int copied = 0;
+        int tagStart = html.indexOf('<');
+        while (tagStart >= 0) {
+            final int srcStart = findAbsoluteImgSrc(html, tagStart);
+            if (srcStart < 0) {
+                tagStart = html.indexOf('<', tagStart + 1);
+                continue;
+            }
+            out.append(html, copied, srcStart).append(IMG_URL_REPLACEMENT);
+            copied = srcStart + 3;
+            tagStart = html.indexOf('<', absoluteUrlValueEnd(html, copied, html.length()));
+        }
+        out.append(html, copied, html.length());
+    }
+
+    /**
+     * Returns the index of the src attribute to block in the img tag that starts at the given
+     * index, or -1 if it isn't such a tag or there is nothing to block.
+     */
+    private static int findAbsoluteImgSrc(String html, int tagStart) {
+        final int length = html.length();
+        int i = tagStart + 1;
+        while (i < length && isWhitespace(html.charAt(i))) {
+            i++;
+        }
+        if (!html.regionMatches(true, i, "img", 0, 3)) {
+            return -1;
+        }
+        i += 3;
+        if (i >= length || !isWhitespace(html.charAt(i))) {
+            return -1;
+        }
+        int tagEnd = html.indexOf('>', i);
+        if (tagEnd < 0) {
+            tagEnd = length;
+        }
+        for (int src = tagEnd - 3; src > i; src--) {
+            if (isWhitespace(html.charAt(src - 1)) && html.regionMatches(true, src, "src", 0, 3)
+                    && absoluteUrlValueEnd(html, src + 3, tagEnd) >= 0) {
+                return src;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index just after "http" if the text at the given index is "=" and "http" with
+     * only whitespace and quotes around the "=", or -1 if it isn't.
+     */
+    private static int absoluteUrlValueEnd(String html, int start, int end) {
+        int i = start;
+        while (i < end && isWhitespace(html.charAt(i))) {
+            i++;
+        }
+        if (i >= end || html.charAt(i) != '=') {
+            return -1;
+        }
+        i++;
+        while (i < end) {
+            final char c = html.charAt(i);
+            if (!isWhitespace(c) && c != '\'' && c != '"') {
+                break;
+            }
+            i++;
+        }
+        if (i + 4 > end || !html.regionMatches(true, i, "http", 0, 4)) {
+            return -1;
+        }
+        return i + 4;
+    }
+
+    /**
+     * Whitespace as regular expressions define "\s", which is narrower than
+     * {@link Character#isWhitespace(char)}.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
 
     /**
@@ -127,6 +228,30 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
 //        return sb.toString();
     }
 
+    /**
+     * Sets whether message bodies are untrusted html, which {@link #appendMessageHtml} then
+     * sanitizes straight into the template. Sanitizing is expensive and refuses to run on the
+     * main thread, so this is only for accounts whose provider doesn't sanitize bodies itself.
+     */
+    public void setSanitizeBodies(boolean sanitizeBodies) {
+        mSanitizeBodies = sanitizeBodies;
+    }
+
+    /**
+     * Sanitizes the raw html into the builder, then blocks its absolute img urls if asked to.
+     * The sanitized html is only copied back out of the builder for that scan.
+     */
+    @VisibleForTesting
+    static void appendSanitizedBody(StringBuilder out, String rawHtml, boolean blockImages) {
+        final int bodyStart = out.length();
+        HtmlSanitizer.sanitizeHtml(rawHtml, out);
+        if (blockImages) {
+            final String sanitized = out.substring(bodyStart);
+            out.setLength(bodyStart);
+            appendBlockingAbsoluteImgUrls(out, sanitized);
+        }
+    }
+
     public void appendMessageHtml(HtmlMessage message, boolean isExpanded,
             boolean safeForImages, int headerHeight, int footerHeight) {
 
@@ -134,33 +259,45 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         final String expandedClass = isExpanded ? "expanded" : "";
         final String showImagesClass = safeForImages ? "mail-show-images" : "";
 
-        String body = message.getBodyAsHtml();
+        final String body = message.getBodyAsHtml();
+
+        // The body can be megabytes long, so rather than formatting it into the template as an
+        // argument, write it straight into the output between the two halves of the template.
+        // wrapMessageBody() is skipped since it is currently a no-op.
+        append(sMessageHead,
+                getMessageDomId(message),
+                expandedClass,
+                headerHeight,
+                showImagesClass,
+                bodyDisplay
+        );
 
         /* Work around a WebView bug (5522414) in setBlockNetworkImage that causes img onload event
          * handlers to fire before an image is loaded.
          * WebView will report bad dimensions when revealing inline images with absolute URLs, but
          * we can prevent WebView from ever seeing those images by changing all img "src" attributes
          * into "gm-src" before loading the HTML. Parsing the potentially dirty HTML input is
-         * prohibitively expensive with TagSoup, so use a little regular expression instead.
+         * prohibitively expensive with TagSoup, so use a quick scan for img tags instead.
          *
          * To limit the scope of this workaround, only use it on messages that the server claims to
          * have external resources, and even then, only use it on img tags where the src is absolute
          * (i.e. url does not begin with "?"). The existing JavaScript implementation of this
          * attribute swap will continue to handle inline image attachments (they have relative
-         * URLs) and any false negatives that the regex misses. This maintains overall security
-         * level by not relying solely on the regex.
+         * URLs) and any false negatives that the scan misses. This maintains overall security
+         * level by not relying solely on the scan.
          */
-        if (!safeForImages && message.embedsExternalResources()) {
-            body = replaceAbsoluteImgUrls(body);
+        final boolean blockImages = !safeForImages && message.embedsExternalResources();
+        if (body == null) {
+            mBuilder.append("null");
+        } else if (mSanitizeBodies) {
+            appendSanitizedBody(mBuilder, body, blockImages);
+        } else if (blockImages) {
+            appendBlockingAbsoluteImgUrls(mBuilder, body);
+        } else {
+            mBuilder.append(body);
         }
 
-        append(sMessage,
-                getMessageDomId(message),
-                expandedClass,
-                headerHeight,
-                showImagesClass,
-                bodyDisplay,
-                wrapMessageBody(body),
+        append(sMessageTail,
                 bodyDisplay,
                 footerHeight
         );
@@ -370,6 +370,10 @@ public class SwipeableListView extends ListView implements Callback, OnScrollLis
     @Override
     public final void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        final AnimatedAdapter adapter = getAnimatedAdapter();
+        if (adapter != null) {
+            adapter.getItemPrefetcher().onScroll(firstVisibleItem, visibleItemCount);
+        }
     }
 
     @Override
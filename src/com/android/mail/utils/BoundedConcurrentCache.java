@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of immutable values that any number of threads can read and fill without a shared
+ * monitor. Lookups never block.
+ * <p>
+ * {@link #putIfAbsent(Object, Object)} interns values: when two threads compute the value for
+ * the same key at once, both end up with the instance that was cached first.
+ * <p>
+ * Once the cache holds more than its capacity, the thread that pushed it over drops a quarter of
+ * the entries, in no particular order. This suits caches whose working set fits comfortably in
+ * the capacity, where eviction is rare and a dropped entry only costs recomputing it.
+ */
+public class BoundedConcurrentCache<K, V> {
+
+    private final ConcurrentHashMap<K, V> mMap;
+    private final int mCapacity;
+    /** Tracks the size of mMap, which is cheaper than asking the map */
+    private final AtomicInteger mSize = new AtomicInteger();
+    /** Held while evicting, so only one thread at a time does it */
+    private final ReentrantLock mEvictionLock = new ReentrantLock();
+
+    public BoundedConcurrentCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mMap = new ConcurrentHashMap<K, V>(capacity + capacity / 3 + 1);
+    }
+
+    /**
+     * Returns the cached value for the given key, or null if there isn't one.
+     */
+    public V get(K key) {
+        return mMap.get(key);
+    }
+
+    /**
+     * Caches the value for the given key, unless there already is one.
+     *
+     * @return the value now cached for the key, which is the given value unless another was
+     *         cached first
+     */
+    public V putIfAbsent(K key, V value) {
+        final V previous = mMap.putIfAbsent(key, value);
+        if (previous != null) {
+            return previous;
+        }
+        if (mSize.incrementAndGet() > mCapacity) {
+            evict();
+        }
+        return value;
+    }
+
+    public int size() {
+        return mSize.get();
+    }
+
+    public void clear() {
+        mEvictionLock.lock();
+        try {
+            for (Iterator<K> it = mMap.keySet().iterator(); it.hasNext();) {
+                it.next();
+                it.remove();
+                mSize.decrementAndGet();
+            }
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    private void evict() {
+        // Threads that find another already evicting just carry on. The evicting thread checks
+        // again once it's done, in case they pushed the cache over capacity in the meantime.
+        final int target = mCapacity - mCapacity / 4;
+        while (mSize.get() > mCapacity && mEvictionLock.tryLock()) {
+            try {
+                for (Iterator<K> it = mMap.keySet().iterator();
+                        it.hasNext() && mSize.get() > target;) {
+                    it.next();
+                    it.remove();
+                    mSize.decrementAndGet();
+                }
+            } finally {
+                mEvictionLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.text.TextUtils;
+
+import com.android.mail.utils.NotificationUtils.ContactIconInfo;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Loads the contact photos for the senders of the conversations in a notification.
+ * <p>
+ * {@link #prefetch(Collection)} looks up the contacts for all the senders about to be shown with
+ * one query, rather than one per sender. Photos are decoded with sub-sampling straight to the
+ * icon and wearable background sizes, and the results are kept in an LRU cache shared by every
+ * loader, keyed by photo id, so rebuilding the notifications for each new message doesn't decode
+ * the same photos again. A contact whose photo changes gets a new photo id, so the cache is
+ * never stale.
+ * <p>
+ * A loader is meant to last for one notification update. It does provider queries and I/O, so
+ * it must not be used on the main thread.
+ */
+class ContactIconLoader {
+    private static final String LOG_TAG = NotificationUtils.LOG_TAG;
+
+    private static final String[] EMAIL_COLS = new String[] {
+        Email.DATA,                 // 0
+        Email.CONTACT_ID,           // 1
+        Email.PHOTO_ID,             // 2
+    };
+    private static final int EMAIL_DATA_COLUMN = 0;
+    private static final int EMAIL_CONTACT_ID_COLUMN = 1;
+    private static final int EMAIL_PHOTO_ID_COLUMN = 2;
+
+    /**
+     * Limit the query params to avoid hitting the maximum of 99. We choose a number smaller than
+     * 99 since the contacts provider may wrap our query in its own and insert more params.
+     */
+    private static final int MAX_QUERY_PARAMS = 75;
+
+    /** Decoded photos are kept up to this many bytes */
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static final LongLruCache<DecodedPhoto> sPhotoCache =
+            new LongLruCache<DecodedPhoto>(MAX_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(DecodedPhoto photo) {
+                    return photo.getByteCount();
+                }
+            };
+    /** Contact photos aren't specific to an account, so they are all cached under this one */
+    private static final int PHOTO_ACCOUNT_INDEX = LongLruCache.getAccountIndex(null);
+
+    private final ContentResolver mResolver;
+    private final int mIconWidth;
+    private final int mIconHeight;
+    private final int mWearableBgWidth;
+    private final int mWearableBgHeight;
+
+    /**
+     * The contacts with a photo for each sender looked up so far, in the order the provider
+     * returned them. Senders without one map to an empty list.
+     */
+    private final Map<String, ArrayList<PhotoRef>> mPhotos = Maps.newHashMap();
+
+    private static class PhotoRef {
+        final long contactId;
+        final long photoId;
+
+        PhotoRef(long contactId, long photoId) {
+            this.contactId = contactId;
+            this.photoId = photoId;
+        }
+    }
+
+    /**
+     * A photo decoded to the sizes it was asked for. The wearable background is only decoded if
+     * it was asked for.
+     */
+    private static class DecodedPhoto {
+        final int iconWidth;
+        final int iconHeight;
+        final Bitmap icon;
+        final int wearableBgWidth;
+        final int wearableBgHeight;
+        final Bitmap wearableBg;
+
+        DecodedPhoto(int iconWidth, int iconHeight, Bitmap icon, int wearableBgWidth,
+                int wearableBgHeight, Bitmap wearableBg) {
+            this.iconWidth = iconWidth;
+            this.iconHeight = iconHeight;
+            this.icon = icon;
+            this.wearableBgWidth = wearableBgWidth;
+            this.wearableBgHeight = wearableBgHeight;
+            this.wearableBg = wearableBg;
+        }
+
+        int getByteCount() {
+            return icon.getByteCount() + (wearableBg != null ? wearableBg.getByteCount() : 0);
+        }
+    }
+
+    public ContactIconLoader(ContentResolver resolver, int iconWidth, int iconHeight,
+            int wearableBgWidth, int wearableBgHeight) {
+        mResolver = resolver;
+        mIconWidth = iconWidth;
+        mIconHeight = iconHeight;
+        mWearableBgWidth = wearableBgWidth;
+        mWearableBgHeight = wearableBgHeight;
+    }
+
+    public int getIconWidth() {
+        return mIconWidth;
+    }
+
+    public int getIconHeight() {
+        return mIconHeight;
+    }
+
+    public int getWearableBgWidth() {
+        return mWearableBgWidth;
+    }
+
+    public int getWearableBgHeight() {
+        return mWearableBgHeight;
+    }
+
+    /**
+     * Looks up the contacts for all the given addresses that haven't been looked up yet, with
+     * one query. Photos are not decoded until they are asked for.
+     */
+    public void prefetch(Collection<String> addresses) {
+        final ArrayList<String> missing = new ArrayList<String>();
+        for (String address : addresses) {
+            if (address != null && !mPhotos.containsKey(address) && !missing.contains(address)) {
+                missing.add(address);
+            }
+        }
+        for (int start = 0; start < missing.size(); start += MAX_QUERY_PARAMS) {
+            query(missing.subList(start, Math.min(start + MAX_QUERY_PARAMS, missing.size())));
+        }
+    }
+
+    private void query(Collection<String> addresses) {
+        for (String address : addresses) {
+            mPhotos.put(address, new ArrayList<PhotoRef>(1));
+        }
+        final String[] questionMarks = new String[addresses.size()];
+        Arrays.fill(questionMarks, "?");
+        final String selection = Email.DATA1 + " IN (" + TextUtils.join(",", questionMarks) + ")";
+
+        final Cursor c = mResolver.query(Email.CONTENT_URI, EMAIL_COLS,
+                selection, addresses.toArray(new String[addresses.size()]), null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                if (c.isNull(EMAIL_PHOTO_ID_COLUMN)) {
+                    continue;
+                }
+                final ArrayList<PhotoRef> photos = mPhotos.get(c.getString(EMAIL_DATA_COLUMN));
+                if (photos != null) {
+                    photos.add(new PhotoRef(c.getLong(EMAIL_CONTACT_ID_COLUMN),
+                            c.getLong(EMAIL_PHOTO_ID_COLUMN)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the photo of the first contact with one for the given address, as an icon and, if
+     * asked for, a wearable background. Either is null if there is no photo.
+     */
+    public ContactIconInfo getContactIcon(String address, boolean wantWearableBg) {
+        final ContactIconInfo contactIconInfo = new ContactIconInfo();
+        if (address == null) {
+            return contactIconInfo;
+        }
+        ArrayList<PhotoRef> photos = mPhotos.get(address);
+        if (photos == null) {
+            query(Arrays.asList(address));
+            photos = mPhotos.get(address);
+        }
+        for (PhotoRef ref : photos) {
+            final DecodedPhoto photo = getPhoto(ref, wantWearableBg);
+            if (photo != null) {
+                contactIconInfo.icon = photo.icon;
+                contactIconInfo.wearableBg = photo.wearableBg;
+                break;
+            }
+        }
+        return contactIconInfo;
+    }
+
+    private DecodedPhoto getPhoto(PhotoRef ref, boolean wantWearableBg) {
+        final DecodedPhoto cached = sPhotoCache.get(PHOTO_ACCOUNT_INDEX, ref.photoId);
+        final boolean iconCached = cached != null && cached.iconWidth == mIconWidth
+                && cached.iconHeight == mIconHeight;
+        if (iconCached && (!wantWearableBg || (cached.wearableBg != null
+                && cached.wearableBgWidth == mWearableBgWidth
+                && cached.wearableBgHeight == mWearableBgHeight))) {
+            return cached;
+        }
+
+        final byte[] bytes = loadPhotoBytes(ref.contactId);
+        if (bytes == null) {
+            return null;
+        }
+        final Bitmap icon = iconCached ? cached.icon : decode(bytes, mIconWidth, mIconHeight);
+        if (icon == null) {
+            return null;
+        }
+        final Bitmap wearableBg =
+                wantWearableBg ? decode(bytes, mWearableBgWidth, mWearableBgHeight) : null;
+        final DecodedPhoto photo = new DecodedPhoto(mIconWidth, mIconHeight, icon,
+                mWearableBgWidth, mWearableBgHeight, wearableBg);
+        sPhotoCache.put(PHOTO_ACCOUNT_INDEX, ref.photoId, photo);
+        return photo;
+    }
+
+    /**
+     * Returns the encoded high resolution photo of the given contact, or null if it has none.
+     */
+    protected byte[] loadPhotoBytes(long contactId) {
+        final Uri contactUri = ContentUris.withAppendedId(
+                ContactsContract.Contacts.CONTENT_URI, contactId);
+        final InputStream inputStream = ContactsContract.Contacts.openContactPhotoInputStream(
+                mResolver, contactUri, true /* preferHighres */);
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            return ByteStreams.toByteArray(inputStream);
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to read the photo of contact %d", contactId);
+            return null;
+        } finally {
+            Closeables.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Decodes the photo sub-sampled to no less than the given size, and scales it to exactly
+     * that size.
+     */
+    private static Bitmap decode(byte[] bytes, int width, int height) {
+        final Bitmap sampled = BitmapUtil.decodeByteArray(bytes, width, height);
+        if (sampled == null
+                || (sampled.getWidth() == width && sampled.getHeight() == height)) {
+            return sampled;
+        }
+        final Bitmap scaled = Bitmap.createScaledBitmap(sampled, width, height, true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+}
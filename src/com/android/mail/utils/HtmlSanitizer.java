@@ -331,8 +331,82 @@ public final class HtmlSanitizer {
             .allowElements("wbr")
             .toFactory();
 
+    /**
+     * Html that goes through each of the policies written in code, sanitized to compute
+     * {@link #POLICY_VERSION}.
+     */
+    private static final String VERSION_PROBE = "<body dir=\"rtl\">"
+            + "<div class=\"gmail_quote\" style=\"float:left;display:none;position:fixed\">"
+            + "<div id=\"AOLMsgPart_1\">"
+            + "<img src=\"mailto:a@example.com\"><img src=\"cid:a\" onload=\"x()\">"
+            + "<a href=\"javascript:x()\">a</a><a href=\"https://example.com/\">b</a>"
+            + "<script>x()</script><iframe>c</iframe><marquee>d</marquee>"
+            + "</div></div></body>";
+
+    /**
+     * The elements that {@link #POLICY_VERSION} probes with each of {@link #PROBE_ATTRIBUTES}:
+     * the ones {@link #POLICY_DEFINITION} allows, the ones it removes, and a few it doesn't name.
+     */
+    private static final String[] PROBE_ELEMENTS = {
+        "a", "abbr", "acronym", "address", "applet", "area", "article", "aside", "audio", "b",
+        "base", "basefont", "bdi", "bdo", "big", "blockquote", "body", "br", "button", "canvas",
+        "caption", "center", "cite", "code", "col", "colgroup", "datalist", "dd", "del",
+        "details", "dfn", "dir", "div", "dl", "dt", "em", "embed", "fieldset", "figcaption",
+        "figure", "font", "footer", "form", "frame", "frameset", "h1", "h2", "h3", "h4", "h5",
+        "h6", "head", "header", "hr", "i", "iframe", "img", "input", "ins", "isindex", "kbd",
+        "keygen", "label", "legend", "li", "link", "main", "map", "mark", "marquee", "menu",
+        "menuitem", "meta", "meter", "nav", "noframes", "noscript", "object", "ol", "optgroup",
+        "option", "output", "p", "param", "pre", "progress", "q", "rp", "rt", "ruby", "s",
+        "samp", "script", "section", "select", "small", "source", "span", "strike", "strong",
+        "style", "sub", "summary", "sup", "svg", "table", "tbody", "td", "textarea", "tfoot",
+        "th", "thead", "time", "title", "tr", "track", "tt", "u", "ul", "var", "video", "wbr"
+    };
+
+    /**
+     * The attributes that {@link #POLICY_VERSION} probes on each of {@link #PROBE_ELEMENTS}: the
+     * ones {@link #POLICY_DEFINITION} allows anywhere, and the ones it removes.
+     */
+    private static final String[] PROBE_ATTRIBUTES = {
+        "abbr", "accept", "accept-charset", "action", "align", "alt", "autocomplete",
+        "autofocus", "axis", "background", "bgcolor", "border", "cellpadding", "cellspacing",
+        "challenge", "char", "charoff", "checked", "cite", "class", "clear", "code", "codebase",
+        "color", "cols", "colspan", "command", "compact", "coords", "crossorigin", "datetime",
+        "default", "dir", "disabled", "enctype", "face", "for", "form", "formaction",
+        "formenctype", "formmethod", "formnovalidate", "formtarget", "frame", "headers",
+        "height", "high", "href", "hspace", "icon", "id", "ismap", "keytype", "kind", "label",
+        "list", "longdesc", "low", "max", "maxlength", "media", "method", "min", "multiple",
+        "name", "nohref", "noshade", "novalidate", "nowrap", "onclick", "onload", "optimum",
+        "pattern", "placeholder", "radiogroup", "readonly", "required", "reversed", "rows",
+        "rowspan", "rules", "scope", "selected", "shape", "size", "sortable", "sorted", "span",
+        "src", "srclang", "start", "step", "style", "summary", "tabindex", "target", "title",
+        "type", "usemap", "valign", "value", "vspace", "width", "wrap"
+    };
+
+    /**
+     * The version of {@link #POLICY_DEFINITION}, so that html sanitized under another policy is
+     * dropped from {@link SanitizedHtmlCache}. It is a hash of how the policy sanitizes
+     * {@link #VERSION_PROBE} and every pairing of {@link #PROBE_ELEMENTS} and
+     * {@link #PROBE_ATTRIBUTES}, so it changes with the whitelist, the element policies above and
+     * the OWASP library. Add any element or attribute newly named in the policy to the probe.
+     */
+    public static final int POLICY_VERSION = computePolicyVersion();
+
     private HtmlSanitizer() {}
 
+    private static int computePolicyVersion() {
+        final StringBuilder probe = new StringBuilder(VERSION_PROBE);
+        for (String element : PROBE_ELEMENTS) {
+            probe.append('<').append(element);
+            for (String attribute : PROBE_ATTRIBUTES) {
+                probe.append(' ').append(attribute).append("=1");
+            }
+            probe.append(">x</").append(element).append('>');
+        }
+        final StringBuilder sanitized = new StringBuilder(probe.length());
+        sanitize(probe.toString(), sanitized);
+        return sanitized.toString().hashCode();
+    }
+
     /**
      * Sanitizing email is treated as an expensive operation; this method should be called from
      * a background Thread.
@@ -342,20 +416,49 @@ public final class HtmlSanitizer {
      *      <code>rawHtml</code> was <code>null</code>
      */
     public static String sanitizeHtml(final String rawHtml) {
+        if (rawHtml == null) {
+            return null;
+        }
+
+        // create the builder into which the sanitized email will be written
+        final StringBuilder htmlBuilder = new StringBuilder(rawHtml.length());
+        sanitizeHtml(rawHtml, htmlBuilder);
+
+        // return the resulting HTML from the builder
+        return htmlBuilder.toString();
+    }
+
+    /**
+     * Sanitizes html straight into the given output, so that callers assembling a larger document
+     * don't need an intermediate copy of the sanitized html. Like {@link #sanitizeHtml(String)},
+     * this should be called from a background Thread.
+     *
+     * @param rawHtml the unsanitized, suspicious html; nothing is written if it is
+     *      <code>null</code>
+     * @param out where to write the sanitized html
+     */
+    public static void sanitizeHtml(final String rawHtml, final Appendable out) {
         if (Looper.getMainLooper() == Looper.myLooper()) {
             throw new IllegalStateException("sanitizing email should not occur on the main thread");
         }
 
         if (rawHtml == null) {
-            return null;
+            return;
         }
 
-        // create the builder into which the sanitized email will be written
-        final StringBuilder htmlBuilder = new StringBuilder(rawHtml.length());
+        // run the html through the sanitizer
+        Timer.startTiming("sanitizingHTMLEmail");
+        try {
+            sanitize(rawHtml, out);
+        } finally {
+            Timer.stopTiming("sanitizingHTMLEmail");
+        }
+    }
 
-        // create the renderer that will write the sanitized HTML to the builder
+    private static void sanitize(String rawHtml, Appendable out) {
+        // create the renderer that will write the sanitized HTML to the output
         final HtmlStreamRenderer renderer = HtmlStreamRenderer.create(
-                htmlBuilder,
+                out,
                 Handler.PROPAGATE,
                 // log errors resulting from exceptionally bizarre inputs
                 new Handler<String>() {
@@ -369,15 +472,6 @@ public final class HtmlSanitizer {
         // create a thread-specific policy
         final org.owasp.html.HtmlSanitizer.Policy policy = POLICY_DEFINITION.apply(renderer);
 
-        // run the html through the sanitizer
-        Timer.startTiming("sanitizingHTMLEmail");
-        try {
-            org.owasp.html.HtmlSanitizer.sanitize(rawHtml, policy);
-        } finally {
-            Timer.stopTiming("sanitizingHTMLEmail");
-        }
-
-        // return the resulting HTML from the builder
-        return htmlBuilder.toString();
+        org.owasp.html.HtmlSanitizer.sanitize(rawHtml, policy);
     }
 }
@@ -18,6 +18,7 @@ package com.android.mail.utils;
 
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.text.Html;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.style.AbsoluteSizeSpan;
@@ -42,6 +43,25 @@ public class HtmlUtils {
 
     static final String LOG_TAG = LogTag.getLogTag();
 
+    /**
+     * Returns the plain text of the given html, the same as
+     * {@code Html.fromHtml(html).toString()}, without parsing text that the parse couldn't
+     * change. That is text with no markup or entities, and no whitespace that
+     * {@link Html#fromHtml(String)} would collapse: nothing but single spaces between other
+     * characters.
+     */
+    public static String fromHtmlToString(String html) {
+        final int length = html.length();
+        for (int i = 0; i < length; i++) {
+            final char c = html.charAt(i);
+            if (c == '&' || c == '<' || c < ' ' || (c == ' '
+                    && (i == 0 || i == length - 1 || html.charAt(i - 1) == ' '))) {
+                return Html.fromHtml(html).toString();
+            }
+        }
+        return html;
+    }
+
     /**
      * Use our custom SpannedConverter to process the HtmlNode results from HtmlTree.
      * @param html
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * LongIntHashMaps map longs to ints. Unlike a HashMap&lt;Long, Integer&gt;, neither keys nor values
+ * are boxed, and there is no per-entry object; the map is two flat arrays searched with linear
+ * probing. Entries can't be removed, which makes it a good fit for indices that are built once
+ * and then only read, such as id to position lookups over a cursor.
+ * <p>
+ * Not synchronized. Once fully built, it is safe to read from several threads.
+ */
+public class LongIntHashMap {
+
+    /** The key 0 marks an empty slot, so a mapping for it is kept outside the table. */
+    private static final long EMPTY_KEY = 0L;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mSize;
+    private boolean mHasEmptyKey;
+    private int mEmptyKeyValue;
+
+    /**
+     * Creates a new LongIntHashMap containing no mappings.
+     */
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a new LongIntHashMap containing no mappings that will not require any additional
+     * memory allocation to store the specified number of mappings.
+     */
+    public LongIntHashMap(int expectedSize) {
+        final int capacity = tableSizeFor(expectedSize);
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+    }
+
+    /**
+     * Returns the smallest power of two that keeps the table at most half full for the given
+     * number of mappings.
+     */
+    private static int tableSizeFor(int expectedSize) {
+        final int min = Math.max(4, expectedSize * 2);
+        return Integer.highestOneBit(min - 1) << 1;
+    }
+
+    /**
+     * Scrambles the bits of the key so that sequential ids spread over the whole table.
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return (int) (h ^ (h >>> 16));
+    }
+
+    /**
+     * Gets the int mapped from the specified key, or the specified value if no such mapping has
+     * been made.
+     */
+    public int get(long key, int valueIfKeyNotFound) {
+        if (key == EMPTY_KEY) {
+            return mHasEmptyKey ? mEmptyKeyValue : valueIfKeyNotFound;
+        }
+        final long[] keys = mKeys;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            final long k = keys[i];
+            if (k == key) {
+                return mValues[i];
+            } else if (k == EMPTY_KEY) {
+                return valueIfKeyNotFound;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns true if a mapping for the specified key exists.
+     */
+    public boolean containsKey(long key) {
+        if (key == EMPTY_KEY) {
+            return mHasEmptyKey;
+        }
+        final long[] keys = mKeys;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            final long k = keys[i];
+            if (k == key) {
+                return true;
+            } else if (k == EMPTY_KEY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value, replacing the previous
+     * mapping from the specified key if there was one.
+     */
+    public void put(long key, int value) {
+        if (key == EMPTY_KEY) {
+            if (!mHasEmptyKey) {
+                mHasEmptyKey = true;
+                mSize++;
+            }
+            mEmptyKeyValue = value;
+            return;
+        }
+        if (insert(mKeys, mValues, key, value)) {
+            mSize++;
+            if (mSize * 2 > mKeys.length) {
+                rehash(mKeys.length * 2);
+            }
+        }
+    }
+
+    /**
+     * @return true if a new slot was used, false if an existing mapping was replaced
+     */
+    private static boolean insert(long[] keys, int[] values, long key, int value) {
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            final long k = keys[i];
+            if (k == EMPTY_KEY) {
+                keys[i] = key;
+                values[i] = value;
+                return true;
+            } else if (k == key) {
+                values[i] = value;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] oldKeys = mKeys;
+        final int[] oldValues = mValues;
+        final long[] keys = new long[newCapacity];
+        final int[] values = new int[newCapacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                insert(keys, values, oldKeys[i], oldValues[i]);
+            }
+        }
+        mKeys = keys;
+        mValues = values;
+    }
+
+    /**
+     * Returns the number of key-value mappings that this LongIntHashMap currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns a read-only view of the keys of this map. The view allocates nothing on
+     * {@link Set#contains(Object)} beyond unboxing its argument, and boxes keys only
+     * as they are iterated.
+     */
+    public Set<Long> keySet() {
+        return new AbstractSet<Long>() {
+            @Override
+            public boolean contains(Object o) {
+                return (o instanceof Long) && containsKey((Long) o);
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+
+            @Override
+            public Iterator<Long> iterator() {
+                return new KeyIterator();
+            }
+        };
+    }
+
+    private class KeyIterator implements Iterator<Long> {
+        private boolean mEmptyKeyPending = mHasEmptyKey;
+        private int mNext = -1;
+
+        KeyIterator() {
+            advance();
+        }
+
+        private void advance() {
+            final long[] keys = mKeys;
+            do {
+                mNext++;
+            } while (mNext < keys.length && keys[mNext] == EMPTY_KEY);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mEmptyKeyPending || mNext < mKeys.length;
+        }
+
+        @Override
+        public Long next() {
+            if (mEmptyKeyPending) {
+                mEmptyKeyPending = false;
+                return EMPTY_KEY;
+            }
+            if (mNext >= mKeys.length) {
+                throw new NoSuchElementException();
+            }
+            final long key = mKeys[mNext];
+            advance();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
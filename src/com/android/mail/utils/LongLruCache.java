@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import java.util.Arrays;
+
+/**
+ * An LRU cache keyed by an account index and a long id, such as a conversation or photo id.
+ * <p>
+ * Lookups don't allocate: keys are kept in primitive arrays rather than boxed into key objects,
+ * the entries are chained into hash buckets and into the LRU list by index, and the only
+ * allocation on insertion is growing the arrays. Accounts are turned into small indexes once, with
+ * {@link #getAccountIndex(String)}, so callers that hold on to an index don't hash the account
+ * name for every lookup.
+ * <p>
+ * The size of the cache is measured in whatever unit {@link #sizeOf(Object)} returns, such as
+ * bytes. By default every entry has size 1, so the maximum size is an entry count. Hits, misses
+ * and evictions are counted, for tuning the maximum size.
+ * <p>
+ * All methods are synchronized on the cache.
+ *
+ * @param <V> the type of the cached values
+ */
+public class LongLruCache<V> {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NONE = -1;
+
+    /** The account names given indexes so far; the index of each is its position */
+    private static volatile String[] sAccounts = new String[0];
+
+    private final int mMaxSize;
+    private int mSize;
+
+    private int mCount;
+    private int[] mAccounts;
+    private long[] mIds;
+    private Object[] mValues;
+    private int[] mSizes;
+    /** The first entry in each hash bucket, and the next entry in the same bucket */
+    private int[] mBuckets;
+    private int[] mBucketNext;
+    /** The LRU list, from mEldest to mNewest */
+    private int[] mNewer;
+    private int[] mOlder;
+    private int mEldest = NONE;
+    private int mNewest = NONE;
+    /** Unused entries, chained through mBucketNext */
+    private int mFree = NONE;
+    /** Entries at and past this index have never been used */
+    private int mUsed;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize the most the sizes of the entries can add up to before the least recently
+     *            used ones are evicted
+     */
+    public LongLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns a small index for the account, the same every time it is asked for the same
+     * account in this process. A null account has its own index.
+     */
+    public static int getAccountIndex(String account) {
+        final String[] accounts = sAccounts;
+        for (int i = 0; i < accounts.length; i++) {
+            if (accounts[i] == account || (accounts[i] != null && accounts[i].equals(account))) {
+                return i;
+            }
+        }
+        synchronized (LongLruCache.class) {
+            final String[] current = sAccounts;
+            for (int i = accounts.length; i < current.length; i++) {
+                if (current[i] == account || (current[i] != null && current[i].equals(account))) {
+                    return i;
+                }
+            }
+            final String[] added = Arrays.copyOf(current, current.length + 1);
+            added[current.length] = account;
+            sAccounts = added;
+            return current.length;
+        }
+    }
+
+    /**
+     * Returns the size of the given value, in the units of the maximum size. The size of an
+     * entry must not change while it is in the cache.
+     */
+    protected int sizeOf(V value) {
+        return 1;
+    }
+
+    /**
+     * Returns the value for the key, and makes it the most recently used, or returns null if
+     * there is none.
+     */
+    public synchronized V get(int accountIndex, long id) {
+        final int entry = find(accountIndex, id);
+        if (entry == NONE) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        moveToNewest(entry);
+        return value(entry);
+    }
+
+    /**
+     * Sets the value for the key, making it the most recently used, and evicts the least recently
+     * used entries until the cache fits its maximum size again.
+     *
+     * @return the previous value for the key, or null if there was none
+     */
+    public synchronized V put(int accountIndex, long id, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        mPutCount++;
+        final int size = sizeOf(value);
+        int entry = find(accountIndex, id);
+        final V previous;
+        if (entry != NONE) {
+            previous = value(entry);
+            mSize -= mSizes[entry];
+            moveToNewest(entry);
+        } else {
+            previous = null;
+            entry = obtainEntry();
+            mAccounts[entry] = accountIndex;
+            mIds[entry] = id;
+            final int bucket = bucket(accountIndex, id);
+            mBucketNext[entry] = mBuckets[bucket];
+            mBuckets[bucket] = entry;
+            linkNewest(entry);
+            mCount++;
+        }
+        mValues[entry] = value;
+        mSizes[entry] = size;
+        mSize += size;
+        trimToSize(mMaxSize);
+        return previous;
+    }
+
+    /**
+     * Removes the entry for the key.
+     *
+     * @return the value removed, or null if there was none
+     */
+    public synchronized V remove(int accountIndex, long id) {
+        final int entry = find(accountIndex, id);
+        if (entry == NONE) {
+            return null;
+        }
+        final V value = value(entry);
+        removeEntry(entry);
+        return value;
+    }
+
+    /**
+     * Removes all the entries for the given account.
+     */
+    public synchronized void evictAccount(int accountIndex) {
+        int entry = mEldest;
+        while (entry != NONE) {
+            final int newer = mNewer[entry];
+            if (mAccounts[entry] == accountIndex) {
+                removeEntry(entry);
+            }
+            entry = newer;
+        }
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public synchronized void evictAll() {
+        mSize = 0;
+        mCount = 0;
+        mEldest = NONE;
+        mNewest = NONE;
+        mFree = NONE;
+        mUsed = 0;
+        Arrays.fill(mBuckets, NONE);
+        Arrays.fill(mValues, null);
+    }
+
+    /**
+     * Evicts the least recently used entries until the sizes of the rest add up to no more than
+     * the given size.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize && mEldest != NONE) {
+            removeEntry(mEldest);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Returns the sum of the sizes of the entries.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public synchronized int count() {
+        return mCount;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("LongLruCache[size=%d,maxSize=%d,count=%d,hits=%d,misses=%d,"
+                + "hitRate=%d%%,evictions=%d]", mSize, mMaxSize, mCount, mHitCount, mMissCount,
+                hitPercent, mEvictionCount);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int entry) {
+        return (V) mValues[entry];
+    }
+
+    private int bucket(int accountIndex, long id) {
+        int h = (int) (id ^ (id >>> 32)) * 31 + accountIndex;
+        // Spread the bits, as ids are often sequential
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (mBuckets.length - 1);
+    }
+
+    private int find(int accountIndex, long id) {
+        int entry = mBuckets[bucket(accountIndex, id)];
+        while (entry != NONE && (mIds[entry] != id || mAccounts[entry] != accountIndex)) {
+            entry = mBucketNext[entry];
+        }
+        return entry;
+    }
+
+    private int obtainEntry() {
+        if (mFree != NONE) {
+            final int entry = mFree;
+            mFree = mBucketNext[entry];
+            return entry;
+        }
+        if (mUsed == mIds.length) {
+            grow();
+        }
+        return mUsed++;
+    }
+
+    private void removeEntry(int entry) {
+        final int bucket = bucket(mAccounts[entry], mIds[entry]);
+        if (mBuckets[bucket] == entry) {
+            mBuckets[bucket] = mBucketNext[entry];
+        } else {
+            int previous = mBuckets[bucket];
+            while (mBucketNext[previous] != entry) {
+                previous = mBucketNext[previous];
+            }
+            mBucketNext[previous] = mBucketNext[entry];
+        }
+        unlink(entry);
+        mSize -= mSizes[entry];
+        mCount--;
+        mValues[entry] = null;
+        mBucketNext[entry] = mFree;
+        mFree = entry;
+    }
+
+    private void linkNewest(int entry) {
+        mOlder[entry] = mNewest;
+        mNewer[entry] = NONE;
+        if (mNewest != NONE) {
+            mNewer[mNewest] = entry;
+        } else {
+            mEldest = entry;
+        }
+        mNewest = entry;
+    }
+
+    private void unlink(int entry) {
+        final int older = mOlder[entry];
+        final int newer = mNewer[entry];
+        if (older != NONE) {
+            mNewer[older] = newer;
+        } else {
+            mEldest = newer;
+        }
+        if (newer != NONE) {
+            mOlder[newer] = older;
+        } else {
+            mNewest = older;
+        }
+    }
+
+    private void moveToNewest(int entry) {
+        if (entry != mNewest) {
+            unlink(entry);
+            linkNewest(entry);
+        }
+    }
+
+    private void allocate(int capacity) {
+        mAccounts = new int[capacity];
+        mIds = new long[capacity];
+        mValues = new Object[capacity];
+        mSizes = new int[capacity];
+        mBucketNext = new int[capacity];
+        mNewer = new int[capacity];
+        mOlder = new int[capacity];
+        // Twice as many buckets as entries, and a power of two
+        mBuckets = new int[capacity * 2];
+        Arrays.fill(mBuckets, NONE);
+    }
+
+    /**
+     * Doubles the capacity. Only called when every entry is in use, so none are free.
+     */
+    private void grow() {
+        final int capacity = mIds.length * 2;
+        mAccounts = Arrays.copyOf(mAccounts, capacity);
+        mIds = Arrays.copyOf(mIds, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+        mBucketNext = Arrays.copyOf(mBucketNext, capacity);
+        mNewer = Arrays.copyOf(mNewer, capacity);
+        mOlder = Arrays.copyOf(mOlder, capacity);
+        mBuckets = new int[capacity * 2];
+        Arrays.fill(mBuckets, NONE);
+        for (int entry = 0; entry < mUsed; entry++) {
+            final int bucket = bucket(mAccounts[entry], mIds[entry]);
+            mBucketNext[entry] = mBuckets[bucket];
+            mBuckets[bucket] = entry;
+        }
+    }
+}
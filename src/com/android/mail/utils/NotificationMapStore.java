@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the entries of the notification map in a small binary file, so they survive the process
+ * being killed without rewriting all of them every time one count changes.
+ * <p>
+ * The file is a 4-byte header (three magic bytes and a version byte) followed by a log of
+ * records. A put record is an op byte, the account name, account type, account uri and folder
+ * uri (as {@link DataOutputStream#writeUTF(String)} strings), and the unread and unseen counts.
+ * A remove record is an op byte and the account and folder uris. Replaying the log gives the
+ * entries, so changing one count appends one record. Once the log holds many more records than
+ * there are entries, it is rewritten as just the entries, through a temporary file that is
+ * renamed over it.
+ * <p>
+ * A record cut short by a crash ends the log; the entries before it are kept, and the next
+ * change rewrites the file. A file with the wrong magic or version is treated as empty.
+ * <p>
+ * Not synchronized.
+ */
+class NotificationMapStore {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final byte MAGIC_0 = (byte) 0xC1;
+    private static final byte MAGIC_1 = 'N';
+    private static final byte MAGIC_2 = 'M';
+    static final byte VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /** The log is compacted once it has this many more records than twice the entry count */
+    private static final int COMPACT_SLACK = 16;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The persisted state of one notification: the account and folder it is for, and their
+     * unread and unseen conversation counts.
+     */
+    static final class Entry {
+        final String accountName;
+        final String accountType;
+        final String accountUri;
+        final String folderUri;
+        final int unread;
+        final int unseen;
+
+        Entry(String accountName, String accountType, String accountUri, String folderUri,
+                int unread, int unseen) {
+            this.accountName = accountName;
+            this.accountType = accountType;
+            this.accountUri = accountUri;
+            this.folderUri = folderUri;
+            this.unread = unread;
+            this.unseen = unseen;
+        }
+
+        String getKey() {
+            return getKey(accountUri, folderUri);
+        }
+
+        static String getKey(String accountUri, String folderUri) {
+            return accountUri + '\n' + folderUri;
+        }
+
+        boolean sameAs(Entry other) {
+            return accountName.equals(other.accountName)
+                    && accountType.equals(other.accountType)
+                    && unread == other.unread && unseen == other.unseen;
+        }
+    }
+
+    private final File mFile;
+    /** The entries as of the end of the log, in the order they were first put */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private int mRecordCount;
+    /** Set when the file can't be appended to as it is, so the next change rewrites it */
+    private boolean mNeedsRewrite = true;
+
+    NotificationMapStore(File file) {
+        mFile = file;
+    }
+
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Reads the file, replacing whatever this store held before.
+     *
+     * @return the entries in the file
+     */
+    Collection<Entry> load() {
+        mEntries.clear();
+        mRecordCount = 0;
+        mNeedsRewrite = true;
+        if (!mFile.exists()) {
+            return new ArrayList<Entry>();
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readByte() != MAGIC_0 || in.readByte() != MAGIC_1
+                    || in.readByte() != MAGIC_2 || in.readByte() != VERSION) {
+                LogUtils.w(LOG_TAG, "Ignoring notification map of unknown format");
+                return new ArrayList<Entry>();
+            }
+            while (readRecord(in)) {
+                mRecordCount++;
+            }
+            mNeedsRewrite = false;
+        } catch (EOFException e) {
+            LogUtils.w(LOG_TAG, "Notification map ends in a partial record");
+        } catch (IOException e) {
+            LogUtils.e(LOG_TAG, e, "Unable to read notification map");
+        } finally {
+            closeQuietly(in);
+        }
+        return new ArrayList<Entry>(mEntries.values());
+    }
+
+    /**
+     * Reads the next record into mEntries.
+     *
+     * @return false at the end of the log
+     * @throws EOFException if the log ends in the middle of a record
+     */
+    private boolean readRecord(DataInputStream in) throws IOException {
+        final int op = in.read();
+        if (op == -1) {
+            return false;
+        }
+        if (op == OP_PUT) {
+            final Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(),
+                    in.readInt(), in.readInt());
+            mEntries.put(entry.getKey(), entry);
+        } else if (op == OP_REMOVE) {
+            mEntries.remove(Entry.getKey(in.readUTF(), in.readUTF()));
+        } else {
+            throw new IOException("Unknown notification map record " + op);
+        }
+        return true;
+    }
+
+    /**
+     * Records the entry, if it differs from the one stored for its account and folder.
+     */
+    void put(Entry entry) {
+        final Entry previous = mEntries.get(entry.getKey());
+        if (previous != null && previous.sameAs(entry)) {
+            return;
+        }
+        mEntries.put(entry.getKey(), entry);
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try {
+            writePut(new DataOutputStream(record), entry);
+        } catch (IOException e) {
+            // Can't happen writing to memory
+        }
+        append(record);
+    }
+
+    /**
+     * Removes the entry for the given account and folder, if there is one.
+     */
+    void remove(String accountUri, String folderUri) {
+        if (mEntries.remove(Entry.getKey(accountUri, folderUri)) == null) {
+            return;
+        }
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try {
+            final DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(accountUri);
+            out.writeUTF(folderUri);
+        } catch (IOException e) {
+            // Can't happen writing to memory
+        }
+        append(record);
+    }
+
+    /**
+     * Makes the stored entries exactly the given ones, writing only what changed.
+     */
+    void update(Collection<Entry> entries) {
+        final Map<String, Entry> next = new LinkedHashMap<String, Entry>();
+        for (Entry entry : entries) {
+            next.put(entry.getKey(), entry);
+        }
+        for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+            if (!next.containsKey(entry.getKey())) {
+                remove(entry.accountUri, entry.folderUri);
+            }
+        }
+        for (Entry entry : next.values()) {
+            put(entry);
+        }
+    }
+
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    private static void writePut(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(OP_PUT);
+        out.writeUTF(entry.accountName);
+        out.writeUTF(entry.accountType);
+        out.writeUTF(entry.accountUri);
+        out.writeUTF(entry.folderUri);
+        out.writeInt(entry.unread);
+        out.writeInt(entry.unseen);
+    }
+
+    private void append(ByteArrayOutputStream record) {
+        mRecordCount++;
+        if (mNeedsRewrite || mRecordCount > 2 * mEntries.size() + COMPACT_SLACK) {
+            rewrite();
+            return;
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile, true /* append */);
+            // One write, so a crash is most likely to lose the whole record or none of it
+            out.write(record.toByteArray());
+        } catch (IOException e) {
+            LogUtils.e(LOG_TAG, e, "Unable to append to notification map");
+            mNeedsRewrite = true;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Writes all the entries to a new file, and renames it over the old one.
+     */
+    void rewrite() {
+        final File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeByte(MAGIC_0);
+            out.writeByte(MAGIC_1);
+            out.writeByte(MAGIC_2);
+            out.writeByte(VERSION);
+            for (Entry entry : mEntries.values()) {
+                writePut(out, entry);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + temp);
+            }
+            mRecordCount = mEntries.size();
+            mNeedsRewrite = false;
+        } catch (IOException e) {
+            LogUtils.e(LOG_TAG, e, "Unable to write notification map");
+            temp.delete();
+            mNeedsRewrite = true;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
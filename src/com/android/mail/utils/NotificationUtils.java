@@ -17,8 +17,6 @@ package com.android.mail.utils;
 
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -37,8 +35,6 @@ import android.graphics.Shader;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Looper;
-import android.provider.ContactsContract;
-import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.text.BidiFormatter;
 import android.support.v4.util.ArrayMap;
@@ -67,6 +63,7 @@ import com.android.mail.providers.Account;
 import com.android.mail.providers.Conversation;
 import com.android.mail.providers.Folder;
 import com.android.mail.providers.Message;
+import com.android.mail.providers.ParticipantInfo;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.ui.ImageCanvas.Dimensions;
 import com.android.mail.utils.NotificationActionUtils.NotificationAction;
@@ -77,14 +74,12 @@ import com.google.android.mail.common.html.parser.HtmlTree;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.io.Closeables;
 
-import java.io.InputStream;
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -159,8 +154,10 @@ public class NotificationUtils {
 
         private static final String NOTIFICATION_PART_SEPARATOR = " ";
         private static final int NUM_NOTIFICATION_PARTS= 4;
+        private static final String STORE_FILE_NAME = "notification_map";
         private final ConcurrentHashMap<NotificationKey, Pair<Integer, Integer>> mMap =
             new ConcurrentHashMap<NotificationKey, Pair<Integer, Integer>>();
+        private NotificationMapStore mStore;
 
         /**
          * Returns the number of key values pairs in the inner map.
@@ -225,13 +222,42 @@ public class NotificationUtils {
         public void put(NotificationKey key, int unread, int unseen) {
             final Pair<Integer, Integer> value =
                     new Pair<Integer, Integer>(Integer.valueOf(unread), Integer.valueOf(unseen));
+            if (key.account != null) {
+                // Replace any equal key that was read back from the store, so the map holds
+                // this key's account and folder
+                mMap.remove(key);
+            }
             mMap.put(key, value);
         }
 
         /**
-         * Populates the notification map with previously cached data.
+         * Populates the notification map with previously cached data. The accounts and folders
+         * of the keys are not looked up until {@link #resolve(Context, String)} is called.
          */
         public synchronized void loadNotificationMap(final Context context) {
+            mStore = new NotificationMapStore(new File(context.getFilesDir(), STORE_FILE_NAME));
+            if (!mStore.exists()) {
+                loadLegacyNotificationSet(context);
+                saveNotificationMap(context);
+                if (!mStore.exists()) {
+                    mStore.rewrite();
+                }
+                MailPrefs.get(context).clearActiveNotificationSet();
+                return;
+            }
+            for (NotificationMapStore.Entry entry : mStore.load()) {
+                final NotificationKey key = new NotificationKey(
+                        new android.accounts.Account(entry.accountName, entry.accountType),
+                        Uri.parse(entry.accountUri), new FolderUri(Uri.parse(entry.folderUri)));
+                put(key, entry.unread, entry.unseen);
+            }
+        }
+
+        /**
+         * Populates the notification map from the string set that older versions kept in
+         * {@link MailPrefs}, looking up each account and folder.
+         */
+        private void loadLegacyNotificationSet(final Context context) {
             final MailPrefs mailPrefs = MailPrefs.get(context);
             final Set<String> notificationSet = mailPrefs.getActiveNotificationSet();
             if (notificationSet != null) {
@@ -240,44 +266,15 @@ public class NotificationUtils {
                     final String[] notificationParts =
                             TextUtils.split(notificationEntry, NOTIFICATION_PART_SEPARATOR);
                     if (notificationParts.length == NUM_NOTIFICATION_PARTS) {
-                        final Uri accountUri = Uri.parse(notificationParts[0]);
-                        final Cursor accountCursor = context.getContentResolver().query(
-                                accountUri, UIProvider.ACCOUNTS_PROJECTION, null, null, null);
-
-                        if (accountCursor == null) {
-                            throw new IllegalStateException("Unable to locate account for uri: " +
-                                    LogUtils.contentUriToString(accountUri));
+                        final Account account =
+                                queryAccount(context, Uri.parse(notificationParts[0]));
+                        if (account == null) {
+                            continue;
                         }
-
-                        final Account account;
-                        try {
-                            if (accountCursor.moveToFirst()) {
-                                account = Account.builder().buildFrom(accountCursor);
-                            } else {
-                                continue;
-                            }
-                        } finally {
-                            accountCursor.close();
-                        }
-
-                        final Uri folderUri = Uri.parse(notificationParts[1]);
-                        final Cursor folderCursor = context.getContentResolver().query(
-                                folderUri, UIProvider.FOLDERS_PROJECTION, null, null, null);
-
-                        if (folderCursor == null) {
-                            throw new IllegalStateException("Unable to locate folder for uri: " +
-                                    LogUtils.contentUriToString(folderUri));
-                        }
-
-                        final Folder folder;
-                        try {
-                            if (folderCursor.moveToFirst()) {
-                                folder = new Folder(folderCursor);
-                            } else {
-                                continue;
-                            }
-                        } finally {
-                            folderCursor.close();
+                        final Folder folder =
+                                queryFolder(context, Uri.parse(notificationParts[1]));
+                        if (folder == null) {
+                            continue;
                         }
 
                         final NotificationKey key = new NotificationKey(account, folder);
@@ -290,23 +287,134 @@ public class NotificationUtils {
         }
 
         /**
-         * Cache the notification map.
+         * Looks up the accounts and folders of the keys read back from the store, for the given
+         * account or for all of them if accountName is null. Each account is looked up once, and
+         * its folders with one query where there are several. Keys whose account or folder no
+         * longer exists are removed.
+         */
+        public synchronized void resolve(final Context context, final String accountName) {
+            final Map<Uri, List<NotificationKey>> unresolved = Maps.newHashMap();
+            for (NotificationKey key : keySet()) {
+                if (key.account == null && (accountName == null
+                        || accountName.equals(key.accountManagerAccount.name))) {
+                    List<NotificationKey> keys = unresolved.get(key.accountUri);
+                    if (keys == null) {
+                        keys = Lists.newArrayList();
+                        unresolved.put(key.accountUri, keys);
+                    }
+                    keys.add(key);
+                }
+            }
+            if (unresolved.isEmpty()) {
+                return;
+            }
+
+            boolean removed = false;
+            for (Map.Entry<Uri, List<NotificationKey>> entry : unresolved.entrySet()) {
+                final List<NotificationKey> keys = entry.getValue();
+                final Account account = queryAccount(context, entry.getKey());
+                final Map<FolderUri, Folder> folders = Maps.newHashMap();
+                if (account != null && keys.size() > 1) {
+                    queryFolders(context, account.folderListUri, folders);
+                }
+                for (NotificationKey key : keys) {
+                    Folder folder = folders.get(key.folderUri);
+                    if (folder == null && account != null) {
+                        folder = queryFolder(context, key.folderUri.fullUri);
+                    }
+                    if (folder == null) {
+                        LogUtils.w(LOG_TAG, "Dropping notification for missing %s", key);
+                        mMap.remove(key);
+                        removed = true;
+                    } else {
+                        key.account = account;
+                        key.folder = folder;
+                    }
+                }
+            }
+            if (removed) {
+                saveNotificationMap(context);
+            }
+        }
+
+        private static Account queryAccount(Context context, Uri accountUri) {
+            final Cursor accountCursor = context.getContentResolver().query(
+                    accountUri, UIProvider.ACCOUNTS_PROJECTION, null, null, null);
+
+            if (accountCursor == null) {
+                throw new IllegalStateException("Unable to locate account for uri: " +
+                        LogUtils.contentUriToString(accountUri));
+            }
+
+            try {
+                if (accountCursor.moveToFirst()) {
+                    return Account.builder().buildFrom(accountCursor);
+                }
+                return null;
+            } finally {
+                accountCursor.close();
+            }
+        }
+
+        private static Folder queryFolder(Context context, Uri folderUri) {
+            final Cursor folderCursor = context.getContentResolver().query(
+                    folderUri, UIProvider.FOLDERS_PROJECTION, null, null, null);
+
+            if (folderCursor == null) {
+                throw new IllegalStateException("Unable to locate folder for uri: " +
+                        LogUtils.contentUriToString(folderUri));
+            }
+
+            try {
+                if (folderCursor.moveToFirst()) {
+                    return new Folder(folderCursor);
+                }
+                return null;
+            } finally {
+                folderCursor.close();
+            }
+        }
+
+        /**
+         * Adds every folder in the given folder list to the map. Folders that aren't in the list
+         * are looked up one by one by the caller.
+         */
+        private static void queryFolders(Context context, Uri folderListUri,
+                Map<FolderUri, Folder> folders) {
+            if (folderListUri == null || Uri.EMPTY.equals(folderListUri)) {
+                return;
+            }
+            final Cursor folderCursor = context.getContentResolver().query(
+                    folderListUri, UIProvider.FOLDERS_PROJECTION, null, null, null);
+            if (folderCursor == null) {
+                return;
+            }
+            try {
+                while (folderCursor.moveToNext()) {
+                    final Folder folder = new Folder(folderCursor);
+                    folders.put(folder.folderUri, folder);
+                }
+            } finally {
+                folderCursor.close();
+            }
+        }
+
+        /**
+         * Cache the notification map. Only the entries that changed since it was last cached are
+         * written.
          */
         public synchronized void saveNotificationMap(Context context) {
-            final Set<String> notificationSet = Sets.newHashSet();
-            final Set<NotificationKey> keys = keySet();
-            for (NotificationKey key : keys) {
+            final List<NotificationMapStore.Entry> entries = Lists.newArrayList();
+            for (NotificationKey key : keySet()) {
                 final Integer unreadCount = getUnread(key);
                 final Integer unseenCount = getUnseen(key);
                 if (unreadCount != null && unseenCount != null) {
-                    final String[] partValues = new String[] {
-                            key.account.uri.toString(), key.folder.folderUri.fullUri.toString(),
-                            unreadCount.toString(), unseenCount.toString()};
-                    notificationSet.add(TextUtils.join(NOTIFICATION_PART_SEPARATOR, partValues));
+                    entries.add(new NotificationMapStore.Entry(key.accountManagerAccount.name,
+                            key.accountManagerAccount.type, key.accountUri.toString(),
+                            key.folderUri.fullUri.toString(), unreadCount, unseenCount));
                 }
             }
-            final MailPrefs mailPrefs = MailPrefs.get(context);
-            mailPrefs.cacheActiveNotificationSet(notificationSet);
+            mStore.update(entries);
         }
     }
 
@@ -385,6 +493,7 @@ public class NotificationUtils {
         }
         // Re-validate the notifications.
         final NotificationMap notificationMap = getNotificationMap(context);
+        notificationMap.resolve(context, null /* all accounts */);
         final Set<NotificationKey> keys = notificationMap.keySet();
         for (NotificationKey notification : keys) {
             final Folder folder = notification.folder;
@@ -434,15 +543,16 @@ public class NotificationUtils {
         if (!enabled) {
             // Cancel all notifications for this account
             for (NotificationKey notification : keys) {
-                if (notification.account.getAccountManagerAccount().name.equals(email)) {
+                if (notification.accountManagerAccount.name.equals(email)) {
                     notificationsToCancel.add(notification);
                 }
             }
         } else {
+            notificationMap.resolve(context, email);
             // Iterate through the notification map to see if there are any entries that
             // correspond to labels that are not in the notification set.
             for (NotificationKey notification : keys) {
-                if (notification.account.getAccountManagerAccount().name.equals(email)) {
+                if (notification.accountManagerAccount.name.equals(email)) {
                     // If notification is not enabled for this label, remember this NotificationKey
                     // to later cancel the notification, and remove the entry from the map
                     final Folder folder = notification.folder;
@@ -462,11 +572,8 @@ public class NotificationUtils {
         if (notificationsToCancel.size() > 0) {
             NotificationManagerCompat nm = NotificationManagerCompat.from(context);
             for (NotificationKey notification : notificationsToCancel) {
-                final Folder folder = notification.folder;
-                final int notificationId =
-                        getNotificationId(notification.account.getAccountManagerAccount(), folder);
-                LogUtils.d(LOG_TAG, "validateAccountNotifications - cancelling %s / %s",
-                        notification.account.getEmailAddress(), folder.persistentId);
+                final int notificationId = getNotificationId(notification);
+                LogUtils.d(LOG_TAG, "validateAccountNotifications - cancelling %s", notification);
                 nm.cancel(notificationId);
                 notificationMap.remove(notification);
                 NotificationActionUtils.sUndoNotifications.remove(notificationId);
@@ -1011,6 +1118,7 @@ public class NotificationUtils {
         final String notificationAccountDisplayName = account.getDisplayName();
         final String notificationAccountEmail = account.getEmailAddress();
         final boolean multipleUnseen = unseenCount > 1;
+        final ContactIconLoader iconLoader = createContactIconLoader(context);
 
         LogUtils.i(LOG_TAG, "Showing notification with unreadCount of %d and unseenCount of %d",
                 unreadCount, unseenCount);
@@ -1054,6 +1162,10 @@ public class NotificationUtils {
                 final String notificationGroupKey = createGroupKey(account, folder);
                 notification.setGroup(notificationGroupKey).setGroupSummary(true);
 
+                if (photoFetcher == null) {
+                    prefetchContacts(iconLoader, conversationCursor, maxNumDigestItems);
+                }
+
                 ConfigResult firstResult = null;
                 int numDigestItems = 0;
                 do {
@@ -1152,7 +1264,7 @@ public class NotificationUtils {
                                     conversationCursor, notificationIntent, folder, when, res,
                                     notificationAccountDisplayName, notificationAccountEmail,
                                     isInbox, notificationLabelName, conversationNotificationId,
-                                    photoFetcher);
+                                    photoFetcher, iconLoader, firstResult == null);
                             msgNotifications.put(conversationNotificationId,
                                     NotificationBuilders.of(conversationNotif,
                                             conversationWearExtender));
@@ -1193,7 +1305,7 @@ public class NotificationUtils {
                     folderPreferences, notification, wearableExtender, conversationCursor,
                     notificationIntent, folder, when, res, notificationAccountDisplayName,
                     notificationAccountEmail, isInbox, notificationLabelName,
-                    summaryNotificationId, photoFetcher);
+                    summaryNotificationId, photoFetcher, iconLoader, true /* wantWearableBg */);
             notificationTicker = result.notificationTicker;
 
             if (result.contactIconInfo != null) {
@@ -1223,6 +1335,45 @@ public class NotificationUtils {
         notification.setContentIntent(clickIntent);
     }
 
+    /**
+     * Returns a loader for the contact photos of senders, at the sizes notifications show them.
+     */
+    private static ContactIconLoader createContactIconLoader(Context context) {
+        final Resources res = context.getResources();
+        return new ContactIconLoader(context.getContentResolver(),
+                res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
+                res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height),
+                res.getDimensionPixelSize(R.dimen.wearable_background_width),
+                res.getDimensionPixelSize(R.dimen.wearable_background_height));
+    }
+
+    /**
+     * Looks up the contacts for the unread senders of the conversations a digest will show, from
+     * the cursor's position on, with one query rather than one per conversation. Leaves the
+     * cursor where it was.
+     */
+    private static void prefetchContacts(ContactIconLoader iconLoader,
+            Cursor conversationCursor, int maxConversations) {
+        final int position = conversationCursor.getPosition();
+        final Set<String> addresses = Sets.newHashSet();
+        int conversations = 0;
+        do {
+            final Conversation conversation = new Conversation(conversationCursor);
+            if (!conversation.read && conversation.getConversationInfo() != null) {
+                for (ParticipantInfo participant
+                        : conversation.getConversationInfo().participantInfos) {
+                    if (!participant.readConversation && !TextUtils.isEmpty(participant.email)) {
+                        addresses.add(participant.email);
+                    }
+                }
+                conversations++;
+            }
+        } while (conversations <= maxConversations && conversationCursor.moveToNext());
+        conversationCursor.moveToPosition(position);
+
+        iconLoader.prefetch(addresses);
+    }
+
     /**
      * Configure the notification for one conversation.  When there are multiple conversations,
      * this method is used to configure bundled notification for Android Wear.
@@ -1234,7 +1385,8 @@ public class NotificationUtils {
             Intent notificationIntent, Folder folder, long when, Resources res,
             String notificationAccountDisplayName, String notificationAccountEmail,
             boolean isInbox, String notificationLabelName, int notificationId,
-            final ContactPhotoFetcher photoFetcher) {
+            final ContactPhotoFetcher photoFetcher, ContactIconLoader iconLoader,
+            boolean wantWearableBg) {
 
         final ConfigResult result = new ConfigResult();
 
@@ -1265,7 +1417,8 @@ public class NotificationUtils {
                 from = getDisplayableSender(fromAddress);
                 result.contactIconInfo = getContactIcon(
                         context, account.getAccountManagerAccount().name, from,
-                        getSenderAddress(fromAddress), folder, photoFetcher);
+                        getSenderAddress(fromAddress), folder, photoFetcher, iconLoader,
+                        wantWearableBg);
                 notification.setLargeIcon(result.contactIconInfo.icon);
             }
 
@@ -1383,7 +1536,7 @@ public class NotificationUtils {
             final Cursor conversationCursor, final int maxLength, final String account) {
         final Conversation conversation = new Conversation(conversationCursor);
         final com.android.mail.providers.ConversationInfo conversationInfo =
-                conversation.conversationInfo;
+                conversation.getConversationInfo();
         final ArrayList<SpannableString> senders = new ArrayList<SpannableString>();
         if (sNotificationUnreadStyleSpan == null) {
             sNotificationUnreadStyleSpan = new TextAppearanceSpan(
@@ -1668,7 +1821,7 @@ public class NotificationUtils {
         final ImmutableList.Builder<NotificationKey> keyBuilder = ImmutableList.builder();
 
         for (final NotificationKey key : notificationMap.keySet()) {
-            if (account.equals(key.account.getAccountManagerAccount())) {
+            if (account.equals(key.accountManagerAccount)) {
                 keyBuilder.add(key);
             }
         }
@@ -1679,8 +1832,7 @@ public class NotificationUtils {
                 NotificationManagerCompat.from(context);
 
         for (final NotificationKey notificationKey : notificationKeys) {
-            final Folder folder = notificationKey.folder;
-            notificationManager.cancel(getNotificationId(account, folder));
+            notificationManager.cancel(getNotificationId(notificationKey));
             notificationMap.remove(notificationKey);
 
             cancelConversationNotifications(notificationKey, notificationManager);
@@ -1702,7 +1854,8 @@ public class NotificationUtils {
 
     private static ContactIconInfo getContactIcon(final Context context, String accountName,
             final String displayName, final String senderAddress, final Folder folder,
-            final ContactPhotoFetcher photoFetcher) {
+            final ContactPhotoFetcher photoFetcher, final ContactIconLoader iconLoader,
+            final boolean wantWearableBg) {
         if (Looper.myLooper() == Looper.getMainLooper()) {
             throw new IllegalStateException(
                     "getContactIcon should not be called on the main thread.");
@@ -1713,23 +1866,15 @@ public class NotificationUtils {
             contactIconInfo = new ContactIconInfo();
         } else {
             // Get the ideal size for this icon.
-            final Resources res = context.getResources();
-            final int idealIconHeight =
-                    res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
-            final int idealIconWidth =
-                    res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
-            final int idealWearableBgWidth =
-                    res.getDimensionPixelSize(R.dimen.wearable_background_width);
-            final int idealWearableBgHeight =
-                    res.getDimensionPixelSize(R.dimen.wearable_background_height);
+            final int idealIconHeight = iconLoader.getIconHeight();
+            final int idealIconWidth = iconLoader.getIconWidth();
 
             if (photoFetcher != null) {
                 contactIconInfo = photoFetcher.getContactPhoto(context, accountName,
-                        senderAddress, idealIconWidth, idealIconHeight, idealWearableBgWidth,
-                        idealWearableBgHeight);
+                        senderAddress, idealIconWidth, idealIconHeight,
+                        iconLoader.getWearableBgWidth(), iconLoader.getWearableBgHeight());
             } else {
-                contactIconInfo = getContactInfo(context, senderAddress, idealIconWidth,
-                        idealIconHeight, idealWearableBgWidth, idealWearableBgHeight);
+                contactIconInfo = iconLoader.getContactIcon(senderAddress, wantWearableBg);
             }
 
             if (contactIconInfo.icon == null) {
@@ -1756,75 +1901,13 @@ public class NotificationUtils {
         return contactIconInfo;
     }
 
-    private static ArrayList<Long> findContacts(Context context, Collection<String> addresses) {
-        ArrayList<String> whereArgs = new ArrayList<String>();
-        StringBuilder whereBuilder = new StringBuilder();
-        String[] questionMarks = new String[addresses.size()];
-
-        whereArgs.addAll(addresses);
-        Arrays.fill(questionMarks, "?");
-        whereBuilder.append(Email.DATA1 + " IN (").
-                append(TextUtils.join(",", questionMarks)).
-                append(")");
-
-        ContentResolver resolver = context.getContentResolver();
-        Cursor c = resolver.query(Email.CONTENT_URI,
-                new String[] {Email.CONTACT_ID}, whereBuilder.toString(),
-                whereArgs.toArray(new String[0]), null);
-
-        ArrayList<Long> contactIds = new ArrayList<Long>();
-        if (c == null) {
-            return contactIds;
-        }
-        try {
-            while (c.moveToNext()) {
-                contactIds.add(c.getLong(0));
-            }
-        } finally {
-            c.close();
-        }
-        return contactIds;
-    }
-
     public static ContactIconInfo getContactInfo(
             final Context context, final String senderAddress,
             final int idealIconWidth, final int idealIconHeight,
             final int idealWearableBgWidth, final int idealWearableBgHeight) {
-        final ContactIconInfo contactIconInfo = new ContactIconInfo();
-        final List<Long> contactIds = findContacts(context, Arrays.asList(
-                new String[]{senderAddress}));
-
-        if (contactIds != null) {
-            for (final long id : contactIds) {
-                final Uri contactUri = ContentUris.withAppendedId(
-                        ContactsContract.Contacts.CONTENT_URI, id);
-                final InputStream inputStream =
-                        ContactsContract.Contacts.openContactPhotoInputStream(
-                                context.getContentResolver(), contactUri, true /*preferHighres*/);
-
-                if (inputStream != null) {
-                    try {
-                        final Bitmap source = BitmapFactory.decodeStream(inputStream);
-                        if (source != null) {
-                            // We should scale this image to fit the intended size
-                            contactIconInfo.icon = Bitmap.createScaledBitmap(source, idealIconWidth,
-                                    idealIconHeight, true);
-
-                            contactIconInfo.wearableBg = Bitmap.createScaledBitmap(source,
-                                    idealWearableBgWidth, idealWearableBgHeight, true);
-                        }
-
-                        if (contactIconInfo.icon != null) {
-                            break;
-                        }
-                    } finally {
-                        Closeables.closeQuietly(inputStream);
-                    }
-                }
-            }
-        }
-
-        return contactIconInfo;
+        return new ContactIconLoader(context.getContentResolver(), idealIconWidth,
+                idealIconHeight, idealWearableBgWidth, idealWearableBgHeight)
+                .getContactIcon(senderAddress, true /* wantWearableBg */);
     }
 
     /**
@@ -1857,11 +1940,8 @@ public class NotificationUtils {
         if (TextUtils.isEmpty(html)) {
             return "";
         }
-        // Get the html "tree" for this message body
-        final HtmlTree htmlTree = com.android.mail.utils.Utils.getHtmlTree(html);
-        htmlTree.setConverterFactory(MESSAGE_CONVERTER_FACTORY);
-
-        return htmlTree.getPlainText();
+        return com.android.mail.utils.Utils.convertHtmlToPlainText(html,
+                MESSAGE_CONVERTER_FACTORY);
     }
 
     public static void markSeen(final Context context, final Folder folder) {
@@ -1919,38 +1999,65 @@ public class NotificationUtils {
         return 1 ^ account.hashCode() ^ folder.hashCode();
     }
 
+    /**
+     * Returns the same id as {@link #getNotificationId(android.accounts.Account, Folder)}, for
+     * a key whose folder may not have been looked up.
+     */
+    private static int getNotificationId(NotificationKey key) {
+        final int folderHashCode = key.folderUri == null ? 0 : key.folderUri.hashCode();
+        return 1 ^ key.accountManagerAccount.hashCode() ^ folderHashCode;
+    }
+
     private static int getNotificationId(int summaryNotificationId, int conversationHashCode) {
         return summaryNotificationId ^ conversationHashCode;
     }
 
+    /**
+     * Identifies a notification by its account and folder. Keys read back from the notification
+     * map's store only know the account and folder uris until
+     * {@link NotificationMap#resolve(Context, String)} looks them up.
+     */
     private static class NotificationKey {
-        public final Account account;
-        public final Folder folder;
+        public final android.accounts.Account accountManagerAccount;
+        public final Uri accountUri;
+        public final FolderUri folderUri;
+        /** Null until resolved, for keys read back from the store */
+        public Account account;
+        public Folder folder;
 
         public NotificationKey(Account account, Folder folder) {
+            this(account.getAccountManagerAccount(), account.uri, folder.folderUri);
             this.account = account;
             this.folder = folder;
         }
 
+        public NotificationKey(android.accounts.Account accountManagerAccount, Uri accountUri,
+                FolderUri folderUri) {
+            this.accountManagerAccount = accountManagerAccount;
+            this.accountUri = accountUri;
+            this.folderUri = folderUri;
+        }
+
         @Override
         public boolean equals(Object other) {
             if (!(other instanceof NotificationKey)) {
                 return false;
             }
             NotificationKey key = (NotificationKey) other;
-            return account.getAccountManagerAccount().equals(key.account.getAccountManagerAccount())
-                    && folder.equals(key.folder);
+            return accountManagerAccount.equals(key.accountManagerAccount)
+                    && Objects.equal(folderUri, key.folderUri);
         }
 
         @Override
         public String toString() {
-            return account.getDisplayName() + " " + folder.name;
+            return (account != null ? account.getDisplayName() : accountManagerAccount.name) + " "
+                    + (folder != null ? folder.name : folderUri);
         }
 
         @Override
         public int hashCode() {
-            final int accountHashCode = account.getAccountManagerAccount().hashCode();
-            final int folderHashCode = folder.hashCode();
+            final int accountHashCode = accountManagerAccount.hashCode();
+            final int folderHashCode = folderUri == null ? 0 : folderUri.hashCode();
             return accountHashCode ^ folderHashCode;
         }
     }
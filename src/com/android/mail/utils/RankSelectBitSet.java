@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+/**
+ * A fixed-size bitset that can also count the set bits before an index (rank) and find the
+ * index of the n-th clear bit (select) in logarithmic time, using a Fenwick tree over the bits.
+ * <p>
+ * Setting or clearing a single bit costs O(log n); {@link #setAll(int[], int)} sets many bits at
+ * once and rebuilds the tree in a single O(n) pass.
+ * <p>
+ * Not synchronized.
+ */
+public class RankSelectBitSet {
+
+    private final int mSize;
+    private final long[] mBits;
+    /** 1-based Fenwick tree; mTree[i] counts the set bits in (i - lowbit(i), i] */
+    private final int[] mTree;
+    private int mCardinality;
+
+    public RankSelectBitSet(int size) {
+        mSize = size;
+        mBits = new long[(size + 63) >> 6];
+        mTree = new int[size + 1];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of set bits.
+     */
+    public int cardinality() {
+        return mCardinality;
+    }
+
+    public boolean get(int index) {
+        return index >= 0 && index < mSize && (mBits[index >> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets the bit at the given index.
+     *
+     * @return true if the bit was previously clear
+     */
+    public boolean set(int index) {
+        if (get(index)) {
+            return false;
+        }
+        mBits[index >> 6] |= 1L << index;
+        update(index, 1);
+        return true;
+    }
+
+    /**
+     * Clears the bit at the given index.
+     *
+     * @return true if the bit was previously set
+     */
+    public boolean clear(int index) {
+        if (!get(index)) {
+            return false;
+        }
+        mBits[index >> 6] &= ~(1L << index);
+        update(index, -1);
+        return true;
+    }
+
+    private void update(int index, int delta) {
+        mCardinality += delta;
+        for (int i = index + 1; i <= mSize; i += i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    /**
+     * Sets the bits at the first {@code count} of the given indices, then rebuilds the tree in
+     * one pass. Cheaper than calling {@link #set(int)} for each index when there are many.
+     */
+    public void setAll(int[] indices, int count) {
+        for (int i = 0; i < count; i++) {
+            final int index = indices[i];
+            mBits[index >> 6] |= 1L << index;
+        }
+        int cardinality = 0;
+        for (int i = 1; i <= mSize; i++) {
+            mTree[i] = 0;
+        }
+        for (int i = 1; i <= mSize; i++) {
+            if ((mBits[(i - 1) >> 6] & (1L << (i - 1))) != 0) {
+                mTree[i]++;
+                cardinality++;
+            }
+            final int parent = i + (i & -i);
+            if (parent <= mSize) {
+                mTree[parent] += mTree[i];
+            }
+        }
+        mCardinality = cardinality;
+    }
+
+    /**
+     * Returns the number of set bits at indices in [0, end).
+     */
+    public int rank(int end) {
+        int sum = 0;
+        for (int i = Math.min(end, mSize); i > 0; i -= i & -i) {
+            sum += mTree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the index of the n-th (0-based) clear bit, or -1 if there are not that many clear
+     * bits.
+     */
+    public int selectClear(int n) {
+        if (n < 0 || n >= mSize - mCardinality) {
+            return -1;
+        }
+        // Walk down the tree, skipping over every node whose clear bits all come before the one
+        // we are looking for
+        int pos = 0;
+        int remaining = n + 1;
+        for (int step = Integer.highestOneBit(mSize); step > 0; step >>= 1) {
+            final int next = pos + step;
+            if (next <= mSize) {
+                final int clear = step - mTree[next];
+                if (clear < remaining) {
+                    pos = next;
+                    remaining -= clear;
+                }
+            }
+        }
+        // pos is the number of bits before the one we want, which is also its index
+        return pos;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mail.utils;
+
+import android.content.Context;
+
+import com.android.mail.perf.Timer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An on-disk LRU cache of sanitized message bodies, so that opening the same message again
+ * doesn't run it through {@link HtmlSanitizer} a second time.
+ * <p>
+ * Entries are keyed by a digest of the message id and the raw html, so a changed body never
+ * matches a stale entry. Each policy version gets its own directory, and the directories of other
+ * versions are deleted when the cache is opened. {@link HtmlSanitizer#POLICY_VERSION} is derived
+ * from the policy, so changing the policy drops everything sanitized under the old one. Once the
+ * entries add up to more than the size budget, the least recently used ones are deleted.
+ * <p>
+ * Hits, misses and evictions are counted with a {@link Timer}, and dumped every
+ * {@link #PERF_DUMP_INTERVAL} lookups.
+ * <p>
+ * Like the sanitizer itself, this does disk I/O and should only be used off the main thread.
+ */
+public class SanitizedHtmlCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final String DIRECTORY_NAME = "sanitized_html";
+    private static final String VERSION_PREFIX = "v";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int PERF_DUMP_INTERVAL = 50;
+    private static final String PERF_TAG_HIT = "SanitizedHtmlCache.hit";
+    private static final String PERF_TAG_MISS = "SanitizedHtmlCache.miss";
+    private static final String PERF_TAG_EVICT = "SanitizedHtmlCache.evict";
+    private static final String PERF_TAG_READ = "SanitizedHtmlCache.read";
+    private static final String PERF_TAG_WRITE = "SanitizedHtmlCache.write";
+
+    private static SanitizedHtmlCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    /** Entry file name to size in bytes, least recently used first; loaded lazily */
+    private LinkedHashMap<String, Long> mEntries;
+    private long mTotalBytes;
+
+    private final Timer mTimer = new Timer(true);
+    private int mLookups;
+    private int mHits;
+    private int mMisses;
+
+    public static synchronized SanitizedHtmlCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SanitizedHtmlCache(new File(context.getCacheDir(), DIRECTORY_NAME),
+                    HtmlSanitizer.POLICY_VERSION, DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param root the directory to keep the cache in; nothing else should be stored there
+     * @param policyVersion the version of the sanitizer policy the cached html was produced by
+     * @param maxBytes the total size the entries are trimmed down to after each write
+     */
+    SanitizedHtmlCache(File root, int policyVersion, long maxBytes) {
+        final String versionName = VERSION_PREFIX + policyVersion;
+        mDirectory = new File(root, versionName);
+        mMaxBytes = maxBytes;
+
+        // Anything sanitized under another version of the policy can't be trusted
+        final File[] versions = root.listFiles();
+        if (versions != null) {
+            for (File version : versions) {
+                if (!version.getName().equals(versionName)) {
+                    deleteRecursively(version);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the sanitized form of the given html, from the cache if it has been sanitized
+     * before.
+     *
+     * @param messageId the id of the message the html belongs to; may be null
+     * @param rawHtml the unsanitized html
+     * @return the sanitized html; <code>null</code> if <code>rawHtml</code> was <code>null</code>
+     */
+    public String sanitizeHtml(String messageId, String rawHtml) {
+        if (rawHtml == null) {
+            return null;
+        }
+        final String key = getKey(messageId, rawHtml);
+        String sanitized = get(key);
+        if (sanitized == null) {
+            sanitized = HtmlSanitizer.sanitizeHtml(rawHtml);
+            put(key, sanitized);
+        }
+        return sanitized;
+    }
+
+    /**
+     * Returns the file name the sanitized form of the given html is kept under.
+     */
+    static String getKey(String messageId, String rawHtml) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (messageId != null) {
+            digest.update(messageId.getBytes(UTF_8));
+        }
+        // The id can't contain a NUL, so this separates it from the body
+        digest.update((byte) 0);
+        digest.update(rawHtml.getBytes(UTF_8));
+
+        final byte[] hash = digest.digest();
+        final char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns the cached html for the given key, or null if there is none.
+     */
+    synchronized String get(String key) {
+        ensureLoaded();
+        String result = null;
+        if (mEntries.get(key) != null) {
+            final File file = new File(mDirectory, key);
+            mTimer.start(PERF_TAG_READ);
+            try {
+                result = readFile(file);
+                file.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                LogUtils.w(LOG_TAG, e, "Unable to read sanitized html %s", key);
+                remove(key);
+            } finally {
+                mTimer.pause(PERF_TAG_READ);
+            }
+        }
+
+        if (result != null) {
+            mHits++;
+            mTimer.count(PERF_TAG_HIT);
+        } else {
+            mMisses++;
+            mTimer.count(PERF_TAG_MISS);
+        }
+        if (++mLookups % PERF_DUMP_INTERVAL == 0) {
+            mTimer.dumpResults();
+        }
+        return result;
+    }
+
+    /**
+     * Caches the given html under the given key, then evicts the least recently used entries
+     * until the cache fits in its budget again.
+     */
+    synchronized void put(String key, String sanitizedHtml) {
+        ensureLoaded();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogUtils.w(LOG_TAG, "Unable to create %s", mDirectory);
+            return;
+        }
+        final byte[] bytes = sanitizedHtml.getBytes(UTF_8);
+        if (bytes.length > mMaxBytes) {
+            return;
+        }
+
+        // Write to a temporary file first so a crash can't leave a truncated entry behind
+        final File temp = new File(mDirectory, key + TEMP_SUFFIX);
+        final File file = new File(mDirectory, key);
+        mTimer.start(PERF_TAG_WRITE);
+        try {
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp);
+            }
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to write sanitized html %s", key);
+            temp.delete();
+            return;
+        } finally {
+            mTimer.pause(PERF_TAG_WRITE);
+        }
+
+        final Long previous = mEntries.put(key, (long) bytes.length);
+        if (previous != null) {
+            mTotalBytes -= previous;
+        }
+        mTotalBytes += bytes.length;
+        trimToSize();
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    synchronized long getSize() {
+        ensureLoaded();
+        return mTotalBytes;
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mTotalBytes -= entry.getValue();
+            it.remove();
+            mTimer.count(PERF_TAG_EVICT);
+        }
+    }
+
+    private void remove(String key) {
+        final Long size = mEntries.remove(key);
+        if (size != null) {
+            mTotalBytes -= size;
+        }
+        new File(mDirectory, key).delete();
+    }
+
+    /**
+     * Builds the in-memory index from the files left by earlier runs, oldest first.
+     */
+    private void ensureLoaded() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true /* accessOrder */);
+        mTotalBytes = 0;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mTotalBytes += file.length();
+        }
+        trimToSize();
+    }
+
+    private static String readFile(File file) throws IOException {
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too large: " + file);
+        }
+        final byte[] bytes = new byte[(int) length];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                final int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated: " + file);
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
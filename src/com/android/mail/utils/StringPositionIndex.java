@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+/**
+ * A hash index from string keys to positions in some positional source (typically a cursor
+ * column). Only a 64-bit hash of each key is kept, alongside its position, so unlike a
+ * {@code HashMap<String, Integer>} the index holds neither a second reference to every key string
+ * nor an entry object or boxed position per key.
+ * <p>
+ * Two different keys are only confused when their 64-bit hashes are equal. For the number of
+ * rows a cursor holds, the chance of that is negligible (about n<sup>2</sup>/2<sup>65</sup> for n
+ * keys), and callers that can afford it may confirm a hit against the source.
+ * <p>
+ * Not synchronized. Once fully built, it is safe to read from several threads.
+ */
+public class StringPositionIndex {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** Positions are stored off by one so that 0 can mark an empty slot */
+    private int[] mPositions;
+    private long[] mHashes;
+    private int mSize;
+
+    /**
+     * Creates a new index that will not require any additional memory allocation to store the
+     * specified number of keys.
+     */
+    public StringPositionIndex(int expectedSize) {
+        final int min = Math.max(4, expectedSize * 2);
+        final int capacity = Integer.highestOneBit(min - 1) << 1;
+        mPositions = new int[capacity];
+        mHashes = new long[capacity];
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the characters of a key.
+     */
+    static long hash64(String key) {
+        long h = FNV_OFFSET_BASIS;
+        final int length = key.length();
+        for (int i = 0; i < length; i++) {
+            h ^= key.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static int spread(long hash) {
+        int h = (int) (hash ^ (hash >>> 32));
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the position at which the given key was added, or -1 if it isn't in the index.
+     */
+    public int get(String key) {
+        final long hash = hash64(key);
+        final int[] positions = mPositions;
+        final int mask = positions.length - 1;
+        int i = spread(hash) & mask;
+        int stored;
+        while ((stored = positions[i]) != 0) {
+            if (mHashes[i] == hash) {
+                return stored - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the key was added to the index.
+     */
+    public boolean contains(String key) {
+        return get(key) >= 0;
+    }
+
+    /**
+     * Adds a key at the given (non-negative) position. Duplicate keys aren't detected here;
+     * callers that care should check {@link #get(String)} first. When a key is added more than
+     * once, which of its positions lookups return is unspecified.
+     */
+    public void add(String key, int position) {
+        insert(mPositions, mHashes, hash64(key), position + 1);
+        mSize++;
+        if (mSize * 2 > mPositions.length) {
+            rehash(mPositions.length * 2);
+        }
+    }
+
+    private static void insert(int[] positions, long[] hashes, long hash, int storedPosition) {
+        final int mask = positions.length - 1;
+        int i = spread(hash) & mask;
+        while (positions[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        positions[i] = storedPosition;
+        hashes[i] = hash;
+    }
+
+    private void rehash(int newCapacity) {
+        final int[] oldPositions = mPositions;
+        final long[] oldHashes = mHashes;
+        final int[] positions = new int[newCapacity];
+        final long[] hashes = new long[newCapacity];
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldPositions[i] != 0) {
+                insert(positions, hashes, oldHashes[i], oldPositions[i]);
+            }
+        }
+        mPositions = positions;
+        mHashes = hashes;
+    }
+
+    /**
+     * Returns the number of keys that have been added.
+     */
+    public int size() {
+        return mSize;
+    }
+}
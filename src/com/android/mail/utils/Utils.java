@@ -288,31 +288,70 @@ public class Utils {
         return sUseFolderListFragmentTransition != 0;
     }
 
+    /**
+     * A parser and tree builder for each thread that converts html, so that their working storage
+     * is reused from one message to the next.
+     */
+    private static final ThreadLocal<HtmlParser> sHtmlParser = new ThreadLocal<HtmlParser>() {
+        @Override
+        protected HtmlParser initialValue() {
+            return new HtmlParser();
+        }
+    };
+    private static final ThreadLocal<HtmlTreeBuilder> sHtmlTreeBuilder =
+            new ThreadLocal<HtmlTreeBuilder>() {
+                @Override
+                protected HtmlTreeBuilder initialValue() {
+                    return new HtmlTreeBuilder();
+                }
+            };
+
     /**
      * Returns displayable text from the provided HTML string.
      * @param htmlText HTML string
      * @return Plain text string representation of the specified Html string
      */
     public static String convertHtmlToPlainText(String htmlText) {
-        if (TextUtils.isEmpty(htmlText)) {
-            return "";
-        }
-        return getHtmlTree(htmlText, new HtmlParser(), new HtmlTreeBuilder()).getPlainText();
+        return convertHtmlToPlainText(htmlText, sHtmlParser.get(), sHtmlTreeBuilder.get(), null);
     }
 
     public static String convertHtmlToPlainText(String htmlText, HtmlParser parser,
             HtmlTreeBuilder builder) {
+        return convertHtmlToPlainText(htmlText, parser, builder, null);
+    }
+
+    /**
+     * Returns displayable text from the provided HTML string, converting its nodes with the given
+     * factory.
+     */
+    public static String convertHtmlToPlainText(String htmlText,
+            HtmlTree.ConverterFactory factory) {
+        return convertHtmlToPlainText(htmlText, sHtmlParser.get(), sHtmlTreeBuilder.get(),
+                factory);
+    }
+
+    private static String convertHtmlToPlainText(String htmlText, HtmlParser parser,
+            HtmlTreeBuilder builder, HtmlTree.ConverterFactory factory) {
         if (TextUtils.isEmpty(htmlText)) {
             return "";
         }
-        return getHtmlTree(htmlText, parser, builder).getPlainText();
+        final HtmlDocument doc = parser.parse(htmlText);
+        doc.accept(builder);
+        final HtmlTree tree = builder.getTree();
+        if (factory != null) {
+            tree.setConverterFactory(factory);
+        }
+        final String text = tree.getPlainText();
+        // Nothing else sees the tree, so the parser can reuse its attribute lists
+        parser.recycle(doc);
+        return text;
     }
 
     /**
      * Returns a {@link HtmlTree} representation of the specified HTML string.
      */
     public static HtmlTree getHtmlTree(String htmlText) {
-        return getHtmlTree(htmlText, new HtmlParser(), new HtmlTreeBuilder());
+        return getHtmlTree(htmlText, sHtmlParser.get(), sHtmlTreeBuilder.get());
     }
 
     /**
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.widget;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.content.Loader;
+import android.content.Loader.OnLoadCompleteListener;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.mail.providers.UIProvider;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Shares one conversation cursor loader between all the widgets that query the same
+ * conversation list uri, so a burst of changes to a folder shown in several widgets is queried
+ * once per throttle period rather than once per widget.
+ * <p>
+ * The loaders and their listeners are only touched on the main thread, which is where loaders
+ * deliver their results. {@link #register} must be called there; {@link #unregister} may be
+ * called from any thread, as widget factories are destroyed on a binder thread.
+ */
+class SharedConversationLoaders {
+    private static final Map<Uri, SharedLoader> sLoaders = Maps.newHashMap();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static class SharedLoader implements OnLoadCompleteListener<Cursor> {
+        final Uri uri;
+        final CursorLoader loader;
+        final ArrayList<OnLoadCompleteListener<Cursor>> listeners =
+                new ArrayList<OnLoadCompleteListener<Cursor>>();
+        /** The last cursor delivered, for listeners that register after it was loaded */
+        Cursor cursor;
+
+        SharedLoader(Context context, Uri uri, int updateThrottleMs) {
+            this.uri = uri;
+            loader = new CursorLoader(context, uri, UIProvider.CONVERSATION_PROJECTION, null,
+                    null, null);
+            loader.setUpdateThrottle(updateThrottleMs);
+            loader.registerListener(0, this);
+        }
+
+        @Override
+        public void onLoadComplete(Loader<Cursor> l, Cursor data) {
+            cursor = data;
+            // Copy, as a listener may unregister itself in the callback
+            for (OnLoadCompleteListener<Cursor> listener :
+                    new ArrayList<OnLoadCompleteListener<Cursor>>(listeners)) {
+                listener.onLoadComplete(loader, data);
+            }
+        }
+    }
+
+    private SharedConversationLoaders() {}
+
+    /**
+     * Registers the listener for the conversations at the uri, starting a loader for them if no
+     * other listener has. If the conversations were already loaded, the listener is sent them
+     * shortly, from the main thread's queue, so that it can finish setting up first.
+     *
+     * @param updateThrottleMs the least time between queries, if this starts the loader
+     * @return the loader, which is passed to the listener with each result
+     */
+    static CursorLoader register(Context context, Uri uri, int updateThrottleMs,
+            final OnLoadCompleteListener<Cursor> listener) {
+        SharedLoader shared = sLoaders.get(uri);
+        if (shared == null) {
+            shared = new SharedLoader(context.getApplicationContext(), uri, updateThrottleMs);
+            sLoaders.put(uri, shared);
+            shared.listeners.add(listener);
+            shared.loader.startLoading();
+            return shared.loader;
+        }
+        shared.listeners.add(listener);
+        if (shared.cursor != null && !shared.cursor.isClosed()) {
+            final SharedLoader loaded = shared;
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Unless it has unregistered since
+                    if (loaded.listeners.contains(listener) && loaded.cursor != null
+                            && !loaded.cursor.isClosed()) {
+                        listener.onLoadComplete(loaded.loader, loaded.cursor);
+                    }
+                }
+            });
+        }
+        return shared.loader;
+    }
+
+    /**
+     * Unregisters the listener from the loader, and stops the loader if it was the last one. When
+     * called off the main thread, this happens shortly, on the main thread.
+     */
+    static void unregister(final CursorLoader loader,
+            final OnLoadCompleteListener<Cursor> listener) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    unregisterOnMainThread(loader, listener);
+                }
+            });
+        } else {
+            unregisterOnMainThread(loader, listener);
+        }
+    }
+
+    private static void unregisterOnMainThread(CursorLoader loader,
+            OnLoadCompleteListener<Cursor> listener) {
+        SharedLoader shared = null;
+        for (SharedLoader candidate : sLoaders.values()) {
+            if (candidate.loader == loader) {
+                shared = candidate;
+                break;
+            }
+        }
+        if (shared == null || !shared.listeners.remove(listener) || !shared.listeners.isEmpty()) {
+            return;
+        }
+        sLoaders.remove(shared.uri);
+        shared.cursor = null;
+        shared.loader.reset();
+        shared.loader.unregisterListener(shared);
+    }
+}
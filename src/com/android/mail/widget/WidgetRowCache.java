@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.widget;
+
+import android.database.Cursor;
+import android.widget.RemoteViews;
+
+import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LongLruCache;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Keeps the rendered {@link RemoteViews} for the conversations in a widget, so a refresh of the
+ * widget only renders the rows whose conversations changed.
+ * <p>
+ * Each row is cached with a hash of the cursor columns it is rendered from, which is computed
+ * without building a {@link com.android.mail.providers.Conversation} or parsing its blobs. The
+ * date is rendered relative to the current day, so all the rows are dropped when the day changes.
+ * <p>
+ * Not synchronized; the widget service uses it under its own lock.
+ */
+class WidgetRowCache {
+    /** The columns that rows are rendered from, other than the id */
+    private static final int[] STRING_COLUMNS = new int[] {
+        UIProvider.CONVERSATION_URI_COLUMN,
+        UIProvider.CONVERSATION_SUBJECT_COLUMN,
+        UIProvider.CONVERSATION_SNIPPET_COLUMN,
+    };
+    private static final int[] BLOB_COLUMNS = new int[] {
+        UIProvider.CONVERSATION_INFO_COLUMN,
+        UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN,
+    };
+    private static final int[] INT_COLUMNS = new int[] {
+        UIProvider.CONVERSATION_HAS_ATTACHMENTS_COLUMN,
+        UIProvider.CONVERSATION_NUM_MESSAGES_COLUMN,
+        UIProvider.CONVERSATION_NUM_DRAFTS_COLUMN,
+        UIProvider.CONVERSATION_SENDING_STATE_COLUMN,
+        UIProvider.CONVERSATION_PRIORITY_COLUMN,
+        UIProvider.CONVERSATION_READ_COLUMN,
+        UIProvider.CONVERSATION_STARRED_COLUMN,
+        UIProvider.CONVERSATION_FLAGS_COLUMN,
+        UIProvider.CONVERSATION_PERSONAL_LEVEL_COLUMN,
+        UIProvider.CONVERSATION_COLOR_COLUMN,
+    };
+
+    private static class Row {
+        final int contentHash;
+        final RemoteViews views;
+
+        Row(int contentHash, RemoteViews views) {
+            this.contentHash = contentHash;
+            this.views = views;
+        }
+    }
+
+    private final LongLruCache<Row> mRows;
+    private final int mAccountIndex;
+    /** When the day the cached dates were rendered on ends */
+    private long mDayEndMs;
+
+    /**
+     * @param account the account of the conversations, as their ids are only unique within it
+     * @param maxRows the number of rows to keep
+     */
+    WidgetRowCache(String account, int maxRows) {
+        mRows = new LongLruCache<Row>(maxRows);
+        mAccountIndex = LongLruCache.getAccountIndex(account);
+    }
+
+    /**
+     * Returns a hash of the columns a row is rendered from, for the cursor's current row.
+     */
+    static int getContentHash(Cursor cursor) {
+        final long date = cursor.getLong(UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN);
+        int hash = (int) (date ^ (date >>> 32));
+        for (int column : STRING_COLUMNS) {
+            final String value = cursor.getString(column);
+            hash = hash * 31 + (value != null ? value.hashCode() : 0);
+        }
+        for (int column : BLOB_COLUMNS) {
+            hash = hash * 31 + Arrays.hashCode(cursor.getBlob(column));
+        }
+        for (int column : INT_COLUMNS) {
+            hash = hash * 31 + cursor.getInt(column);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the views rendered for the conversation, if they were rendered from the same
+     * content, or null.
+     */
+    RemoteViews get(long conversationId, int contentHash) {
+        final long now = System.currentTimeMillis();
+        if (now >= mDayEndMs) {
+            mRows.evictAll();
+            mDayEndMs = getDayEnd(now);
+            return null;
+        }
+        final Row row = mRows.get(mAccountIndex, conversationId);
+        return row != null && row.contentHash == contentHash ? row.views : null;
+    }
+
+    void put(long conversationId, int contentHash, RemoteViews views) {
+        mRows.put(mAccountIndex, conversationId, new Row(contentHash, views));
+    }
+
+    void clear() {
+        mRows.evictAll();
+    }
+
+    private static long getDayEnd(long now) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+}
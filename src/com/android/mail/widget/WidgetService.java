@@ -200,7 +200,6 @@ public class WidgetService extends RemoteViewsService {
         private static final int MAX_SENDERS_LENGTH = 25;
 
         private static final int FOLDER_LOADER_ID = 0;
-        private static final int CONVERSATION_CURSOR_LOADER_ID = 1;
         private static final int ACCOUNT_LOADER_ID = 2;
 
         private final Context mContext;
@@ -223,6 +222,7 @@ public class WidgetService extends RemoteViewsService {
         private final WidgetService mService;
         private String mSendersSplitToken;
         private String mElidedPaddingToken;
+        private final WidgetRowCache mRowCache;
 
         public MailFactory(Context context, Intent intent, WidgetService service) {
             mContext = context;
@@ -260,6 +260,8 @@ public class WidgetService extends RemoteViewsService {
             mWidgetConversationListItemViewBuilder = new WidgetConversationListItemViewBuilder(
                     context);
             mService = service;
+            mRowCache = new WidgetRowCache(mAccount != null ? mAccount.getEmailAddress() : null,
+                    MAX_CONVERSATIONS_COUNT);
         }
 
         @Override
@@ -283,6 +285,7 @@ public class WidgetService extends RemoteViewsService {
             // the user made locally, the default policy of the UI provider is to not send
             // notifications for.  But in this case, since the widget is not using the
             // ConversationCursor instance that the UI is using, the widget would not be updated.
+            // Widgets showing the same folder share the loader, so each change is queried once.
             final Uri.Builder builder = mFolderConversationListUri.buildUpon();
             final String maxConversations = Integer.toString(MAX_CONVERSATIONS_COUNT);
             final Uri widgetConversationQueryUri = builder
@@ -293,12 +296,9 @@ public class WidgetService extends RemoteViewsService {
                             Boolean.TRUE.toString()).build();
 
             final Resources res = mContext.getResources();
-            mConversationCursorLoader = new CursorLoader(mContext, widgetConversationQueryUri,
-                    UIProvider.CONVERSATION_PROJECTION, null, null, null);
-            mConversationCursorLoader.registerListener(CONVERSATION_CURSOR_LOADER_ID, this);
-            mConversationCursorLoader.setUpdateThrottle(
-                    res.getInteger(R.integer.widget_refresh_delay_ms));
-            mConversationCursorLoader.startLoading();
+            mConversationCursorLoader = SharedConversationLoaders.register(mContext,
+                    widgetConversationQueryUri, res.getInteger(R.integer.widget_refresh_delay_ms),
+                    this);
             mSendersSplitToken = res.getString(R.string.senders_split_token);
             mElidedPaddingToken = res.getString(R.string.elided_padding_token);
             mFolderLoader = new CursorLoader(mContext, mFolderUri, UIProvider.FOLDERS_PROJECTION,
@@ -318,14 +318,14 @@ public class WidgetService extends RemoteViewsService {
         public void onDestroy() {
             synchronized (sWidgetLock) {
                 if (mConversationCursorLoader != null) {
-                    mConversationCursorLoader.reset();
-                    mConversationCursorLoader.unregisterListener(this);
+                    SharedConversationLoaders.unregister(mConversationCursorLoader, this);
                     mConversationCursorLoader = null;
                 }
 
                 // The Loader should close the cursor, so just unset the reference
                 // to it here.
                 mConversationCursor = null;
+                mRowCache.clear();
             }
 
             if (mFolderLoader != null) {
@@ -404,11 +404,21 @@ public class WidgetService extends RemoteViewsService {
                     return getViewMoreConversationsView();
                 }
 
+                // Rows whose conversations haven't changed since they were last rendered are
+                // reused as they are
+                final long conversationId =
+                        mConversationCursor.getLong(UIProvider.CONVERSATION_ID_COLUMN);
+                final int contentHash = WidgetRowCache.getContentHash(mConversationCursor);
+                final RemoteViews cachedViews = mRowCache.get(conversationId, contentHash);
+                if (cachedViews != null) {
+                    return cachedViews;
+                }
+
                 Conversation conversation = new Conversation(mConversationCursor);
                 // Split the senders and status from the instructions.
 
                 ArrayList<SpannableString> senders = new ArrayList<SpannableString>();
-                SendersView.format(mContext, conversation.conversationInfo, "",
+                SendersView.format(mContext, conversation.getConversationInfo(), "",
                         MAX_SENDERS_LENGTH, senders, null, null, mAccount.getEmailAddress(),
                         Folder.shouldShowRecipients(mFolderCapabilities), true);
                 final SpannableStringBuilder senderBuilder = elideParticipants(senders);
@@ -435,6 +445,7 @@ public class WidgetService extends RemoteViewsService {
                         Utils.createViewConversationIntent(mContext, conversation, mFolderUri,
                                 mAccount));
 
+                mRowCache.put(conversationId, contentHash, remoteViews);
                 return remoteViews;
             }
         }
@@ -26,10 +26,9 @@ import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,8 +56,34 @@ public class HtmlParser {
   // The html text
   private String html;
 
-  // The entire array of nodes
-  private List<HtmlDocument.Node> nodes;
+  // The nodes parsed so far. This array and the scratch state below are
+  // reused from one parse to the next.
+  private HtmlDocument.Node[] nodes = new HtmlDocument.Node[INITIAL_NODE_CAPACITY];
+  private int nodeCount;
+
+  // Index of the first node in the run of Text nodes at the end of nodes, or
+  // -1 if the last node isn't a Text node
+  private int textRunStart = -1;
+
+  private static final int INITIAL_NODE_CAPACITY = 64;
+  // Past this, the node array is dropped after parsing rather than kept around
+  private static final int MAX_RETAINED_NODE_CAPACITY = 4096;
+
+  private final TagNameScanner tagNameScanner = new TagNameScanner();
+  private final AttributeScanner attributeScanner = new AttributeScanner();
+  // Attributes of the tag being scanned, copied out if the tag is kept
+  private final ArrayList<HtmlDocument.TagAttribute> attributeBuffer =
+      new ArrayList<HtmlDocument.TagAttribute>();
+
+  // The attribute lists given to the tags of the last document, and the lists
+  // given back by recycle() for later parses to reuse
+  private final ArrayList<ArrayList<HtmlDocument.TagAttribute>> attributeListsInUse =
+      new ArrayList<ArrayList<HtmlDocument.TagAttribute>>();
+  private final ArrayList<ArrayList<HtmlDocument.TagAttribute>> attributeListPool =
+      new ArrayList<ArrayList<HtmlDocument.TagAttribute>>();
+  private HtmlDocument lastDocument;
+  // Past this, recycled attribute lists are left to the garbage collector
+  private static final int MAX_POOLED_ATTRIBUTE_LISTS = 256;
 
   // Turn on for debug information.
   private static boolean DEBUG = false;
@@ -181,14 +206,20 @@ public class HtmlParser {
   /**
    * Parses a String as HTML.
    *
+   * A parser can be used for any number of parses, one at a time, and reuses
+   * its working storage across them. It is not thread safe.
+   *
    * @param html String to parse
    * @return an Html document
    */
   public HtmlDocument parse(String html) {
     this.html = html;
-    // Use a LinkedList because we don't know the number of nodes ahead of
-    // time. This will be compacted into an ArrayList in coalesceTextNodes().
-    nodes = Lists.newLinkedList();
+    clearNodes();
+    // The lists of a document that wasn't recycled stay with its tags
+    lastDocument = null;
+    attributeListsInUse.clear();
+    tagNameScanner.html = html;
+    attributeScanner.html = html;
     state = State.IN_TEXT;
 
     clipped = false;
@@ -232,74 +263,127 @@ public class HtmlParser {
       clipped = pos >= clipLength;
     }
 
-    nodes = coalesceTextNodes(nodes);
+    coalesceTextNodes();
 
-    HtmlDocument doc = new HtmlDocument(nodes);
-    nodes = null;
+    List<HtmlDocument.Node> result = new ArrayList<HtmlDocument.Node>(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      result.add(nodes[i]);
+    }
+    HtmlDocument doc = new HtmlDocument(result);
+    lastDocument = doc;
+    clearNodes();
+    if (nodes.length > MAX_RETAINED_NODE_CAPACITY) {
+      nodes = new HtmlDocument.Node[INITIAL_NODE_CAPACITY];
+    }
     html = null;
+    tagNameScanner.html = null;
+    attributeScanner.html = null;
     return doc;
   }
 
   /**
-   * During the course of parsing, we may have multiple adjacent Text nodes,
-   * due to the sanitizer stripping out nodes between Text nodes. It is
-   * important to coalesce them so that later steps in the pipeline can
-   * treat the text as a single block (e.g. the step that inserts <wbr> tags).
-   * @param nodes Original nodes.
-   * @return Nodes with text nodes changed.
+   * Drops the references to the nodes of the last parse, so they can be
+   * collected while the parser is kept around.
    */
-  static List<HtmlDocument.Node> coalesceTextNodes(
-      List<HtmlDocument.Node> nodes) {
-    List<HtmlDocument.Node> out =
-        new ArrayList<HtmlDocument.Node>(nodes.size());
-    LinkedList<HtmlDocument.Text> textNodes = Lists.newLinkedList();
-
-    for (HtmlDocument.Node node : nodes) {
-      if (node instanceof HtmlDocument.Text) {
-        textNodes.add((HtmlDocument.Text) node);
-      } else {
-        mergeTextNodes(textNodes, out);
-        out.add(node);
+  private void clearNodes() {
+    Arrays.fill(nodes, 0, nodeCount, null);
+    nodeCount = 0;
+    textRunStart = -1;
+    attributeBuffer.clear();
+  }
+
+  /**
+   * Appends a node. Adjacent Text nodes are coalesced as soon as the run of
+   * them ends, so the nodes never need a separate pass.
+   */
+  private void addNode(HtmlDocument.Node node) {
+    if (node instanceof HtmlDocument.Text) {
+      if (textRunStart < 0) {
+        textRunStart = nodeCount;
       }
+    } else {
+      coalesceTextNodes();
+    }
+    if (nodeCount == nodes.length) {
+      nodes = Arrays.copyOf(nodes, nodeCount * 2);
     }
-    mergeTextNodes(textNodes, out);
-    return out;
+    nodes[nodeCount++] = node;
   }
 
   /**
-   * Flushes any Text nodes in {@code textNodes} into a single Text node
-   * in {@code output}. {@code textNodes} is guaranteed to be empty when
-   * the function returns.
-   * @param textNodes Text nodes.
-   * @param output Destination to which results are added.
+   * Gives the attribute lists of the last document this parser returned back
+   * to the parser, so that later parses can reuse them instead of allocating
+   * new ones. Only call this once nothing uses the document, or any tree built
+   * from it, any more: the attributes of its tags are cleared and will be
+   * overwritten. Documents other than the last one parsed are ignored.
+   *
+   * @param document the document returned by the last call to {@link #parse}
    */
-  private static void mergeTextNodes(LinkedList<HtmlDocument.Text> textNodes,
-                                     List<HtmlDocument.Node> output) {
-    if (!textNodes.isEmpty()) {
-      if (textNodes.size() == 1) {
-        output.add(textNodes.removeFirst());
-      } else {
-        int combinedTextLen = 0;
-        int combinedInputLen = 0;
-        for (HtmlDocument.Text text : textNodes) {
-          combinedTextLen += text.getText().length();
-          if (text.getOriginalHTML() != null) {
-            combinedInputLen += text.getOriginalHTML().length();
-          }
-        }
-        StringBuilder combinedText = new StringBuilder(combinedTextLen);
-        StringBuilder combinedInput = new StringBuilder(combinedInputLen);
-        while (!textNodes.isEmpty()) {
-          HtmlDocument.Text text = textNodes.removeFirst();
-          combinedText.append(text.getText());
-          if (text.getOriginalHTML() != null) {
-            combinedInput.append(text.getOriginalHTML());
-          }
-        }
-        String originalInput = combinedInputLen > 0 ? combinedInput.toString() : null;
-        output.add(HtmlDocument.createText(combinedText.toString(), originalInput));
+  public void recycle(HtmlDocument document) {
+    if (document == null || document != lastDocument) {
+      return;
+    }
+    lastDocument = null;
+    for (int i = 0; i < attributeListsInUse.size()
+        && attributeListPool.size() < MAX_POOLED_ATTRIBUTE_LISTS; i++) {
+      final ArrayList<HtmlDocument.TagAttribute> list = attributeListsInUse.get(i);
+      list.clear();
+      attributeListPool.add(list);
+    }
+    attributeListsInUse.clear();
+  }
+
+  /**
+   * Returns an empty attribute list for a tag being kept, from the pool if
+   * there is one there, and remembers it so that {@link #recycle} can take it
+   * back.
+   */
+  private ArrayList<HtmlDocument.TagAttribute> obtainAttributeList(int size) {
+    final int pooled = attributeListPool.size();
+    final ArrayList<HtmlDocument.TagAttribute> list = pooled > 0
+        ? attributeListPool.remove(pooled - 1)
+        : new ArrayList<HtmlDocument.TagAttribute>(size);
+    attributeListsInUse.add(list);
+    return list;
+  }
+
+  /**
+   * During the course of parsing, we may have multiple adjacent Text nodes,
+   * due to the sanitizer stripping out nodes between Text nodes. It is
+   * important to coalesce them so that later steps in the pipeline can
+   * treat the text as a single block (e.g. the step that inserts <wbr> tags).
+   * This merges the run of Text nodes at the end of the nodes, if any, into a
+   * single Text node.
+   */
+  private void coalesceTextNodes() {
+    final int start = textRunStart;
+    textRunStart = -1;
+    if (start < 0 || nodeCount - start < 2) {
+      return;
+    }
+
+    int combinedTextLen = 0;
+    int combinedInputLen = 0;
+    for (int i = start; i < nodeCount; i++) {
+      HtmlDocument.Text text = (HtmlDocument.Text) nodes[i];
+      combinedTextLen += text.getText().length();
+      if (text.getOriginalHTML() != null) {
+        combinedInputLen += text.getOriginalHTML().length();
       }
     }
+    StringBuilder combinedText = new StringBuilder(combinedTextLen);
+    StringBuilder combinedInput = new StringBuilder(combinedInputLen);
+    for (int i = start; i < nodeCount; i++) {
+      HtmlDocument.Text text = (HtmlDocument.Text) nodes[i];
+      combinedText.append(text.getText());
+      if (text.getOriginalHTML() != null) {
+        combinedInput.append(text.getOriginalHTML());
+      }
+      nodes[i] = null;
+    }
+    String originalInput = combinedInputLen > 0 ? combinedInput.toString() : null;
+    nodes[start] = HtmlDocument.createText(combinedText.toString(), originalInput);
+    nodeCount = start + 1;
   }
 
   //------------------------------------------------------------------------
@@ -374,7 +458,7 @@ public class HtmlParser {
         }
 
         HtmlDocument.Text textnode = HtmlDocument.createEscapedText(htmlTail, originalHtml);
-        nodes.add(textnode);
+        addNode(textnode);
       }
     }
     return pos;
@@ -384,13 +468,18 @@ public class HtmlParser {
   // Tag name scanning utility class
   //------------------------------------------------------------------------
   private static class TagNameScanner {
-    private final String html;
+    String html;
     private String tagName;
     private int startNamePos = -1;
     private int endNamePos = -1;
 
-    public TagNameScanner(String html) {
-      this.html = html;
+    /**
+     * Reset to scan another tag name.
+     */
+    public void reset() {
+      tagName = null;
+      startNamePos = -1;
+      endNamePos = -1;
     }
 
     /**
@@ -431,7 +520,7 @@ public class HtmlParser {
   // Attribute scanning utility class
   //------------------------------------------------------------------------
   private static class AttributeScanner {
-    private final String html;
+    String html;
     private String name;
     private String value;
 
@@ -444,10 +533,6 @@ public class HtmlParser {
     int endValuePos = -1;
     boolean attrValueIsQuoted = false;
 
-    public AttributeScanner(String html) {
-      this.html = html;
-    }
-
     /**
      * Reset to scan another attribute.
      */
@@ -659,7 +744,7 @@ public class HtmlParser {
     }
 
     // Tag name and element
-    TagNameScanner tagNameScanner = new TagNameScanner(html);
+    tagNameScanner.reset();
     int pos = tagNameScanner.scanName(nameStart, end);
     String tagName = tagNameScanner.getTagName();
     HTML.Element element = null;
@@ -670,7 +755,7 @@ public class HtmlParser {
       if (!isEndTag) {
         // This is not really a tag, treat the '<' as text.
         HtmlDocument.Text text = HtmlDocument.createText("<", preserveAll ? "<" : null);
-        nodes.add(text);
+        addNode(text);
         state = State.IN_TEXT;
         return nameStart;
       }
@@ -693,10 +778,10 @@ public class HtmlParser {
 
     // Attributes
     boolean isSingleTag = false;
-    ArrayList<HtmlDocument.TagAttribute> attributes = null;
+    boolean hasAttributes = false;
+    attributeBuffer.clear();
     int allAttributesStartPos = pos;
     int nextAttributeStartPos = pos;
-    AttributeScanner attributeScanner = new AttributeScanner(html);
     while (pos < end) {
       int startPos = pos;
       char ch = html.charAt(pos);
@@ -738,10 +823,8 @@ public class HtmlParser {
 
           // Add the attribute to the list
           if (element != null) {
-            if (attributes == null) {
-              attributes = new ArrayList<HtmlDocument.TagAttribute>();
-            }
-            addAttribute(attributes, attributeScanner, nextAttributeStartPos, pos);
+            hasAttributes = true;
+            addAttribute(attributeBuffer, attributeScanner, nextAttributeStartPos, pos);
           }
           nextAttributeStartPos = pos;
         }
@@ -764,7 +847,7 @@ public class HtmlParser {
         originalContent =
             CharMatcher.is('<').replaceFrom(html.substring(start, end), "&lt;");
       }
-      nodes.add(HtmlDocument.createEscapedText(textNodeContent, originalContent));
+      addNode(HtmlDocument.createEscapedText(textNodeContent, originalContent));
       return end;
     }
 
@@ -784,6 +867,15 @@ public class HtmlParser {
           state = State.IN_CDATA;
         }
 
+        // The tag keeps its attribute list, so it gets a copy of the buffer,
+        // in a list recycled from an earlier document when there is one
+        ArrayList<HtmlDocument.TagAttribute> attributes = null;
+        if (hasAttributes) {
+          attributes = obtainAttributeList(attributeBuffer.size());
+          for (int i = 0; i < attributeBuffer.size(); i++) {
+            attributes.add(attributeBuffer.get(i));
+          }
+        }
         addStartTag(element, start, allAttributesStartPos,
             nextAttributeStartPos,
             pos, isSingleTag, attributes);
@@ -802,9 +894,8 @@ public class HtmlParser {
    * @return Element.
    */
   HTML.Element lookupElement(String name) {
-    ListIterator<HtmlWhitelist> iter = whitelists.listIterator(whitelists.size());
-    while (iter.hasPrevious()) {
-      HTML.Element elem = iter.previous().lookupElement(name);
+    for (int i = whitelists.size() - 1; i >= 0; i--) {
+      HTML.Element elem = whitelists.get(i).lookupElement(name);
       if (elem != null) {
         return elem;
       }
@@ -821,9 +912,8 @@ public class HtmlParser {
    * @return Attribute.
    */
   HTML.Attribute lookupAttribute(String name) {
-    ListIterator<HtmlWhitelist> iter = whitelists.listIterator(whitelists.size());
-    while (iter.hasPrevious()) {
-      HTML.Attribute attr = iter.previous().lookupAttribute(name);
+    for (int i = whitelists.size() - 1; i >= 0; i--) {
+      HTML.Attribute attr = whitelists.get(i).lookupAttribute(name);
       if (attr != null) {
         return attr;
       }
@@ -858,7 +948,7 @@ public class HtmlParser {
               beforeAttrs, afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs, afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else if (preserveValidHtml) {
       // This is the beginning of the tag up through the tag name. It should not
       // be possible for this to contain characters needing escaping, but we add
@@ -889,13 +979,13 @@ public class HtmlParser {
               beforeAttrs.toString(), afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs.toString(), afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else {
       // Normalize.
       HtmlDocument.Tag tag = (isSingleTag)
           ? HtmlDocument.createSelfTerminatingTag(element, attributes)
           : HtmlDocument.createTag(element, attributes);
-      nodes.add(tag);
+      addNode(tag);
     }
   }
 
@@ -918,7 +1008,7 @@ public class HtmlParser {
       // Preserve all: keep actual content even if it's malformed.
       X.assertTrue(startPos < endPos);
       String content = html.substring(startPos, endPos);
-      nodes.add(HtmlDocument.createEndTag(element, content));
+      addNode(HtmlDocument.createEndTag(element, content));
     } else if (preserveValidHtml) {
       // Preserve valid: terminate the tag.
 
@@ -943,10 +1033,10 @@ public class HtmlParser {
       // Strip everything but leading whitespace.
       validContent.append(endOfTag.replaceAll("\\S+.*>", ">"));
 
-      nodes.add(HtmlDocument.createEndTag(element, validContent.toString()));
+      addNode(HtmlDocument.createEndTag(element, validContent.toString()));
     } else {
       // Normalize: ignore the original content.
-      nodes.add(HtmlDocument.createEndTag(element));
+      addNode(HtmlDocument.createEndTag(element));
     }
   }
 
@@ -1075,7 +1165,7 @@ public class HtmlParser {
     }
 
     if (preserveAll) {
-      nodes.add(HtmlDocument.createHtmlComment(html.substring(start, pos)));
+      addNode(HtmlDocument.createHtmlComment(html.substring(start, pos)));
     }
 
     return pos;
@@ -1087,7 +1177,7 @@ public class HtmlParser {
   int scanCDATA(final int start, final int end) {
 
     // Get the tag: must be either STYLE or SCRIPT
-    HtmlDocument.Tag tag = (HtmlDocument.Tag) nodes.get(nodes.size() - 1);
+    HtmlDocument.Tag tag = (HtmlDocument.Tag) nodes[nodeCount - 1];
     HTML.Element element = tag.getElement();
     X.assertTrue(HTML4.SCRIPT_ELEMENT.equals(element) || HTML4.STYLE_ELEMENT.equals(element));
 
@@ -1106,7 +1196,7 @@ public class HtmlParser {
     if (pos > start) {
       HtmlDocument.CDATA cdata =
         HtmlDocument.createCDATA(html.substring(start, pos));
-      nodes.add(cdata);
+      addNode(cdata);
     }
 
     state = State.IN_TAG;
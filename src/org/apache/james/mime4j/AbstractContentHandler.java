@@ -76,9 +76,9 @@ public abstract class AbstractContentHandler implements ContentHandler {
     }
     
     /**
-     * @see org.apache.james.mime4j.ContentHandler#field(java.lang.String)
+     * @see org.apache.james.mime4j.ContentHandler#field(org.apache.james.mime4j.RawField)
      */
-    public void field(String fieldData) {
+    public void field(RawField rawField) {
     }
     
     /**
@@ -107,11 +107,11 @@ public interface ContentHandler {
     /**
      * Called for each field of a header.
      * 
-     * @param fieldData the raw contents of the field 
+     * @param rawField the field, whose raw contents are
      *        (<code>Field-Name: field value</code>). The value will not be 
-     *        unfolded.
+     *        unfolded. The parser reuses the instance for the next field.
      */
-    void field(String fieldData);
+    void field(RawField rawField);
     
     /**
      * Called when there are no more header fields in a message or body part.
@@ -29,49 +29,98 @@ import java.io.PushbackInputStream;
  * can be used to determine if a final boundary has been seen or not.
  * If {@link #parentEOF()} is <code>true</code> an unexpected end of stream
  * has been detected in the parent stream.
- * 
- * 
- * 
+ * <p>
+ * The parent stream is read in blocks, and each block is searched for the
+ * next CRLF--boundary with a Boyer-Moore-Horspool skip table. Whatever was
+ * read past the end of the boundary line is pushed back into the parent once
+ * the boundary has been found, so this needs a parent that can take bytes
+ * back: either another <code>MimeBoundaryInputStream</code> or a
+ * <code>PushbackInputStream</code> with room for
+ * {@link #getBufferSize(String)} bytes. Any other parent is read in short
+ * blocks that never go past the end of the next delimiter, so nothing has to
+ * be handed back and the parent is left just after the boundary line, as the
+ * byte at a time implementation left it.
+ *
+ *
+ *
  * @version $Id: MimeBoundaryInputStream.java,v 1.2 2004/11/29 13:15:42 ntherning Exp $
  */
 public class MimeBoundaryInputStream extends InputStream {
-    
-    private PushbackInputStream s = null;
-    private byte[] boundary = null;
-    private boolean first = true;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private InputStream s = null;
+    /** The parent can take back what was read past the boundary line */
+    private final boolean pushback;
+    /** CRLF--boundary */
+    private byte[] delimiter = null;
+    /** Horspool shift for each byte value */
+    private int[] skip = null;
     private boolean eof = false;
     private boolean parenteof = false;
     private boolean moreParts = true;
 
+    private final int bufferSize;
+    private byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    /** The bytes before this index are known not to be part of a delimiter */
+    private int safe = 0;
+    /** The parent has returned -1 */
+    private boolean drained = false;
+
     /**
      * Creates a new MimeBoundaryInputStream.
      * @param s The underlying stream.
      * @param boundary Boundary string (not including leading hyphens).
      */
-    public MimeBoundaryInputStream(InputStream s, String boundary) 
+    public MimeBoundaryInputStream(InputStream s, String boundary)
             throws IOException {
-        
-        this.s = new PushbackInputStream(s, boundary.length() + 4);
 
-        boundary = "--" + boundary;
-        this.boundary = new byte[boundary.length()];
-        for (int i = 0; i < this.boundary.length; i++) {
-            this.boundary[i] = (byte) boundary.charAt(i);
+        this.s = s;
+        pushback = s instanceof MimeBoundaryInputStream || s instanceof PushbackInputStream;
+        bufferSize = getBufferSize(boundary);
+        buffer = new byte[bufferSize];
+
+        boundary = "\r\n--" + boundary;
+        this.delimiter = new byte[boundary.length()];
+        for (int i = 0; i < this.delimiter.length; i++) {
+            this.delimiter[i] = (byte) boundary.charAt(i);
+        }
+        final int last = delimiter.length - 1;
+        this.skip = new int[256];
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            skip[delimiter[i] & 0xff] = last - i;
         }
-        
+
         /*
-         * By reading one byte we will update moreParts to be as expected
-         * before any bytes have been read.
+         * A boundary right at the start has no CRLF in front of it. Checking
+         * for one now updates moreParts to be as expected before any bytes
+         * have been read.
          */
-        int b = read();
-        if (b != -1) {
-            this.s.unread(b);
+        while (limit < delimiter.length - 2
+                && fill(pushback ? bufferSize : delimiter.length - 2 - limit)) {
+        }
+        if (startsWith(delimiter, 2, 0)) {
+            pos = delimiter.length - 2;
+            endOfPart();
         }
     }
 
+    /**
+     * Returns the number of bytes this stream may read ahead of the boundary
+     * of a part, and so may push back into its parent.
+     */
+    public static int getBufferSize(String boundary) {
+        return Math.max(BUFFER_SIZE, 2 * (boundary.length() + 4));
+    }
+
     /**
      * Closes the underlying stream.
-     * 
+     *
      * @throws IOException on I/O errors.
      */
     public void close() throws IOException {
@@ -81,8 +130,8 @@ public class MimeBoundaryInputStream extends InputStream {
     /**
      * Determines if the underlying stream has more parts (this stream has
      * not seen an end boundary).
-     * 
-     * @return <code>true</code> if there are more parts in the underlying 
+     *
+     * @return <code>true</code> if there are more parts in the underlying
      *         stream, <code>false</code> otherwise.
      */
     public boolean hasMoreParts() {
@@ -91,94 +140,264 @@ public class MimeBoundaryInputStream extends InputStream {
 
     /**
      * Determines if the parent stream has reached EOF
-     * 
-     * @return <code>true</code>  if EOF has been reached for the parent stream, 
+     *
+     * @return <code>true</code>  if EOF has been reached for the parent stream,
      *         <code>false</code> otherwise.
      */
     public boolean parentEOF() {
         return parenteof;
     }
-    
+
     /**
      * Consumes all unread bytes of this stream. After a call to this method
      * this stream will have reached EOF.
-     * 
+     *
      * @throws IOException on I/O errors.
      */
     public void consume() throws IOException {
-        while (read() != -1) {
+        while (pos < safe || scan()) {
+            pos = safe;
         }
     }
-    
+
     /**
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
+        if (pos < safe || scan()) {
+            return buffer[pos++] & 0xff;
+        }
+        return -1;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < safe || scan()) {
+            final int n = Math.min(len, safe - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        return -1;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() {
+        return safe - pos;
+    }
+
+    /**
+     * Returns the stream this one reads from.
+     */
+    InputStream getParent() {
+        return s;
+    }
+
+    /**
+     * Returns the number of bytes this stream has read from its parent but
+     * not yet returned.
+     */
+    int getReadAhead() {
+        return limit - pos;
+    }
+
+    /**
+     * Pushes back bytes that were read from this stream, so that they are
+     * read again. Used by a nested <code>MimeBoundaryInputStream</code> to
+     * return what it read past the end of its own part.
+     */
+    void unread(byte[] b, int off, int len) {
+        if (len <= pos) {
+            pos -= len;
+        } else {
+            final int shift = len - pos;
+            if (limit + shift > buffer.length) {
+                final byte[] grown = new byte[limit + shift];
+                System.arraycopy(buffer, pos, grown, len, limit - pos);
+                buffer = grown;
+            } else {
+                System.arraycopy(buffer, pos, buffer, len, limit - pos);
+            }
+            limit += shift;
+            safe += shift;
+            pos = 0;
+        }
+        System.arraycopy(b, off, buffer, pos, len);
+    }
+
+    /**
+     * Called once the bytes before {@link #safe} have all been read. Finds
+     * out how many more can be read before the next delimiter, reading more
+     * from the parent as needed.
+     *
+     * @return <code>true</code> if there are bytes to read,
+     *         <code>false</code> at the end of the part
+     */
+    private boolean scan() throws IOException {
         if (eof) {
-            return -1;
+            return false;
         }
-        
-        if (first) {
-            first = false;
-            if (matchBoundary()) {
-                return -1;
+        while (true) {
+            final int found = indexOfDelimiter(pos, limit);
+            if (found == pos) {
+                pos += delimiter.length;
+                endOfPart();
+                return false;
+            } else if (found > pos) {
+                safe = found;
+                return true;
+            }
+            /*
+             * The tail of the buffer could be the start of a delimiter, so
+             * only what comes before it can be read, unless the parent has
+             * no more to give.
+             */
+            safe = drained ? limit : Math.max(pos, limit - delimiter.length + 1);
+            if (safe > pos) {
+                return true;
+            }
+            if (!fill(pushback ? bufferSize : delimiter.length - partialDelimiterAtEnd())) {
+                if (pos == limit) {
+                    parenteof = true;
+                    eof = true;
+                    return false;
+                }
+                safe = limit;
+                return true;
             }
         }
-        
-        int b1 = s.read();
-        int b2 = s.read();
-        
-        if (b1 == '\r' && b2 == '\n') {
-            if (matchBoundary()) {
-                return -1;
+    }
+
+    /**
+     * Returns the length of the longest tail of the buffer that is also the
+     * start of the delimiter, and so the start of a delimiter that may end in
+     * what the parent has not given yet.
+     */
+    private int partialDelimiterAtEnd() {
+        for (int k = Math.min(delimiter.length - 1, limit - pos); k > 0; k--) {
+            int i = 0;
+            while (i < k && buffer[limit - k + i] == delimiter[i]) {
+                i++;
+            }
+            if (i == k) {
+                return k;
             }
         }
-        
-        if (b2 != -1) {
-            s.unread(b2);
+        return 0;
+    }
+
+    /**
+     * Compacts the buffer and reads at most <code>max</code> more bytes from
+     * the parent into it.
+     *
+     * @return <code>false</code> if the parent has no more to give
+     */
+    private boolean fill(int max) throws IOException {
+        if (drained) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            safe -= pos;
+            pos = 0;
+        }
+        /*
+         * Never hold more than bufferSize unread bytes from the parent, since
+         * that is all it may have to take back.
+         */
+        final int n = s.read(buffer, limit,
+                Math.min(max, Math.min(buffer.length, bufferSize) - limit));
+        if (n == -1) {
+            drained = true;
+            return false;
         }
+        limit += n;
+        return true;
+    }
 
-        parenteof = b1 == -1;
-        eof = parenteof;
-        
-        return b1;
+    /**
+     * Returns the index of the first delimiter that starts in the given
+     * range and fits in the buffer, or -1 if there is none.
+     */
+    private int indexOfDelimiter(int from, int to) {
+        final int last = delimiter.length - 1;
+        final byte lastByte = delimiter[last];
+        int i = from;
+        while (i + last < to) {
+            final byte b = buffer[i + last];
+            if (b == lastByte && startsWith(delimiter, 0, i)) {
+                return i;
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
     }
-    
-    private boolean matchBoundary() throws IOException {
-        
-        for (int i = 0; i < boundary.length; i++) {
-            int b = s.read();
-            if (b != boundary[i]) {
-                if (b != -1) {
-                    s.unread(b);
-                }
-                for (int j = i - 1; j >= 0; j--) {
-                    s.unread(boundary[j]);
-                }
+
+    /**
+     * Returns true if the buffer at the given index starts with the pattern
+     * from the given offset on.
+     */
+    private boolean startsWith(byte[] pattern, int offset, int index) {
+        if (limit - index < pattern.length - offset) {
+            return false;
+        }
+        for (int i = offset; i < pattern.length; i++) {
+            if (buffer[index + i - offset] != pattern[i]) {
                 return false;
             }
         }
-        
+        return true;
+    }
+
+    private int nextByte() throws IOException {
+        if (pos == limit && !fill(pushback ? bufferSize : 1)) {
+            return -1;
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    /**
+     * Called with {@link #pos} just past a boundary. Reads the rest of the
+     * boundary line, then hands what was read beyond it back to the parent.
+     */
+    private void endOfPart() throws IOException {
         /*
          * We have a match. Is it an end boundary?
          */
-        int prev = s.read();
-        int curr = s.read();
+        int prev = nextByte();
+        int curr = nextByte();
         moreParts = !(prev == '-' && curr == '-');
         do {
             if (curr == '\n' && prev == '\r') {
                 break;
             }
             prev = curr;
-        } while ((curr = s.read()) != -1);
-        
+        } while ((curr = nextByte()) != -1);
+
         if (curr == -1) {
             moreParts = false;
             parenteof = true;
         }
-        
+
         eof = true;
-        
-        return true;
+
+        if (pos < limit) {
+            if (s instanceof MimeBoundaryInputStream) {
+                ((MimeBoundaryInputStream) s).unread(buffer, pos, limit - pos);
+            } else if (pushback) {
+                ((PushbackInputStream) s).unread(buffer, pos, limit - pos);
+            }
+        }
+        pos = 0;
+        limit = 0;
+        safe = 0;
     }
 }
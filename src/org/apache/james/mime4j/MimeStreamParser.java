@@ -24,6 +24,9 @@ import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedList;
 
@@ -50,6 +53,8 @@ import java.util.LinkedList;
 public class MimeStreamParser {
     private static final Log log = LogFactory.getLog(MimeStreamParser.class);
 
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
     private static BitSet fieldChars = null;
 
     private RootInputStream rootStream = null;
@@ -57,6 +62,12 @@ public class MimeStreamParser {
     private ContentHandler handler = null;
     private boolean raw = false;
     private boolean prematureEof = false;
+    /** The stream of the body being passed to the handler, if any */
+    private InputStream bodyStream = null;
+    /** The bytes of the header being parsed, reused for every header */
+    private byte[] headerBuffer = new byte[1024];
+    /** The field being passed to the handler, reused for every field */
+    private final RawField rawField = new RawField();
 
     static {
         fieldChars = new BitSet();
@@ -141,6 +152,18 @@ public class MimeStreamParser {
 
             handler.startMultipart(bd);
 
+            /*
+             * The boundary streams read ahead, and hand back to their parent
+             * whatever they read past the end of their part.
+             */
+            if (is == rootStream) {
+                is = new RootPushbackInputStream(rootStream,
+                        MimeBoundaryInputStream.getBufferSize(bd.getBoundary()));
+            } else if (!(is instanceof MimeBoundaryInputStream)) {
+                is = new PushbackInputStream(is,
+                        MimeBoundaryInputStream.getBufferSize(bd.getBoundary()));
+            }
+
             MimeBoundaryInputStream tempIs =
                 new MimeBoundaryInputStream(is, bd.getBoundary());
             handler.preamble(new CloseShieldInputStream(tempIs));
@@ -182,7 +205,12 @@ public class MimeStreamParser {
             parseMessage(is);
             bodyDescriptors.removeFirst();
         } else {
-            handler.body(bd, new CloseShieldInputStream(is));
+            bodyStream = is;
+            try {
+                handler.body(bd, new CloseShieldInputStream(is));
+            } finally {
+                bodyStream = null;
+            }
         }
 
         /*
@@ -206,6 +234,35 @@ public class MimeStreamParser {
         return prematureEof;
     }
 
+    /**
+     * Gets the offset, counted from the start of the stream being parsed, of
+     * the next byte of the body currently being passed to
+     * {@link ContentHandler#body(BodyDescriptor, InputStream)}. Together with
+     * the number of bytes the handler reads, this locates the undecoded body
+     * in the original stream.
+     *
+     * @return the offset, or -1 if there is no body being passed to the
+     *         handler or its offset isn't known, as for the parts of an
+     *         encoded message/rfc822 body.
+     */
+    public long getBodyOffset() {
+        InputStream is = bodyStream;
+        long readAhead = 0;
+        while (is instanceof MimeBoundaryInputStream) {
+            final MimeBoundaryInputStream boundaryStream = (MimeBoundaryInputStream) is;
+            readAhead += boundaryStream.getReadAhead();
+            is = boundaryStream.getParent();
+        }
+        if (is == null) {
+            return -1;
+        } else if (is == rootStream) {
+            return rootStream.getPosition() - readAhead;
+        } else if (is instanceof RootPushbackInputStream) {
+            return ((RootPushbackInputStream) is).getPosition() - readAhead;
+        }
+        return -1;
+    }
+
     private void parseBodyPart(InputStream is) throws IOException {
         if (raw) {
             handler.raw(new CloseShieldInputStream(is));
@@ -218,6 +275,12 @@ public class MimeStreamParser {
 
     /**
      * Parses a header.
+     * <p>
+     * The header is read into a byte window that is reused from one header to
+     * the next. Each field is passed to the handler, as a view over the window,
+     * as soon as the first byte of the next line shows that the field has
+     * ended: a CRLF followed by anything other than a field name character is
+     * a fold.
      *
      * @param is the stream to parse.
      * @return a <code>BodyDescriptor</code> describing the body following
@@ -230,19 +293,38 @@ public class MimeStreamParser {
         handler.startHeader();
 
         int lineNumber = rootStream.getLineNumber();
+        int startLineNumber = lineNumber;
 
-        StringBuffer sb = new StringBuffer();
+        byte[] buf = headerBuffer;
+        int length = 0;
+        int start = 0;
         int curr = 0;
         int prev = 0;
         while ((curr = is.read()) != -1) {
             if (curr == '\n' && (prev == '\n' || prev == 0)) {
                 /*
-                 * [\r]\n[\r]\n or an immediate \r\n have been seen.
+                 * [\r]\n[\r]\n or an immediate \r\n have been seen. Drop
+                 * what came before this \n, which is the \r or \n of the
+                 * empty line.
                  */
-                sb.deleteCharAt(sb.length() - 1);
+                if (length > 0) {
+                    length--;
+                }
                 break;
             }
-            sb.append((char) curr);
+            if (length >= 2 && buf[length - 2] == '\r' && buf[length - 1] == '\n') {
+                lineNumber++;
+                if (fieldChars.get(curr)) {
+                    parseField(bd, buf, start, length - 2, startLineNumber);
+                    start = length;
+                    startLineNumber = lineNumber;
+                }
+            }
+            if (length == buf.length) {
+                buf = Arrays.copyOf(buf, length * 2);
+                headerBuffer = buf;
+            }
+            buf[length++] = (byte) curr;
             prev = curr == '\r' ? prev : curr;
         }
 
@@ -252,63 +334,76 @@ public class MimeStreamParser {
 //                    + "Boundary detected in header or EOF reached.");
 //        }
 
-        int start = 0;
-        int pos = 0;
-        int startLineNumber = lineNumber;
-        while (pos < sb.length()) {
-            while (pos < sb.length() && sb.charAt(pos) != '\r') {
-                pos++;
-            }
-            if (pos < sb.length() - 1 && sb.charAt(pos + 1) != '\n') {
-                pos++;
-                continue;
+        /*
+         * The last field, excluding its trailing \r\n, or a trailing \r if
+         * the header was cut short.
+         */
+        if (length > start) {
+            int end = length;
+            if (end - start >= 2 && buf[end - 2] == '\r' && buf[end - 1] == '\n') {
+                end -= 2;
+            } else if (buf[end - 1] == '\r') {
+                end--;
             }
+            parseField(bd, buf, start, end, startLineNumber);
+        }
 
-            if (pos >= sb.length() - 2 || fieldChars.get(sb.charAt(pos + 2))) {
+        handler.endHeader();
 
-                /*
-                 * field should be the complete field data excluding the
-                 * trailing \r\n.
-                 */
-                String field = sb.substring(start, pos);
-                start = pos + 2;
+        return bd;
+    }
 
-                /*
-                 * Check for a valid field.
-                 */
-                int index = field.indexOf(':');
-                boolean valid = false;
-                if (index != -1 && fieldChars.get(field.charAt(0))) {
-                    valid = true;
-                    String fieldName = field.substring(0, index).trim();
-                    for (int i = 0; i < fieldName.length(); i++) {
-                        if (!fieldChars.get(fieldName.charAt(i))) {
-                            valid = false;
-                            break;
-                        }
-                    }
-
-                    if (valid) {
-                        handler.field(field);
-                        bd.addField(fieldName, field.substring(index + 1));
-                    }
-                }
+    /**
+     * Checks that the bytes in the window are a valid field, and if so passes
+     * the field to the handler and the body descriptor.
+     *
+     * @param start the offset of the first byte of the field.
+     * @param end the offset just past the field, excluding the trailing \r\n.
+     * @param lineNumber the line the field starts on, for warnings.
+     */
+    private void parseField(BodyDescriptor bd, byte[] buf, int start, int end,
+            int lineNumber) {
+        int colon = start;
+        while (colon < end && buf[colon] != ':') {
+            colon++;
+        }
 
-                if (!valid && log.isWarnEnabled()) {
-                    log.warn("Line " + startLineNumber
-                            + ": Ignoring invalid field: '" + field.trim() + "'");
+        /*
+         * Check for a valid field.
+         */
+        boolean valid = false;
+        if (colon < end && fieldChars.get(buf[start] & 0xff)) {
+            int nameEnd = colon;
+            while (nameEnd > start && (buf[nameEnd - 1] & 0xff) <= ' ') {
+                nameEnd--;
+            }
+            valid = true;
+            for (int i = start; i < nameEnd; i++) {
+                if (!fieldChars.get(buf[i] & 0xff)) {
+                    valid = false;
+                    break;
                 }
-
-                startLineNumber = lineNumber;
             }
 
-            pos += 2;
-            lineNumber++;
+            if (valid) {
+                rawField.set(buf, start, nameEnd, colon, end);
+                handler.field(rawField);
+                /*
+                 * The descriptor only reads the Content-* fields, so don't
+                 * make strings of the other values for it.
+                 */
+                String fieldName = rawField.getName();
+                if (fieldName.regionMatches(true, 0, "Content-", 0, 8)) {
+                    bd.addField(fieldName, rawField.getBody());
+                }
+            }
         }
 
-        handler.endHeader();
-
-        return bd;
+        if (!valid && log.isWarnEnabled()) {
+            String field = new String(buf, start, end - start, ISO_8859_1);
+            log.warn("Line " + lineNumber
+                    + ": Ignoring invalid field: '" + field.trim() + "'");
+        }
     }
 
     /**
@@ -321,4 +416,21 @@ public class MimeStreamParser {
         this.handler = h;
     }
 
+    /**
+     * The stream the top level boundary streams push back into. Knows the
+     * offset in the root stream of the next byte it will return.
+     */
+    private static class RootPushbackInputStream extends PushbackInputStream {
+        private final RootInputStream root;
+
+        RootPushbackInputStream(RootInputStream root, int size) {
+            super(root, size);
+            this.root = root;
+        }
+
+        long getPosition() {
+            return root.getPosition() - (buf.length - pos);
+        }
+    }
+
 }
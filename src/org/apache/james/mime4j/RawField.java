@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import java.nio.charset.Charset;
+
+/**
+ * A header field as the {@link MimeStreamParser} passes it to
+ * {@link ContentHandler#field(RawField)}: a view over the bytes of the header, which are only
+ * turned into strings when they are asked for. Each byte is one character, as in ISO-8859-1.
+ * <p>
+ * The parser reuses the same instance, and the same bytes, for every field, so a field must not
+ * be kept past the call it was passed to; keep the strings instead.
+ * <p>
+ * The names of common fields, such as <code>Content-Type</code> and <code>Received</code>, are
+ * returned as shared constants when they are spelled the usual way, rather than as new strings.
+ */
+public final class RawField {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final String[] COMMON_NAMES = {
+        "ARC-Authentication-Results",
+        "ARC-Message-Signature",
+        "ARC-Seal",
+        "Authentication-Results",
+        "Bcc",
+        "Cc",
+        "Content-Description",
+        "Content-Disposition",
+        "Content-ID",
+        "Content-Language",
+        "Content-Transfer-Encoding",
+        "Content-Type",
+        "DKIM-Signature",
+        "Date",
+        "Delivered-To",
+        "From",
+        "Importance",
+        "In-Reply-To",
+        "List-Id",
+        "List-Unsubscribe",
+        "MIME-Version",
+        "Message-ID",
+        "Precedence",
+        "Received",
+        "Received-SPF",
+        "References",
+        "Reply-To",
+        "Return-Path",
+        "Sender",
+        "Subject",
+        "Thread-Index",
+        "Thread-Topic",
+        "To",
+        "X-Android-Attachment-StoreData",
+        "X-Google-DKIM-Signature",
+        "X-Gm-Message-State",
+        "X-Mailer",
+        "X-Priority",
+        "X-Received",
+    };
+
+    /** The common names by hash, with open addressing; a power of two, at most half full */
+    private static final String[] NAME_TABLE = new String[128];
+
+    static {
+        for (String name : COMMON_NAMES) {
+            int slot = name.hashCode() & (NAME_TABLE.length - 1);
+            while (NAME_TABLE[slot] != null) {
+                slot = (slot + 1) & (NAME_TABLE.length - 1);
+            }
+            NAME_TABLE[slot] = name;
+        }
+    }
+
+    private byte[] buffer;
+    private int start;
+    private int nameEnd;
+    private int colon;
+    private int end;
+
+    private String name;
+    private String body;
+    private String raw;
+
+    RawField() {
+    }
+
+    /**
+     * Points the view at a field.
+     *
+     * @param buffer the bytes of the header
+     * @param start the offset of the field's first byte
+     * @param nameEnd the offset just past the name, before any whitespace ahead of the colon
+     * @param colon the offset of the colon after the name
+     * @param end the offset just past the field, which doesn't include its final CRLF
+     */
+    void set(byte[] buffer, int start, int nameEnd, int colon, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.nameEnd = nameEnd;
+        this.colon = colon;
+        this.end = end;
+        name = null;
+        body = null;
+        raw = null;
+    }
+
+    /**
+     * Gets the name of the field (<code>Subject</code>, <code>From</code>, etc), without any
+     * whitespace between it and the colon.
+     */
+    public String getName() {
+        if (name == null) {
+            name = findCommonName();
+            if (name == null) {
+                name = new String(buffer, start, nameEnd - start, ISO_8859_1);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Gets the value of the field, after the colon, without leading or trailing whitespace. The
+     * value is not unfolded.
+     */
+    public String getBody() {
+        if (body == null) {
+            int bodyStart = colon + 1;
+            int bodyEnd = end;
+            while (bodyStart < bodyEnd && (buffer[bodyStart] & 0xff) <= ' ') {
+                bodyStart++;
+            }
+            while (bodyEnd > bodyStart && (buffer[bodyEnd - 1] & 0xff) <= ' ') {
+                bodyEnd--;
+            }
+            body = new String(buffer, bodyStart, bodyEnd - bodyStart, ISO_8859_1);
+        }
+        return body;
+    }
+
+    /**
+     * Gets the raw contents of the field (<code>Field-Name: field value</code>). The value is
+     * not unfolded.
+     */
+    public String getRaw() {
+        if (raw == null) {
+            raw = new String(buffer, start, end - start, ISO_8859_1);
+        }
+        return raw;
+    }
+
+    @Override
+    public String toString() {
+        return getRaw();
+    }
+
+    /**
+     * Returns the constant with the same characters as the name, if it is a common one, without
+     * making a string of the name.
+     */
+    private String findCommonName() {
+        final int length = nameEnd - start;
+        // The same hash as String.hashCode() of the name
+        int hash = 0;
+        for (int i = start; i < nameEnd; i++) {
+            hash = 31 * hash + (buffer[i] & 0xff);
+        }
+        int slot = hash & (NAME_TABLE.length - 1);
+        String candidate;
+        while ((candidate = NAME_TABLE[slot]) != null) {
+            if (candidate.length() == length && candidate.hashCode() == hash
+                    && matches(candidate)) {
+                return candidate;
+            }
+            slot = (slot + 1) & (NAME_TABLE.length - 1);
+        }
+        return null;
+    }
+
+    private boolean matches(String candidate) {
+        for (int i = 0; i < candidate.length(); i++) {
+            if (candidate.charAt(i) != (buffer[start + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -35,6 +35,7 @@ import java.io.InputStream;
 class RootInputStream extends InputStream {
     private InputStream is = null;
     private int lineNumber = 1;
+    private long position = 0;
     private int prev = -1;
     private boolean truncated = false;
 
@@ -57,6 +58,15 @@ class RootInputStream extends InputStream {
         return lineNumber;
     }
     
+    /**
+     * Gets the number of bytes read so far.
+     * 
+     * @return the offset of the next byte to be read.
+     */
+    public long getPosition() {
+        return position;
+    }
+    
     /**
      * Truncates this <code>InputStream</code>. After this call any 
      * call to {@link #read()}, {@link #read(byte[]) or 
@@ -76,6 +86,9 @@ class RootInputStream extends InputStream {
         }
         
         int b = is.read();
+        if (b != -1) {
+            position++;
+        }
         if (prev == '\r' && b == '\n') {
             lineNumber++;
         }
@@ -93,6 +106,9 @@ class RootInputStream extends InputStream {
         }
         
         int n = is.read(b, off, len);
+        if (n > 0) {
+            position += n;
+        }
         for (int i = off; i < off + n; i++) {
             if (prev == '\r' && b[i] == '\n') {
                 lineNumber++;
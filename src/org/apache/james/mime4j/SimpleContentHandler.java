@@ -68,10 +68,10 @@ public abstract class SimpleContentHandler extends  AbstractContentHandler {
     }
 
     /**
-     * @see org.apache.james.mime4j.AbstractContentHandler#field(java.lang.String)
+     * @see org.apache.james.mime4j.AbstractContentHandler#field(org.apache.james.mime4j.RawField)
      */
-    public final void field(String fieldData) {
-        currHeader.addField(Field.parse(fieldData));
+    public final void field(RawField rawField) {
+        currHeader.addField(Field.parse(rawField.getRaw()));
     }
 
     /**
@@ -28,17 +28,27 @@ import java.io.InputStream;
 
 /**
  * Performs Base-64 decoding on an underlying stream.
+ * The underlying stream is read in blocks, and
+ * {@link #read(byte[], int, int)} decodes straight into the caller's array.
  * 
  * 
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int ENCODED_BUFFER_SIZE = 4096;
+
     private final InputStream s;
     private int outCount = 0;
     private int outIndex = 0;
     private final int[] outputBuffer = new int[3];
     private final byte[] inputBuffer = new byte[4];
+    /** The number of sextets of the current quantum in inputBuffer */
+    private int inCount = 0;
     private boolean done = false;
+    /** Encoded bytes read from the underlying stream but not decoded yet */
+    private final byte[] encoded = new byte[ENCODED_BUFFER_SIZE];
+    private int encodedIndex = 0;
+    private int encodedCount = 0;
 
     public Base64InputStream(InputStream s) {
         this.s = s;
@@ -66,6 +76,70 @@ public class Base64InputStream extends InputStream {
         return outputBuffer[outIndex++];
     }
 
+    /**
+     * Decodes straight into the given array, a whole quantum at a time.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len && outIndex < outCount) {
+            b[off + n++] = (byte) outputBuffer[outIndex++];
+        }
+        while (n < len && !done) {
+            if (encodedIndex == encodedCount && !fillEncoded()) {
+                break;
+            }
+            final int i = encoded[encodedIndex++] & 0xFF;
+            if (i == '=') {
+                // once we meet the first '=', avoid reading the second '='
+                done = true;
+                decodeAndEnqueue(inCount);
+                inCount = 0;
+                while (n < len && outIndex < outCount) {
+                    b[off + n++] = (byte) outputBuffer[outIndex++];
+                }
+                break;
+            }
+            final byte sX = TRANSLATION[i];
+            if (sX < 0) continue;
+            inputBuffer[inCount++] = sX;
+            if (inCount == 4) {
+                inCount = 0;
+                final int accum = (inputBuffer[0] << 18) | (inputBuffer[1] << 12)
+                        | (inputBuffer[2] << 6) | inputBuffer[3];
+                if (len - n >= 3) {
+                    b[off + n++] = (byte) (accum >> 16);
+                    b[off + n++] = (byte) (accum >> 8);
+                    b[off + n++] = (byte) accum;
+                } else {
+                    decodeAndEnqueue(4);
+                    while (n < len) {
+                        b[off + n++] = (byte) outputBuffer[outIndex++];
+                    }
+                }
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    /**
+     * Reads more encoded bytes from the underlying stream.
+     *
+     * @return false if there are no more
+     */
+    private boolean fillEncoded() throws IOException {
+        final int count = s.read(encoded, 0, encoded.length);
+        if (count <= 0) {
+            return false;
+        }
+        encodedIndex = 0;
+        encodedCount = count;
+        return true;
+    }
+
     /**
      * Retrieve data from the underlying stream, decode it,
      * and put the results in the byteq.
@@ -74,19 +148,20 @@ public class Base64InputStream extends InputStream {
     private void fillBuffer() throws IOException {
         outCount = 0;
         outIndex = 0;
-        int inCount = 0;
 
         int i;
         // "done" is needed for the two successive '=' at the end
         while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
+            if (encodedIndex == encodedCount && !fillEncoded()) {
+                // No more input - just return, let outputBuffer drain out, and be done
+                return;
+            }
+            switch (i = encoded[encodedIndex++] & 0xFF) {
                 case '=':
                     // once we meet the first '=', avoid reading the second '='
                     done = true;
                     decodeAndEnqueue(inCount);
+                    inCount = 0;
                     return;
                 default:
                     byte sX = TRANSLATION[i];
@@ -94,6 +169,7 @@ public class Base64InputStream extends InputStream {
                     inputBuffer[inCount++] = sX;
                     if (inCount == 4) {
                         decodeAndEnqueue(inCount);
+                        inCount = 0;
                         return;
                     }
                     break;
@@ -102,6 +178,7 @@ public class Base64InputStream extends InputStream {
     }
 
     private void decodeAndEnqueue(int len) {
+        outIndex = 0;
         int accum = 0;
         accum |= inputBuffer[0] << 18;
         accum |= inputBuffer[1] << 12;
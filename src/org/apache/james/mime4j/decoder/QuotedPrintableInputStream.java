@@ -29,6 +29,8 @@ import org.apache.james.mime4j.LogFactory;
 
 /**
  * Performs Quoted-Printable decoding on an underlying stream.
+ * The underlying stream is read in blocks, and
+ * {@link #read(byte[], int, int)} decodes straight into the caller's array.
  * 
  * 
  * 
@@ -36,11 +38,28 @@ import org.apache.james.mime4j.LogFactory;
  */
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
-    
+
+    private static final int ENCODED_BUFFER_SIZE = 4096;
+
     private InputStream stream;
-    ByteQueue byteq = new ByteQueue();
-    ByteQueue pushbackq = new ByteQueue();
+    /** Encoded bytes read from the underlying stream but not decoded yet */
+    private byte[] encoded = new byte[ENCODED_BUFFER_SIZE];
+    private int encodedIndex = 0;
+    private int encodedCount = 0;
+    private boolean eof = false;
+    /**
+     * The encoded bytes before this index are known to be followed by
+     * something other than a line break or the end of the stream, so any
+     * whitespace among them is data rather than transport padding.
+     */
+    private int literalEnd = 0;
+    /** Decoded bytes that didn't fit in the caller's buffer */
+    private final byte[] pending = new byte[3];
+    private int pendingIndex = 0;
+    private int pendingCount = 0;
+    private final byte[] single = new byte[1];
     private byte state = 0;
+    private byte msdChar = 0;  // first digit of escaped num
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -56,152 +75,193 @@ public class QuotedPrintableInputStream extends InputStream {
     }
 
     public int read() throws IOException {
-        fillBuffer();
-        if (byteq.count() == 0)
+        if (read(single, 0, 1) == -1) {
             return -1;
-        else {
-            byte val = byteq.dequeue();
-            if (val >= 0)
-                return val;
-            else
-                return val & 0xFF;
         }
+        return single[0] & 0xFF;
     }
 
     /**
-     * Pulls bytes out of the underlying stream and places them in the
-     * pushback queue.  This is necessary (vs. reading from the
-     * underlying stream directly) to detect and filter out "transport
-     * padding" whitespace, i.e., all whitespace that appears immediately
-     * before a CRLF.
-     *
-     * @throws IOException Underlying stream threw IOException.
+     * Decodes straight into the given array.
      */
-    private void populatePushbackQueue() throws IOException {
-        //Debug.verify(pushbackq.count() == 0, "PopulatePushbackQueue called when pushback queue was not empty!");
-
-        if (pushbackq.count() != 0)
-            return;
-
-        while (true) {
-            int i = stream.read();
-            switch (i) {
-                case -1:
-                    // stream is done
-                    pushbackq.clear();  // discard any whitespace preceding EOF
-                    return;
-                case ' ':
-                case '\t':
-                    pushbackq.enqueue((byte)i);
-                    break;
-                case '\r':
-                case '\n':
-                    pushbackq.clear();  // discard any whitespace preceding EOL
-                    pushbackq.enqueue((byte)i);
-                    return;
-                default:
-                    pushbackq.enqueue((byte)i);
-                    return;
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len && pendingIndex < pendingCount) {
+            b[off + n++] = pending[pendingIndex++];
+        }
+        while (n < len) {
+            if (encodedIndex == encodedCount && !fillEncoded()) {
+                break;
+            }
+            final byte c = encoded[encodedIndex];
+            if ((c == ' ' || c == '\t') && encodedIndex >= literalEnd && skipPadding()) {
+                continue;
+            }
+            encodedIndex++;
+            if (state == 0 && c != '=') {
+                // The common case: a literal byte
+                b[off + n++] = c;
+            } else {
+                n = decode(c, b, off, n, len);
             }
         }
+        return n == 0 ? -1 : n;
     }
 
     /**
-     * Causes the pushback queue to get populated if it is empty, then
-     * consumes and decodes bytes out of it until one or more bytes are
-     * in the byte queue.  This decoding step performs the actual QP
-     * decoding.
+     * Called with a space or tab next in the encoded buffer. Finds the end of
+     * the run of whitespace it starts, reading more as needed, and drops the
+     * run if it is transport padding, i.e. comes right before a line break or
+     * the end of the stream.
      *
-     * @throws IOException Underlying stream threw IOException.
+     * @return true if the whitespace was dropped
      */
-    private void fillBuffer() throws IOException {
-        byte msdChar = 0;  // first digit of escaped num
-        while (byteq.count() == 0) {
-            if (pushbackq.count() == 0) {
-                populatePushbackQueue();
-                if (pushbackq.count() == 0)
-                    return;
+    private boolean skipPadding() throws IOException {
+        int end = encodedIndex;
+        while (true) {
+            while (end < encodedCount && (encoded[end] == ' ' || encoded[end] == '\t')) {
+                end++;
+            }
+            if (end < encodedCount || eof) {
+                break;
+            }
+            // Filling moves the bytes not decoded yet to the start of the buffer
+            end -= encodedIndex;
+            if (!fillEncoded()) {
+                break;
             }
+        }
+        if (end == encodedCount || encoded[end] == '\r' || encoded[end] == '\n') {
+            encodedIndex = end;
+            return true;
+        }
+        literalEnd = end;
+        return false;
+    }
 
-            byte b = (byte)pushbackq.dequeue();
+    /**
+     * Reads more encoded bytes from the underlying stream, keeping the ones
+     * not decoded yet.
+     *
+     * @return false if there are no more
+     */
+    private boolean fillEncoded() throws IOException {
+        if (eof) {
+            return false;
+        }
+        final int remaining = encodedCount - encodedIndex;
+        if (remaining == encoded.length) {
+            // A run of whitespace longer than the buffer
+            final byte[] grown = new byte[encoded.length * 2];
+            System.arraycopy(encoded, 0, grown, 0, encodedCount);
+            encoded = grown;
+        } else if (encodedIndex > 0) {
+            System.arraycopy(encoded, encodedIndex, encoded, 0, remaining);
+        }
+        literalEnd = Math.max(0, literalEnd - encodedIndex);
+        encodedIndex = 0;
+        encodedCount = remaining;
+        final int count = stream.read(encoded, remaining, encoded.length - remaining);
+        if (count <= 0) {
+            eof = true;
+            return false;
+        }
+        encodedCount += count;
+        return true;
+    }
 
-            switch (state) {
-                case 0:  // start state, no bytes pending
-                    if (b != '=') {
-                        byteq.enqueue(b);
-                        break;  // state remains 0
-                    } else {
-                        state = 1;
-                        break;
+    /**
+     * Runs one encoded byte through the decoder, and writes out whatever it
+     * decodes to.
+     *
+     * @return the new number of bytes written to the caller's array
+     */
+    private int decode(byte b, byte[] out, int off, int n, int len) {
+        pendingIndex = 0;
+        pendingCount = 0;
+        switch (state) {
+            case 0:  // start state, no bytes pending
+                if (b != '=') {
+                    pending[pendingCount++] = b;
+                    break;  // state remains 0
+                } else {
+                    state = 1;
+                    break;
+                }
+            case 1:  // encountered "=" so far
+                if (b == '\r') {
+                    state = 2;
+                    break;
+                } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
+                    state = 3;
+                    msdChar = b;  // save until next digit encountered
+                    break;
+                } else if (b == '=') {
+                    /*
+                     * Special case when == is encountered.
+                     * Emit one = and stay in this state.
+                     */
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; got ==");
                     }
-                case 1:  // encountered "=" so far
-                    if (b == '\r') {
-                        state = 2;
-                        break;
-                    } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        state = 3;
-                        msdChar = b;  // save until next digit encountered
-                        break;
-                    } else if (b == '=') {
-                        /*
-                         * Special case when == is encountered.
-                         * Emit one = and stay in this state.
-                         */
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; got ==");
-                        }
-                        byteq.enqueue((byte)'=');
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected \\r or "
-                                    + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(b);
-                        break;
+                    pending[pendingCount++] = '=';
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected \\r or "
+                                + "[0-9A-Z], got " + b);
                     }
-                case 2:  // encountered "=\r" so far
-                    if (b == '\n') {
-                        state = 0;
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected " 
-                                    + (int)'\n' + ", got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue((byte)'\r');
-                        byteq.enqueue(b);
-                        break;
+                    state = 0;
+                    pending[pendingCount++] = '=';
+                    pending[pendingCount++] = b;
+                    break;
+                }
+            case 2:  // encountered "=\r" so far
+                if (b == '\n') {
+                    state = 0;
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                + (int)'\n' + ", got " + b);
                     }
-                case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
-                    if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        byte msd = asciiCharToNumericValue(msdChar);
-                        byte low = asciiCharToNumericValue(b);
-                        state = 0;
-                        byteq.enqueue((byte)((msd << 4) | low));
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected "
-                                     + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(msdChar);
-                        byteq.enqueue(b);
-                        break;
+                    state = 0;
+                    pending[pendingCount++] = '=';
+                    pending[pendingCount++] = '\r';
+                    pending[pendingCount++] = b;
+                    break;
+                }
+            case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
+                if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
+                    byte msd = asciiCharToNumericValue(msdChar);
+                    byte low = asciiCharToNumericValue(b);
+                    state = 0;
+                    pending[pendingCount++] = (byte)((msd << 4) | low);
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                 + "[0-9A-Z], got " + b);
                     }
-                default:  // should never happen
-                    log.error("Illegal state: " + state);
                     state = 0;
-                    byteq.enqueue(b);
+                    pending[pendingCount++] = '=';
+                    pending[pendingCount++] = msdChar;
+                    pending[pendingCount++] = b;
                     break;
-            }
+                }
+            default:  // should never happen
+                log.error("Illegal state: " + state);
+                state = 0;
+                pending[pendingCount++] = b;
+                break;
+        }
+        while (n < len && pendingIndex < pendingCount) {
+            out[off + n++] = pending[pendingIndex++];
         }
+        return n;
     }
 
     /**
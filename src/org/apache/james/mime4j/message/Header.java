@@ -32,6 +32,7 @@ import java.util.List;
 
 import org.apache.james.mime4j.AbstractContentHandler;
 import org.apache.james.mime4j.MimeStreamParser;
+import org.apache.james.mime4j.RawField;
 import org.apache.james.mime4j.field.ContentTypeField;
 import org.apache.james.mime4j.field.Field;
 import org.apache.james.mime4j.util.CharsetUtil;
@@ -66,8 +67,8 @@ public class Header {
                 parser.stop();
             }
             @Override
-            public void field(String fieldData) {
-                addField(Field.parse(fieldData));
+            public void field(RawField rawField) {
+                addField(Field.parse(rawField.getRaw()));
             }
         });
         parser.parse(is);
@@ -27,6 +27,7 @@ import java.util.Stack;
 import org.apache.james.mime4j.BodyDescriptor;
 import org.apache.james.mime4j.ContentHandler;
 import org.apache.james.mime4j.MimeStreamParser;
+import org.apache.james.mime4j.RawField;
 import org.apache.james.mime4j.decoder.Base64InputStream;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 import org.apache.james.mime4j.field.Field;
@@ -140,11 +141,11 @@ public class Message extends Entity implements Body {
         }
 
         /**
-         * @see org.apache.james.mime4j.ContentHandler#field(java.lang.String)
+         * @see org.apache.james.mime4j.ContentHandler#field(org.apache.james.mime4j.RawField)
          */
-        public void field(String fieldData) {
+        public void field(RawField rawField) {
             expect(Header.class);
-            ((Header) stack.peek()).addField(Field.parse(fieldData));
+            ((Header) stack.peek()).addField(Field.parse(rawField.getRaw()));
         }
 
         /**
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.Multipart;
+import com.android.emailcommon.mail.Part;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that parsing a message from a buffer, leaving its bodies in place, gives the same parts
+ * and the same decoded bodies as parsing it from a stream.
+ */
+@SmallTest
+public class MimeMessageTest extends AndroidTestCase {
+
+    private static final String ATTACHMENT_BASE64;
+    static {
+        final byte[] attachment = new byte[3 * MimeUtility.MEMORY_BODY_THRESHOLD];
+        for (int i = 0; i < attachment.length; i++) {
+            attachment[i] = (byte) (i * 31);
+        }
+        ATTACHMENT_BASE64 = Base64.encodeToString(attachment, Base64.CRLF);
+    }
+
+    private static final String EMBEDDED =
+            "From: inner@example.com\r\n"
+            + "Subject: inner\r\n"
+            + "Content-Type: multipart/alternative; boundary=\"in\"\r\n"
+            + "\r\n"
+            + "--in\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "inner text\r\n"
+            + "--in\r\n"
+            + "Content-Type: text/html\r\n"
+            + "\r\n"
+            + "<b>inner</b>\r\n"
+            + "--in--\r\n";
+
+    private static final String MESSAGE =
+            "From: sender@example.com\r\n"
+            + "To: recipient@example.com\r\n"
+            + "Subject: outer\r\n"
+            + "MIME-Version: 1.0\r\n"
+            + "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+            + "\r\n"
+            + "preamble\r\n"
+            + "--outer\r\n"
+            + "Content-Type: multipart/alternative; boundary=\"alt\"\r\n"
+            + "\r\n"
+            + "--alt\r\n"
+            + "Content-Type: text/plain; charset=utf-8\r\n"
+            + "Content-Transfer-Encoding: quoted-printable\r\n"
+            + "\r\n"
+            + "caf=C3=A9 with a soft=\r\n"
+            + " break\r\n"
+            + "--alt\r\n"
+            + "Content-Type: text/html; charset=utf-8\r\n"
+            + "\r\n"
+            + "<p>café</p>\r\n"
+            + "--alt--\r\n"
+            + "--outer\r\n"
+            + "Content-Type: application/octet-stream; name=\"data.bin\"\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "Content-Disposition: attachment; filename=\"data.bin\"\r\n"
+            + "\r\n"
+            + ATTACHMENT_BASE64
+            + "--outer\r\n"
+            + "Content-Type: message/rfc822\r\n"
+            + "\r\n"
+            + EMBEDDED
+            + "--outer\r\n"
+            + "Content-Type: message/rfc822\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            + Base64.encodeToString(utf8(EMBEDDED), Base64.CRLF)
+            + "--outer--\r\n"
+            + "epilogue\r\n";
+
+    private static final String SINGLE_PART =
+            "From: sender@example.com\r\n"
+            + "Subject: single\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            + Base64.encodeToString(utf8("just the one part"), Base64.CRLF);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int countBodyFiles() {
+        int count = 0;
+        for (File file : TempDirectory.getTempDirectory().listFiles()) {
+            if (file.getName().startsWith("body")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Describes the tree of parts, with the decoded contents of each body.
+     */
+    private static void describe(Part part, StringBuilder sb) throws Exception {
+        sb.append('[').append(part.getMimeType()).append(' ');
+        final Body body = part.getBody();
+        if (body instanceof Multipart) {
+            final Multipart multipart = (Multipart) body;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                describe(multipart.getBodyPart(i), sb);
+            }
+        } else if (body instanceof MimeMessage) {
+            sb.append(((MimeMessage) body).getSubject());
+            describe((MimeMessage) body, sb);
+        } else if (body != null) {
+            final InputStream in = body.getInputStream();
+            try {
+                sb.append(new String(IOUtils.toByteArray(in), "ISO-8859-1"));
+            } finally {
+                in.close();
+            }
+        }
+        sb.append(']');
+    }
+
+    private static String describe(MimeMessage message) throws Exception {
+        final StringBuilder sb = new StringBuilder(message.getSubject());
+        describe(message, sb);
+        return sb.toString();
+    }
+
+    private static void assertSameParse(String message) throws Exception {
+        final byte[] bytes = utf8(message);
+        final String expected = describe(new MimeMessage(new ByteArrayInputStream(bytes)));
+        final MimeMessage indexed = new MimeMessage(ByteBuffer.wrap(bytes));
+        assertEquals(expected, describe(indexed));
+        // The bodies are still there to read a second time
+        assertEquals(expected, describe(indexed));
+    }
+
+    public void testSameAsStreamParse() throws Exception {
+        assertSameParse(MESSAGE);
+        assertSameParse(SINGLE_PART);
+        assertSameParse(EMBEDDED);
+    }
+
+    public void testBareLineEndings() throws Exception {
+        assertSameParse(MESSAGE.replace("\r\n", "\n"));
+        assertSameParse(SINGLE_PART.replace("\r\n", "\n"));
+        assertSameParse(EMBEDDED.replace("\r\n", "\r"));
+    }
+
+    public void testBodiesAreLeftInPlace() throws Exception {
+        final int bodyFiles = countBodyFiles();
+        final byte[] bytes = utf8(MESSAGE);
+        // Offsets are counted from the buffer's position
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 10);
+        buffer.position(10);
+        buffer.put(bytes);
+        buffer.position(10);
+        final MimeMessage message = new MimeMessage(buffer);
+        assertEquals(bodyFiles, countBodyFiles());
+
+        final Multipart mixed = (Multipart) message.getBody();
+        final Body attachment = mixed.getBodyPart(1).getBody();
+        assertTrue(attachment instanceof IndexedBody);
+        assertEquals(ATTACHMENT_BASE64.length() - 2,
+                ((IndexedBody) attachment).getEncodedLength());
+
+        // The parts of an encoded message/rfc822 body can't be found in the buffer, so they're
+        // decoded as they are parsed
+        final MimeMessage encoded = (MimeMessage) mixed.getBodyPart(3).getBody();
+        final Body encodedText = ((Multipart) encoded.getBody()).getBodyPart(0).getBody();
+        assertFalse(encodedText instanceof IndexedBody);
+        assertEquals("inner text", MimeUtility.getTextFromPart(
+                ((Multipart) encoded.getBody()).getBodyPart(0)));
+    }
+}
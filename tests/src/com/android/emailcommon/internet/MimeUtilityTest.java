@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+@SmallTest
+public class MimeUtilityTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+        deleteBodyFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteBodyFiles();
+        super.tearDown();
+    }
+
+    private static File[] getBodyFiles() {
+        final File[] files = TempDirectory.getTempDirectory().listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith("body")) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private static void deleteBodyFiles() {
+        for (File file : getBodyFiles()) {
+            file.delete();
+        }
+    }
+
+    private static byte[] makeBytes(int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private static byte[] read(Body body) throws IOException, MessagingException {
+        final InputStream in = body.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testSmallBodiesStayInMemory() throws Exception {
+        final SharedTempFile tempFile = new SharedTempFile();
+        for (int length : new int[] { 0, 200, MimeUtility.MEMORY_BODY_THRESHOLD }) {
+            final byte[] data = makeBytes(length);
+            final Body body = MimeUtility.decodeBody(new ByteArrayInputStream(data), null,
+                    tempFile);
+            assertTrue(body instanceof BinaryMemoryBody);
+            assertTrue(Arrays.equals(data, read(body)));
+        }
+        assertEquals(0, getBodyFiles().length);
+    }
+
+    public void testLargeBodiesShareOneFile() throws Exception {
+        final SharedTempFile tempFile = new SharedTempFile();
+        final byte[] first = makeBytes(MimeUtility.MEMORY_BODY_THRESHOLD + 1);
+        final byte[] second = makeBytes(3 * MimeUtility.MEMORY_BODY_THRESHOLD + 17);
+        final Body firstBody = MimeUtility.decodeBody(new ByteArrayInputStream(first), null,
+                tempFile);
+        // Closing the file in between doesn't start a new one
+        tempFile.close();
+        final Body secondBody = MimeUtility.decodeBody(new ByteArrayInputStream(second), null,
+                tempFile);
+        tempFile.close();
+        assertTrue(firstBody instanceof SharedTempFileBody);
+        assertTrue(secondBody instanceof SharedTempFileBody);
+        assertEquals(1, getBodyFiles().length);
+
+        // Read out of order; the file goes away once both have been read
+        assertTrue(Arrays.equals(second, read(secondBody)));
+        assertEquals(1, getBodyFiles().length);
+        assertTrue(Arrays.equals(first, read(firstBody)));
+        assertEquals(0, getBodyFiles().length);
+    }
+
+    public void testDecodesTransferEncoding() throws Exception {
+        final Body body = MimeUtility.decodeBody(
+                new ByteArrayInputStream("aGVsbG8gd29ybGQ=".getBytes("US-ASCII")), "base64");
+        assertEquals("hello world", new String(read(body), "US-ASCII"));
+    }
+
+    public void testGetTextFromPart() throws Exception {
+        final String text = "café 日本語 ";
+        final StringBuilder large = new StringBuilder();
+        while (large.length() < MimeUtility.MEMORY_BODY_THRESHOLD) {
+            large.append(text);
+        }
+        for (String expected : new String[] { text, large.toString() }) {
+            final Body body = MimeUtility.decodeBody(
+                    new ByteArrayInputStream(expected.getBytes("UTF-8")), null);
+            final MimeBodyPart part = new MimeBodyPart(body, "text/plain");
+            part.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "text/plain; charset=utf-8");
+            assertEquals(expected, MimeUtility.getTextFromPart(part));
+        }
+    }
+}
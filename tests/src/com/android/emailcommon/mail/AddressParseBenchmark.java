@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.mail;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures {@link Address#parse(String)} and {@link Address#isAllValid(String)} on the kind of
+ * very long To and Cc headers that mailing lists and company-wide announcements produce,
+ * against the tokenizer and regex based implementation they replaced. Results are printed to
+ * standard out, and the results of both implementations are checked to be the same.
+ */
+@LargeTest
+public class AddressParseBenchmark extends TestCase {
+
+    private static final int RECIPIENTS = 1000;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int ITERATIONS = 200;
+
+    private static final String RECIPIENT_LIST = buildRecipientList();
+
+    private static String buildRecipientList() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            switch (i % 4) {
+                case 0:
+                    sb.append("user").append(i).append("@example.com");
+                    break;
+                case 1:
+                    sb.append("First").append(i).append(" Last <first.last").append(i)
+                            .append("@mail.example.org>");
+                    break;
+                case 2:
+                    sb.append("\"Last, First ").append(i).append("\" <fl").append(i)
+                            .append("@corp.example.co.uk>");
+                    break;
+                default:
+                    sb.append("\"日本語 ").append(i).append("\" (team) <jp")
+                            .append(i).append("@example.jp>");
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private interface Parser {
+        int parse(String addressList);
+    }
+
+    private static final Parser PARSE = new Parser() {
+        @Override
+        public int parse(String addressList) {
+            return Address.parse(addressList).length;
+        }
+    };
+
+    private static final Parser LEGACY_PARSE = new Parser() {
+        @Override
+        public int parse(String addressList) {
+            return LegacyAddressParser.parse(addressList).length;
+        }
+    };
+
+    private static final Parser IS_ALL_VALID = new Parser() {
+        @Override
+        public int parse(String addressList) {
+            return Address.isAllValid(addressList) ? 1 : 0;
+        }
+    };
+
+    private static final Parser LEGACY_IS_ALL_VALID = new Parser() {
+        @Override
+        public int parse(String addressList) {
+            return LegacyAddressParser.isAllValid(addressList) ? 1 : 0;
+        }
+    };
+
+    /**
+     * Returns the number of microseconds it takes to parse the recipient list once.
+     */
+    private static long run(Parser parser) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            parser.parse(RECIPIENT_LIST);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parser.parse(RECIPIENT_LIST);
+        }
+        return (System.nanoTime() - start) / 1000 / ITERATIONS;
+    }
+
+    private static void assertSameAddresses(Address[] expected, Address[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getAddress(), actual[i].getAddress());
+            assertEquals(expected[i].getPersonal(), actual[i].getPersonal());
+        }
+    }
+
+    public void testParse() {
+        assertEquals(RECIPIENTS, PARSE.parse(RECIPIENT_LIST));
+        assertSameAddresses(LegacyAddressParser.parse(RECIPIENT_LIST),
+                Address.parse(RECIPIENT_LIST));
+        System.out.println(String.format("parse, %d recipients: %d us, was %d us",
+                RECIPIENTS, run(PARSE), run(LEGACY_PARSE)));
+    }
+
+    public void testIsAllValid() {
+        assertEquals(1, IS_ALL_VALID.parse(RECIPIENT_LIST));
+        // One bad address at the end of the long list makes the whole list invalid
+        final String withInvalid = RECIPIENT_LIST + ", bad@";
+        assertEquals(LegacyAddressParser.isAllValid(withInvalid), Address.isAllValid(withInvalid));
+        assertFalse(Address.isAllValid(withInvalid));
+        System.out.println(String.format("isAllValid, %d recipients: %d us, was %d us",
+                RECIPIENTS, run(IS_ALL_VALID), run(LEGACY_IS_ALL_VALID)));
+    }
+}
@@ -698,4 +698,34 @@ public class AddressUnitTests extends AndroidTestCase {
         // isAllValid() must accept empty address list as valid
         assertTrue("Empty address list is valid", Address.isAllValid(""));
     }
+
+    /**
+     * Checks that parse() and isAllValid() agree with the tokenizer and regex based
+     * implementation they replaced, on every address list used in these tests and some more
+     * awkward ones.
+     */
+    public void testParseMatchesLegacyParser() {
+        final String[] lists = {
+                "", " ", "  ,  ", ",;,", "address1", "address2@", "@dom3.com",
+                "address4@sub@dom4.org", "address5@dom5", "address6@dom6.com.",
+                "address7@.dom7.org", "address1@dom1.com", "<address2@dom2.com>",
+                "first last <address3@dom3.org>", "\"first,last\" <address4@dom4.org>",
+                MULTI_ADDRESSES_LIST, Address.toHeader(TO_HEADER_CASES[6]),
+                "Name (comment (nested)) <a@b.cd>", "\"q\\\"uote\" <a@b.cd>",
+                "  lead   and  trailing   spaces  <a@b.cd>  ", "name only; x@y.z",
+                "a b c@d.e", "<>", "\"\" <a@b.cd>", "\u00e9@\u00e9.\u00e9", "a@\u0661.\u0662",
+                "a@b\u200d.c", "a@(b).[c]", "a@b-c.d_e", "a@b\u2603.c", "a@b..c",
+                "\"unterminated <a@b.cd>", "(unterminated <a@b.cd>", "<unterminated@b.cd",
+                "=?UTF-8?B?w6k=?= <a@b.cd>",
+        };
+        for (String list : lists) {
+            final Address[] expected = LegacyAddressParser.parse(list);
+            final Address[] actual = Address.parse(list);
+            assertEquals(list, expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertTrue(list, addressEquals(expected[i], actual[i]));
+            }
+            assertEquals(list, LegacyAddressParser.isAllValid(list), Address.isAllValid(list));
+        }
+    }
 }
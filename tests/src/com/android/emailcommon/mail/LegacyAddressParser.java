@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.mail;
+
+import android.text.TextUtils;
+import android.text.util.Rfc822Token;
+import android.text.util.Rfc822Tokenizer;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * The {@link Rfc822Tokenizer} and regex based implementation of {@link Address#parse(String)}
+ * and {@link Address#isAllValid(String)} that the hand-written scanner replaced. Kept so tests
+ * and benchmarks can check the scanner against it.
+ */
+final class LegacyAddressParser {
+
+    private static final String LOCAL_PART = "[^@]+";
+    private static final String DOMAIN_PART_PART = "[[\\w][\\d]\\-\\(\\)\\[\\]]+";
+    private static final String DOMAIN_PART =
+            "(" + DOMAIN_PART_PART + "\\.)+" + DOMAIN_PART_PART;
+    private static final Pattern EMAIL_ADDRESS =
+            Pattern.compile("\\A" + LOCAL_PART + "@" + DOMAIN_PART + "\\z");
+
+    private LegacyAddressParser() {
+    }
+
+    static boolean isValidAddress(String address) {
+        return EMAIL_ADDRESS.matcher(address).find();
+    }
+
+    static boolean isAllValid(String addressList) {
+        if (addressList != null && addressList.length() > 0) {
+            for (Rfc822Token token : Rfc822Tokenizer.tokenize(addressList)) {
+                final String address = token.getAddress();
+                if (!TextUtils.isEmpty(address) && !isValidAddress(address)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static Address[] parse(String addressList) {
+        if (addressList == null || addressList.length() == 0) {
+            return new Address[0];
+        }
+        final ArrayList<Address> addresses = new ArrayList<Address>();
+        for (Rfc822Token token : Rfc822Tokenizer.tokenize(addressList)) {
+            final String address = token.getAddress();
+            if (!TextUtils.isEmpty(address) && isValidAddress(address)) {
+                String name = token.getName();
+                if (TextUtils.isEmpty(name)) {
+                    name = null;
+                }
+                addresses.add(new Address(address, name));
+            }
+        }
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import static com.android.emailcommon.utility.TextUtilities.ESCAPE_STRINGS;
+import static com.android.emailcommon.utility.TextUtilities.MAX_STRIP_TAG_LENGTH;
+import static com.android.emailcommon.utility.TextUtilities.NON_BREAKING_SPACE_CHARACTER;
+import static com.android.emailcommon.utility.TextUtilities.STRIP_TAGS;
+import static com.android.emailcommon.utility.TextUtilities.findTagEnd;
+
+/**
+ * {@link TextUtilities#makeSnippetFromText} as it was before it stopped allocating: it copied
+ * and lowercased every tag it checked, copied every entity to look it up in ESCAPE_STRINGS, and
+ * allocated its buffers on every call. Kept to check the current version against and to
+ * compare with in {@link SnippetBenchmark}.
+ */
+class LegacySnippetMaker {
+    private static final int MAX_SNIPPET_LENGTH = 200;
+
+    static String makeSnippetFromText(String text, boolean stripHtml) {
+        // Handle null and empty string
+        if (text == null || text.length() == 0) return "";
+
+        final int length = text.length();
+        // Use char[] instead of StringBuilder purely for performance; fewer method calls, etc.
+        char[] buffer = new char[MAX_SNIPPET_LENGTH];
+        // skipCount is an array of a single int; that int is set inside stripHtmlEntity and is
+        // used to determine how many characters can be "skipped" due to the transformation of the
+        // entity to a single character.  When Java allows multiple return values, we can make this
+        // much cleaner :-)
+        int[] skipCount = new int[1];
+        int bufferCount = 0;
+        // Start with space as last character to avoid leading whitespace
+        char last = ' ';
+        // Indicates whether we're in the middle of an HTML tag
+        boolean inTag = false;
+
+        // Walk through the text until we're done with the input OR we've got a large enough snippet
+        for (int i = 0; i < length && bufferCount < MAX_SNIPPET_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (stripHtml && !inTag && (c == '<')) {
+                // Find tags to strip; they will begin with <! or !- or </ or <letter
+                if (i < (length - 1)) {
+                    char peek = text.charAt(i + 1);
+                    if (peek == '!' || peek == '-' || peek == '/' || Character.isLetter(peek)) {
+                        inTag = true;
+                        // Strip content of title, script, style and applet tags
+                        if (i < (length - (MAX_STRIP_TAG_LENGTH + 2))) {
+                            String tag = text.substring(i + 1, i + MAX_STRIP_TAG_LENGTH + 1);
+                            String tagLowerCase = tag.toLowerCase();
+                            boolean stripContent = false;
+                            for (String stripTag: STRIP_TAGS) {
+                                if (tagLowerCase.startsWith(stripTag)) {
+                                    stripContent = true;
+                                    tag = tag.substring(0, stripTag.length());
+                                    break;
+                                }
+                            }
+                            if (stripContent) {
+                                // Look for the end of this tag
+                                int endTagPosition = findTagEnd(text, tag, i);
+                                if (endTagPosition < 0) {
+                                    break;
+                                } else {
+                                    i = endTagPosition;
+                                }
+                            }
+                        }
+                    }
+                }
+            } else if (stripHtml && inTag && (c == '>')) {
+                // Terminate stripping here
+                inTag = false;
+                continue;
+            }
+
+            if (inTag) {
+                // We just skip by everything while we're in a tag
+                continue;
+            } else if (stripHtml && (c == '&')) {
+                // Handle a possible HTML entity here
+                // We always get back a character to use; we also get back a "skip count",
+                // indicating how many characters were eaten from the entity
+                c = stripHtmlEntity(text, i, skipCount);
+                i += skipCount[0];
+            }
+
+            if (Character.isWhitespace(c) || (c == NON_BREAKING_SPACE_CHARACTER)) {
+                // The idea is to find the content in the message, not the whitespace, so we'll
+                // turn any combination of contiguous whitespace into a single space
+                if (last == ' ') {
+                    continue;
+                } else {
+                    // Make every whitespace character a simple space
+                    c = ' ';
+                }
+            } else if ((c == '-' || c == '=') && (last == c)) {
+                // Lots of messages (especially digests) have whole lines of --- or ===
+                // We'll get rid of those duplicates here
+                continue;
+            }
+
+            // After all that, maybe we've got a character for our snippet
+            buffer[bufferCount++] = c;
+            last = c;
+        }
+
+        // Lose trailing space and return our snippet
+        if ((bufferCount > 0) && (last == ' ')) {
+            bufferCount--;
+        }
+        return new String(buffer, 0, bufferCount);
+    }
+
+    static char stripHtmlEntity(String text, int pos, int[] skipCount) {
+        int length = text.length();
+        // Ugly, but we store our skip count in this array; we can't use a static here, because
+        // multiple threads might be calling in
+        skipCount[0] = 0;
+        // All entities are <= 8 characters long, so that's how far we'll look for one (+ & and ;)
+        int end = pos + 10;
+        String entity = null;
+        // Isolate the entity
+        for (int i = pos; (i < length) && (i < end); i++) {
+            if (text.charAt(i) == ';') {
+                entity = text.substring(pos, i);
+                break;
+            }
+        }
+        if (entity == null) {
+            // This wasn't really an HTML entity
+            return '&';
+        } else {
+            // Skip count is the length of the entity
+            Character mapping = ESCAPE_STRINGS.get(entity);
+            int entityLength = entity.length();
+            if (mapping != null) {
+                skipCount[0] = entityLength;
+                return mapping;
+            } else if ((entityLength > 2) && (entity.charAt(1) == '#')) {
+                // &#nn; means ascii nn (decimal) and &#xnn means ascii nn (hex)
+                char c = '?';
+                try {
+                    int i;
+                    if ((entity.charAt(2) == 'x') && (entityLength > 3)) {
+                        i = Integer.parseInt(entity.substring(3), 16);
+                    } else {
+                        i = Integer.parseInt(entity.substring(2));
+                    }
+                    c = (char)i;
+                } catch (NumberFormatException e) {
+                    // We'll just return the ? in this case
+                }
+                skipCount[0] = entityLength;
+                return c;
+            }
+        }
+        // Worst case, we return the original start character, ampersand
+        return '&';
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+import java.util.Random;
+
+@SmallTest
+public class SearchTermMatcherTest extends TestCase {
+
+    private static final String SPAN = "<span style=\"background-color: "
+            + TextUtilities.HIGHLIGHT_COLOR_STRING + "\">";
+
+    private static String highlighted(String text) {
+        return SPAN + text + "</span>";
+    }
+
+    /**
+     * Returns the length of the longest term that ends at the given position, found the slow way.
+     */
+    private static int longestMatchEndingAt(String text, int end, String[] terms) {
+        int longest = 0;
+        for (String term : terms) {
+            final int start = end - term.length();
+            if (start >= 0 && term.length() > longest
+                    && text.regionMatches(true, start, term, 0, term.length())) {
+                longest = term.length();
+            }
+        }
+        return longest;
+    }
+
+    public void testMatchesLikeRegionMatches() {
+        final String alphabet = "abAB iIıİσςΣKKéÉ";
+        final Random random = new Random(1);
+        for (int round = 0; round < 500; round++) {
+            final String[] terms = new String[1 + random.nextInt(6)];
+            final StringBuilder query = new StringBuilder();
+            for (int t = 0; t < terms.length; t++) {
+                final StringBuilder term = new StringBuilder();
+                for (int i = 1 + random.nextInt(4); i > 0; i--) {
+                    char c;
+                    do {
+                        c = alphabet.charAt(random.nextInt(alphabet.length()));
+                    } while (c == ' ');
+                    term.append(c);
+                }
+                terms[t] = term.toString();
+                query.append(term).append(' ');
+            }
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            final SearchTermMatcher matcher = new SearchTermMatcher(query.toString());
+            assertEquals(terms.length, matcher.getTermCount());
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                state = matcher.next(state, text.charAt(i));
+                assertEquals(text + " / " + query + " at " + i,
+                        longestMatchEndingAt(text.toString(), i + 1, terms),
+                        matcher.getMatchLength(state));
+            }
+        }
+    }
+
+    public void testForQueryReusesMatcher() {
+        final SearchTermMatcher matcher = SearchTermMatcher.forQuery("one two");
+        assertSame(matcher, SearchTermMatcher.forQuery("one two"));
+        assertNotSame(matcher, SearchTermMatcher.forQuery("one three"));
+    }
+
+    public void testHighlightHtml() {
+        assertEquals("hello " + highlighted("world"),
+                TextUtilities.highlightTermsInHtml("hello world", "world"));
+        assertEquals(highlighted("Hello") + " " + highlighted("WORLD"),
+                TextUtilities.highlightTermsInHtml("Hello WORLD", "hELLO world"));
+        assertEquals("no match", TextUtilities.highlightTermsInHtml("no match", "other"));
+        assertEquals("no terms", TextUtilities.highlightTermsInHtml("no terms", "  "));
+        assertEquals("", TextUtilities.highlightTermsInHtml("", "term"));
+
+        // Overlapping matches are highlighted together, but adjacent ones separately
+        assertEquals(highlighted("abcd") + "e",
+                TextUtilities.highlightTermsInHtml("abcde", "bcd abc"));
+        assertEquals(highlighted("foo") + highlighted("foo"),
+                TextUtilities.highlightTermsInHtml("foofoo", "foo"));
+        // A match can start inside a partial match of the same term
+        assertEquals("a" + highlighted("ab"), TextUtilities.highlightTermsInHtml("aab", "ab"));
+    }
+
+    public void testHighlightHtmlSkipsTags() {
+        assertEquals("<b>" + highlighted("foo") + "</b> <a href=\"foo\">bar</a>",
+                TextUtilities.highlightTermsInHtml("<b>foo</b> <a href=\"foo\">bar</a>", "foo"));
+        // Matches don't run across tags
+        assertEquals("fo<b>o</b>", TextUtilities.highlightTermsInHtml("fo<b>o</b>", "foo"));
+        // Nor into the content of tags like title and script
+        assertEquals("<TITLE>foo</TITLE>" + highlighted("foo"),
+                TextUtilities.highlightTermsInHtml("<TITLE>foo</TITLE>foo", "foo"));
+        assertEquals("<script>foo foo foo", TextUtilities.highlightTermsInHtml(
+                "<script>foo foo foo", "foo"));
+        // Less-than that doesn't start a tag is text
+        assertEquals("1 " + highlighted("<") + " 2",
+                TextUtilities.highlightTermsInHtml("1 < 2", "<"));
+    }
+
+    public void testHighlightNonAscii() {
+        assertEquals(highlighted("ΕΛΛΆΔΑ"), TextUtilities.highlightTermsInHtml("ΕΛΛΆΔΑ", "ελλάδα"));
+        // Final sigma matches the other forms
+        assertEquals(highlighted("ΟΔΟΣ"), TextUtilities.highlightTermsInHtml("ΟΔΟΣ", "οδος"));
+        final Locale locale = Locale.getDefault();
+        try {
+            // Which locale the query is typed in doesn't matter
+            Locale.setDefault(new Locale("tr"));
+            assertEquals("Subject: " + highlighted("inbox"),
+                    TextUtilities.highlightTermsInHtml("Subject: inbox", "INBOX"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testHighlightText() {
+        final CharSequence text = TextUtilities.highlightTermsInText("Hello world", "WORLD");
+        assertEquals("Hello world", text.toString());
+        final Spanned spanned = (Spanned) text;
+        final BackgroundColorSpan[] spans =
+                spanned.getSpans(0, text.length(), BackgroundColorSpan.class);
+        assertEquals(1, spans.length);
+        assertEquals(6, spanned.getSpanStart(spans[0]));
+        assertEquals(11, spanned.getSpanEnd(spans[0]));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Measures how fast {@link TextUtilities#makeSnippetFromText} makes snippets of html and plain
+ * text bodies, and how much it allocates doing it, compared with the implementation it replaced.
+ * Results are printed to standard out in snippets per second and bytes allocated per snippet
+ * (where the runtime can count them), after checking that both implementations make the same
+ * snippet from every body.
+ */
+@LargeTest
+public class SnippetBenchmark extends TestCase {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private static final String[] HTML_CORPUS = buildHtmlCorpus();
+    private static final String PLAIN_TEXT = buildPlainText();
+
+    /**
+     * Builds html bodies the way mail arrives: a head and style block before the text, tags
+     * every few words, and plenty of entities.
+     */
+    private static String[] buildHtmlCorpus() {
+        final StringBuilder newsletter = new StringBuilder();
+        newsletter.append("<!DOCTYPE html><html><HEAD><title>Daily digest</title>")
+                .append("<style type=\"text/css\">body{margin:0}td{font-family:Arial}</style>")
+                .append("</HEAD><body><!--[if mso]><table><tr><td><![endif]-->");
+        for (int i = 0; i < 40; i++) {
+            newsletter.append("<table width=\"100%\"><tr><td style=\"padding:12px\">")
+                    .append("<a href=\"https://news.example.com/").append(i)
+                    .append("?a=1&amp;b=2\"><b>Headline &#8212; number ").append(i)
+                    .append("</b></a><br><span>Summary with &quot;quotes&quot;, an ")
+                    .append("ampersand &amp; a non&nbsp;breaking space &hellip;</span>")
+                    .append("</td></tr></table>\r\n");
+        }
+        newsletter.append("</body></html>");
+
+        final StringBuilder entities = new StringBuilder();
+        entities.append("<div dir=\"ltr\">");
+        for (int i = 0; i < 60; i++) {
+            entities.append("&ldquo;Caf&eacute;&rdquo; &ndash; &euro;").append(i)
+                    .append(" &copy; &#169; &#x263A; &lt;tag&gt; &bogus; ");
+        }
+        entities.append("</div>");
+
+        final StringBuilder reply = new StringBuilder();
+        reply.append("<div>Sounds good,<br>see you then.</div><div class=\"gmail_quote\">")
+                .append("<blockquote>------------------------------<br>=============<br>");
+        for (int i = 0; i < 30; i++) {
+            reply.append("<p>Earlier message ").append(i).append(" of the thread.</p>");
+        }
+        reply.append("</blockquote></div>");
+
+        return new String[] { newsletter.toString(), entities.toString(), reply.toString() };
+    }
+
+    private static String buildPlainText() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("Line ").append(i).append(" of a plain    text\tmessage,  with\r\n\r\n")
+                    .append("------------------------------\r\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of bytes this thread has allocated so far, or -1 if the runtime can't
+     * tell. Uses the HotSpot ThreadMXBean on a JVM, and Debug's allocation counting on Android.
+     */
+    private static long allocatedBytes() {
+        try {
+            final Object bean = ManagementFactory.getThreadMXBean();
+            final Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Throwable e) {
+            // Not a HotSpot JVM
+        }
+        try {
+            return (Integer) Class.forName("android.os.Debug").getMethod("getThreadAllocSize")
+                    .invoke(null);
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static void startAllocCounting() {
+        try {
+            final Class<?> debug = Class.forName("android.os.Debug");
+            debug.getMethod("resetThreadAllocSize").invoke(null);
+            debug.getMethod("startAllocCounting").invoke(null);
+        } catch (Throwable e) {
+            // Only needed on Android
+        }
+    }
+
+    private static void stopAllocCounting() {
+        try {
+            Class.forName("android.os.Debug").getMethod("stopAllocCounting").invoke(null);
+        } catch (Throwable e) {
+            // Only needed on Android
+        }
+    }
+
+    private static int makeSnippets(int iterations, boolean legacy) {
+        int length = 0;
+        for (int i = 0; i < iterations; i++) {
+            final boolean html = i % 4 != 3;
+            final String text = html ? HTML_CORPUS[i % HTML_CORPUS.length] : PLAIN_TEXT;
+            length += (legacy ? LegacySnippetMaker.makeSnippetFromText(text, html)
+                    : TextUtilities.makeSnippetFromText(text, html)).length();
+        }
+        return length;
+    }
+
+    private static void run(String label, boolean legacy) {
+        makeSnippets(WARMUP_ITERATIONS, legacy);
+
+        startAllocCounting();
+        final long startBytes = allocatedBytes();
+        final long start = System.nanoTime();
+        makeSnippets(ITERATIONS, legacy);
+        final long elapsed = System.nanoTime() - start;
+        final long endBytes = allocatedBytes();
+        stopAllocCounting();
+
+        final String allocated = startBytes < 0 || endBytes < 0 ? "n/a"
+                : Long.toString((endBytes - startBytes) / ITERATIONS);
+        System.out.println(String.format("%s: %d snippets/sec, %s bytes allocated/snippet",
+                label, ITERATIONS * 1000000000L / Math.max(elapsed, 1), allocated));
+    }
+
+    public void testSnippets() {
+        for (String html : HTML_CORPUS) {
+            final String snippet = TextUtilities.makeSnippetFromText(html, true);
+            assertTrue(snippet.length() > 0);
+            assertEquals(LegacySnippetMaker.makeSnippetFromText(html, true), snippet);
+        }
+        assertEquals(LegacySnippetMaker.makeSnippetFromText(PLAIN_TEXT, false),
+                TextUtilities.makeSnippetFromText(PLAIN_TEXT, false));
+
+        run("makeSnippetFromText", false);
+        run("before", true);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Random;
+
+@SmallTest
+public class TextUtilitiesTest extends TestCase {
+
+    private static final String[] FRAGMENTS = {
+        "word", "Other ", " ", "  ", "\t", "\r\n", "\u00a0", "-", "---", "=", "==", "é",
+        "<b>", "</b>", "<p class=\"x\">", "<br/>", "<!-- comment -->", "< not a tag", ">",
+        "<title>", "</title>", "<TITLE>", "</TITLE>", "<Script src=\"x\"/>", "<script>",
+        "</script>", "<style>", "</style>", "<head>", "</head>", "<applet>", "</applet>",
+        "&amp;", "&nbsp;", "&euro;", "&Dagger;", "&dagger;", "&bogus;", "&amp", "&",
+        "&#169;", "&#x41;", "&#X41;", "&#-65;", "&#+66;", "&#x;", "&#;", "&#12a;",
+        "&#\u0663\u0664;", "&lt;&gt;", "a&b;c", "&verylongname;"
+    };
+
+    public void testSnippetFromText() {
+        assertEquals("", TextUtilities.makeSnippetFromPlainText(null));
+        assertEquals("", TextUtilities.makeSnippetFromHtmlText(""));
+        assertEquals("a b c", TextUtilities.makeSnippetFromPlainText("  a \n\t b\u00a0 c  "));
+        assertEquals("a - = b", TextUtilities.makeSnippetFromPlainText("a ----- ===== b"));
+        assertEquals("Hello & goodbye \u20ac",
+                TextUtilities.makeSnippetFromHtmlText("<TITLE>title</TITLE><p>Hello &amp; "
+                        + "<b>goodbye</b> &euro;</p><script>alert(1)</script>"));
+        assertEquals("A \u00a9 ?", TextUtilities.makeSnippetFromHtmlText("&#x41; &#169; &#zz;"));
+    }
+
+    public void testSnippetStopsAtMaximumLength() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("word").append(i).append(' ');
+        }
+        final String snippet = TextUtilities.makeSnippetFromPlainText(sb.toString());
+        // The 200th char is a space, which is trimmed
+        assertEquals(sb.substring(0, 200).trim(), snippet);
+    }
+
+    public void testEveryEntity() {
+        for (Map.Entry<String, Character> entry : TextUtilities.ESCAPE_STRINGS.entrySet()) {
+            final String entity = entry.getKey() + ";";
+            final int decoded = TextUtilities.stripHtmlEntity("x" + entity + "y", 1);
+            assertEquals(entity, (char) entry.getValue(), (char) decoded);
+            assertEquals(entity, entity.length() - 1, decoded >>> 16);
+        }
+    }
+
+    /**
+     * Checks that random mixes of text, tags and entities give the same snippets as before.
+     */
+    public void testSnippetMatchesLegacy() {
+        final Random random = new Random(1);
+        for (int round = 0; round < 20000; round++) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = random.nextInt(60); i > 0; i--) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            final String text = sb.toString();
+            assertEquals(text, LegacySnippetMaker.makeSnippetFromText(text, true),
+                    TextUtilities.makeSnippetFromHtmlText(text));
+            assertEquals(text, LegacySnippetMaker.makeSnippetFromText(text, false),
+                    TextUtilities.makeSnippetFromPlainText(text));
+        }
+    }
+}
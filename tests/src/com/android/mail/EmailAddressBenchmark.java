@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mail;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.Html;
+import android.text.util.Rfc822Token;
+import android.text.util.Rfc822Tokenizer;
+
+import com.android.emailcommon.mail.Address;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the throughput of {@link EmailAddress#getEmailAddress(String)} and
+ * {@link Address#getEmailAddress(String)} with 1, 2, 4 and as many threads as there are cores,
+ * all looking up the same few hundred correspondents as the header views, notifications and
+ * sender lists do. For comparison each is also run behind a global lock, the way both methods
+ * used to be synchronized. Results are printed to standard out.
+ * <p>
+ * Every thread also checks what it gets back against the parsing the methods did before they
+ * were cached, over more correspondents than the caches hold, so entries are evicted while the
+ * threads read them.
+ */
+@LargeTest
+public class EmailAddressBenchmark extends AndroidTestCase {
+
+    private static final int CORRESPONDENTS = 300;
+    private static final int LOOKUPS_PER_THREAD = 200000;
+
+    /** More than either cache holds */
+    private static final int CHECKED_CORRESPONDENTS = 2000;
+    private static final int CHECKS_PER_THREAD = 20000;
+
+    private static final String[] RAW_ADDRESSES = rawAddresses(CORRESPONDENTS);
+
+    private static String[] rawAddresses(int count) {
+        final String[] rawAddresses = new String[count];
+        for (int i = 0; i < count; i++) {
+            switch (i % 4) {
+                case 0:
+                    rawAddresses[i] = "\"Person " + i + "\" <person" + i + "@example.com>";
+                    break;
+                case 1:
+                    rawAddresses[i] = "Tom &amp; Jerry " + i + " <toon" + i + "@example.com>";
+                    break;
+                case 2:
+                    rawAddresses[i] = "plain" + i + "@example.com";
+                    break;
+                default:
+                    rawAddresses[i] = "  Spaced   Out " + i + "  <spaced" + i + "@example.com>";
+                    break;
+            }
+        }
+        return rawAddresses;
+    }
+
+    private static final Pattern EMAIL_PATTERN =
+            Pattern.compile("\\\"?([^\"<]*?)\\\"?\\s*<(.*)>");
+
+    /**
+     * Returns the name and address {@link EmailAddress#getEmailAddress(String)} used to return,
+     * before it cached them.
+     */
+    private static String[] legacyEmailAddress(String rawAddress) {
+        String name, address;
+        final Matcher m = EMAIL_PATTERN.matcher(rawAddress);
+        if (m.matches()) {
+            name = m.group(1);
+            address = m.group(2);
+            name = name == null ? "" : Html.fromHtml(name.trim()).toString();
+            address = address == null ? "" : Html.fromHtml(address).toString();
+        } else {
+            final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(rawAddress);
+            if (tokens.length > 0) {
+                final String tokenizedName = tokens[0].getName();
+                name = tokenizedName != null ? Html.fromHtml(tokenizedName.trim()).toString() : "";
+                address = Html.fromHtml(tokens[0].getAddress()).toString();
+            } else {
+                name = "";
+                address = Html.fromHtml(rawAddress).toString();
+            }
+        }
+        return new String[] { name, address };
+    }
+
+    /**
+     * Returns the address {@link Address#getEmailAddress(String)} used to return, before it
+     * cached them.
+     */
+    private static Address legacyAddress(String rawAddress) {
+        final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(rawAddress);
+        if (tokens.length > 0) {
+            final String tokenizedName = tokens[0].getName();
+            return new Address(Html.fromHtml(tokens[0].getAddress()).toString(),
+                    tokenizedName != null ? Html.fromHtml(tokenizedName.trim()).toString() : "");
+        }
+        return new Address(Html.fromHtml(rawAddress).toString(), "");
+    }
+
+    private interface Lookup {
+        Object lookup(String rawAddress);
+    }
+
+    private static final Object sLock = new Object();
+
+    private static final Lookup EMAIL_ADDRESS = new Lookup() {
+        @Override
+        public Object lookup(String rawAddress) {
+            return EmailAddress.getEmailAddress(rawAddress);
+        }
+    };
+
+    private static final Lookup LOCKED_EMAIL_ADDRESS = new Lookup() {
+        @Override
+        public Object lookup(String rawAddress) {
+            synchronized (sLock) {
+                return EmailAddress.getEmailAddress(rawAddress);
+            }
+        }
+    };
+
+    private static final Lookup ADDRESS = new Lookup() {
+        @Override
+        public Object lookup(String rawAddress) {
+            return Address.getEmailAddress(rawAddress);
+        }
+    };
+
+    private static final Lookup LOCKED_ADDRESS = new Lookup() {
+        @Override
+        public Object lookup(String rawAddress) {
+            synchronized (sLock) {
+                return Address.getEmailAddress(rawAddress);
+            }
+        }
+    };
+
+    /**
+     * Runs the lookup on the given number of threads at once, and returns the total number of
+     * lookups per second.
+     */
+    private static long run(final Lookup lookup, int threadCount) throws Exception {
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t * 37;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                        lookup.lookup(RAW_ADDRESSES[(offset + i) % CORRESPONDENTS]);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        ready.await();
+        final long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - start;
+        return (long) threadCount * LOOKUPS_PER_THREAD * 1000000000L / Math.max(elapsed, 1);
+    }
+
+    private static void compare(String label, Lookup lookup, Lookup locked) throws Exception {
+        // Warm up, which also fills the caches
+        run(lookup, 1);
+        run(locked, 1);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[] { 1, 2, 4, cores }) {
+            System.out.println(String.format("%s, %d threads: %d lookups/sec, "
+                    + "behind a global lock %d lookups/sec", label, threads,
+                    run(lookup, threads), run(locked, threads)));
+        }
+    }
+
+    /**
+     * Looks up the checked correspondents on as many threads as there are cores, at once, and
+     * fails if any lookup differs from the expected description.
+     */
+    private static void check(final Lookup lookup, final String[] rawAddresses,
+            final String[] expected) throws Exception {
+        final int threadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t * 101;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < CHECKS_PER_THREAD; i++) {
+                        final int index = (offset + i * 7) % rawAddresses.length;
+                        final String actual = describe(lookup.lookup(rawAddresses[index]));
+                        if (!expected[index].equals(actual)) {
+                            failure.compareAndSet(null, rawAddresses[index] + ": expected "
+                                    + expected[index] + " but was " + actual);
+                            return;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get(), failure.get());
+    }
+
+    private static String describe(Object lookedUp) {
+        if (lookedUp instanceof EmailAddress) {
+            final EmailAddress address = (EmailAddress) lookedUp;
+            return address.getName() + "|" + address.getAddress();
+        }
+        final Address address = (Address) lookedUp;
+        return address.getPersonal() + "|" + address.getAddress();
+    }
+
+    public void testEmailAddress() throws Exception {
+        final String[] rawAddresses = rawAddresses(CHECKED_CORRESPONDENTS);
+        final String[] expected = new String[rawAddresses.length];
+        for (int i = 0; i < rawAddresses.length; i++) {
+            final String[] legacy = legacyEmailAddress(rawAddresses[i]);
+            expected[i] = legacy[0] + "|" + legacy[1];
+        }
+        check(EMAIL_ADDRESS, rawAddresses, expected);
+        compare("EmailAddress", EMAIL_ADDRESS, LOCKED_EMAIL_ADDRESS);
+    }
+
+    public void testAddress() throws Exception {
+        final String[] rawAddresses = rawAddresses(CHECKED_CORRESPONDENTS);
+        final String[] expected = new String[rawAddresses.length];
+        for (int i = 0; i < rawAddresses.length; i++) {
+            expected[i] = describe(legacyAddress(rawAddresses[i]));
+        }
+        check(ADDRESS, rawAddresses, expected);
+        // Callers may change what they get back without affecting later lookups
+        final Address address = Address.getEmailAddress(rawAddresses[0]);
+        address.setPersonal("Changed");
+        assertEquals(expected[0], describe(Address.getEmailAddress(rawAddresses[0])));
+        compare("Address", ADDRESS, LOCKED_ADDRESS);
+    }
+}
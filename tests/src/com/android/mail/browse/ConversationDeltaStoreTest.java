@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.UIProvider.ConversationColumns;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@SmallTest
+public class ConversationDeltaStoreTest extends AndroidTestCase {
+
+    private static final String URI_A = "content://test/conversation/a";
+    private static final String URI_B = "content://test/conversation/b";
+
+    private static class MapResolver implements ConversationDeltaStore.PositionResolver {
+        final Map<String, Integer> mPositions = new HashMap<String, Integer>();
+
+        @Override
+        public int getPosition(String innerUri) {
+            final Integer position = mPositions.get(innerUri);
+            return position != null ? position : -1;
+        }
+    }
+
+    public void testPutAndGet() {
+        final ConversationDeltaStore store = new ConversationDeltaStore();
+        store.rebind(100, new MapResolver(), 0, 10000);
+
+        assertFalse(store.isChanged(70));
+        store.put(URI_A, 70, ConversationColumns.STARRED, true, 0);
+        store.put(URI_A, 70, ConversationColumns.FLAGS, 4, 0);
+        store.put(URI_A, 70, ConversationColumns.SUBJECT, "ignored", 0);
+
+        assertTrue(store.isChanged(70));
+        assertFalse(store.isChanged(6));
+        final int starred = ConversationDeltaStore.slotForColumn(ConversationColumns.STARRED);
+        final int read = ConversationDeltaStore.slotForColumn(ConversationColumns.READ);
+        assertEquals(ConversationDeltaStore.NO_SLOT,
+                ConversationDeltaStore.slotForColumn(ConversationColumns.SUBJECT));
+        assertEquals(Integer.valueOf(1), store.getValue(70, starred));
+        assertNull(store.getValue(70, read));
+        assertNull(store.getValue(71, starred));
+
+        final ContentValues values = store.get(70).toContentValues();
+        assertEquals(2, values.size());
+        assertEquals(Integer.valueOf(4), values.getAsInteger(ConversationColumns.FLAGS));
+    }
+
+    public void testDeleteAndUndelete() {
+        final ConversationDeltaStore store = new ConversationDeltaStore();
+        store.rebind(10, new MapResolver(), 0, 10000);
+
+        assertTrue(store.setDeleted(URI_A, 3, true, 0));
+        assertFalse(store.setDeleted(URI_A, 3, true, 0));
+        // Not in the cursor, so it doesn't count against it
+        assertTrue(store.setDeleted(URI_B, -1, true, 0));
+        assertEquals(1, store.getDeletedCount());
+        assertTrue(store.isDeleted(3));
+
+        assertTrue(store.setDeleted(URI_A, 3, false, 0));
+        assertFalse(store.setDeleted(URI_A, 3, false, 0));
+        assertEquals(0, store.getDeletedCount());
+        // An undeleted row with no other changes leaves nothing behind
+        assertFalse(store.isChanged(3));
+    }
+
+    public void testPositionMapping() {
+        final ConversationDeltaStore store = new ConversationDeltaStore();
+        store.rebind(6, new MapResolver(), 0, 10000);
+        store.setDeleted(URI_A, 1, true, 0);
+        store.setDeleted(URI_B, 2, true, 0);
+
+        // Rows 0, 3, 4 and 5 are left
+        assertEquals(0, store.toUnderlyingPosition(0));
+        assertEquals(3, store.toUnderlyingPosition(1));
+        assertEquals(5, store.toUnderlyingPosition(3));
+        assertEquals(-1, store.toUnderlyingPosition(4));
+        assertEquals(0, store.toVisiblePosition(0));
+        assertEquals(-1, store.toVisiblePosition(2));
+        assertEquals(2, store.toVisiblePosition(4));
+
+        store.setDeleted(URI_A, 1, false, 0);
+        assertEquals(1, store.toUnderlyingPosition(1));
+        assertEquals(3, store.toVisiblePosition(4));
+
+        // Deletions carried over by a requery are indexed at their new positions
+        final MapResolver resolver = new MapResolver();
+        resolver.mPositions.put(URI_B, 0);
+        store.rebind(6, resolver, 1000, 10000);
+        assertEquals(1, store.getDeletedCount());
+        assertEquals(1, store.toUnderlyingPosition(0));
+        assertEquals(-1, store.toVisiblePosition(0));
+    }
+
+    public void testRebind() {
+        final ConversationDeltaStore store = new ConversationDeltaStore();
+        store.rebind(10, new MapResolver(), 0, 10000);
+        store.setDeleted(URI_A, 1, true, 1000);
+        store.put(URI_B, 2, ConversationColumns.READ, 1, 1000);
+
+        // URI_A is gone from the new cursor and URI_B has moved
+        final MapResolver resolver = new MapResolver();
+        resolver.mPositions.put(URI_B, 7);
+        store.rebind(10, resolver, 5000, 10000);
+        assertEquals(0, store.getDeletedCount());
+        assertNull(store.get(URI_A));
+        assertFalse(store.isChanged(2));
+        assertTrue(store.isChanged(7));
+
+        // Once the change is old enough, the new cursor is trusted instead
+        store.rebind(10, resolver, 20000, 10000);
+        assertTrue(store.isEmpty());
+    }
+}
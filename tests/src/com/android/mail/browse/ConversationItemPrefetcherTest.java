@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.Conversation;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class ConversationItemPrefetcherTest extends TestCase {
+    private static final int COUNT = 100;
+
+    /**
+     * Records the positions asked for, and collects the work only when told to.
+     */
+    private static class TestPrefetcher extends ConversationItemPrefetcher {
+        final List<Integer> mPositions;
+        int mScheduleCount;
+        boolean mLaidOut;
+
+        TestPrefetcher(final List<Integer> positions) {
+            super(new ConversationSource() {
+                @Override
+                public Conversation getConversationForPrefetch(int position) {
+                    positions.add(position);
+                    return null;
+                }
+
+                @Override
+                public int getCount() {
+                    return COUNT;
+                }
+
+                @Override
+                public Prefetch createPrefetch(Conversation conversation,
+                        ConversationItemViewCoordinates coordinates, boolean isRtl) {
+                    return null;
+                }
+            });
+            mPositions = positions;
+        }
+
+        @Override
+        boolean hasCoordinates() {
+            return mLaidOut;
+        }
+
+        @Override
+        void schedule() {
+            mScheduleCount++;
+        }
+    }
+
+    private TestPrefetcher mPrefetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefetcher = new TestPrefetcher(new ArrayList<Integer>());
+        mPrefetcher.mLaidOut = true;
+    }
+
+    public void testNothingBeforeLayout() {
+        final TestPrefetcher prefetcher = new TestPrefetcher(new ArrayList<Integer>());
+        prefetcher.onScroll(0, 5);
+        assertEquals(0, prefetcher.mScheduleCount);
+    }
+
+    public void testScrollingDown() {
+        mPrefetcher.onScroll(0, 5);
+        assertEquals(1, mPrefetcher.mScheduleCount);
+        mPrefetcher.collect();
+        assertEquals(Arrays.asList(5, 6, 7, 8, 9), mPrefetcher.mPositions);
+    }
+
+    public void testScrollingUp() {
+        mPrefetcher.onScroll(50, 5);
+        mPrefetcher.onScroll(48, 5);
+        mPrefetcher.collect();
+        assertEquals(Arrays.asList(47, 46, 45, 44, 43), mPrefetcher.mPositions);
+    }
+
+    public void testStopsAtEnds() {
+        mPrefetcher.onScroll(COUNT - 7, 5);
+        mPrefetcher.collect();
+        assertEquals(Arrays.asList(COUNT - 2, COUNT - 1), mPrefetcher.mPositions);
+
+        mPrefetcher.mPositions.clear();
+        mPrefetcher.onScroll(2, 5);
+        mPrefetcher.collect();
+        assertEquals(Arrays.asList(1, 0), mPrefetcher.mPositions);
+
+        // Nothing above the top
+        mPrefetcher.mPositions.clear();
+        mPrefetcher.onScroll(0, 5);
+        mPrefetcher.collect();
+        assertTrue(mPrefetcher.mPositions.isEmpty());
+    }
+
+    public void testScrollMovesPendingPrefetch() {
+        mPrefetcher.onScroll(0, 5);
+        mPrefetcher.onScroll(20, 5);
+        // Still only one batch of work
+        assertEquals(1, mPrefetcher.mScheduleCount);
+        mPrefetcher.collect();
+        assertEquals(Arrays.asList(25, 26, 27, 28, 29), mPrefetcher.mPositions);
+    }
+
+    public void testReset() {
+        mPrefetcher.onScroll(0, 5);
+        mPrefetcher.reset();
+        mPrefetcher.collect();
+        assertTrue(mPrefetcher.mPositions.isEmpty());
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how fast one "UI" thread can read rows from a {@link ThreadSafeCursorWrapper} while N
+ * background threads read other rows from the same cursor, as ConversationCursor's cache task
+ * does. The wrapper is compared against {@link LockedCursorWrapper}, which reads the way
+ * ThreadSafeCursorWrapper used to: a boxed thread-local position and a shared lock around every
+ * read. Every thread checks the rows it reads, and results are printed to standard out.
+ */
+@LargeTest
+public class ThreadSafeCursorWrapperBenchmark extends AndroidTestCase {
+
+    /** Enough rows of this size that the cursor can't hold them all in one window */
+    private static final int ROW_COUNT = 20000;
+    private static final int SUBJECT_LENGTH = 200;
+    private static final int UI_READS = 200000;
+    private static final int[] BACKGROUND_READERS = { 0, 1, 2, 4 };
+    private static final String URI_PREFIX = "content://bench/conversation/";
+
+    private SQLiteDatabase mDb;
+
+    /**
+     * The old ThreadSafeCursorWrapper, kept here as the baseline.
+     */
+    private static class LockedCursorWrapper extends CursorWrapper {
+        private final ThreadLocal<Integer> mPosition = new ThreadLocal<Integer>() {
+            @Override
+            protected Integer initialValue() {
+                return Integer.valueOf(-1);
+            }
+        };
+        private final Object mLock = new Object();
+
+        LockedCursorWrapper(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public String getString(int column) {
+            synchronized (mLock) {
+                super.moveToPosition(mPosition.get());
+                return super.getString(column);
+            }
+        }
+
+        @Override
+        public long getLong(int column) {
+            synchronized (mLock) {
+                super.moveToPosition(mPosition.get());
+                return super.getLong(column);
+            }
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            mPosition.set(position);
+            return position >= 0 && position < getCount();
+        }
+
+        @Override
+        public int getPosition() {
+            return mPosition.get();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE conversations (_id INTEGER PRIMARY KEY, uri TEXT, subject TEXT)");
+        final StringBuilder subject = new StringBuilder(SUBJECT_LENGTH);
+        for (int i = 0; i < SUBJECT_LENGTH; i++) {
+            subject.append((char) ('a' + i % 26));
+        }
+        final ContentValues values = new ContentValues(3);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                values.put("_id", i);
+                values.put("uri", URI_PREFIX + i);
+                values.put("subject", subject.toString());
+                mDb.insert("conversations", null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private Cursor query() {
+        final Cursor cursor = mDb.query("conversations", null, null, null, null, null, "_id");
+        cursor.getCount();
+        return cursor;
+    }
+
+    /**
+     * Reads the given range of rows from the cursor over and over until stopped.
+     */
+    private static class BackgroundReader extends Thread {
+        private final Cursor mCursor;
+        private final int mStart;
+        private final int mLength;
+        private final AtomicBoolean mStop;
+        private final CountDownLatch mStarted;
+        private final AtomicInteger mWrongRows;
+        long mReads;
+
+        BackgroundReader(Cursor cursor, int start, int length, AtomicBoolean stop,
+                CountDownLatch started, AtomicInteger wrongRows) {
+            mCursor = cursor;
+            mStart = start;
+            mLength = length;
+            mStop = stop;
+            mStarted = started;
+            mWrongRows = wrongRows;
+        }
+
+        @Override
+        public void run() {
+            mStarted.countDown();
+            int i = 0;
+            while (!mStop.get()) {
+                mCursor.moveToPosition(mStart + i);
+                if (mCursor.getLong(0) != mStart + i
+                        || !mCursor.getString(1).equals(URI_PREFIX + (mStart + i))
+                        || mCursor.getString(2).length() != SUBJECT_LENGTH) {
+                    mWrongRows.incrementAndGet();
+                }
+                mReads++;
+                i = (i + 1) % mLength;
+            }
+        }
+    }
+
+    /**
+     * Reads the rows the UI reader reads, the way it reads them, and sums up what it read.
+     */
+    private static long uiChecksum(Cursor cursor) {
+        long checksum = 0;
+        for (int i = 0; i < UI_READS; i++) {
+            cursor.moveToPosition(i % 500);
+            checksum += cursor.getLong(0);
+            checksum += cursor.getString(1).length();
+            checksum += cursor.getString(2).length();
+        }
+        return checksum;
+    }
+
+    /**
+     * Runs the UI reader against the given cursor with the given number of background readers,
+     * checks that every thread read the right rows, and returns the average time per UI row
+     * read, in nanoseconds.
+     */
+    private static long runUiReader(Cursor cursor, int backgroundReaders, long expectedChecksum)
+            throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger wrongRows = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(backgroundReaders);
+        final BackgroundReader[] readers = new BackgroundReader[backgroundReaders];
+        final int count = cursor.getCount();
+        for (int i = 0; i < backgroundReaders; i++) {
+            // Spread the readers over the cursor, so some of them need other windows
+            readers[i] = new BackgroundReader(cursor, (i + 1) * count / (backgroundReaders + 1),
+                    400, stop, started, wrongRows);
+            readers[i].start();
+        }
+        started.await();
+
+        // The UI thread scrolls back and forth over the first few hundred rows
+        final long start = System.nanoTime();
+        final long checksum = uiChecksum(cursor);
+        final long elapsed = System.nanoTime() - start;
+
+        stop.set(true);
+        for (BackgroundReader reader : readers) {
+            reader.join();
+        }
+        assertEquals(expectedChecksum, checksum);
+        assertEquals(0, wrongRows.get());
+        return elapsed / UI_READS;
+    }
+
+    public void testContention() throws Exception {
+        final Cursor plain = query();
+        final long expectedChecksum;
+        try {
+            expectedChecksum = uiChecksum(plain);
+        } finally {
+            plain.close();
+        }
+        for (int readers : BACKGROUND_READERS) {
+            final Cursor locked = new LockedCursorWrapper(query());
+            final Cursor lockFree = new ThreadSafeCursorWrapper(query());
+            try {
+                // Warm up both before measuring
+                runUiReader(locked, 0, expectedChecksum);
+                runUiReader(lockFree, 0, expectedChecksum);
+                final long lockedNs = runUiReader(locked, readers, expectedChecksum);
+                final long lockFreeNs = runUiReader(lockFree, readers, expectedChecksum);
+                System.out.println(String.format("%d background readers: locked %d ns/row, "
+                        + "ThreadSafeCursorWrapper %d ns/row", readers, lockedNs, lockFreeNs));
+            } finally {
+                locked.close();
+                lockFree.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.content;
+
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+@MediumTest
+public class ThreadSafeCursorWrapperTest extends AndroidTestCase {
+
+    /** Enough rows of this size that the cursor can't hold them all in one window */
+    private static final int ROW_COUNT = 3000;
+    private static final int SUBJECT_LENGTH = 1000;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE conversations (_id INTEGER PRIMARY KEY, uri TEXT, subject TEXT)");
+        final StringBuilder subject = new StringBuilder(SUBJECT_LENGTH);
+        for (int i = 0; i < SUBJECT_LENGTH; i++) {
+            subject.append((char) ('a' + i % 26));
+        }
+        final ContentValues values = new ContentValues(3);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                values.put("_id", i);
+                values.put("uri", "content://test/conversation/" + i);
+                values.put("subject", subject.toString());
+                mDb.insert("conversations", null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private Cursor query() {
+        return mDb.query("conversations", null, null, null, null, null, "_id");
+    }
+
+    public void testReadsMatchWrappedCursor() {
+        final Cursor expected = query();
+        final Cursor wrapper = new ThreadSafeCursorWrapper(query());
+        try {
+            // Jump around so that the wrapped cursor has to refill its window along the way
+            for (int i = 0; i < ROW_COUNT; i += 97) {
+                final int pos = (i * 7) % ROW_COUNT;
+                assertTrue(expected.moveToPosition(pos));
+                assertTrue(wrapper.moveToPosition(pos));
+                assertEquals(expected.getLong(0), wrapper.getLong(0));
+                assertEquals(expected.getString(1), wrapper.getString(1));
+                assertEquals(expected.getString(2), wrapper.getString(2));
+                assertFalse(wrapper.isNull(2));
+            }
+        } finally {
+            expected.close();
+            wrapper.close();
+        }
+    }
+
+    /**
+     * Reads every column of every row with every getter, through the wrapper and straight from
+     * the cursor, so that the values read from snapshots are checked against the cursor's own
+     * conversions.
+     */
+    public void testConversionsMatchWrappedCursor() {
+        final String[] columns = { "long", "double", "string", "number", "empty", "blob" };
+        final MatrixCursor expected = new MatrixCursor(columns);
+        final MatrixCursor wrapped = new MatrixCursor(columns);
+        for (int i = 0; i < 200; i++) {
+            final Object[] row = { Long.valueOf(i * 100000L + Short.MAX_VALUE),
+                    Double.valueOf(i * 1.75 - 20), "row " + i, Integer.toString(i), null,
+                    new byte[] { (byte) i, 1, 2 } };
+            expected.addRow(row);
+            wrapped.addRow(row);
+        }
+        final Cursor wrapper = new ThreadSafeCursorWrapper(wrapped);
+        try {
+            final CharArrayBuffer expectedBuffer = new CharArrayBuffer(4);
+            final CharArrayBuffer buffer = new CharArrayBuffer(4);
+            for (int pos = 199; pos >= 0; pos -= 3) {
+                assertTrue(expected.moveToPosition(pos));
+                assertTrue(wrapper.moveToPosition(pos));
+                for (int column = 0; column < 5; column++) {
+                    assertEquals(expected.getType(column), wrapper.getType(column));
+                    assertEquals(expected.isNull(column), wrapper.isNull(column));
+                    assertEquals(expected.getString(column), wrapper.getString(column));
+                    if (column != 2) {
+                        assertEquals(expected.getShort(column), wrapper.getShort(column));
+                        assertEquals(expected.getInt(column), wrapper.getInt(column));
+                        assertEquals(expected.getLong(column), wrapper.getLong(column));
+                        assertEquals(expected.getFloat(column), wrapper.getFloat(column));
+                        assertEquals(expected.getDouble(column), wrapper.getDouble(column));
+                    }
+                    expected.copyStringToBuffer(column, expectedBuffer);
+                    wrapper.copyStringToBuffer(column, buffer);
+                    assertEquals(new String(expectedBuffer.data, 0, expectedBuffer.sizeCopied),
+                            new String(buffer.data, 0, buffer.sizeCopied));
+                }
+                assertNull(wrapper.getBlob(4));
+                final byte[] blob = wrapper.getBlob(5);
+                assertTrue(Arrays.equals(expected.getBlob(5), blob));
+                // Changing the array a caller got must not change what is read next time
+                blob[0]++;
+                assertTrue(Arrays.equals(expected.getBlob(5), wrapper.getBlob(5)));
+            }
+        } finally {
+            expected.close();
+            wrapper.close();
+        }
+    }
+
+    /**
+     * Has several threads read rows all over the cursor at once, each from its own position, so
+     * that snapshots are read and dropped while others are being read from.
+     */
+    public void testConcurrentReaders() throws InterruptedException {
+        final MatrixCursor wrapped = new MatrixCursor(new String[] { "_id", "uri" });
+        for (int i = 0; i < 5000; i++) {
+            wrapped.addRow(new Object[] { Long.valueOf(i), "content://test/conversation/" + i });
+        }
+        final Cursor wrapper = new ThreadSafeCursorWrapper(wrapped);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final int seed = t;
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000 && failure.get() == null; i++) {
+                        final int pos = (int) ((i * 7919L + seed * 1237L) % 5000);
+                        wrapper.moveToPosition(pos);
+                        if (wrapper.getLong(0) != pos || !wrapper.getString(1)
+                                .equals("content://test/conversation/" + pos)) {
+                            failure.compareAndSet(null, "wrong row read at " + pos);
+                        }
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        wrapper.close();
+        assertNull(failure.get(), failure.get());
+    }
+}
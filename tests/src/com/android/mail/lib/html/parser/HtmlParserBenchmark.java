@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.lib.html.parser;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * Measures how fast {@link HtmlParser} and {@link HtmlTreeBuilder} get through a corpus of
+ * newsletter-style html, and how much they allocate doing it: the {@link LegacyHtmlParser}, a new
+ * parser and builder for every message, and one pair reused for all of them, with the attribute
+ * lists recycled. Results are printed to standard out in nodes per second and bytes allocated per
+ * parse (where the runtime can count them).
+ * <p>
+ * Every document parsed is also checked against the legacy parser, for the corpus and for random
+ * fragments, in all three parse styles and with clipping.
+ */
+@LargeTest
+public class HtmlParserBenchmark extends TestCase {
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 500;
+
+    private static final String[] CORPUS = buildCorpus();
+
+    /**
+     * Builds messages shaped like the html newsletters and marketing mail that dominate real
+     * inboxes: nested layout tables, inline styles, tracking images, lots of links and entities,
+     * and conditional comments.
+     */
+    private static String[] buildCorpus() {
+        final StringBuilder digest = new StringBuilder();
+        digest.append("<!DOCTYPE html><html><head><meta charset=\"utf-8\">")
+                .append("<style type=\"text/css\">body{margin:0;padding:0}")
+                .append(".story td{font-family:Arial,sans-serif}</style></head>")
+                .append("<body bgcolor=\"#f4f4f4\"><!--[if mso]><table><tr><td><![endif]-->")
+                .append("<table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\" border=\"0\">");
+        for (int i = 0; i < 40; i++) {
+            digest.append("<tr class=\"story\"><td style=\"padding:12px 24px;")
+                    .append("border-bottom:1px solid #ddd\" valign=\"top\">")
+                    .append("<a href=\"https://news.example.com/story/").append(i)
+                    .append("?utm_source=newsletter&amp;utm_medium=email&amp;utm_campaign=daily\" ")
+                    .append("style=\"color:#1a0dab;text-decoration:none\"><b>Headline number ")
+                    .append(i).append(" &mdash; what you need to know</b></a><br>")
+                    .append("<span style=\"color:#555;font-size:13px\">Summary of the story, ")
+                    .append("with &quot;quotes&quot;, an ampersand &amp; a non&nbsp;breaking ")
+                    .append("space and some more words to make it a realistic length.</span>")
+                    .append("</td><td width=\"120\"><img src=\"https://img.example.com/")
+                    .append(i).append(".jpg\" width=\"120\" height=\"80\" alt=\"\"></td></tr>");
+        }
+        digest.append("</table><!--[if mso]></td></tr></table><![endif]-->")
+                .append("<p style=\"font-size:11px;color:#999\">You are receiving this because ")
+                .append("you subscribed. <a href=\"https://news.example.com/unsubscribe?id=1\">")
+                .append("Unsubscribe</a></p><img src=\"https://t.example.com/open.gif\" ")
+                .append("width=\"1\" height=\"1\"></body></html>");
+
+        final StringBuilder promo = new StringBuilder();
+        promo.append("<html><body><center><table width=\"600\" align=\"center\">");
+        for (int i = 0; i < 25; i++) {
+            promo.append("<tr><td align=\"center\" style=\"background-color:#ffffff;")
+                    .append("padding:20px\"><a href=\"https://shop.example.com/p/").append(i)
+                    .append("\" target=\"_blank\"><img src=\"https://cdn.example.com/p/")
+                    .append(i).append(".png\" width=\"280\" style=\"display:block;border:0\" ")
+                    .append("alt=\"Product ").append(i).append("\"></a>")
+                    .append("<div style=\"font:bold 16px Helvetica\">Product ").append(i)
+                    .append("</div><div><font color=\"#c00\">$").append(10 + i)
+                    .append(".99</font> <s>$").append(20 + i).append(".99</s></div>")
+                    .append("<table><tr><td bgcolor=\"#c00\" style=\"border-radius:4px\">")
+                    .append("<a href=\"https://shop.example.com/buy/").append(i)
+                    .append("\" style=\"color:#fff;padding:8px 16px;display:inline-block\">")
+                    .append("Shop now &raquo;</a></td></tr></table></td></tr>");
+        }
+        promo.append("</table></center></body></html>");
+
+        final StringBuilder reply = new StringBuilder();
+        reply.append("<div dir=\"ltr\">Sounds good, see you then.<br><br>");
+        for (int i = 0; i < 6; i++) {
+            reply.append("<div class=\"gmail_quote\">On Mon, Jun ").append(i + 1)
+                    .append(", 2014 at 10:0").append(i).append(" AM, Someone &lt;")
+                    .append("someone@example.com&gt; wrote:<br><blockquote class=\"gmail_quote\" ")
+                    .append("style=\"margin:0 0 0 .8ex;border-left:1px #ccc solid;")
+                    .append("padding-left:1ex\"><div dir=\"ltr\">Message ").append(i)
+                    .append(" of the thread, <i>with</i> a <u>little</u> formatting.<br>");
+        }
+        for (int i = 0; i < 6; i++) {
+            reply.append("</div></blockquote></div>");
+        }
+        reply.append("</div>");
+
+        return new String[] { digest.toString(), promo.toString(), reply.toString() };
+    }
+
+    /**
+     * Returns the number of bytes this thread has allocated so far, or -1 if the runtime can't
+     * tell. Uses the HotSpot ThreadMXBean on a JVM, and Debug's allocation counting on Android.
+     */
+    private static long allocatedBytes() {
+        try {
+            final Object bean = ManagementFactory.getThreadMXBean();
+            final Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Throwable e) {
+            // Not a HotSpot JVM
+        }
+        try {
+            return (Integer) Class.forName("android.os.Debug").getMethod("getThreadAllocSize")
+                    .invoke(null);
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static void startAllocCounting() {
+        try {
+            final Class<?> debug = Class.forName("android.os.Debug");
+            debug.getMethod("resetThreadAllocSize").invoke(null);
+            debug.getMethod("startAllocCounting").invoke(null);
+        } catch (Throwable e) {
+            // Only needed on Android
+        }
+    }
+
+    private static void stopAllocCounting() {
+        try {
+            Class.forName("android.os.Debug").getMethod("stopAllocCounting").invoke(null);
+        } catch (Throwable e) {
+            // Only needed on Android
+        }
+    }
+
+    private static final int LEGACY = 0;
+    private static final int NEW_PER_MESSAGE = 1;
+    private static final int REUSED = 2;
+
+    /**
+     * Parses the whole corpus {@code iterations} times and returns the number of nodes parsed.
+     */
+    private static long parseCorpus(int iterations, int mode) {
+        HtmlParser parser = new HtmlParser();
+        HtmlTreeBuilder builder = new HtmlTreeBuilder();
+        long nodes = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (String html : CORPUS) {
+                final HtmlDocument doc;
+                if (mode == LEGACY) {
+                    doc = new LegacyHtmlParser().parse(html);
+                    builder = new HtmlTreeBuilder();
+                } else {
+                    if (mode == NEW_PER_MESSAGE) {
+                        parser = new HtmlParser();
+                        builder = new HtmlTreeBuilder();
+                    }
+                    doc = parser.parse(html);
+                }
+                doc.accept(builder);
+                nodes += doc.getNodes().size();
+                if (mode == REUSED) {
+                    parser.recycle(doc);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private static long run(String label, int mode) {
+        parseCorpus(WARMUP_ITERATIONS, mode);
+
+        startAllocCounting();
+        final long startBytes = allocatedBytes();
+        final long start = System.nanoTime();
+        final long nodes = parseCorpus(ITERATIONS, mode);
+        final long elapsed = System.nanoTime() - start;
+        final long endBytes = allocatedBytes();
+        stopAllocCounting();
+
+        final int parses = ITERATIONS * CORPUS.length;
+        final String allocated = startBytes < 0 || endBytes < 0 ? "n/a"
+                : Long.toString((endBytes - startBytes) / parses);
+        System.out.println(String.format("%s: %d nodes/sec, %s bytes allocated/parse, "
+                + "%d us/parse", label, nodes * 1000000000L / Math.max(elapsed, 1), allocated,
+                elapsed / 1000 / parses));
+        return nodes;
+    }
+
+    private static String describe(HtmlDocument doc) {
+        return doc.toString() + "|" + doc.toOriginalHTML();
+    }
+
+    private static LegacyHtmlParser.ParseStyle legacyStyle(HtmlParser.ParseStyle style) {
+        return LegacyHtmlParser.ParseStyle.valueOf(style.name());
+    }
+
+    public void testParse() {
+        final long legacyNodes = run("legacy parser", LEGACY);
+        assertEquals(legacyNodes, run("new parser per message", NEW_PER_MESSAGE));
+        assertEquals(legacyNodes, run("reused parser, recycled lists", REUSED));
+    }
+
+    public void testCorpusMatchesLegacy() {
+        for (HtmlParser.ParseStyle style : HtmlParser.ParseStyle.values()) {
+            final HtmlParser parser = new HtmlParser(style);
+            for (int i = 0; i < 2; i++) {
+                for (String html : CORPUS) {
+                    final HtmlDocument doc = parser.parse(html);
+                    assertEquals(describe(new LegacyHtmlParser(legacyStyle(style)).parse(html)),
+                            describe(doc));
+                    // The second round parses into the recycled attribute lists
+                    parser.recycle(doc);
+                }
+            }
+        }
+    }
+
+    public void testRandomFragmentsMatchLegacy() {
+        final String[] pieces = {
+            "<b>", "</b>", "<a href=\"x\">", "<a href='y' title=z>", "</a>", "<br>", "<br/>",
+            "<img src=\"i.png\" alt=\"\">", "<p style=\"color:red\" class=c>", "</p>",
+            "<table width=1>", "<tr>", "<td valign=top>", "</td>", "</tr>", "</table>",
+            "<div dir=\"ltr\">", "</div>", "<unknown attr=1>", "</unknown>", "<script>",
+            "</script>", "<style>p{}</style>", "<!-- comment -->", "<!--", "-->", "<![CDATA[",
+            "]]>", "&amp;", "&nbsp;", "&#169;", "&bogus;", "&", "<", ">", "\"", "'", "=",
+            " ", "\n", "text", "more words", "<b onclick=\"x()\">", "<a href=javascript:1>",
+            "<font color=#c00 size=\"2\">", "</font>", "<input disabled>"
+        };
+        final HtmlParser.ParseStyle[] styles = HtmlParser.ParseStyle.values();
+        final HtmlParser[] parsers = new HtmlParser[styles.length];
+        for (int i = 0; i < styles.length; i++) {
+            parsers[i] = new HtmlParser(styles[i]);
+        }
+        final Random random = new Random(10);
+        for (int i = 0; i < 30000; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int count = random.nextInt(25);
+            for (int j = 0; j < count; j++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+            final String html = sb.toString();
+            final int style = i % styles.length;
+            final int clipLength = random.nextInt(4) == 0 ? 1 + random.nextInt(html.length() + 1)
+                    : Integer.MAX_VALUE;
+
+            final LegacyHtmlParser legacy = new LegacyHtmlParser(legacyStyle(styles[style]));
+            legacy.setClipLength(clipLength);
+            final String expected = describe(legacy.parse(html));
+
+            // One parser per style is reused for all of the fragments
+            final HtmlParser parser = parsers[style];
+            parser.setClipLength(clipLength);
+            final HtmlDocument doc = parser.parse(html);
+            assertEquals(html, expected, describe(doc));
+            assertEquals(html, legacy.isClipped(), parser.isClipped());
+            parser.recycle(doc);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the per-row cost of decoding conversation info blobs with {@link ConversationInfoBlob}
+ * against a stream decode of the same fields laid out the way a Parcel lays them out
+ * (length-prefixed UTF-16 strings and 4-byte ints), which stands in for Parcel on a plain JVM.
+ * Uses no Android classes, so it can also be run outside a device. Both decodes are checked to
+ * give the same fields before they are timed. Results are printed to standard out.
+ */
+@LargeTest
+public class ConversationInfoBlobBenchmark extends TestCase {
+
+    private static final int ROWS = 1000;
+    private static final int PARTICIPANTS = 4;
+    private static final int ROUNDS = 200;
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private byte[][] mCompact;
+    private byte[][] mParcelLike;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCompact = new byte[ROWS][];
+        mParcelLike = new byte[ROWS][];
+        for (int row = 0; row < ROWS; row++) {
+            final String snippet = "Re: the quarterly numbers for row " + row
+                    + " look good, but let's go over the details tomorrow morning";
+            final ConversationInfoBlob.Writer writer = new ConversationInfoBlob.Writer(
+                    PARTICIPANTS, 0, snippet, snippet, snippet, PARTICIPANTS);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(PARTICIPANTS);
+            out.writeInt(0);
+            writeParcelString(out, snippet);
+            writeParcelString(out, snippet);
+            writeParcelString(out, snippet);
+            out.writeInt(PARTICIPANTS);
+            for (int i = 0; i < PARTICIPANTS; i++) {
+                final String name = "Participant " + i;
+                final String email = "participant" + i + "@example.com";
+                writer.addParticipant(name, email, i, i % 2 == 0);
+                writeParcelString(out, name);
+                writeParcelString(out, email);
+                out.writeInt(i);
+                out.writeInt(i % 2 == 0 ? 1 : 0);
+            }
+            mCompact[row] = writer.toByteArray();
+            mParcelLike[row] = bytes.toByteArray();
+        }
+    }
+
+    private static void writeParcelString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static String readParcelString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        final byte[] chars = new byte[length * 2];
+        in.readFully(chars);
+        return new String(chars, UTF_16BE);
+    }
+
+    private long decodeParcelLike() throws IOException {
+        long checksum = 0;
+        for (byte[] blob : mParcelLike) {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+            checksum += in.readInt() + in.readInt();
+            checksum += readParcelString(in).length();
+            checksum += readParcelString(in).length();
+            checksum += readParcelString(in).length();
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                checksum += readParcelString(in).length();
+                checksum += readParcelString(in).length();
+                checksum += in.readInt() + in.readInt();
+            }
+        }
+        return checksum;
+    }
+
+    private static List<Object> readParcelLikeFields(byte[] blob) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+        final List<Object> fields = new ArrayList<Object>();
+        fields.add(in.readInt());
+        fields.add(in.readInt());
+        fields.add(readParcelString(in));
+        fields.add(readParcelString(in));
+        fields.add(readParcelString(in));
+        final int count = in.readInt();
+        fields.add(count);
+        for (int i = 0; i < count; i++) {
+            fields.add(readParcelString(in));
+            fields.add(readParcelString(in));
+            fields.add(in.readInt());
+            fields.add(in.readInt() != 0);
+        }
+        return fields;
+    }
+
+    private static List<Object> readCompactFields(ConversationInfoBlob reader, byte[] blob) {
+        reader.reset(blob);
+        final List<Object> fields = new ArrayList<Object>();
+        fields.add(reader.getMessageCount());
+        fields.add(reader.getDraftCount());
+        fields.add(reader.getFirstSnippet());
+        fields.add(reader.getFirstUnreadSnippet());
+        fields.add(reader.getLastSnippet());
+        final int count = reader.getParticipantCount();
+        fields.add(count);
+        for (int i = 0; i < count; i++) {
+            fields.add(reader.getParticipantName(i));
+            fields.add(reader.getParticipantEmail(i));
+            fields.add(reader.getParticipantPriority(i));
+            fields.add(reader.isParticipantRead(i));
+        }
+        return fields;
+    }
+
+    private long decodeCompactFully(ConversationInfoBlob reader) {
+        long checksum = 0;
+        for (byte[] blob : mCompact) {
+            reader.reset(blob);
+            checksum += reader.getMessageCount() + reader.getDraftCount();
+            checksum += reader.getFirstSnippet().length();
+            checksum += reader.getFirstUnreadSnippet().length();
+            checksum += reader.getLastSnippet().length();
+            for (int i = 0; i < reader.getParticipantCount(); i++) {
+                checksum += reader.getParticipantName(i).length();
+                checksum += reader.getParticipantEmail(i).length();
+                checksum += reader.getParticipantPriority(i);
+                checksum += reader.isParticipantRead(i) ? 1 : 0;
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * What a list row that only shows the first sender and the snippet needs.
+     */
+    private long decodeCompactForDisplay(ConversationInfoBlob reader) {
+        long checksum = 0;
+        for (byte[] blob : mCompact) {
+            reader.reset(blob);
+            checksum += reader.getMessageCount();
+            checksum += reader.getFirstSnippet().length();
+            if (reader.getParticipantCount() > 0) {
+                checksum += reader.getParticipantName(0).length();
+            }
+        }
+        return checksum;
+    }
+
+    public void testDecodeCost() throws IOException {
+        final ConversationInfoBlob reader = new ConversationInfoBlob();
+        for (int row = 0; row < ROWS; row++) {
+            assertEquals(readParcelLikeFields(mParcelLike[row]),
+                    readCompactFields(reader, mCompact[row]));
+        }
+
+        long checksum = 0;
+        // Warm up
+        for (int round = 0; round < ROUNDS; round++) {
+            checksum += decodeParcelLike();
+            checksum += decodeCompactFully(reader);
+            checksum += decodeCompactForDisplay(reader);
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            checksum += decodeParcelLike();
+        }
+        final long parcelNs = (System.nanoTime() - start) / (ROUNDS * ROWS);
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            checksum += decodeCompactFully(reader);
+        }
+        final long fullNs = (System.nanoTime() - start) / (ROUNDS * ROWS);
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            checksum += decodeCompactForDisplay(reader);
+        }
+        final long displayNs = (System.nanoTime() - start) / (ROUNDS * ROWS);
+
+        assertTrue(checksum > 0);
+        System.out.println(String.format("Per row: parcel-like %d ns (%d bytes), compact full %d ns "
+                + "(%d bytes), compact display-only %d ns", parcelNs, mParcelLike[0].length,
+                fullNs, mCompact[0].length, displayNs));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Google Inc.
+ * Licensed to The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ConversationInfoBlobTest extends TestCase {
+
+    public void testRoundTrip() {
+        final byte[] blob = new ConversationInfoBlob.Writer(300, 2, "first", null,
+                "last é中😀", 3)
+                .addParticipant("Alice", "alice@example.com", 0, true)
+                .addParticipant(null, "bob@example.com", -1, false)
+                .addParticipant("", null, Integer.MAX_VALUE, true)
+                .toByteArray();
+        assertTrue(ConversationInfoBlob.isCompact(blob));
+
+        final ConversationInfoBlob reader = new ConversationInfoBlob();
+        reader.reset(blob);
+        assertEquals(300, reader.getMessageCount());
+        assertEquals(2, reader.getDraftCount());
+        assertEquals("first", reader.getFirstSnippet());
+        assertNull(reader.getFirstUnreadSnippet());
+        assertEquals("last é中😀", reader.getLastSnippet());
+        assertEquals(3, reader.getParticipantCount());
+
+        // Read out of order, since each getter finds its own way in
+        assertEquals("", reader.getParticipantName(2));
+        assertEquals(Integer.MAX_VALUE, reader.getParticipantPriority(2));
+        assertNull(reader.getParticipantEmail(2));
+        assertEquals("bob@example.com", reader.getParticipantEmail(1));
+        assertNull(reader.getParticipantName(1));
+        assertEquals(-1, reader.getParticipantPriority(1));
+        assertFalse(reader.isParticipantRead(1));
+        assertEquals("Alice", reader.getParticipantName(0));
+        assertTrue(reader.isParticipantRead(0));
+        assertTrue(reader.isParticipantRead(2));
+    }
+
+    public void testConversationInfoRoundTrip() {
+        final ConversationInfo info = new ConversationInfo(3, 1, "first", "unread", "last");
+        info.addParticipant(new ParticipantInfo("Alice", "alice@example.com", 2, true));
+        info.addParticipant(new ParticipantInfo(null, "bob@example.com", 0, false));
+        final byte[] blob = info.toBlob();
+        assertTrue(ConversationInfoBlob.isCompact(blob));
+
+        final ConversationInfo decoded = ConversationInfo.fromBlob(blob);
+        assertEquals(info.hashCode(), decoded.hashCode());
+        assertEquals(info.toString(), decoded.toString());
+        assertEquals(2, ConversationInfoBlob.forThread(blob).getParticipantCount());
+    }
+
+    public void testReuse() {
+        final ConversationInfoBlob reader = new ConversationInfoBlob();
+        final ConversationInfoBlob.Writer many = new ConversationInfoBlob.Writer(20, 0, null,
+                null, null, 20);
+        for (int i = 0; i < 20; i++) {
+            many.addParticipant("p" + i, null, i, false);
+        }
+        reader.reset(many.toByteArray());
+        assertEquals("p19", reader.getParticipantName(19));
+
+        reader.reset(new ConversationInfoBlob.Writer(1, 0, "s", "s", "s", 0).toByteArray());
+        assertEquals(0, reader.getParticipantCount());
+        try {
+            reader.getParticipantName(0);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    public void testRejectsOtherBlobs() {
+        // A Parcel-format blob starts with a little-endian message count
+        assertFalse(ConversationInfoBlob.isCompact(new byte[] { 3, 0, 0, 0, 1, 0, 0, 0 }));
+        assertFalse(ConversationInfoBlob.isCompact(null));
+
+        final byte[] blob = new ConversationInfoBlob.Writer(1, 0, "first", null, null, 1)
+                .addParticipant("Alice", null, 0, true)
+                .toByteArray();
+        final ConversationInfoBlob reader = new ConversationInfoBlob();
+        final byte[] truncated = new byte[blob.length - 3];
+        System.arraycopy(blob, 0, truncated, 0, truncated.length);
+        try {
+            reader.reset(truncated);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        final byte[] future = blob.clone();
+        future[3]++;
+        assertTrue(ConversationInfoBlob.isCompact(future));
+        try {
+            reader.reset(future);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testWriterChecksParticipantCount() {
+        final ConversationInfoBlob.Writer writer = new ConversationInfoBlob.Writer(1, 0, null,
+                null, null, 1);
+        try {
+            writer.toByteArray();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        writer.addParticipant("a", "b", 0, false);
+        try {
+            writer.addParticipant("a", "b", 0, false);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
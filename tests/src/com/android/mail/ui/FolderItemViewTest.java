@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.Folder;
+import com.android.mail.providers.UIProvider;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class FolderItemViewTest extends TestCase {
+
+    private static Folder.Builder folder() {
+        return new Folder.Builder()
+                .setUri(Uri.parse("content://folders/1"))
+                .setName("Folder")
+                .setUnreadCount(3)
+                .setType(UIProvider.FolderType.DEFAULT)
+                .setIconResId(1)
+                .setBgColor("16711680");
+    }
+
+    public void testSameViews() {
+        assertTrue(FolderItemView.areSameViews(null, null));
+        assertFalse(FolderItemView.areSameViews(folder().build(), null));
+        assertTrue(FolderItemView.areSameViews(folder().build(), folder().build()));
+        // Counts that aren't shown don't count
+        assertTrue(FolderItemView.areSameViews(folder().build(),
+                folder().setTotalCount(10).build()));
+    }
+
+    public void testDifferentViews() {
+        final Folder folder = folder().build();
+        assertFalse(FolderItemView.areSameViews(folder, folder().setUnreadCount(4).build()));
+        assertFalse(FolderItemView.areSameViews(folder,
+                folder().setType(UIProvider.FolderType.INBOX).build()));
+        assertFalse(FolderItemView.areSameViews(folder, folder().setIconResId(2).build()));
+        assertFalse(FolderItemView.areSameViews(folder, folder().setBgColor("65280").build()));
+        assertFalse(FolderItemView.areSameViews(folder,
+                folder().setCapabilities(UIProvider.FolderCapabilities.TINT_ICON).build()));
+    }
+}
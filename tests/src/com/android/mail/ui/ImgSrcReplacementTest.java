@@ -21,6 +21,7 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.mail.ui.HtmlConversationTemplates;
+import com.android.mail.utils.HtmlSanitizer;
 
 import junit.framework.ComparisonFailure;
 
@@ -128,6 +129,23 @@ public class ImgSrcReplacementTest extends AndroidTestCase {
         );
     }
 
+    @SmallTest
+    public void testMultipleImages() {
+        replace(
+            "<p>hi</p><IMG SRC=HTTP://a/1.png><img src='?view=att'><br/><img alt=x src=\"https://b\">",
+            "<p>hi</p><IMG src='data:' blocked-src=HTTP://a/1.png><img src='?view=att'><br/>"
+                    + "<img alt=x src='data:' blocked-src=\"https://b\">"
+        );
+    }
+
+    @SmallTest
+    public void testUnterminatedTag() {
+        replace(
+            "<img src=http://google.com",
+            "<img src='data:' blocked-src=http://google.com"
+        );
+    }
+
     public void testValueWithTheWordSrcAndASpace() {
         // Doesn't work, but this is not likely to be common.
         // For a regex to handle this properly, it would have to avoid matching on attribute values,
@@ -142,4 +160,20 @@ public class ImgSrcReplacementTest extends AndroidTestCase {
         }
     }
 
+    @SmallTest
+    public void testSanitizedBody() {
+        final String raw = "<div onclick=\"x()\"><img alt=\"a\" src=\"http://google.com/a.png\">"
+                + "<script>x()</script><img src=\"cid:b\"></div>";
+        final String sanitized = HtmlSanitizer.sanitizeHtml(raw);
+
+        final StringBuilder out = new StringBuilder("<p>");
+        HtmlConversationTemplates.appendSanitizedBody(out, raw, false /* blockImages */);
+        assertEquals("<p>" + sanitized, out.toString());
+
+        out.setLength(0);
+        out.append("<p>");
+        HtmlConversationTemplates.appendSanitizedBody(out, raw, true /* blockImages */);
+        assertEquals("<p>" + HtmlConversationTemplates.replaceAbsoluteImgUrls(sanitized),
+                out.toString());
+    }
 }
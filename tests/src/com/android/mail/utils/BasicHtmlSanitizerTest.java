@@ -1051,5 +1051,10 @@ public class BasicHtmlSanitizerTest extends AndroidTestCase {
     private void sanitize(String dirtyHTML, String expectedHTML) {
         final String cleansedHTML = HtmlSanitizer.sanitizeHtml(dirtyHTML);
         assertEquals(expectedHTML, cleansedHTML);
+
+        // sanitizing straight into a larger document gives the same html
+        final StringBuilder streamed = new StringBuilder("<p>");
+        HtmlSanitizer.sanitizeHtml(dirtyHTML, streamed);
+        assertEquals("<p>" + expectedHTML, streamed.toString());
     }
 }
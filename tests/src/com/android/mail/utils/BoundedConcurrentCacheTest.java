@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class BoundedConcurrentCacheTest extends TestCase {
+
+    public void testPutIfAbsentInterns() {
+        final BoundedConcurrentCache<String, String> cache =
+                new BoundedConcurrentCache<String, String>(10);
+        assertNull(cache.get("a"));
+        final String first = new String("value");
+        assertSame(first, cache.putIfAbsent("a", first));
+        assertSame(first, cache.putIfAbsent("a", new String("value")));
+        assertSame(first, cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    public void testEviction() {
+        final BoundedConcurrentCache<Integer, Integer> cache =
+                new BoundedConcurrentCache<Integer, Integer>(8);
+        for (int i = 0; i < 8; i++) {
+            cache.putIfAbsent(i, i);
+        }
+        assertEquals(8, cache.size());
+        // Going over capacity drops a quarter of the entries, the new one included or not
+        cache.putIfAbsent(8, 8);
+        assertEquals(6, cache.size());
+        int found = 0;
+        for (int i = 0; i <= 8; i++) {
+            if (cache.get(i) != null) {
+                found++;
+            }
+        }
+        assertEquals(6, found);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(0));
+    }
+
+    public void testConcurrentPuts() throws Exception {
+        final BoundedConcurrentCache<Integer, Integer> cache =
+                new BoundedConcurrentCache<Integer, Integer>(100);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        final Integer key = i % 150;
+                        final Integer cached = cache.putIfAbsent(key, key);
+                        assertEquals(key, cached);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 100);
+        int found = 0;
+        for (int i = 0; i < 150; i++) {
+            if (cache.get(i) != null) {
+                found++;
+            }
+        }
+        assertEquals(cache.size(), found);
+    }
+}
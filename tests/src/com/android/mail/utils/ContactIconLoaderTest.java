@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.NotificationUtils.ContactIconInfo;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+@SmallTest
+public class ContactIconLoaderTest extends AndroidTestCase {
+    private static final int ICON_SIZE = 32;
+    private static final int WEARABLE_BG_SIZE = 80;
+
+    /** Photo ids are unique to each run, as the decoded photo cache outlives a test */
+    private static long sNextPhotoId = System.nanoTime();
+
+    /**
+     * Answers email lookups from a map of address to contact id, giving every contact the photo
+     * id in mPhotoIds, and counts the queries.
+     */
+    private static class ContactsProvider extends MockContentProvider {
+        final Map<String, Long> mContacts = new HashMap<String, Long>();
+        final Map<Long, Long> mPhotoIds = new HashMap<Long, Long>();
+        int mQueryCount;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueryCount++;
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            for (String address : selectionArgs) {
+                final Long contactId = mContacts.get(address);
+                if (contactId != null) {
+                    cursor.addRow(new Object[] { address, contactId, mPhotoIds.get(contactId) });
+                }
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * Serves the same photo for every contact that has one, and counts the loads.
+     */
+    private static class CountingLoader extends ContactIconLoader {
+        final ArrayList<Long> mLoadedContacts = Lists.newArrayList();
+        private final byte[] mPhoto;
+
+        CountingLoader(ContentResolver resolver, byte[] photo) {
+            super(resolver, ICON_SIZE, ICON_SIZE, WEARABLE_BG_SIZE, WEARABLE_BG_SIZE);
+            mPhoto = photo;
+        }
+
+        @Override
+        protected byte[] loadPhotoBytes(long contactId) {
+            mLoadedContacts.add(contactId);
+            return mPhoto;
+        }
+    }
+
+    private ContactsProvider mProvider;
+    private MockContentResolver mResolver;
+    private byte[] mPhoto;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ContactsProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+
+        final Bitmap bitmap = Bitmap.createBitmap(300, 300, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        mPhoto = out.toByteArray();
+    }
+
+    private void addContact(String address, long contactId, boolean hasPhoto) {
+        mProvider.mContacts.put(address, contactId);
+        mProvider.mPhotoIds.put(contactId, hasPhoto ? sNextPhotoId++ : null);
+    }
+
+    public void testPrefetchQueriesOnce() {
+        final ArrayList<String> senders = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            final String address = "sender" + i + "@example.com";
+            senders.add(address);
+            addContact(address, i, i % 2 == 0);
+        }
+        final CountingLoader loader = new CountingLoader(mResolver, mPhoto);
+        loader.prefetch(senders);
+        assertEquals(1, mProvider.mQueryCount);
+
+        for (int i = 0; i < 20; i++) {
+            final ContactIconInfo info = loader.getContactIcon(senders.get(i), false);
+            assertEquals(i % 2 == 0, info.icon != null);
+        }
+        assertEquals(1, mProvider.mQueryCount);
+
+        // Senders that weren't prefetched are looked up as they come
+        assertNull(loader.getContactIcon("stranger@example.com", false).icon);
+        assertEquals(2, mProvider.mQueryCount);
+        loader.getContactIcon("stranger@example.com", false);
+        assertEquals(2, mProvider.mQueryCount);
+    }
+
+    public void testPhotosDecodedToSize() {
+        addContact("a@example.com", 1, true);
+        final CountingLoader loader = new CountingLoader(mResolver, mPhoto);
+
+        final ContactIconInfo iconOnly = loader.getContactIcon("a@example.com", false);
+        assertEquals(ICON_SIZE, iconOnly.icon.getWidth());
+        assertEquals(ICON_SIZE, iconOnly.icon.getHeight());
+        assertNull(iconOnly.wearableBg);
+
+        final ContactIconInfo withBg = loader.getContactIcon("a@example.com", true);
+        assertSame(iconOnly.icon, withBg.icon);
+        assertEquals(WEARABLE_BG_SIZE, withBg.wearableBg.getWidth());
+        assertEquals(WEARABLE_BG_SIZE, withBg.wearableBg.getHeight());
+    }
+
+    public void testPhotosSharedAcrossLoaders() {
+        addContact("a@example.com", 1, true);
+        final CountingLoader first = new CountingLoader(mResolver, mPhoto);
+        first.getContactIcon("a@example.com", true);
+        assertEquals(1, first.mLoadedContacts.size());
+
+        // The next notification update finds the photo already decoded
+        final CountingLoader second = new CountingLoader(mResolver, mPhoto);
+        assertNotNull(second.getContactIcon("a@example.com", true).wearableBg);
+        assertEquals(0, second.mLoadedContacts.size());
+
+        // Until the contact's photo changes
+        addContact("a@example.com", 1, true);
+        final CountingLoader third = new CountingLoader(mResolver, mPhoto);
+        assertNotNull(third.getContactIcon("a@example.com", false).icon);
+        assertEquals(1, third.mLoadedContacts.size());
+    }
+}
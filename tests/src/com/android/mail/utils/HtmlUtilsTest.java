@@ -18,8 +18,24 @@ package com.android.mail.utils;
 
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.text.Html;
 
 @SmallTest
 public class HtmlUtilsTest extends AndroidTestCase {
     // TODO (jin) IMPLEMENT ME
+
+    public void testFromHtmlToString() {
+        final String[] inputs = {
+                "", "john doe", "coolguy@doe.com", "O'brian", "Jos\u00e9 > Jim",
+                "Tom &amp; Jerry", "a <b>bold</b> name", "double  space", " leading",
+                "trailing ", "new\nline", "tab\there", "&lt;test@localhost.com&gt;"
+        };
+        for (String input : inputs) {
+            assertEquals(input, Html.fromHtml(input).toString(),
+                    HtmlUtils.fromHtmlToString(input));
+        }
+        // Plain text is returned as is
+        final String plain = "john doe";
+        assertSame(plain, HtmlUtils.fromHtmlToString(plain));
+    }
 }
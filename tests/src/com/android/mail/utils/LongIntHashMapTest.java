@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+@SmallTest
+public class LongIntHashMapTest extends TestCase {
+
+    public void testPutAndGet() {
+        final LongIntHashMap map = new LongIntHashMap(4);
+        // Grow well past the initial capacity
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 7919L - 500, i);
+        }
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, map.get(i * 7919L - 500, -1));
+            assertTrue(map.containsKey(i * 7919L - 500));
+        }
+        assertEquals(-1, map.get(1, -1));
+        assertFalse(map.containsKey(Long.MAX_VALUE));
+    }
+
+    public void testReplace() {
+        final LongIntHashMap map = new LongIntHashMap();
+        map.put(42L, 1);
+        map.put(42L, 2);
+        assertEquals(1, map.size());
+        assertEquals(2, map.get(42L, -1));
+    }
+
+    public void testZeroKey() {
+        final LongIntHashMap map = new LongIntHashMap();
+        assertFalse(map.containsKey(0L));
+        assertEquals(-1, map.get(0L, -1));
+        map.put(0L, 5);
+        map.put(0L, 6);
+        assertEquals(1, map.size());
+        assertEquals(6, map.get(0L, -1));
+    }
+
+    public void testKeySet() {
+        final LongIntHashMap map = new LongIntHashMap();
+        final Set<Long> expected = new HashSet<Long>();
+        for (long key = -3; key < 100; key++) {
+            map.put(key, (int) key);
+            expected.add(key);
+        }
+        final Set<Long> keys = map.keySet();
+        assertEquals(expected.size(), keys.size());
+        assertTrue(keys.contains(0L));
+        assertTrue(keys.contains(-3L));
+        assertFalse(keys.contains(100L));
+        assertFalse(keys.contains("0"));
+        assertEquals(expected, new HashSet<Long>(keys));
+    }
+}
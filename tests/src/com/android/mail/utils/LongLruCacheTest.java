@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+@SmallTest
+public class LongLruCacheTest extends TestCase {
+    private static final int ACCOUNT = LongLruCache.getAccountIndex("a@example.com");
+    private static final int OTHER_ACCOUNT = LongLruCache.getAccountIndex("b@example.com");
+
+    public void testAccountIndex() {
+        assertEquals(ACCOUNT, LongLruCache.getAccountIndex(new String("a@example.com")));
+        assertFalse(ACCOUNT == OTHER_ACCOUNT);
+        final int none = LongLruCache.getAccountIndex(null);
+        assertEquals(none, LongLruCache.getAccountIndex(null));
+        assertFalse(none == ACCOUNT);
+    }
+
+    public void testPutAndGet() {
+        final LongLruCache<String> cache = new LongLruCache<String>(10000);
+        // Grow well past the initial capacity
+        for (int i = 0; i < 1000; i++) {
+            assertNull(cache.put(ACCOUNT, i * 7919L - 500, "v" + i));
+        }
+        assertEquals(1000, cache.count());
+        assertEquals(1000, cache.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("v" + i, cache.get(ACCOUNT, i * 7919L - 500));
+        }
+        assertNull(cache.get(ACCOUNT, 1));
+        assertEquals("v1", cache.put(ACCOUNT, 7919L - 500, "w1"));
+        assertEquals("w1", cache.get(ACCOUNT, 7919L - 500));
+        assertEquals(1000, cache.count());
+    }
+
+    public void testAccountsAreSeparate() {
+        final LongLruCache<String> cache = new LongLruCache<String>(10);
+        cache.put(ACCOUNT, 1, "a1");
+        cache.put(OTHER_ACCOUNT, 1, "b1");
+        cache.put(OTHER_ACCOUNT, 2, "b2");
+        assertEquals("a1", cache.get(ACCOUNT, 1));
+        assertEquals("b1", cache.get(OTHER_ACCOUNT, 1));
+        assertNull(cache.get(ACCOUNT, 2));
+
+        cache.evictAccount(OTHER_ACCOUNT);
+        assertEquals(1, cache.count());
+        assertEquals("a1", cache.get(ACCOUNT, 1));
+        assertNull(cache.get(OTHER_ACCOUNT, 1));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final LongLruCache<String> cache = new LongLruCache<String>(3);
+        cache.put(ACCOUNT, 1, "1");
+        cache.put(ACCOUNT, 2, "2");
+        cache.put(ACCOUNT, 3, "3");
+        cache.get(ACCOUNT, 1);
+        cache.put(ACCOUNT, 4, "4");
+        assertNull(cache.get(ACCOUNT, 2));
+        assertEquals("1", cache.get(ACCOUNT, 1));
+        assertEquals("3", cache.get(ACCOUNT, 3));
+        assertEquals("4", cache.get(ACCOUNT, 4));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    public void testSizedEntries() {
+        final LongLruCache<byte[]> cache = new LongLruCache<byte[]>(100) {
+            @Override
+            protected int sizeOf(byte[] value) {
+                return value.length;
+            }
+        };
+        cache.put(ACCOUNT, 1, new byte[40]);
+        cache.put(ACCOUNT, 2, new byte[40]);
+        assertEquals(80, cache.size());
+        cache.put(ACCOUNT, 3, new byte[40]);
+        assertEquals(80, cache.size());
+        assertNull(cache.get(ACCOUNT, 1));
+
+        // Replacing an entry counts only the new size
+        cache.put(ACCOUNT, 2, new byte[10]);
+        assertEquals(50, cache.size());
+
+        // An entry bigger than the cache isn't kept
+        cache.put(ACCOUNT, 4, new byte[101]);
+        assertNull(cache.get(ACCOUNT, 4));
+        assertEquals(0, cache.size());
+    }
+
+    public void testRemoveAndEvictAll() {
+        final LongLruCache<String> cache = new LongLruCache<String>(10);
+        cache.put(ACCOUNT, 1, "1");
+        cache.put(ACCOUNT, 2, "2");
+        assertEquals("1", cache.remove(ACCOUNT, 1));
+        assertNull(cache.remove(ACCOUNT, 1));
+        assertEquals(1, cache.count());
+
+        cache.evictAll();
+        assertEquals(0, cache.count());
+        assertEquals(0, cache.size());
+        assertNull(cache.get(ACCOUNT, 2));
+        cache.put(ACCOUNT, 2, "2");
+        assertEquals("2", cache.get(ACCOUNT, 2));
+    }
+
+    public void testCounters() {
+        final LongLruCache<String> cache = new LongLruCache<String>(10);
+        cache.put(ACCOUNT, 1, "1");
+        cache.get(ACCOUNT, 1);
+        cache.get(ACCOUNT, 1);
+        cache.get(ACCOUNT, 2);
+        assertEquals(2, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.putCount());
+    }
+
+    public void testMatchesLinkedHashMap() {
+        final int maxSize = 50;
+        final LongLruCache<Integer> cache = new LongLruCache<Integer>(maxSize);
+        final LinkedHashMap<Long, Integer> expected =
+                new LinkedHashMap<Long, Integer>(16, 0.75f, true /* accessOrder */);
+        final Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            final long id = random.nextInt(120);
+            final int account = (id & 1) == 0 ? ACCOUNT : OTHER_ACCOUNT;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.get(id), cache.get(account, id));
+                    break;
+                case 1:
+                    assertEquals(expected.put(id, i), cache.put(account, id, i));
+                    if (expected.size() > maxSize) {
+                        final Iterator<Map.Entry<Long, Integer>> eldest =
+                                expected.entrySet().iterator();
+                        eldest.next();
+                        eldest.remove();
+                    }
+                    break;
+                default:
+                    assertEquals(expected.remove(id), cache.remove(account, id));
+                    break;
+            }
+            assertEquals(expected.size(), cache.count());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.NotificationMapStore.Entry;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+@SmallTest
+public class NotificationMapStoreTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("notification_map", null);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+        super.tearDown();
+    }
+
+    private static Entry entry(int account, int folder, int unread, int unseen) {
+        return new Entry("user" + account + "@example.com", "com.example",
+                "content://accounts/" + account, "content://folders/" + account + "/" + folder,
+                unread, unseen);
+    }
+
+    private static Map<String, String> describe(Collection<Entry> entries) {
+        final Map<String, String> result = new HashMap<String, String>();
+        for (Entry entry : entries) {
+            result.put(entry.getKey(), entry.accountName + " " + entry.accountType + " "
+                    + entry.unread + " " + entry.unseen);
+        }
+        return result;
+    }
+
+    private Collection<Entry> reload() {
+        return new NotificationMapStore(mFile).load();
+    }
+
+    public void testMissingFile() {
+        final NotificationMapStore store = new NotificationMapStore(mFile);
+        assertFalse(store.exists());
+        assertTrue(store.load().isEmpty());
+    }
+
+    public void testRoundTrip() {
+        final NotificationMapStore store = new NotificationMapStore(mFile);
+        store.load();
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (int account = 0; account < 6; account++) {
+            for (int folder = 0; folder < 4; folder++) {
+                entries.add(entry(account, folder, account + folder + 1, folder));
+            }
+        }
+        store.update(entries);
+        assertTrue(store.exists());
+        assertEquals(describe(entries), describe(reload()));
+    }
+
+    public void testOneChangeAppendsOneRecord() {
+        final NotificationMapStore store = new NotificationMapStore(mFile);
+        store.load();
+        store.update(Arrays.asList(entry(0, 0, 1, 1), entry(0, 1, 2, 2), entry(1, 0, 3, 3)));
+        final long length = mFile.length();
+        final int records = store.getRecordCount();
+
+        // Unchanged entries aren't written again
+        store.update(Arrays.asList(entry(0, 0, 1, 1), entry(0, 1, 2, 2), entry(1, 0, 3, 3)));
+        assertEquals(length, mFile.length());
+
+        store.update(Arrays.asList(entry(0, 0, 1, 1), entry(0, 1, 5, 4), entry(1, 0, 3, 3)));
+        assertEquals(records + 1, store.getRecordCount());
+        final long recordLength = mFile.length() - length;
+        assertTrue(recordLength > 0 && recordLength < length / 2);
+        assertEquals(describe(Arrays.asList(entry(0, 0, 1, 1), entry(0, 1, 5, 4),
+                entry(1, 0, 3, 3))), describe(reload()));
+
+        store.update(Arrays.asList(entry(0, 0, 1, 1), entry(1, 0, 3, 3)));
+        assertEquals(records + 2, store.getRecordCount());
+        assertEquals(describe(Arrays.asList(entry(0, 0, 1, 1), entry(1, 0, 3, 3))),
+                describe(reload()));
+    }
+
+    public void testCompacts() {
+        final NotificationMapStore store = new NotificationMapStore(mFile);
+        store.load();
+        for (int i = 1; i < 1000; i++) {
+            store.put(entry(0, 0, i, i));
+            assertTrue(store.getRecordCount() <= 2 + 16 + 1);
+        }
+        assertEquals(describe(Arrays.asList(entry(0, 0, 999, 999))), describe(reload()));
+    }
+
+    public void testPartialRecord() throws IOException {
+        final NotificationMapStore store = new NotificationMapStore(mFile);
+        store.load();
+        store.update(Arrays.asList(entry(0, 0, 1, 1), entry(0, 1, 2, 2)));
+        store.put(entry(0, 1, 7, 7));
+
+        // Cut the last record short, as a crash in the middle of appending it would
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        final NotificationMapStore reloaded = new NotificationMapStore(mFile);
+        assertEquals(describe(Arrays.asList(entry(0, 0, 1, 1), entry(0, 1, 2, 2))),
+                describe(reloaded.load()));
+
+        // The next change rewrites the file rather than appending after the partial record
+        reloaded.put(entry(1, 0, 3, 3));
+        assertEquals(describe(Arrays.asList(entry(0, 0, 1, 1), entry(0, 1, 2, 2),
+                entry(1, 0, 3, 3))), describe(reload()));
+    }
+
+    public void testUnknownFormat() throws IOException {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] { 'c', 'o', 'n', 't', 'e', 'n', 't' });
+        out.close();
+
+        final NotificationMapStore store = new NotificationMapStore(mFile);
+        assertTrue(store.load().isEmpty());
+        store.put(entry(0, 0, 1, 1));
+        assertEquals(describe(Arrays.asList(entry(0, 0, 1, 1))), describe(reload()));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the primitive position indices used by ConversationCursor against the HashMaps they
+ * replaced: build time, lookup time and retained heap for 10k and 100k rows. Plain JVM code, so
+ * it can be run outside of a device as well. The timings are printed; every lookup, including
+ * lookups of keys that were never added, is checked against the HashMaps.
+ */
+@LargeTest
+public class PositionIndexBenchmark extends TestCase {
+
+    private static final int LOOKUP_ROUNDS = 5;
+
+    private static String[] makeUris(int rows) {
+        final String[] uris = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            uris[i] = "content://com.android.mail.mockprovider/conversation/" + (1000000L + i);
+        }
+        return uris;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, int rows, long buildNs, long lookupNs, long bytes) {
+        System.out.println(String.format("%-22s rows=%6d build=%6.2fms lookup=%6.1fns/op heap=%5dKB",
+                name, rows, buildNs / 1e6, lookupNs / (double) (rows * LOOKUP_ROUNDS),
+                bytes / 1024));
+    }
+
+    private void benchmark(int rows) {
+        final String[] uris = makeUris(rows);
+        long sink = 0;
+
+        // HashMaps, as previously used by ConversationCursor
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        final Map<Long, Integer> idMap = new HashMap<Long, Integer>(rows * 2);
+        final Map<String, Integer> uriMap = new HashMap<String, Integer>(rows * 2);
+        for (int i = 0; i < rows; i++) {
+            idMap.put(1000000L + i, i);
+            uriMap.put(uris[i], i);
+        }
+        final long mapBuild = System.nanoTime() - start;
+        final long mapHeap = usedHeap() - heapBefore;
+        start = System.nanoTime();
+        for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+            for (int i = 0; i < rows; i++) {
+                sink += idMap.get(1000000L + i);
+                sink += uriMap.get(uris[i]);
+            }
+        }
+        report("HashMap", rows, mapBuild, System.nanoTime() - start, mapHeap);
+
+        // Primitive indices, which keep hashes of the uris rather than the uri strings
+        heapBefore = usedHeap();
+        start = System.nanoTime();
+        final LongIntHashMap idIndex = new LongIntHashMap(rows);
+        final StringPositionIndex uriIndex = new StringPositionIndex(rows);
+        for (int i = 0; i < rows; i++) {
+            idIndex.put(1000000L + i, i);
+            uriIndex.add(uris[i], i);
+        }
+        final long indexBuild = System.nanoTime() - start;
+        final long indexHeap = usedHeap() - heapBefore;
+        start = System.nanoTime();
+        for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+            for (int i = 0; i < rows; i++) {
+                sink += idIndex.get(1000000L + i, -1);
+                sink += uriIndex.get(uris[i]);
+            }
+        }
+        report("LongIntHashMap+Index", rows, indexBuild, System.nanoTime() - start, indexHeap);
+
+        // Keep everything reachable until after the heap measurements
+        assertTrue(sink != 0);
+        assertEquals(idMap.size(), idIndex.size());
+        assertEquals(uriMap.size(), uriIndex.size());
+        for (int i = 0; i < rows; i++) {
+            assertEquals(idMap.get(1000000L + i).intValue(), idIndex.get(1000000L + i, -1));
+            assertEquals(uriMap.get(uris[i]).intValue(), uriIndex.get(new String(uris[i])));
+        }
+        // Keys next to the ones added, which differ from them in a single character
+        for (int i = rows; i < rows * 2; i++) {
+            assertEquals(-1, idIndex.get(1000000L + i, -1));
+            assertEquals(-1, uriIndex.get(
+                    "content://com.android.mail.mockprovider/conversation/" + (1000000L + i)));
+        }
+    }
+
+    public void testBenchmark10k() {
+        benchmark(10000);
+    }
+
+    public void testBenchmark100k() {
+        benchmark(100000);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+@SmallTest
+public class RankSelectBitSetTest extends TestCase {
+
+    /**
+     * Checks rank and select against a straightforward scan of the bits.
+     */
+    private static void verify(RankSelectBitSet bits) {
+        int set = 0;
+        int clear = 0;
+        for (int i = 0; i < bits.size(); i++) {
+            assertEquals(set, bits.rank(i));
+            if (bits.get(i)) {
+                set++;
+            } else {
+                assertEquals(i, bits.selectClear(clear));
+                clear++;
+            }
+        }
+        assertEquals(set, bits.rank(bits.size()));
+        assertEquals(set, bits.cardinality());
+        assertEquals(-1, bits.selectClear(clear));
+        assertEquals(-1, bits.selectClear(-1));
+    }
+
+    public void testSetAndClear() {
+        final RankSelectBitSet bits = new RankSelectBitSet(200);
+        verify(bits);
+        assertTrue(bits.set(0));
+        assertFalse(bits.set(0));
+        assertTrue(bits.set(63));
+        assertTrue(bits.set(64));
+        assertTrue(bits.set(199));
+        verify(bits);
+        assertTrue(bits.clear(63));
+        assertFalse(bits.clear(63));
+        verify(bits);
+    }
+
+    public void testRandom() {
+        final Random random = new Random(42);
+        for (int size : new int[] { 1, 2, 7, 64, 100, 1000 }) {
+            final RankSelectBitSet bits = new RankSelectBitSet(size);
+            for (int i = 0; i < size; i++) {
+                final int index = random.nextInt(size);
+                if (random.nextBoolean()) {
+                    bits.set(index);
+                } else {
+                    bits.clear(index);
+                }
+            }
+            verify(bits);
+        }
+    }
+
+    public void testSetAll() {
+        final RankSelectBitSet bits = new RankSelectBitSet(130);
+        bits.set(5);
+        bits.setAll(new int[] { 0, 64, 129, 77, 5 }, 4);
+        assertTrue(bits.get(5));
+        assertTrue(bits.get(77));
+        verify(bits);
+        bits.setAll(new int[] { 3 }, 1);
+        verify(bits);
+        assertEquals(6, bits.cardinality());
+    }
+
+    public void testAllSet() {
+        final RankSelectBitSet bits = new RankSelectBitSet(3);
+        bits.setAll(new int[] { 0, 1, 2 }, 3);
+        assertEquals(-1, bits.selectClear(0));
+        verify(bits);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mail.utils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+@SmallTest
+public class SanitizedHtmlCacheTest extends AndroidTestCase {
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "sanitized_html_test");
+        deleteRecursively(mRoot);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mRoot);
+        super.tearDown();
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    public void testKeys() {
+        final String key = SanitizedHtmlCache.getKey("<id@example.com>", "<b>hi</b>");
+        assertEquals(40, key.length());
+        assertEquals(key, SanitizedHtmlCache.getKey("<id@example.com>", "<b>hi</b>"));
+        assertFalse(key.equals(SanitizedHtmlCache.getKey("<id@example.com>", "<b>bye</b>")));
+        assertFalse(key.equals(SanitizedHtmlCache.getKey("<other@example.com>", "<b>hi</b>")));
+        assertFalse(key.equals(SanitizedHtmlCache.getKey(null, "<b>hi</b>")));
+    }
+
+    public void testHitAndMiss() {
+        final SanitizedHtmlCache cache = new SanitizedHtmlCache(mRoot, 1, 1024);
+        assertNull(cache.get("a"));
+        cache.put("a", "<div>é</div>");
+        assertEquals("<div>é</div>", cache.get("a"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // A new instance, as after a restart, finds what the old one wrote
+        final SanitizedHtmlCache reopened = new SanitizedHtmlCache(mRoot, 1, 1024);
+        assertEquals("<div>é</div>", reopened.get("a"));
+        assertEquals(cache.getSize(), reopened.getSize());
+    }
+
+    public void testEviction() {
+        final SanitizedHtmlCache cache = new SanitizedHtmlCache(mRoot, 1, 25);
+        cache.put("a", "0123456789");
+        cache.put("b", "0123456789");
+        // Using a makes b the least recently used
+        assertNotNull(cache.get("a"));
+        cache.put("c", "0123456789");
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(20, cache.getSize());
+
+        // Too big to ever fit, so it isn't kept
+        cache.put("d", "01234567890123456789012345");
+        assertNull(cache.get("d"));
+    }
+
+    public void testPolicyVersionChange() {
+        final SanitizedHtmlCache cache = new SanitizedHtmlCache(mRoot, 1, 1024);
+        cache.put("a", "<div></div>");
+        final SanitizedHtmlCache upgraded = new SanitizedHtmlCache(mRoot, 2, 1024);
+        assertNull(upgraded.get("a"));
+        assertFalse(new File(mRoot, "v1").exists());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class StringPositionIndexTest extends TestCase {
+
+    private static StringPositionIndex buildIndex(String[] keys) {
+        final StringPositionIndex index = new StringPositionIndex(2);
+        for (int i = 0; i < keys.length; i++) {
+            index.add(keys[i], i);
+        }
+        return index;
+    }
+
+    public void testLookup() {
+        final String[] keys = new String[500];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "content://com.example.mail/conversation/" + i;
+        }
+        final StringPositionIndex index = buildIndex(keys);
+        assertEquals(keys.length, index.size());
+        for (int i = 0; i < keys.length; i++) {
+            // Use an equal but distinct string to make sure lookups don't rely on identity
+            assertEquals(i, index.get(new String(keys[i])));
+        }
+        assertEquals(-1, index.get("content://com.example.mail/conversation/500"));
+        assertFalse(index.contains(""));
+    }
+
+    public void testHashCollisions() {
+        // "Aa" and "BB" have the same String.hashCode(), but not the same 64-bit hash
+        assertTrue(StringPositionIndex.hash64("Aa") != StringPositionIndex.hash64("BB"));
+        final StringPositionIndex index = buildIndex(new String[] { "Aa", "BB", "AaBB", "BBAa" });
+        assertEquals(0, index.get("Aa"));
+        assertEquals(1, index.get("BB"));
+        assertEquals(2, index.get("AaBB"));
+        assertEquals(3, index.get("BBAa"));
+        assertEquals(-1, index.get("AaAa"));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.widget;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.widget.RemoteViews;
+
+import com.android.mail.providers.UIProvider;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class WidgetRowCacheTest extends TestCase {
+
+    private static Object[] row(long id) {
+        final Object[] row = new Object[UIProvider.CONVERSATION_PROJECTION.length];
+        row[UIProvider.CONVERSATION_ID_COLUMN] = id;
+        row[UIProvider.CONVERSATION_URI_COLUMN] = "content://conversations/" + id;
+        row[UIProvider.CONVERSATION_SUBJECT_COLUMN] = "Subject " + id;
+        row[UIProvider.CONVERSATION_SNIPPET_COLUMN] = "Snippet";
+        row[UIProvider.CONVERSATION_INFO_COLUMN] = new byte[] { 1, 2, 3 };
+        row[UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN] = new byte[] { 4, 5 };
+        row[UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN] = 1000L * id;
+        row[UIProvider.CONVERSATION_READ_COLUMN] = 0;
+        row[UIProvider.CONVERSATION_SEEN_COLUMN] = 0;
+        return row;
+    }
+
+    private static int hash(Object[] row) {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        cursor.addRow(row);
+        cursor.moveToFirst();
+        return WidgetRowCache.getContentHash(cursor);
+    }
+
+    public void testContentHash() {
+        final int hash = hash(row(1));
+        assertEquals(hash, hash(row(1)));
+
+        final Object[] read = row(1);
+        read[UIProvider.CONVERSATION_READ_COLUMN] = 1;
+        assertFalse(hash == hash(read));
+
+        final Object[] newMessage = row(1);
+        newMessage[UIProvider.CONVERSATION_INFO_COLUMN] = new byte[] { 1, 2, 3, 4 };
+        assertFalse(hash == hash(newMessage));
+
+        final Object[] folders = row(1);
+        folders[UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN] = new byte[] { 4, 6 };
+        assertFalse(hash == hash(folders));
+
+        // Columns that aren't shown don't count
+        final Object[] seen = row(1);
+        seen[UIProvider.CONVERSATION_SEEN_COLUMN] = 1;
+        assertEquals(hash, hash(seen));
+    }
+
+    public void testGetAndPut() {
+        final WidgetRowCache cache = new WidgetRowCache("a@example.com", 25);
+        final RemoteViews views = new RemoteViews("com.android.mail", 0);
+        assertNull(cache.get(1, 10));
+        cache.put(1, 10, views);
+        assertSame(views, cache.get(1, 10));
+        // Changed content
+        assertNull(cache.get(1, 11));
+        assertNull(cache.get(2, 10));
+
+        cache.clear();
+        assertNull(cache.get(1, 10));
+    }
+
+    public void testKeepsMaxRows() {
+        final WidgetRowCache cache = new WidgetRowCache("a@example.com", 3);
+        final RemoteViews views = new RemoteViews("com.android.mail", 0);
+        // The first lookup of the day finds nothing
+        cache.get(0, 0);
+        for (int i = 0; i < 4; i++) {
+            cache.put(i, 0, views);
+        }
+        assertNull(cache.get(0, 0));
+        assertSame(views, cache.get(3, 0));
+    }
+}
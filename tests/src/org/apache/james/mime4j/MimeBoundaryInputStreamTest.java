@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Random;
+
+/**
+ * Checks that {@link MimeBoundaryInputStream} splits streams into the same parts, with the same
+ * flags, as the byte at a time implementation it replaced, however it is read and whether or not
+ * its parent can take bytes back.
+ */
+@SmallTest
+public class MimeBoundaryInputStreamTest extends TestCase {
+
+    private static final String[] BOUNDARIES = { "outer", "in" };
+
+    private static String readAll(InputStream in, Random random) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64];
+        while (true) {
+            if (random.nextBoolean()) {
+                final int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                final int n = in.read(buffer, 0, 1 + random.nextInt(buffer.length));
+                if (n == -1) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), "ISO-8859-1");
+    }
+
+    /**
+     * Splits the stream the way {@link MimeStreamParser} does, recursing into the parts with
+     * the next boundary, and describes what it found. Unless <code>pushback</code> is set, the
+     * outermost parent is handed to the boundary streams as it is.
+     */
+    private static String split(InputStream parent, int depth, boolean legacy, boolean pushback,
+            Random random) throws IOException {
+        if (depth == BOUNDARIES.length) {
+            return readAll(parent, random);
+        }
+        final String boundary = BOUNDARIES[depth];
+        if (pushback && !(parent instanceof MimeBoundaryInputStream)) {
+            parent = new PushbackInputStream(parent,
+                    MimeBoundaryInputStream.getBufferSize(boundary));
+        }
+        final StringBuilder sb = new StringBuilder();
+        InputStream part = open(parent, boundary, legacy);
+        sb.append("[preamble ").append(readAll(part, random));
+        while (hasMoreParts(part)) {
+            part = open(parent, boundary, legacy);
+            sb.append("][part ").append(split(part, depth + 1, legacy, pushback, random));
+            readAll(part, random);
+            if (parentEOF(part)) {
+                sb.append("][premature eof");
+                break;
+            }
+        }
+        sb.append("][epilogue ").append(readAll(parent, random)).append(']');
+        return sb.toString();
+    }
+
+    private static InputStream open(InputStream parent, String boundary, boolean legacy)
+            throws IOException {
+        return legacy ? new LegacyMimeBoundaryInputStream(parent, boundary)
+                : new MimeBoundaryInputStream(parent, boundary);
+    }
+
+    private static boolean hasMoreParts(InputStream part) {
+        return part instanceof LegacyMimeBoundaryInputStream
+                ? ((LegacyMimeBoundaryInputStream) part).hasMoreParts()
+                : ((MimeBoundaryInputStream) part).hasMoreParts();
+    }
+
+    private static boolean parentEOF(InputStream part) {
+        return part instanceof LegacyMimeBoundaryInputStream
+                ? ((LegacyMimeBoundaryInputStream) part).parentEOF()
+                : ((MimeBoundaryInputStream) part).parentEOF();
+    }
+
+    private static void assertSameSplit(String message) throws IOException {
+        final byte[] bytes = message.getBytes("ISO-8859-1");
+        final String expected =
+                split(new ByteArrayInputStream(bytes), 0, true, false, new Random(1));
+        final String actual =
+                split(new ByteArrayInputStream(bytes), 0, false, true, new Random(2));
+        assertEquals(message, expected, actual);
+        final String unwrapped =
+                split(new ByteArrayInputStream(bytes), 0, false, false, new Random(3));
+        assertEquals(message, expected, unwrapped);
+    }
+
+    public void testWellFormed() throws IOException {
+        assertSameSplit("preamble\r\n--outer\r\nheader: 1\r\n\r\nfirst\r\n--outer\r\n"
+                + "\r\npre\r\n--in\r\nnested\r\n--in--\r\nepi\r\n--outer--\r\nepilogue\r\n");
+        assertSameSplit("--outer\r\n--in\r\n\r\n--in--\r\n--outer--");
+        assertSameSplit("");
+        assertSameSplit("no boundary at all");
+        assertSameSplit("--outer\r\ntruncated");
+        assertSameSplit("--outer\r\n--outer\r\n--outer--\r\n");
+        assertSameSplit("\r\n--outerx trailing junk\r\nbody\r\n--outer-- junk\r\n");
+    }
+
+    public void testRandom() throws IOException {
+        final String[] pieces = { "a", "-", "--", "\r", "\n", "\r\n", "\r\n--outer", "\r\n--in",
+                "--outer", "--in", "--outer--", "--in--", "o", "ut", "er", "in", " " };
+        final Random random = new Random(14);
+        for (int i = 0; i < 20000; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int count = random.nextInt(40);
+            for (int j = 0; j < count; j++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+            assertSameSplit(sb.toString());
+        }
+    }
+
+    public void testLargeParts() throws IOException {
+        final Random random = new Random(15);
+        final StringBuilder sb = new StringBuilder("--outer\r\n");
+        for (int part = 0; part < 5; part++) {
+            // Parts much bigger than the buffer, with near misses at every block boundary
+            for (int i = 0; i < 30000; i++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+                if (random.nextInt(500) == 0) {
+                    sb.append("\r\n--oute");
+                }
+            }
+            sb.append(part < 4 ? "\r\n--outer\r\n" : "\r\n--outer--\r\n");
+        }
+        assertSameSplit(sb.toString());
+    }
+}
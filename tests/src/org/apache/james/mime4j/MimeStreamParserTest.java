@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link MimeStreamParser} splits headers into the same fields as the
+ * {@link StringBuffer} based implementation it replaced.
+ */
+@SmallTest
+public class MimeStreamParserTest extends TestCase {
+
+    private static final BitSet FIELD_CHARS = new BitSet();
+
+    static {
+        FIELD_CHARS.set(0x21, 0x3a);
+        FIELD_CHARS.set(0x3b, 0x7f);
+    }
+
+    /**
+     * Collects the raw contents, name and value of each field of the first header.
+     */
+    private static class FieldCollector extends AbstractContentHandler {
+        final List<String> fields = new ArrayList<String>();
+        final List<RawField> views = new ArrayList<RawField>();
+        private final MimeStreamParser parser;
+
+        FieldCollector(MimeStreamParser parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public void field(RawField rawField) {
+            fields.add(rawField.getRaw() + "|" + rawField.getName() + "|" + rawField.getBody());
+            views.add(rawField);
+        }
+
+        @Override
+        public void endHeader() {
+            parser.stop();
+        }
+    }
+
+    private static List<String> parse(byte[] message) throws IOException {
+        return parseCollector(message).fields;
+    }
+
+    private static FieldCollector parseCollector(byte[] message) throws IOException {
+        final MimeStreamParser parser = new MimeStreamParser();
+        final FieldCollector collector = new FieldCollector(parser);
+        parser.setContentHandler(collector);
+        parser.parse(new ByteArrayInputStream(message));
+        return collector;
+    }
+
+    /**
+     * The fields the header parser used to find, and the values it used to pass on.
+     */
+    private static List<String> parseLegacy(byte[] message) throws IOException {
+        final InputStream is = new ByteArrayInputStream(message);
+        final StringBuffer sb = new StringBuffer();
+        int curr = 0;
+        int prev = 0;
+        while ((curr = is.read()) != -1) {
+            if (curr == '\n' && (prev == '\n' || prev == 0)) {
+                if (sb.length() > 0) {
+                    sb.deleteCharAt(sb.length() - 1);
+                }
+                break;
+            }
+            sb.append((char) curr);
+            prev = curr == '\r' ? prev : curr;
+        }
+
+        final List<String> fields = new ArrayList<String>();
+        int start = 0;
+        int pos = 0;
+        while (pos < sb.length()) {
+            while (pos < sb.length() && sb.charAt(pos) != '\r') {
+                pos++;
+            }
+            if (pos < sb.length() - 1 && sb.charAt(pos + 1) != '\n') {
+                pos++;
+                continue;
+            }
+            if (pos >= sb.length() - 2 || FIELD_CHARS.get(sb.charAt(pos + 2))) {
+                final String field = sb.substring(start, pos);
+                start = pos + 2;
+                final int index = field.indexOf(':');
+                if (index != -1 && FIELD_CHARS.get(field.charAt(0))) {
+                    final String fieldName = field.substring(0, index).trim();
+                    boolean valid = true;
+                    for (int i = 0; i < fieldName.length(); i++) {
+                        if (!FIELD_CHARS.get(fieldName.charAt(i))) {
+                            valid = false;
+                            break;
+                        }
+                    }
+                    if (valid) {
+                        fields.add(field + "|" + fieldName + "|"
+                                + field.substring(index + 1).trim());
+                    }
+                }
+            }
+            pos += 2;
+        }
+        return fields;
+    }
+
+    private static byte[] bytes(String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    public void testFields() throws IOException {
+        final List<String> fields = parse(bytes("From: a@example.com\r\n"
+                + "Subject :  Hello\r\n\tthere  \r\n"
+                + "Bad Name: ignored\r\n"
+                + " leading: whitespace is a fold\r\n"
+                + "X-Empty:\r\n"
+                + "\r\n"
+                + "Not: a field\r\n"));
+        assertEquals(3, fields.size());
+        assertEquals("From: a@example.com|From|a@example.com", fields.get(0));
+        assertEquals("Subject :  Hello\r\n\tthere  |Subject|Hello\r\n\tthere", fields.get(1));
+        assertEquals("X-Empty:|X-Empty|", fields.get(2));
+    }
+
+    public void testCommonNamesAreShared() throws IOException {
+        final FieldCollector collector = parseCollector(bytes("Content-Type: text/plain\r\n"
+                + "Received: from a\r\n"
+                + "DKIM-Signature: v=1\r\n"
+                + "content-type: text/html\r\n"
+                + "X-Unusual: 1\r\n"
+                + "\r\n"));
+        assertEquals(5, collector.fields.size());
+        assertEquals("Content-Type: text/plain|Content-Type|text/plain", collector.fields.get(0));
+        // The parser hands out the same view for every field
+        assertSame(collector.views.get(0), collector.views.get(4));
+
+        final List<String> names = new ArrayList<String>();
+        parseNames(bytes("Content-Type: text/plain\r\nReceived: from a\r\n"
+                + "DKIM-Signature: v=1\r\ncontent-type: text/html\r\nX-Unusual: 1\r\n\r\n"), names);
+        assertSame("Content-Type", names.get(0));
+        assertSame("Received", names.get(1));
+        assertSame("DKIM-Signature", names.get(2));
+        // Only the usual spelling is shared
+        assertEquals("content-type", names.get(3));
+        assertEquals("X-Unusual", names.get(4));
+    }
+
+    private static void parseNames(byte[] message, final List<String> names) throws IOException {
+        final MimeStreamParser parser = new MimeStreamParser();
+        parser.setContentHandler(new AbstractContentHandler() {
+            @Override
+            public void field(RawField rawField) {
+                names.add(rawField.getName());
+            }
+
+            @Override
+            public void endHeader() {
+                parser.stop();
+            }
+        });
+        parser.parse(new ByteArrayInputStream(message));
+    }
+
+    public void testBodyDescriptor() throws IOException {
+        final BodyDescriptor[] descriptor = new BodyDescriptor[1];
+        final MimeStreamParser parser = new MimeStreamParser();
+        parser.setContentHandler(new AbstractContentHandler() {
+            @Override
+            public void body(BodyDescriptor bd, InputStream is) {
+                descriptor[0] = bd;
+            }
+        });
+        parser.parse(new ByteArrayInputStream(bytes("Subject: Hi\r\n"
+                + "Content-Type: text/html;\r\n charset=\"iso-8859-1\"\r\n"
+                + "content-transfer-encoding: Base64\r\n"
+                + "\r\n"
+                + "PGI+SGk8L2I+\r\n")));
+        assertEquals("text/html", descriptor[0].getMimeType());
+        assertEquals("iso-8859-1", descriptor[0].getCharset());
+        assertEquals("base64", descriptor[0].getTransferEncoding());
+    }
+
+    public void testLongHeader() throws IOException {
+        // A header far bigger than the initial window, as with long signature chains
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("ARC-Seal: i=").append(i).append("; a=rsa-sha256; t=1400000000;\r\n")
+                    .append("\tb=0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijkl\r\n");
+        }
+        sb.append("\r\nbody");
+        final byte[] message = bytes(sb.toString());
+        final List<String> fields = parse(message);
+        assertEquals(200, fields.size());
+        assertEquals(parseLegacy(message), fields);
+    }
+
+    public void testMatchesLegacy() throws IOException {
+        final String[] pieces = {
+            "From", "Content-Type", "x-custom", "Bad Name", " ", "\t", ":", " : ", "value",
+            "\r\n", "\r\n", "\r\n", "\r\n ", "\r\n\t", "\r", "\n", "\u00e9", "\u00ff", ";"
+        };
+        final Random random = new Random(25);
+        for (int i = 0; i < 5000; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int count = random.nextInt(30);
+            for (int j = 0; j < count; j++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+            // Most headers end with an empty line; the rest are cut short
+            if (random.nextInt(4) != 0) {
+                sb.append("\r\n\r\nbody");
+            }
+            final byte[] message = bytes(sb.toString());
+            assertEquals(sb.toString(), parseLegacy(message), parse(message));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@link Base64InputStream} and {@link QuotedPrintableInputStream}
+ * when read in 8KB blocks, the way attachments are saved, against the byte at a time
+ * implementations they replaced. Results are printed to standard out in MB/s of encoded input,
+ * after checking that both implementations decode the input to the same bytes.
+ */
+@LargeTest
+public class DecoderInputStreamBenchmark extends TestCase {
+
+    private static final int SIZE = 4 * 1024 * 1024;
+    private static final int ITERATIONS = 5;
+
+    private interface Decoder {
+        InputStream open(InputStream in);
+    }
+
+    private static byte[] buildBase64() {
+        final char[] alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        final Random random = new Random(15);
+        final byte[] bytes = new byte[SIZE / 78 * 78];
+        for (int i = 0; i < bytes.length; i += 78) {
+            for (int j = 0; j < 76; j++) {
+                bytes[i + j] = (byte) alphabet[random.nextInt(alphabet.length)];
+            }
+            bytes[i + 76] = '\r';
+            bytes[i + 77] = '\n';
+        }
+        return bytes;
+    }
+
+    /**
+     * Builds quoted-printable text the way it is usually seen: mostly literal text in soft
+     * broken lines, with the odd escaped accented letter.
+     */
+    private static byte[] buildQuotedPrintable() {
+        final String[] words = { "the", "quick", "brown", "fox", "caf=C3=A9", "jumps", "over",
+                "na=C3=AFve", "lazy", "dog", "=3D" };
+        final Random random = new Random(15);
+        final StringBuilder sb = new StringBuilder(SIZE);
+        int lineLength = 0;
+        while (sb.length() < SIZE) {
+            final String word = words[random.nextInt(words.length)];
+            if (lineLength + word.length() > 74) {
+                sb.append(random.nextInt(4) == 0 ? "\r\n" : "=\r\n");
+                lineLength = 0;
+            }
+            sb.append(word).append(' ');
+            lineLength += word.length() + 1;
+        }
+        final byte[] bytes = new byte[sb.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) sb.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] decode(byte[] encoded, Decoder decoder) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        final InputStream in = decoder.open(new ByteArrayInputStream(encoded));
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks that both decoders give the same bytes, then prints how fast each of them is.
+     */
+    private static void compare(String label, byte[] encoded, Decoder decoder, Decoder legacy)
+            throws IOException {
+        final byte[] expected = decode(encoded, legacy);
+        assertTrue(expected.length > 0);
+        assertTrue(label, Arrays.equals(expected, decode(encoded, decoder)));
+        System.out.println(String.format("%s: %.1f MB/s, was %.1f MB/s", label,
+                measure(encoded, decoder), measure(encoded, legacy)));
+    }
+
+    private static double measure(byte[] encoded, Decoder decoder) throws IOException {
+        final byte[] buffer = new byte[8192];
+        long elapsed = 0;
+        for (int i = 0; i <= ITERATIONS; i++) {
+            final long start = System.nanoTime();
+            final InputStream in = decoder.open(new ByteArrayInputStream(encoded));
+            while (in.read(buffer) != -1) {
+            }
+            // The first run is warm up
+            if (i > 0) {
+                elapsed += System.nanoTime() - start;
+            }
+        }
+        return (double) encoded.length * ITERATIONS / (1024 * 1024) * 1000000000L
+                / Math.max(elapsed, 1);
+    }
+
+    public void testBase64() throws IOException {
+        final byte[] encoded = buildBase64();
+        compare("base64", encoded, new Decoder() {
+            @Override
+            public InputStream open(InputStream in) {
+                return new Base64InputStream(in);
+            }
+        }, new Decoder() {
+            @Override
+            public InputStream open(InputStream in) {
+                return new LegacyBase64InputStream(in);
+            }
+        });
+    }
+
+    public void testQuotedPrintable() throws IOException {
+        final byte[] encoded = buildQuotedPrintable();
+        compare("quoted-printable", encoded, new Decoder() {
+            @Override
+            public InputStream open(InputStream in) {
+                return new QuotedPrintableInputStream(in);
+            }
+        }, new Decoder() {
+            @Override
+            public InputStream open(InputStream in) {
+                return new LegacyQuotedPrintableInputStream(in);
+            }
+        });
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link Base64InputStream} and {@link QuotedPrintableInputStream} decode exactly
+ * what the byte at a time implementations they replaced did, malformed input included, however
+ * they are read.
+ */
+@SmallTest
+public class DecoderInputStreamTest extends TestCase {
+
+    private static byte[] readAll(InputStream in, Random random) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (true) {
+            if (random.nextInt(4) == 0) {
+                final int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                final int n = in.read(buffer, 0, 1 + random.nextInt(
+                        random.nextBoolean() ? 8 : buffer.length));
+                if (n == -1) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a stream over the given bytes that hands them out in random small chunks, as a
+     * network or boundary stream might.
+     */
+    private static InputStream chunked(byte[] bytes, final Random random) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1 + random.nextInt(100)));
+            }
+        };
+    }
+
+    private static byte[] randomInput(Random random, String alphabet, int maxLength) {
+        final byte[] bytes = new byte[random.nextInt(maxLength)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = random.nextInt(20) == 0 ? (byte) random.nextInt(256)
+                    : (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+        }
+        return bytes;
+    }
+
+    public void testBase64() throws IOException {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                + "====\r\n\r\n  ";
+        final Random random = new Random(15);
+        for (int i = 0; i < 20000; i++) {
+            final byte[] input = randomInput(random, alphabet, i % 10 == 0 ? 20000 : 40);
+            final byte[] expected = readAll(
+                    new LegacyBase64InputStream(new ByteArrayInputStream(input)), random);
+            final byte[] actual = readAll(
+                    new Base64InputStream(chunked(input, random)), random);
+            assertTrue(new String(input, "ISO-8859-1"), Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testQuotedPrintable() throws IOException {
+        final String alphabet = "abcXYZ0189AFaf==== \t\t  \r\n\r\n\r\n";
+        final Random random = new Random(15);
+        for (int i = 0; i < 20000; i++) {
+            final byte[] input = randomInput(random, alphabet, i % 10 == 0 ? 20000 : 40);
+            final byte[] expected = readAll(
+                    new LegacyQuotedPrintableInputStream(new ByteArrayInputStream(input)), random);
+            final byte[] actual = readAll(
+                    new QuotedPrintableInputStream(chunked(input, random)), random);
+            assertTrue(new String(input, "ISO-8859-1"), Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testLongPadding() throws IOException {
+        // Runs of whitespace longer than the decoder's buffer, before a line break, before the
+        // end of the stream, and before more text
+        final char[] spaces = new char[10000];
+        Arrays.fill(spaces, ' ');
+        final String run = new String(spaces);
+        final String input = "a" + run + "\r\nb" + run + "c=\r\n" + run;
+        final byte[] bytes = input.getBytes("ISO-8859-1");
+        final Random random = new Random(16);
+        assertEquals("a\r\nb" + run + "c", new String(readAll(
+                new QuotedPrintableInputStream(chunked(bytes, random)), random), "ISO-8859-1"));
+    }
+}